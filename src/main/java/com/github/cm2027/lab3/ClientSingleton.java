@@ -1,5 +1,7 @@
 package com.github.cm2027.lab3;
 
+import com.github.cm2027.lab3.client.ResilientHttpClient;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
 import com.github.cm2027.lab3.util.ConfigurationUtil;
 
 import ca.uhn.fhir.context.FhirContext;
@@ -11,14 +13,22 @@ import ca.uhn.fhir.rest.client.api.IGenericClient;
  * resources/application.properties on hapi.fhir.base-url
  * And will fallback to the deployed hapi fhir instance on kthcloud.
  * 
+ * Requests go through a ResilientHttpClient, which retries transient
+ * failures and stops sending to endpoints that keep failing.
+ * 
+ * With hapi.fhir.base-url=embedded it starts an InMemoryFhirServer in
+ * this JVM and connects to that instead, for tests and load runs.
+ * 
  * This singleton is safe to use concurrently.
  */
 public class ClientSingleton {
 
     private static final String DEFAULT_HAPI_FHIR_BASE_URL = "https://hapi-fhir.app.cloud.cbh.kth.se/fhir";
     private static final String HAPI_FHIR_BASE_KEY = "hapi.fhir.base-url";
+    private static final String EMBEDDED = "embedded";
 
     private static IGenericClient instance;
+    private static ResilientHttpClient httpClient;
 
     private ClientSingleton() {
     }
@@ -27,9 +37,22 @@ public class ClientSingleton {
         if (instance == null) {
             String baseUrl = ConfigurationUtil.getString(
                     HAPI_FHIR_BASE_KEY, DEFAULT_HAPI_FHIR_BASE_URL);
+            if (EMBEDDED.equals(baseUrl)) {
+                baseUrl = InMemoryFhirServer.startEmbedded();
+            }
             FhirContext context = FhirContext.forR4();
+            httpClient = ResilientHttpClient.create(baseUrl);
+            context.getRestfulClientFactory().setHttpClient(httpClient);
             instance = context.newRestfulGenericClient(baseUrl);
         }
         return instance;
     }
+
+    /**
+     * The HTTP client underneath the FHIR client, for metrics and raw requests.
+     */
+    public static synchronized ResilientHttpClient getHttpClient() {
+        getInstance();
+        return httpClient;
+    }
 }
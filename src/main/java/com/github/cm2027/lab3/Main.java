@@ -1,29 +1,35 @@
 package com.github.cm2027.lab3;
 
+import com.github.cm2027.lab3.api.ApiServer;
 import com.github.cm2027.lab3.cli.AuthCLI;
 import com.github.cm2027.lab3.cli.MainMenuCLI;
 import com.github.cm2027.lab3.config.MongoConfig;
 import com.github.cm2027.lab3.service.AuthService;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.bson.Document;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
 
 public class Main {
 
     public static void main(String[] args) {
 
+        // Serve the JSON API instead of the interactive CLI
+        if (args.length > 0 && "--server".equals(args[0])) {
+            ApiServer.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
         try {
             System.out.println("============================================");
             System.out.println("  CLINIC MANAGEMENT SYSTEM - LAB 3 (FHIR)");
             System.out.println("============================================");
-            System.out.println("\nConnecting to databases...");
-
-            // Initialize MongoDB for authentication
-            MongoConfig.getDatabase();
-            System.out.println("✓ Connected to MongoDB");
 
-            // Test FHIR connection
-            ClientSingleton.getInstance();
-            System.out.println("✓ Connected to FHIR Server");
-
-            System.out.println("\nSystem ready!");
+            // Connect in the background while the user types their
+            // credentials; login waits for MongoDB if it isn't ready yet
+            startSubsystems();
 
             // Initialize services
             AuthService authService = new AuthService();
@@ -60,4 +66,34 @@ public class Main {
             System.out.println("\nGoodbye!");
         }
     }
+
+    /**
+     * Connect to MongoDB and initialize the FHIR client (which scans the
+     * R4 model) in parallel on background threads. The MongoDB driver
+     * connects lazily, so a ping makes it resolve, handshake and
+     * authenticate now rather than on the first login query. Both are
+     * also created on first use, so callers only need to wait on the
+     * result to measure or to surface errors early.
+     */
+    public static CompletableFuture<Void> startSubsystems() {
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor("startup");
+        try {
+            CompletableFuture<Void> mongo = CompletableFuture
+                    .runAsync(() -> MongoConfig.getDatabase().runCommand(new Document("ping", 1)), executor)
+                    .whenComplete((ignored, e) -> reportFailure("MongoDB", e));
+            CompletableFuture<Void> fhir = CompletableFuture
+                    .runAsync(ClientSingleton::getInstance, executor)
+                    .whenComplete((ignored, e) -> reportFailure("FHIR client", e));
+            return CompletableFuture.allOf(mongo, fhir);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static void reportFailure(String subsystem, Throwable e) {
+        if (e != null) {
+            Throwable cause = e.getCause() != null ? e.getCause() : e;
+            System.err.println("\n✗ Failed to initialize " + subsystem + ": " + cause.getMessage());
+        }
+    }
 }
\ No newline at end of file
@@ -0,0 +1,270 @@
+package com.github.cm2027.lab3.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cm2027.lab3.Main;
+import com.github.cm2027.lab3.client.CircuitOpenException;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.mongodb.UserChangeWatcher;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the clinic's repository operations as a JSON HTTP API, so one
+ * JVM can back a whole clinic's front ends instead of one CLI user.
+ *
+ * Every request runs on its own virtual thread and authenticates with a
+ * session token from POST /api/sessions, or with HTTP Basic; the user is
+ * kept in that request's RequestContext only.
+ * Repositories, caches and the FHIR and MongoDB connection pools are
+ * shared by all requests.
+ *
+ * Errors are answered as {"error": ...}: 404 when a resource doesn't
+ * exist, 400 for other invalid input, 503 while the circuit breaker for
+ * the FHIR server is open and 500 otherwise, with the details only in
+ * the server's log.
+ *
+ * Start with: Main --server [port], or ApiServer [port]. The port
+ * defaults to api.port (8080).
+ */
+public class ApiServer {
+
+    private static final String PORT_KEY = "api.port";
+    private static final String REBUILD_CONVERSATIONS_KEY = "conversations.rebuild-on-start";
+    private static final int DEFAULT_PORT = 8080;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final List<Route> routes = new ArrayList<>();
+    private HttpServer server;
+    private ExecutorService executor;
+
+    /**
+     * Handles one request. The result is sent as JSON, or as is if it is
+     * a StreamedResponse; null sends 204.
+     */
+    @FunctionalInterface
+    public interface Handler {
+        Object handle(RequestContext context) throws Exception;
+    }
+
+    public ApiServer() {
+        this(true);
+    }
+
+    private ApiServer(boolean clinicRoutes) {
+        if (clinicRoutes) {
+            new ClinicApi().register(this);
+        }
+    }
+
+    /**
+     * A server without the clinic's routes, for adding routes of one's own
+     * (see TestApiServer).
+     */
+    public static ApiServer empty() {
+        return new ApiServer(false);
+    }
+
+    /**
+     * Add a route. Path segments in braces, as in "/api/appointments/{id}",
+     * match any single segment and are available through
+     * RequestContext.pathParam.
+     */
+    public void route(String method, String path, boolean authenticated, Handler handler) {
+        List<String> names = new ArrayList<>();
+        Matcher placeholders = Pattern.compile("\\{([^/]+)}").matcher(path);
+        StringBuilder regex = new StringBuilder();
+        int last = 0;
+        while (placeholders.find()) {
+            regex.append(Pattern.quote(path.substring(last, placeholders.start()))).append("([^/]+)");
+            names.add(placeholders.group(1));
+            last = placeholders.end();
+        }
+        regex.append(Pattern.quote(path.substring(last)));
+        routes.add(new Route(method, Pattern.compile(regex.toString()), names, authenticated, handler));
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        executor = VirtualThreads.newPerTaskExecutor("api");
+        server.setExecutor(executor);
+        server.createContext("/api", this::handle);
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            boolean pathMatched = false;
+            for (Route route : routes) {
+                Matcher matcher = route.pattern.matcher(path);
+                if (!matcher.matches()) {
+                    continue;
+                }
+                pathMatched = true;
+                if (!route.method.equals(exchange.getRequestMethod())) {
+                    continue;
+                }
+                Map<String, String> pathParams = new HashMap<>();
+                for (int i = 0; i < route.names.size(); i++) {
+                    pathParams.put(route.names.get(i), matcher.group(i + 1));
+                }
+                RequestContext context = new RequestContext(exchange, mapper, pathParams);
+                if (route.authenticated) {
+                    context.authenticate();
+                }
+                Object result = route.handler.handle(context);
+                send(exchange, result == null ? 204 : context.getStatus(), result);
+                return;
+            }
+            throw pathMatched
+                    ? new ApiException(405, exchange.getRequestMethod() + " is not allowed on " + path)
+                    : ApiException.notFound("No such endpoint: " + path);
+        } catch (ApiException e) {
+            if (e.getStatus() == 401) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"clinic\"");
+            }
+            send(exchange, e.getStatus(), Map.of("error", e.getMessage()));
+        } catch (NotFoundException e) {
+            send(exchange, 404, Map.of("error", e.getMessage()));
+        } catch (IllegalArgumentException e) {
+            send(exchange, 400, Map.of("error", String.valueOf(e.getMessage())));
+        } catch (Exception e) {
+            // HAPI wraps the breaker's IOException in its own exceptions
+            CircuitOpenException open = causeOfType(e, CircuitOpenException.class);
+            if (open != null) {
+                send(exchange, 503, Map.of("error", open.getMessage()));
+            } else {
+                // Details stay in the server log; they can name hosts and internals
+                System.err.println("Request " + exchange.getRequestMethod() + " "
+                        + exchange.getRequestURI().getPath() + " failed:");
+                e.printStackTrace();
+                send(exchange, 500, Map.of("error", "Internal server error"));
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * The first exception of the given type in e's cause chain, or null.
+     */
+    static <T extends Throwable> T causeOfType(Throwable e, Class<T> type) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (type.isInstance(cause)) {
+                return type.cast(cause);
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    private void send(HttpExchange exchange, int status, Object result) throws IOException {
+        if (status == 204) {
+            exchange.sendResponseHeaders(204, -1);
+            return;
+        }
+        if (result instanceof StreamedResponse) {
+            StreamedResponse streamed = (StreamedResponse) result;
+            exchange.getResponseHeaders().set("Content-Type", streamed.getContentType());
+            streamed.getHeaders().forEach(exchange.getResponseHeaders()::set);
+            exchange.sendResponseHeaders(status, streamed.getLength() == 0 ? -1 : streamed.getLength());
+            try (OutputStream out = exchange.getResponseBody()) {
+                streamed.getBody().writeTo(out);
+            }
+            return;
+        }
+        byte[] body = mapper.writeValueAsBytes(result);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : ConfigurationUtil.getInt(PORT_KEY, DEFAULT_PORT);
+        Main.startSubsystems();
+        // Keep cached sessions in step with role changes and deleted users
+        UserChangeWatcher.getInstance().start();
+        ApiServer server = new ApiServer();
+        try {
+            server.start(port);
+        } catch (IOException e) {
+            System.err.println("Failed to start API server: " + e.getMessage());
+            MongoConfig.close();
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            UserChangeWatcher.getInstance().stop();
+            MongoConfig.close();
+        }));
+        System.out.println("Clinic API listening on http://localhost:" + server.getPort() + "/api");
+        if (ConfigurationUtil.getBoolean(REBUILD_CONVERSATIONS_KEY, true)) {
+            rebuildConversationIndex();
+        }
+    }
+
+    /**
+     * Backfill the conversation index in the background with messages it
+     * is missing, e.g. sent while MongoDB was unavailable.
+     */
+    private static void rebuildConversationIndex() {
+        VirtualThreads.start("conversation-rebuild", () -> RequestPriority.run(RequestPriority.BATCH, () -> {
+            try {
+                int added = new CommunicationFhirRepository().rebuildConversationIndex();
+                if (added > 0) {
+                    System.out.println("Added " + added + " message(s) to the conversation index");
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Conversation index rebuild failed: " + e.getMessage());
+            }
+        }));
+    }
+
+    private static final class Route {
+
+        private final String method;
+        private final Pattern pattern;
+        private final List<String> names;
+        private final boolean authenticated;
+        private final Handler handler;
+
+        Route(String method, Pattern pattern, List<String> names, boolean authenticated, Handler handler) {
+            this.method = method;
+            this.pattern = pattern;
+            this.names = names;
+            this.authenticated = authenticated;
+            this.handler = handler;
+        }
+    }
+}
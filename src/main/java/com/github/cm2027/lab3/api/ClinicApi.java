@@ -0,0 +1,563 @@
+package com.github.cm2027.lab3.api;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.FreeBusyCalendar;
+import com.github.cm2027.lab3.dao.fhir.MessageNotifier;
+import com.github.cm2027.lab3.dao.fhir.ObservationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.ProjectedRecord;
+import com.github.cm2027.lab3.dao.mongodb.AttachmentRepository;
+import com.github.cm2027.lab3.model.mongo.Conversation;
+import com.github.cm2027.lab3.model.mongo.MessageAttachment;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.search.NameIndex;
+import com.github.cm2027.lab3.search.TextIndex;
+import com.github.cm2027.lab3.service.SessionStore;
+import com.github.cm2027.lab3.util.StreamUtil;
+import org.bson.types.ObjectId;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The API's endpoints. Each one makes the same repository calls as the
+ * matching CLI menu entry, for the user authenticated on the request.
+ *
+ *   GET    /api/health
+ *   POST   /api/sessions                  log in with Basic, returns a Bearer token
+ *   DELETE /api/sessions                  log out
+ *   GET    /api/me
+ *   GET    /api/summary
+ *   GET    /api/appointments?page=0&size=10
+ *   POST   /api/appointments              (doctor)
+ *   GET    /api/appointments/{id}         (doctor taking part)
+ *   DELETE /api/appointments/{id}         (doctor taking part)
+ *   GET    /api/availability?days=7[&doctor=ID]
+ *   GET    /api/inbox?size=10             conversations and unread counts
+ *   POST   /api/inbox/read                {"peer": "Practitioner/123"} marks a conversation read
+ *   GET    /api/notifications?after=N&timeout=25   waits for new messages
+ *   GET    /api/messages?page=0&size=10
+ *                                         (paging reaches the first 1000 items)
+ *   POST   /api/messages                  {"text": ..., "attachments": [id, ...]}
+ *   POST   /api/attachments?filename=NAME raw body, sent with Content-Type
+ *   GET    /api/attachments/{id}          supports Range: bytes=start-end
+ *   POST   /api/observations              (doctor)
+ *   GET    /api/search?q=...&size=10      own messages and observations;
+ *                                         doctors may add &patientPN= for the
+ *                                         patient's observations and messages
+ *                                         with that doctor
+ *   GET    /api/patients?name=...&size=10 (doctor) type-ahead name search
+ *   GET    /api/practitioners?name=...&size=10     type-ahead name search
+ *
+ * Dates are ISO-8601 local date-times, e.g. 2025-03-01T09:30.
+ */
+class ClinicApi {
+
+    private static final int DEFAULT_PAGE_SIZE = 10;
+    private static final int MAX_PAGE_SIZE = 100;
+    // Paging walks every earlier page on the FHIR server, so stop deep
+    private static final int MAX_PAGED_ITEMS = 1000;
+    private static final int MAX_WAIT_SECONDS = 60;
+    private static final Pattern BYTE_RANGE = Pattern.compile("bytes=(\\d*)-(\\d*)");
+
+    private final PatientFhirRepository patientRepo = new PatientFhirRepository();
+    private final PractitionerFhirRepository practitionerRepo = new PractitionerFhirRepository();
+    private final AppointmentFhirRepository appointmentRepo = new AppointmentFhirRepository();
+    private final ObservationFhirRepository observationRepo = new ObservationFhirRepository();
+    private final CommunicationFhirRepository communicationRepo = new CommunicationFhirRepository();
+    private final AttachmentRepository attachmentRepo = new AttachmentRepository();
+
+    void register(ApiServer server) {
+        server.route("GET", "/api/health", false, context -> Map.of("status", "ok"));
+        server.route("POST", "/api/sessions", true, this::startSession);
+        server.route("DELETE", "/api/sessions", true, this::endSession);
+        server.route("GET", "/api/me", true, this::me);
+        server.route("GET", "/api/summary", true, this::summary);
+        server.route("GET", "/api/appointments", true, this::listAppointments);
+        server.route("POST", "/api/appointments", true, this::createAppointment);
+        server.route("GET", "/api/appointments/{id}", true, this::appointmentDetails);
+        server.route("DELETE", "/api/appointments/{id}", true, this::deleteAppointment);
+        server.route("GET", "/api/availability", true, this::availability);
+        server.route("GET", "/api/inbox", true, this::inbox);
+        server.route("POST", "/api/inbox/read", true, this::markRead);
+        server.route("GET", "/api/notifications", true, this::notifications);
+        server.route("GET", "/api/messages", true, this::listMessages);
+        server.route("POST", "/api/messages", true, this::sendMessage);
+        server.route("POST", "/api/attachments", true, this::uploadAttachment);
+        server.route("GET", "/api/attachments/{id}", true, this::downloadAttachment);
+        server.route("POST", "/api/observations", true, this::createObservation);
+        server.route("GET", "/api/search", true, this::search);
+        server.route("GET", "/api/patients", true, this::findPatients);
+        server.route("GET", "/api/practitioners", true, this::findPractitioners);
+    }
+
+    private Object startSession(RequestContext context) {
+        // A token must not mint tokens that outlive its own revocation
+        if (context.isTokenAuthenticated()) {
+            throw new ApiException(401, "Log in with a username and password to start a session");
+        }
+        String token = context.getAuthService().startSession();
+        Map<String, Object> session = new LinkedHashMap<>();
+        session.put("token", token);
+        session.put("expiresAt", Instant.ofEpochMilli(SessionStore.getInstance().getExpiresAt(token)).toString());
+        context.setStatus(201);
+        return session;
+    }
+
+    private Object endSession(RequestContext context) {
+        context.getAuthService().endSession();
+        return null;
+    }
+
+    private Object me(RequestContext context) {
+        User user = context.getUser();
+        Map<String, Object> me = new LinkedHashMap<>();
+        me.put("username", user.getUsername());
+        me.put("role", user.getRole().name());
+        me.put("personRef", user.getPersonRef());
+        me.put("name", user.getName());
+        return me;
+    }
+
+    private Object summary(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        String summary = user.getRole() == User.Role.DOCTOR
+                ? practitionerRepo.getPractitionerSummary(user.getPersonRef())
+                : patientRepo.getPatientSummary(user.getPersonRef());
+        return Map.of("summary", summary);
+    }
+
+    private Object listAppointments(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        int size = pageSize(context);
+        StreamUtil.Cursor<ProjectedRecord> cursor = user.getRole() == User.Role.DOCTOR
+                ? appointmentRepo.pageSummariesByPractitioner(user.getPersonRef(), size)
+                : appointmentRepo.pageSummariesByPatient(user.getPersonRef(), size);
+        return page(context, cursor, apt -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", appointmentRepo.getAppointmentID(apt));
+            item.put("start", apt.get("start"));
+            item.put("status", apt.get("status"));
+            item.put("reason", apt.get("description"));
+            return item;
+        });
+    }
+
+    private Object createAppointment(RequestContext context) throws Exception {
+        User doctor = context.requireRole(User.Role.DOCTOR);
+        JsonNode body = context.body();
+        String appointmentID = RequestContext.field(body, "appointmentId", true);
+        appointmentRepo.createAppointment(
+                appointmentID,
+                RequestContext.field(body, "patientPN", true),
+                doctor.getPersonRef(),
+                dateTime(RequestContext.field(body, "start", true), "start"),
+                dateTime(RequestContext.field(body, "end", true), "end"),
+                RequestContext.field(body, "reason", true));
+        context.setStatus(201);
+        return Map.of("id", appointmentID);
+    }
+
+    private Object appointmentDetails(RequestContext context) throws Exception {
+        User doctor = context.requireRole(User.Role.DOCTOR);
+        String id = context.pathParam("id");
+        requireOwnAppointment(doctor, id);
+        return Map.of("id", id, "details", appointmentRepo.getAppointmentDetails(id));
+    }
+
+    private Object deleteAppointment(RequestContext context) throws Exception {
+        User doctor = context.requireRole(User.Role.DOCTOR);
+        String id = context.pathParam("id");
+        requireOwnAppointment(doctor, id);
+        appointmentRepo.deleteAppointment(id, true);
+        return null;
+    }
+
+    /**
+     * 404 unless the doctor takes part in the appointment, so other
+     * doctors' appointment IDs can't be told apart from unknown ones.
+     */
+    private void requireOwnAppointment(User doctor, String appointmentID) throws Exception {
+        if (!appointmentRepo.hasPractitioner(appointmentID, doctor.getPersonRef())) {
+            throw ApiException.notFound("No appointment found with ID: " + appointmentID);
+        }
+    }
+
+    private Object availability(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        String doctorID = user.getRole() == User.Role.DOCTOR
+                ? context.queryParam("doctor", user.getPersonRef())
+                : context.queryParam("doctor", null);
+        if (doctorID == null) {
+            Patient patient = patientRepo.findByPN(user.getPersonRef());
+            doctorID = patientRepo.getPrimaryDoctorIdentifier(patient);
+            if (doctorID == null) {
+                throw ApiException.badRequest("doctor is required when you have no assigned doctor");
+            }
+        }
+        int days = context.intParam("days", 7);
+        if (days < 1 || days > 60) {
+            throw ApiException.badRequest("days must be between 1 and 60");
+        }
+
+        LocalDate today = LocalDate.now();
+        List<Map<String, Object>> windows = new ArrayList<>();
+        for (FreeBusyCalendar.Window window : appointmentRepo.getFreeBusy(doctorID, today, today.plusDays(days - 1))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("status", window.isBusy() ? "busy" : "free");
+            item.put("start", window.getStart().toString());
+            item.put("end", window.getEnd().toString());
+            windows.add(item);
+        }
+        return Map.of("doctor", doctorID, "windows", windows);
+    }
+
+    private Object inbox(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        String patientPN = doctor ? null : user.getPersonRef();
+        String doctorID = doctor ? user.getPersonRef() : null;
+
+        List<Map<String, Object>> conversations = new ArrayList<>();
+        for (Conversation conversation : communicationRepo.getInbox(patientPN, doctorID, pageSize(context))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("peer", conversation.getPeer());
+            item.put("lastSent", conversation.getLastSentAt() == null
+                    ? null : conversation.getLastSentAt().toInstant().toString());
+            item.put("lastSender", conversation.getLastSender());
+            item.put("lastText", conversation.getLastText());
+            item.put("unread", conversation.getUnread());
+            conversations.add(item);
+        }
+
+        Map<String, Object> inbox = new LinkedHashMap<>();
+        inbox.put("unread", communicationRepo.getUnreadCount(patientPN, doctorID));
+        inbox.put("conversations", conversations);
+        return inbox;
+    }
+
+    private Object markRead(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        String peer = RequestContext.field(context.body(), "peer", true);
+        communicationRepo.markConversationRead(doctor ? null : user.getPersonRef(),
+                doctor ? user.getPersonRef() : null, peer);
+        return null;
+    }
+
+    /**
+     * Long poll: answer as soon as a message newer than "after" arrives
+     * for the user, or with no messages after "timeout" seconds. Clients
+     * pass the returned "sequence" as "after" on the next call; without
+     * "after" the call returns the current sequence right away.
+     */
+    private Object notifications(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        String ref = communicationRepo.getParticipantRef(
+                doctor ? null : user.getPersonRef(), doctor ? user.getPersonRef() : null);
+        MessageNotifier notifier = MessageNotifier.getInstance();
+
+        String after = context.queryParam("after", null);
+        int timeout = context.intParam("timeout", 25);
+        if (timeout < 0 || timeout > MAX_WAIT_SECONDS) {
+            throw ApiException.badRequest("timeout must be between 0 and " + MAX_WAIT_SECONDS);
+        }
+
+        long sequence = notifier.getSequence();
+        if (after != null) {
+            try {
+                // A sequence from before a server restart starts over
+                sequence = Math.min(Long.parseLong(after), sequence);
+            } catch (NumberFormatException e) {
+                throw ApiException.badRequest("after must be a number");
+            }
+        }
+        List<Map<String, Object>> messages = new ArrayList<>();
+        if (after != null) {
+            for (MessageNotifier.Notification notification : notifier.awaitMessages(ref, sequence, timeout * 1000L)) {
+                Map<String, Object> item = new LinkedHashMap<>();
+                item.put("id", notification.getCommunicationId());
+                item.put("sent", notification.getSent() == null ? null : notification.getSent().toInstant().toString());
+                item.put("sender", notification.getSender());
+                item.put("text", notification.getText());
+                messages.add(item);
+                sequence = Math.max(sequence, notification.getSequence());
+            }
+        } else {
+            notifier.start();
+        }
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("sequence", sequence);
+        result.put("messages", messages);
+        return result;
+    }
+
+    private Object listMessages(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        StreamUtil.Cursor<Communication> cursor = communicationRepo.pageMyMessages(
+                doctor ? null : user.getPersonRef(), doctor ? user.getPersonRef() : null,
+                pageSize(context), CommunicationFhirRepository.MESSAGE_ELEMENTS);
+        return page(context, cursor, comm -> {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", communicationRepo.getCommunicationID(comm));
+            item.put("sent", comm.hasSent() ? comm.getSentElement().getValueAsString() : null);
+            item.put("sender", comm.getSender().getReference());
+            item.put("text", messageText(comm));
+            return item;
+        });
+    }
+
+    private Object sendMessage(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        JsonNode body = context.body();
+        String text = RequestContext.field(body, "text", true);
+        List<MessageAttachment> attachments = new ArrayList<>();
+        if (body.has("attachments")) {
+            for (JsonNode id : body.get("attachments")) {
+                MessageAttachment attachment = ObjectId.isValid(id.asText())
+                        ? attachmentRepo.find(new ObjectId(id.asText())) : null;
+                if (attachment == null || !user.getUsername().equals(attachment.getOwner())
+                        || attachment.getCommunicationId() != null) {
+                    throw ApiException.badRequest("Unknown or already sent attachment: " + id.asText());
+                }
+                attachments.add(attachment);
+            }
+        }
+        String commID = CommunicationFhirRepository.newCommunicationID();
+
+        if (user.getRole() == User.Role.DOCTOR) {
+            String patientPN = RequestContext.field(body, "patientPN", true);
+            communicationRepo.sendMessage(commID, null, user.getPersonRef(), patientPN, null, text, attachments);
+        } else {
+            Patient patient = patientRepo.findByPN(user.getPersonRef());
+            String doctorId = patientRepo.getPrimaryDoctorIdentifier(patient);
+            if (doctorId == null) {
+                throw ApiException.badRequest("You don't have an assigned doctor");
+            }
+            communicationRepo.sendMessage(commID, user.getPersonRef(), null, null, doctorId, text, attachments);
+        }
+        context.setStatus(201);
+        return Map.of("id", commID);
+    }
+
+    /**
+     * Store the request body as an attachment, streaming it into GridFS.
+     */
+    private Object uploadAttachment(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        String filename = context.queryParam("filename", null);
+        if (filename == null) {
+            throw ApiException.badRequest("filename is required");
+        }
+        String contentType = context.header("Content-Type");
+        MessageAttachment attachment = attachmentRepo.upload(filename,
+                contentType == null ? "application/octet-stream" : contentType,
+                user.getUsername(), context.bodyStream());
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("id", attachment.getId().toHexString());
+        result.put("filename", attachment.getFilename());
+        result.put("contentType", attachment.getContentType());
+        result.put("length", attachment.getLength());
+        result.put("sha1", attachment.getSha1());
+        context.setStatus(201);
+        return result;
+    }
+
+    /**
+     * Stream an attachment, or the single byte range asked for with a
+     * Range header (206). Other range forms get the whole file.
+     */
+    private Object downloadAttachment(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        String id = context.pathParam("id");
+        MessageAttachment attachment = ObjectId.isValid(id) ? attachmentRepo.find(new ObjectId(id)) : null;
+        if (attachment == null || !communicationRepo.canReadAttachment(attachment, user.getUsername(),
+                doctor ? null : user.getPersonRef(), doctor ? user.getPersonRef() : null)) {
+            throw ApiException.notFound("No attachment found with ID: " + id);
+        }
+
+        long size = attachment.getLength();
+        long start = 0;
+        long end = size - 1;
+        String range = context.header("Range");
+        Matcher matcher = range == null ? null : BYTE_RANGE.matcher(range.trim());
+        boolean partial = matcher != null && matcher.matches()
+                && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty());
+        if (partial) {
+            try {
+                if (matcher.group(1).isEmpty()) {
+                    // Suffix range: the last N bytes
+                    start = Math.max(0, size - Long.parseLong(matcher.group(2)));
+                } else {
+                    start = Long.parseLong(matcher.group(1));
+                    if (!matcher.group(2).isEmpty()) {
+                        end = Math.min(end, Long.parseLong(matcher.group(2)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                throw new ApiException(416, "Range not satisfiable");
+            }
+            if (start > end) {
+                throw new ApiException(416, "Range not satisfiable");
+            }
+            context.setStatus(206);
+        }
+
+        long offset = start;
+        long length = end - start + 1;
+        StreamedResponse response = new StreamedResponse(
+                attachment.getContentType() == null ? "application/octet-stream" : attachment.getContentType(),
+                length,
+                out -> attachmentRepo.download(attachment.getId(), offset, length, out))
+                .header("Accept-Ranges", "bytes")
+                .header("Content-Disposition", "attachment; filename=\"" + attachment.getSafeFilename().replace("\"", "") + "\"");
+        if (attachment.getSha1() != null) {
+            response.header("Digest", "sha=" + attachment.getSha1());
+        }
+        if (partial) {
+            response.header("Content-Range", "bytes " + start + "-" + end + "/" + size);
+        }
+        return response;
+    }
+
+    private Object createObservation(RequestContext context) throws Exception {
+        context.requireRole(User.Role.DOCTOR);
+        JsonNode body = context.body();
+        String observationID = RequestContext.field(body, "observationId", true);
+        String observedAt = RequestContext.field(body, "observedAt", false);
+        observationRepo.createObservation(
+                observationID,
+                RequestContext.field(body, "patientPN", true),
+                observedAt == null ? LocalDateTime.now() : dateTime(observedAt, "observedAt"),
+                RequestContext.field(body, "text", true));
+        context.setStatus(201);
+        return Map.of("id", observationID);
+    }
+
+    private Object search(RequestContext context) throws Exception {
+        User user = context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        String query = context.queryParam("q", null);
+        if (query == null) {
+            throw ApiException.badRequest("q is required");
+        }
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        String patientPN = doctor ? context.queryParam("patientPN", null) : user.getPersonRef();
+        String scope = communicationRepo.getParticipantRef(patientPN, doctor && patientPN == null ? user.getPersonRef() : null);
+        // A doctor sees a patient's observations, but only their own messages with the patient
+        String peer = doctor && patientPN != null ? communicationRepo.getParticipantRef(null, user.getPersonRef()) : null;
+
+        List<Map<String, Object>> hits = new ArrayList<>();
+        for (TextIndex.Hit hit : TextIndex.getInstance().search(query, scope, null, peer, pageSize(context))) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("type", hit.getResourceType());
+            item.put("id", hit.getIdentifier());
+            item.put("preview", hit.getPreview());
+            hits.add(item);
+        }
+        return Map.of("items", hits);
+    }
+
+    private Object findPatients(RequestContext context) throws Exception {
+        context.requireRole(User.Role.DOCTOR);
+        return names(patientRepo.suggestByName(requireName(context), pageSize(context)));
+    }
+
+    private Object findPractitioners(RequestContext context) throws Exception {
+        context.requireRole(User.Role.PATIENT, User.Role.DOCTOR);
+        return names(practitionerRepo.suggestByName(requireName(context), pageSize(context)));
+    }
+
+    private static String requireName(RequestContext context) {
+        String name = context.queryParam("name", null);
+        if (name == null || name.isBlank()) {
+            throw ApiException.badRequest("name is required");
+        }
+        return name;
+    }
+
+    private static Map<String, Object> names(List<NameIndex.Match> matches) {
+        List<Map<String, Object>> items = new ArrayList<>();
+        for (NameIndex.Match match : matches) {
+            Map<String, Object> item = new LinkedHashMap<>();
+            item.put("id", match.getIdentifier());
+            item.put("name", match.getName());
+            item.put("score", match.getScore());
+            items.add(item);
+        }
+        return Map.of("items", items);
+    }
+
+    /**
+     * Skip to the requested page of a cursor and return its items. Pages
+     * beyond the first MAX_PAGED_ITEMS items are refused.
+     */
+    private static <E> Map<String, Object> page(RequestContext context, StreamUtil.Cursor<E> cursor,
+                                                Function<E, Map<String, Object>> toJson) {
+        int page = context.intParam("page", 0);
+        if (page < 0) {
+            throw ApiException.badRequest("page must not be negative");
+        }
+        int size = pageSize(context);
+        if ((long) (page + 1) * size > MAX_PAGED_ITEMS) {
+            throw ApiException.badRequest("only the first " + MAX_PAGED_ITEMS
+                    + " items can be paged; page must be below " + MAX_PAGED_ITEMS / size);
+        }
+        for (int i = 0; i < page && cursor.hasNext(); i++) {
+            cursor.next();
+        }
+        List<E> items = cursor.hasNext() ? cursor.next() : Collections.emptyList();
+        List<Map<String, Object>> json = new ArrayList<>();
+        for (E item : items) {
+            json.add(toJson.apply(item));
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("page", page);
+        result.put("items", json);
+        result.put("hasMore", cursor.hasNext());
+        return result;
+    }
+
+    private static int pageSize(RequestContext context) {
+        int size = context.intParam("size", DEFAULT_PAGE_SIZE);
+        if (size < 1 || size > MAX_PAGE_SIZE) {
+            throw ApiException.badRequest("size must be between 1 and " + MAX_PAGE_SIZE);
+        }
+        return size;
+    }
+
+    private static LocalDateTime dateTime(String value, String field) {
+        try {
+            return LocalDateTime.parse(value);
+        } catch (DateTimeParseException e) {
+            throw ApiException.badRequest(field + " must look like 2025-03-01T09:30");
+        }
+    }
+
+    private static String messageText(Communication comm) {
+        if (!comm.getPayload().isEmpty() && comm.getPayloadFirstRep().getContent() instanceof StringType) {
+            return ((StringType) comm.getPayloadFirstRep().getContent()).getValue();
+        }
+        return "";
+    }
+}
@@ -0,0 +1,188 @@
+package com.github.cm2027.lab3.api;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.service.AuthService;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Everything a handler needs about one request: the path and query
+ * parameters, the body and the user who sent it.
+ *
+ * Each request gets its own AuthService, so the logged-in user lives only
+ * as long as the request instead of in shared state.
+ */
+public class RequestContext {
+
+    private final HttpExchange exchange;
+    private final ObjectMapper mapper;
+    private final Map<String, String> pathParams;
+    private final Map<String, String> queryParams;
+    private final AuthService authService = new AuthService();
+    private int status = 200;
+    private boolean tokenAuthenticated;
+
+    RequestContext(HttpExchange exchange, ObjectMapper mapper, Map<String, String> pathParams) {
+        this.exchange = exchange;
+        this.mapper = mapper;
+        this.pathParams = pathParams;
+        this.queryParams = parseQuery(exchange.getRequestURI().getRawQuery());
+    }
+
+    /**
+     * Log in with the request's session token (Authorization: Bearer) or,
+     * failing that, HTTP Basic credentials. Throws a 401 if they are
+     * missing or wrong.
+     *
+     * Tokens are resolved from SessionStore's memory; Basic credentials
+     * are checked against MongoDB on every request, so clients should
+     * POST /api/sessions once and use the token.
+     */
+    void authenticate() {
+        String header = exchange.getRequestHeaders().getFirst("Authorization");
+        if (header != null && header.regionMatches(true, 0, "Bearer ", 0, 7)) {
+            if (!authService.loginWithToken(header.substring(7).trim())) {
+                throw new ApiException(401, "Session expired or unknown");
+            }
+            tokenAuthenticated = true;
+            return;
+        }
+        if (header == null || !header.regionMatches(true, 0, "Basic ", 0, 6)) {
+            throw new ApiException(401, "Missing credentials");
+        }
+        String decoded;
+        try {
+            decoded = new String(Base64.getDecoder().decode(header.substring(6).trim()), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new ApiException(401, "Malformed credentials");
+        }
+        int colon = decoded.indexOf(':');
+        if (colon < 0 || !authService.login(decoded.substring(0, colon), decoded.substring(colon + 1))) {
+            throw new ApiException(401, "Invalid username or password");
+        }
+    }
+
+    /**
+     * True if the request logged in with a session token rather than a
+     * password.
+     */
+    public boolean isTokenAuthenticated() {
+        return tokenAuthenticated;
+    }
+
+    public User getUser() {
+        return authService.getCurrentUser();
+    }
+
+    public AuthService getAuthService() {
+        return authService;
+    }
+
+    /**
+     * Throw a 403 unless the user has one of the roles.
+     */
+    public User requireRole(User.Role... roles) {
+        User user = getUser();
+        for (User.Role role : roles) {
+            if (user != null && user.getRole() == role) {
+                return user;
+            }
+        }
+        throw ApiException.forbidden("Not allowed for role " + (user == null ? "none" : user.getRole()));
+    }
+
+    public String pathParam(String name) {
+        return pathParams.get(name);
+    }
+
+    public String queryParam(String name, String defaultValue) {
+        String value = queryParams.get(name);
+        return value == null || value.isBlank() ? defaultValue : value;
+    }
+
+    public int intParam(String name, int defaultValue) {
+        String value = queryParam(name, null);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw ApiException.badRequest(name + " must be a number");
+        }
+    }
+
+    /**
+     * The request body as JSON. Throws a 400 if it is not a JSON object.
+     */
+    public JsonNode body() throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            JsonNode body = mapper.readTree(in);
+            if (body == null || !body.isObject()) {
+                throw ApiException.badRequest("Expected a JSON object");
+            }
+            return body;
+        } catch (JsonProcessingException e) {
+            throw ApiException.badRequest("Invalid JSON: " + e.getOriginalMessage());
+        }
+    }
+
+    /**
+     * The raw request body, for content that shouldn't be read into memory
+     * at once. The server closes it after the handler returns.
+     */
+    public InputStream bodyStream() {
+        return exchange.getRequestBody();
+    }
+
+    public String header(String name) {
+        return exchange.getRequestHeaders().getFirst(name);
+    }
+
+    /**
+     * A text field of a JSON body. Throws a 400 if it is required and
+     * missing or blank.
+     */
+    public static String field(JsonNode body, String name, boolean required) {
+        JsonNode value = body.get(name);
+        if (value == null || value.isNull() || value.asText().isBlank()) {
+            if (required) {
+                throw ApiException.badRequest(name + " is required");
+            }
+            return null;
+        }
+        return value.asText();
+    }
+
+    public void setStatus(int status) {
+        this.status = status;
+    }
+
+    int getStatus() {
+        return status;
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> params = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            params.putIfAbsent(name, value);
+        }
+        return params;
+    }
+}
@@ -0,0 +1,53 @@
+package com.github.cm2027.lab3.api;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A handler result that is written straight to the response instead of
+ * as JSON, for content too large to build in memory first.
+ */
+public class StreamedResponse {
+
+    /**
+     * Writes the body. It must write exactly the declared length.
+     */
+    @FunctionalInterface
+    public interface Body {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private final String contentType;
+    private final long length;
+    private final Body body;
+    private final Map<String, String> headers = new LinkedHashMap<>();
+
+    public StreamedResponse(String contentType, long length, Body body) {
+        this.contentType = contentType;
+        this.length = length;
+        this.body = body;
+    }
+
+    public StreamedResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    String getContentType() {
+        return contentType;
+    }
+
+    long getLength() {
+        return length;
+    }
+
+    Body getBody() {
+        return body;
+    }
+
+    Map<String, String> getHeaders() {
+        return headers;
+    }
+}
@@ -1,13 +1,21 @@
 package com.github.cm2027.lab3.cli;
 
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.StreamUtil;
+
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.List;
 import java.util.Scanner;
+import java.util.function.Consumer;
 
 public class CLIMenu {
 
     protected static final Scanner scanner = new Scanner(System.in);
 
+    private static final String PAGE_SIZE_KEY = "cli.page-size";
+    private static final int DEFAULT_PAGE_SIZE = 10;
+
     protected void printHeader(String title) {
         int width = 60;
         System.out.println("\n" + "=".repeat(width));
@@ -102,6 +110,45 @@ public class CLIMenu {
         }
     }
 
+    protected int getPageSize() {
+        return Math.max(1, ConfigurationUtil.getInt(PAGE_SIZE_KEY, DEFAULT_PAGE_SIZE));
+    }
+
+    /**
+     * Print a cursor page by page. The header is printed before the first
+     * row, and the next page is only fetched when the user asks for it.
+     * Returns false if there was nothing to print.
+     */
+    protected <E> boolean printPages(StreamUtil.Cursor<E> cursor, Runnable header, Consumer<E> printRow) {
+        boolean printedAny = false;
+        int pageNumber = 0;
+
+        while (cursor.hasNext()) {
+            List<E> page = cursor.next();
+            pageNumber++;
+
+            if (!page.isEmpty()) {
+                if (!printedAny) {
+                    header.run();
+                    printedAny = true;
+                }
+                for (E row : page) {
+                    printRow.accept(row);
+                }
+            }
+
+            if (!printedAny || !cursor.hasNext()) {
+                continue;
+            }
+            printDivider();
+            String input = getStringInput("Page " + pageNumber + " - Enter for more, q to stop: ");
+            if (input.equalsIgnoreCase("q")) {
+                break;
+            }
+        }
+        return printedAny;
+    }
+
     protected String formatDateTime(LocalDateTime dateTime) {
         if (dateTime == null) return "N/A";
         DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
@@ -3,9 +3,13 @@ package com.github.cm2027.lab3.cli;
 import com.github.cm2027.lab3.dao.fhir.*;
 import com.github.cm2027.lab3.model.enums.Severity;
 import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.search.NameIndex;
+import com.github.cm2027.lab3.search.TextIndex;
 import com.github.cm2027.lab3.service.AuthService;
+import com.github.cm2027.lab3.util.StreamUtil;
 import org.hl7.fhir.r4.model.*;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
@@ -37,35 +41,64 @@ public class DoctorMenuCLI extends CLIMenu {
         pauseForUser();
     }
 
-    public void viewMyAppointments() {
+    public void findPatientByName() {
         try {
-            User currentUser = authService.getCurrentUser();
-            String doctorID = currentUser.getPersonRef();
-
             clearScreen();
-            printHeader("MY APPOINTMENTS");
+            printHeader("FIND PATIENT BY NAME");
 
-            List<Appointment> appointments = appointmentRepo.listByPractitioner(doctorID);
+            String query = getStringInput("\nName, or the start of it: ");
+            if (query.isEmpty()) {
+                printError("Name cannot be empty.");
+                pauseForUser();
+                return;
+            }
 
-            if (appointments.isEmpty()) {
-                printInfo("No appointments found.");
+            List<NameIndex.Match> matches = patientRepo.suggestByName(query, getPageSize());
+            if (matches.isEmpty()) {
+                printInfo("No patients found.");
                 pauseForUser();
                 return;
             }
 
             printDivider();
-            System.out.println("ID           Date & Time          Reason");
+            System.out.println("PN               Name");
+            printDivider();
+            for (NameIndex.Match match : matches) {
+                System.out.println(String.format("%-16s %s", match.getIdentifier(), match.getName()));
+            }
             printDivider();
+            pauseForUser();
+
+        } catch (Exception e) {
+            printError("Failed to search patients: " + e.getMessage());
+            pauseForUser();
+        }
+    }
+
+    public void viewMyAppointments() {
+        try {
+            User currentUser = authService.getCurrentUser();
+            String doctorID = currentUser.getPersonRef();
+
+            clearScreen();
+            printHeader("MY APPOINTMENTS");
+
+            StreamUtil.Cursor<ProjectedRecord> appointments =
+                    appointmentRepo.pageSummariesByPractitioner(doctorID, getPageSize());
 
-            for (Appointment apt : appointments) {
+            boolean found = printPages(appointments, () -> {
+                printDivider();
+                System.out.println("ID           Date & Time          Reason");
+                printDivider();
+            }, apt -> {
                 String id = appointmentRepo.getAppointmentID(apt);
 
                 LocalDateTime start = LocalDateTime.ofInstant(
-                        apt.getStart().toInstant(),
+                        apt.getInstant("start"),
                         ZoneId.systemDefault()
                 );
 
-                String reason = apt.getDescription();
+                String reason = apt.get("description");
                 if (reason == null || reason.isBlank()) {
                     reason = "N/A";
                 }
@@ -74,6 +107,12 @@ public class DoctorMenuCLI extends CLIMenu {
                 }
 
                 System.out.println(id + "    " + formatDateTime(start) + "    " + reason);
+            });
+
+            if (!found) {
+                printInfo("No appointments found.");
+                pauseForUser();
+                return;
             }
 
             printDivider();
@@ -85,6 +124,48 @@ public class DoctorMenuCLI extends CLIMenu {
         }
     }
 
+    public void viewMyAvailability() {
+        try {
+            User currentUser = authService.getCurrentUser();
+            String doctorID = currentUser.getPersonRef();
+
+            clearScreen();
+            printHeader("MY AVAILABILITY");
+
+            String daysStr = getStringInput("\nNumber of days to show (default 7): ");
+            int days = daysStr.isEmpty() ? 7 : Integer.parseInt(daysStr);
+            if (days < 1) {
+                printError("Number of days must be at least 1.");
+                pauseForUser();
+                return;
+            }
+
+            LocalDate today = LocalDate.now();
+            List<FreeBusyCalendar.Window> windows =
+                    appointmentRepo.getFreeBusy(doctorID, today, today.plusDays(days - 1));
+
+            printDivider();
+            System.out.println("Status  From                 To");
+            printDivider();
+
+            for (FreeBusyCalendar.Window window : windows) {
+                String status = window.isBusy() ? "BUSY  " : "free  ";
+                System.out.println(status + "  " + formatDateTime(window.getStart())
+                        + "     " + formatDateTime(window.getEnd()));
+            }
+
+            printDivider();
+            pauseForUser();
+
+        } catch (NumberFormatException e) {
+            printError("Please enter a number.");
+            pauseForUser();
+        } catch (Exception e) {
+            printError("Failed to load availability: " + e.getMessage());
+            pauseForUser();
+        }
+    }
+
     public void manageAppointments() {
         while (true) {
             clearScreen();
@@ -221,7 +302,8 @@ public class DoctorMenuCLI extends CLIMenu {
 
             printMenuOptions(
                     "Create Observation",
-                    "View Observation Details"
+                    "View Observation Details",
+                    "Search Observations"
             );
 
             int choice = getIntInput("");
@@ -230,6 +312,8 @@ public class DoctorMenuCLI extends CLIMenu {
                 createObservation();
             } else if (choice == 2) {
                 viewObservationDetails();
+            } else if (choice == 3) {
+                searchObservations();
             } else if (choice == 0) {
                 return;
             } else {
@@ -285,6 +369,45 @@ public class DoctorMenuCLI extends CLIMenu {
         }
     }
 
+    private void searchObservations() {
+        try {
+            clearScreen();
+            printHeader("SEARCH OBSERVATIONS");
+
+            String patientPN = getStringInput("\nEnter Patient PN: ");
+            if (patientPN.isEmpty()) {
+                printError("Patient PN cannot be empty.");
+                pauseForUser();
+                return;
+            }
+
+            String query = getStringInput("Search for (use \"quotes\" for phrases): ");
+            if (query.isEmpty()) {
+                printError("Search cannot be empty.");
+                pauseForUser();
+                return;
+            }
+
+            List<TextIndex.Hit> hits = observationRepo.searchByPatient(patientPN, query, getPageSize());
+            if (hits.isEmpty()) {
+                printInfo("No observations found.");
+                pauseForUser();
+                return;
+            }
+
+            printDivider();
+            for (TextIndex.Hit hit : hits) {
+                System.out.println("[" + hit.getIdentifier() + "] " + hit.getPreview());
+            }
+            printDivider();
+            pauseForUser();
+
+        } catch (Exception e) {
+            printError("Failed to search observations: " + e.getMessage());
+            pauseForUser();
+        }
+    }
+
     private void viewObservationDetails() {
         try {
             String observationID = getStringInput("\nEnter Observation ID: ");
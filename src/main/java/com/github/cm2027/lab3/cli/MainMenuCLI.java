@@ -2,12 +2,14 @@ package com.github.cm2027.lab3.cli;
 
 import com.github.cm2027.lab3.model.mongo.User;
 import com.github.cm2027.lab3.service.AuthService;
+import com.github.cm2027.lab3.service.PrefetchService;
 
 public class MainMenuCLI extends CLIMenu {
 
     private final AuthService authService;
     private PatientMenuCLI patientMenu;
     private DoctorMenuCLI doctorMenu;
+    private PrefetchService prefetchService;
 
     public MainMenuCLI(AuthService authService) {
         this.authService = authService;
@@ -21,6 +23,12 @@ public class MainMenuCLI extends CLIMenu {
             return;
         }
 
+        // Warm the caches while the menu is drawn and the user picks an option
+        if (prefetchService == null) {
+            prefetchService = new PrefetchService();
+        }
+        prefetchService.prefetch(currentUser, getPageSize());
+
         if (currentUser.getRole() == User.Role.PATIENT) {
             showPatientMenu();
         } else if (currentUser.getRole() == User.Role.DOCTOR) {
@@ -88,9 +96,11 @@ public class MainMenuCLI extends CLIMenu {
                     "View My Patients",
                     "View My Appointments",
                     "Manage Appointments",
+                    "View My Availability",
                     "Manage Observations",
                     "Manage Conditions",
                     "Messages",
+                    "Find Patient by Name",
                     "Logout"
             );
 
@@ -103,12 +113,16 @@ public class MainMenuCLI extends CLIMenu {
             } else if (choice == 3) {
                 doctorMenu.manageAppointments();
             } else if (choice == 4) {
-                doctorMenu.manageObservations();
+                doctorMenu.viewMyAvailability();
             } else if (choice == 5) {
-                doctorMenu.manageConditions();
+                doctorMenu.manageObservations();
             } else if (choice == 6) {
-                doctorMenu.showMessagingMenu();
+                doctorMenu.manageConditions();
             } else if (choice == 7) {
+                doctorMenu.showMessagingMenu();
+            } else if (choice == 8) {
+                doctorMenu.findPatientByName();
+            } else if (choice == 9) {
                 if (confirmLogout()) {
                     authService.logout();
                     printSuccess("Logged out successfully.");
@@ -1,16 +1,35 @@
 package com.github.cm2027.lab3.cli;
 
 import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.MessageNotifier;
 import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
 import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.dao.mongodb.AttachmentRepository;
+import com.github.cm2027.lab3.model.mongo.Conversation;
+import com.github.cm2027.lab3.model.mongo.ConversationMessage;
+import com.github.cm2027.lab3.model.mongo.MessageAttachment;
 import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.search.TextIndex;
 import com.github.cm2027.lab3.service.AuthService;
+import com.github.cm2027.lab3.util.StreamUtil;
+import org.bson.types.ObjectId;
+import org.hl7.fhir.r4.model.Attachment;
 import org.hl7.fhir.r4.model.Communication;
 import org.hl7.fhir.r4.model.Patient;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.Collections;
+import java.util.Date;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class MessagingCLI extends CLIMenu {
 
@@ -18,30 +37,69 @@ public class MessagingCLI extends CLIMenu {
     private final CommunicationFhirRepository communicationRepo;
     private final PatientFhirRepository patientRepo;
     private final PractitionerFhirRepository practitionerRepo;
+    private final AttachmentRepository attachmentRepo;
+    // Filled by the notifier's thread, shown when the menu is next drawn
+    private final Queue<MessageNotifier.Notification> arrived = new ConcurrentLinkedQueue<>();
 
     public MessagingCLI(AuthService authService) {
         this.authService = authService;
         this.communicationRepo = new CommunicationFhirRepository();
         this.patientRepo = new PatientFhirRepository();
         this.practitionerRepo = new PractitionerFhirRepository();
+        this.attachmentRepo = new AttachmentRepository();
     }
 
     public void showMessagingMenu() {
+        // Announce messages that arrive while the menu is open. The
+        // listener only queues them: looking up the sender's name on the
+        // notifier's thread would hold up every listener, and printing
+        // there would write into the middle of the user's input
+        User currentUser = authService.getCurrentUser();
+        MessageNotifier notifier = MessageNotifier.getInstance();
+        MessageNotifier.Listener listener = arrived::add;
+        String ref = null;
+        try {
+            ref = communicationRepo.getParticipantRef(patientPN(currentUser), doctorID(currentUser));
+            notifier.subscribe(ref, listener);
+        } catch (Exception e) {
+            // Still usable without notifications
+        }
+        try {
+            showMenuLoop();
+        } finally {
+            if (ref != null) {
+                notifier.unsubscribe(ref, listener);
+            }
+            arrived.clear();
+        }
+    }
+
+    private void showMenuLoop() {
         while (true) {
             clearScreen();
             printHeader("MESSAGING");
+            announceArrived();
 
             printMenuOptions(
+                    "Inbox" + unreadBadge(),
                     "View My Messages",
-                    "Send Message"
+                    "Send Message",
+                    "Download Attachment",
+                    "Search Messages"
             );
 
             int choice = getIntInput("");
 
             if (choice == 1) {
-                viewMyMessages();
+                viewInbox();
             } else if (choice == 2) {
+                viewMyMessages();
+            } else if (choice == 3) {
                 sendMessage();
+            } else if (choice == 4) {
+                downloadAttachment();
+            } else if (choice == 5) {
+                searchMessages();
             } else if (choice == 0) {
                 return;
             } else {
@@ -51,6 +109,91 @@ public class MessagingCLI extends CLIMenu {
         }
     }
 
+    private void announceArrived() {
+        MessageNotifier.Notification notification;
+        while ((notification = arrived.poll()) != null) {
+            printInfo("New message from " + communicationRepo.getParticipantName(notification.getSender())
+                    + ": " + notification.getText());
+        }
+    }
+
+    private String unreadBadge() {
+        try {
+            User currentUser = authService.getCurrentUser();
+            int unread = communicationRepo.getUnreadCount(patientPN(currentUser), doctorID(currentUser));
+            return unread > 0 ? " (" + unread + " unread)" : "";
+        } catch (Exception e) {
+            return "";
+        }
+    }
+
+    private void viewInbox() {
+        try {
+            User currentUser = authService.getCurrentUser();
+            String patientPN = patientPN(currentUser);
+            String doctorID = doctorID(currentUser);
+
+            clearScreen();
+            List<Conversation> inbox = communicationRepo.getInbox(patientPN, doctorID, getPageSize());
+            if (inbox.isEmpty()) {
+                printHeader("INBOX");
+                printInfo("No conversations found.");
+                pauseForUser();
+                return;
+            }
+
+            String[] items = new String[inbox.size()];
+            for (int i = 0; i < inbox.size(); i++) {
+                Conversation conversation = inbox.get(i);
+                String unread = conversation.getUnread() > 0 ? " (" + conversation.getUnread() + " unread)" : "";
+                items[i] = communicationRepo.getParticipantName(conversation.getPeer()) + unread
+                        + " - " + formatDateTime(toLocalDateTime(conversation.getLastSentAt()))
+                        + "\n   " + conversation.getLastText();
+            }
+
+            int choice = selectFromList("INBOX", items);
+            if (choice == 0) {
+                return;
+            }
+
+            Conversation conversation = inbox.get(choice - 1);
+            List<ConversationMessage> messages = communicationRepo.getConversation(
+                    patientPN, doctorID, conversation.getPeer(), getPageSize());
+            Collections.reverse(messages);
+
+            clearScreen();
+            printHeader(communicationRepo.getParticipantName(conversation.getPeer()).toUpperCase());
+            for (ConversationMessage message : messages) {
+                String from = message.getSender().equals(conversation.getPeer())
+                        ? communicationRepo.getParticipantName(message.getSender()) : "You";
+                System.out.println("\n[" + formatDateTime(toLocalDateTime(message.getSentAt())) + "] " + from);
+                System.out.println(message.getText());
+                printDivider();
+            }
+
+            if (conversation.getUnread() > 0) {
+                communicationRepo.markConversationRead(patientPN, doctorID, conversation.getPeer());
+            }
+            pauseForUser();
+
+        } catch (Exception e) {
+            printError("Failed to load inbox: " + e.getMessage());
+            pauseForUser();
+        }
+    }
+
+    private String patientPN(User user) {
+        return user.getRole() == User.Role.PATIENT ? user.getPersonRef() : null;
+    }
+
+    private String doctorID(User user) {
+        return user.getRole() == User.Role.DOCTOR ? user.getPersonRef() : null;
+    }
+
+    private LocalDateTime toLocalDateTime(Date date) {
+        return date == null ? null : LocalDateTime.ofInstant(date.toInstant(), ZoneId.systemDefault());
+    }
+
     private void viewMyMessages() {
         try {
             User currentUser = authService.getCurrentUser();
@@ -58,52 +201,162 @@ public class MessagingCLI extends CLIMenu {
             clearScreen();
             printHeader("MY MESSAGES");
 
-            List<Communication> messages = null;
+            StreamUtil.Cursor<Communication> messages = null;
 
             if (currentUser.getRole() == User.Role.PATIENT) {
                 String patientPN = currentUser.getPersonRef();
-                messages = communicationRepo.getMyMessages(patientPN, null);
+                messages = communicationRepo.pageMyMessages(patientPN, null, getPageSize(),
+                        CommunicationFhirRepository.MESSAGE_ELEMENTS);
             } else if (currentUser.getRole() == User.Role.DOCTOR) {
                 String doctorID = currentUser.getPersonRef();
-                messages = communicationRepo.getMyMessages(null, doctorID);
+                messages = communicationRepo.pageMyMessages(null, doctorID, getPageSize(),
+                        CommunicationFhirRepository.MESSAGE_ELEMENTS);
+            }
+
+            if (messages == null || !printPages(messages, this::printDivider, this::printMessage)) {
+                printInfo("No messages found.");
+                pauseForUser();
+                return;
+            }
+
+            pauseForUser();
+
+        } catch (Exception e) {
+            printError("Failed to load messages: " + e.getMessage());
+            pauseForUser();
+        }
+    }
+
+    private void printMessage(Communication comm) {
+        LocalDateTime sent = null;
+        if (comm.hasSent()) {
+            sent = LocalDateTime.ofInstant(
+                    comm.getSent().toInstant(),
+                    ZoneId.systemDefault()
+            );
+        }
+
+        String messageText = "";
+        if (!comm.getPayload().isEmpty()) {
+            var payload = comm.getPayload().get(0);
+            if (payload.getContent() instanceof org.hl7.fhir.r4.model.StringType) {
+                org.hl7.fhir.r4.model.StringType content =
+                        (org.hl7.fhir.r4.model.StringType) payload.getContent();
+                messageText = content.getValue();
+            }
+        }
+
+        System.out.println("\n[" + formatDateTime(sent) + "]");
+        System.out.println(messageText);
+        for (Communication.CommunicationPayloadComponent payload : comm.getPayload()) {
+            if (payload.getContent() instanceof Attachment) {
+                Attachment attachment = (Attachment) payload.getContent();
+                System.out.println("Attachment: " + attachment.getTitle() + " (" + attachment.getSize() + " bytes) ID: "
+                        + String.valueOf(attachment.getUrl()).replace(CommunicationFhirRepository.ATTACHMENT_URL_PREFIX, ""));
+            }
+        }
+        printDivider();
+    }
+
+    /**
+     * Ask for a file to attach and upload it. Returns no attachments if
+     * the user doesn't want one.
+     */
+    private List<MessageAttachment> askForAttachment() throws Exception {
+        String path = getStringInput("\nAttach a file (path, Enter for none): ");
+        if (path.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Path file = Paths.get(path);
+        if (!Files.isRegularFile(file)) {
+            throw new IllegalArgumentException("No such file: " + path);
+        }
+        String contentType = Files.probeContentType(file);
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageAttachment attachment = attachmentRepo.upload(file.getFileName().toString(),
+                    contentType == null ? "application/octet-stream" : contentType,
+                    authService.getCurrentUser().getUsername(), in);
+            return List.of(attachment);
+        }
+    }
+
+    private void searchMessages() {
+        try {
+            User currentUser = authService.getCurrentUser();
+
+            clearScreen();
+            printHeader("SEARCH MESSAGES");
+
+            String query = getStringInput("\nSearch for (use \"quotes\" for phrases): ");
+            if (query.isEmpty()) {
+                printError("Search cannot be empty.");
+                pauseForUser();
+                return;
             }
 
-            if (messages == null || messages.isEmpty()) {
+            List<TextIndex.Hit> hits = communicationRepo.searchMessages(
+                    patientPN(currentUser), doctorID(currentUser), query, getPageSize());
+            if (hits.isEmpty()) {
                 printInfo("No messages found.");
                 pauseForUser();
                 return;
             }
 
             printDivider();
+            for (TextIndex.Hit hit : hits) {
+                System.out.println("[" + hit.getIdentifier() + "] " + hit.getPreview());
+            }
+            printDivider();
+            pauseForUser();
 
-            for (Communication comm : messages) {
-                LocalDateTime sent = null;
-                if (comm.hasSent()) {
-                    sent = LocalDateTime.ofInstant(
-                            comm.getSent().toInstant(),
-                            ZoneId.systemDefault()
-                    );
-                }
-
-                String messageText = "";
-                if (!comm.getPayload().isEmpty()) {
-                    var payload = comm.getPayload().get(0);
-                    if (payload.getContent() instanceof org.hl7.fhir.r4.model.StringType) {
-                        org.hl7.fhir.r4.model.StringType content =
-                                (org.hl7.fhir.r4.model.StringType) payload.getContent();
-                        messageText = content.getValue();
-                    }
-                }
-
-                System.out.println("\n[" + formatDateTime(sent) + "]");
-                System.out.println(messageText);
-                printDivider();
+        } catch (Exception e) {
+            printError("Failed to search messages: " + e.getMessage());
+            pauseForUser();
+        }
+    }
+
+    private void downloadAttachment() {
+        try {
+            User currentUser = authService.getCurrentUser();
+
+            clearScreen();
+            printHeader("DOWNLOAD ATTACHMENT");
+
+            String id = getStringInput("\nAttachment ID: ");
+            if (!ObjectId.isValid(id)) {
+                printError("Invalid attachment ID.");
+                pauseForUser();
+                return;
+            }
+
+            MessageAttachment attachment = attachmentRepo.find(new ObjectId(id));
+            if (attachment == null || !communicationRepo.canReadAttachment(attachment, currentUser.getUsername(),
+                    patientPN(currentUser), doctorID(currentUser))) {
+                printError("Attachment not found.");
+                pauseForUser();
+                return;
+            }
+
+            String target = getStringInput("Save as [" + attachment.getSafeFilename() + "]: ");
+            Path file = Paths.get(target.isEmpty() ? attachment.getSafeFilename() : target);
+            boolean overwrite = Files.exists(file);
+            if (overwrite && !getConfirmation(file.toAbsolutePath() + " exists. Overwrite?")) {
+                printInfo("Download cancelled.");
+                pauseForUser();
+                return;
+            }
+            long written;
+            try (OutputStream out = overwrite
+                    ? Files.newOutputStream(file)
+                    : Files.newOutputStream(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                written = attachmentRepo.download(attachment.getId(), out);
             }
 
+            printSuccess("Saved " + written + " bytes to " + file.toAbsolutePath());
             pauseForUser();
 
         } catch (Exception e) {
-            printError("Failed to load messages: " + e.getMessage());
+            printError("Failed to download attachment: " + e.getMessage());
             pauseForUser();
         }
     }
@@ -150,7 +403,9 @@ public class MessagingCLI extends CLIMenu {
                 return;
             }
 
-            String commID = "CM" + System.currentTimeMillis();
+            List<MessageAttachment> attachments = askForAttachment();
+
+            String commID = CommunicationFhirRepository.newCommunicationID();
 
             communicationRepo.sendMessage(
                     commID,
@@ -158,7 +413,8 @@ public class MessagingCLI extends CLIMenu {
                     null,
                     null,
                     doctorId,
-                    messageText
+                    messageText,
+                    attachments
             );
 
             printSuccess("Message sent successfully!");
@@ -191,7 +447,9 @@ public class MessagingCLI extends CLIMenu {
                 return;
             }
 
-            String commID = "CM" + System.currentTimeMillis();
+            List<MessageAttachment> attachments = askForAttachment();
+
+            String commID = CommunicationFhirRepository.newCommunicationID();
 
             communicationRepo.sendMessage(
                     commID,
@@ -199,7 +457,8 @@ public class MessagingCLI extends CLIMenu {
                     doctorID,
                     patientPN,
                     null,
-                    messageText
+                    messageText,
+                    attachments
             );
 
             printSuccess("Message sent successfully!");
@@ -2,13 +2,13 @@ package com.github.cm2027.lab3.cli;
 
 import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
 import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.ProjectedRecord;
 import com.github.cm2027.lab3.model.mongo.User;
 import com.github.cm2027.lab3.service.AuthService;
-import org.hl7.fhir.r4.model.Appointment;
+import com.github.cm2027.lab3.util.StreamUtil;
 
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.util.List;
 
 public class PatientMenuCLI extends CLIMenu {
 
@@ -52,27 +52,22 @@ public class PatientMenuCLI extends CLIMenu {
             clearScreen();
             printHeader("MY APPOINTMENTS");
 
-            List<Appointment> appointments = appointmentRepo.listByPatient(patientPN);
+            StreamUtil.Cursor<ProjectedRecord> appointments =
+                    appointmentRepo.pageSummariesByPatient(patientPN, getPageSize());
 
-            if (appointments.isEmpty()) {
-                printInfo("No appointments found.");
-                pauseForUser();
-                return;
-            }
-
-            printDivider();
-            System.out.println("ID           Date & Time          Reason");
-            printDivider();
-
-            for (Appointment apt : appointments) {
+            boolean found = printPages(appointments, () -> {
+                printDivider();
+                System.out.println("ID           Date & Time          Reason");
+                printDivider();
+            }, apt -> {
                 String id = appointmentRepo.getAppointmentID(apt);
 
                 LocalDateTime start = LocalDateTime.ofInstant(
-                        apt.getStart().toInstant(),
+                        apt.getInstant("start"),
                         ZoneId.systemDefault()
                 );
 
-                String reason = apt.getDescription();
+                String reason = apt.get("description");
                 if (reason == null || reason.isBlank()) {
                     reason = "N/A";
                 }
@@ -81,6 +76,12 @@ public class PatientMenuCLI extends CLIMenu {
                 }
 
                 System.out.println(id + "    " + formatDateTime(start) + "    " + reason);
+            });
+
+            if (!found) {
+                printInfo("No appointments found.");
+                pauseForUser();
+                return;
             }
 
             printDivider();
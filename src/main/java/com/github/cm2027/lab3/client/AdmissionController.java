@@ -0,0 +1,134 @@
+package com.github.cm2027.lab3.client;
+
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Admission control for outbound FHIR requests.
+ *
+ * Each priority class has its own concurrency cap and, per resource type,
+ * its own token bucket, so a bulk sync can't use up the connections or rate
+ * budget interactive users need. Limits are read from application.properties,
+ * with per resource type keys taking precedence:
+ *
+ *   fhir.concurrency.interactive=16
+ *   fhir.concurrency.batch=4
+ *   fhir.concurrency.batch.Patient=2
+ *   fhir.ratelimit.batch.per-second=20
+ *   fhir.ratelimit.batch.Appointment.per-second=10
+ *
+ * A rate of 0 (the interactive default) means unlimited.
+ */
+public class AdmissionController {
+
+    private static final int DEFAULT_INTERACTIVE_CONCURRENCY = 16;
+    private static final int DEFAULT_BATCH_CONCURRENCY = 4;
+    private static final int DEFAULT_BATCH_RATE = 20;
+
+    private final Map<RequestPriority, Semaphore> classPermits = new ConcurrentHashMap<>();
+    private final Map<String, Semaphore> typePermits = new ConcurrentHashMap<>();
+    private final Map<String, TokenBucket> buckets = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> unlimited = new ConcurrentHashMap<>();
+
+    /**
+     * Wait for permission to send a request for the given resource type.
+     * The returned permit must be closed when the request is done.
+     */
+    public Permit admit(RequestPriority priority, String resourceType) throws InterruptedException {
+        Semaphore classSemaphore = classPermits.computeIfAbsent(priority, p -> new Semaphore(concurrency(p), true));
+        Semaphore typeSemaphore = typeSemaphore(priority, resourceType);
+
+        classSemaphore.acquire();
+        try {
+            if (typeSemaphore != null) {
+                typeSemaphore.acquire();
+            }
+        } catch (InterruptedException e) {
+            classSemaphore.release();
+            throw e;
+        }
+        return new Permit(classSemaphore, typeSemaphore);
+    }
+
+    /**
+     * Wait for a rate token. Called once per attempt, so retries are
+     * rate limited too. Returns the time waited in nanoseconds.
+     */
+    public long throttle(RequestPriority priority, String resourceType) throws InterruptedException {
+        String key = priority.key() + "." + resourceType;
+        if (unlimited.containsKey(key)) {
+            return 0;
+        }
+
+        TokenBucket bucket = buckets.get(key);
+        if (bucket == null) {
+            double rate = rate(priority, resourceType);
+            if (rate <= 0) {
+                unlimited.put(key, Boolean.TRUE);
+                return 0;
+            }
+            bucket = buckets.computeIfAbsent(key, ignored -> new TokenBucket(rate, Math.max(1, rate / 2)));
+        }
+        return bucket.acquire();
+    }
+
+    /**
+     * Requests of a priority class holding a permit right now.
+     */
+    public int inFlight(RequestPriority priority) {
+        Semaphore classSemaphore = classPermits.get(priority);
+        return classSemaphore == null ? 0 : concurrency(priority) - classSemaphore.availablePermits();
+    }
+
+    private Semaphore typeSemaphore(RequestPriority priority, String resourceType) {
+        String key = "fhir.concurrency." + priority.key() + "." + resourceType;
+        if (ConfigurationUtil.getString(key) == null) {
+            return null;
+        }
+        return typePermits.computeIfAbsent(key,
+                k -> new Semaphore(Math.max(1, ConfigurationUtil.getInt(k, 1)), true));
+    }
+
+    private static int concurrency(RequestPriority priority) {
+        int fallback = priority == RequestPriority.BATCH ? DEFAULT_BATCH_CONCURRENCY : DEFAULT_INTERACTIVE_CONCURRENCY;
+        return Math.max(1, ConfigurationUtil.getInt("fhir.concurrency." + priority.key(), fallback));
+    }
+
+    private static double rate(RequestPriority priority, String resourceType) {
+        int fallback = priority == RequestPriority.BATCH ? DEFAULT_BATCH_RATE : 0;
+        int classRate = ConfigurationUtil.getInt("fhir.ratelimit." + priority.key() + ".per-second", fallback);
+        return ConfigurationUtil.getInt(
+                "fhir.ratelimit." + priority.key() + "." + resourceType + ".per-second", classRate);
+    }
+
+    /**
+     * Concurrency permit held for the duration of one request, until its
+     * response has been read or closed.
+     */
+    public static class Permit implements AutoCloseable {
+
+        private final Semaphore classSemaphore;
+        private final Semaphore typeSemaphore;
+        private boolean closed;
+
+        Permit(Semaphore classSemaphore, Semaphore typeSemaphore) {
+            this.classSemaphore = classSemaphore;
+            this.typeSemaphore = typeSemaphore;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (typeSemaphore != null) {
+                typeSemaphore.release();
+            }
+            classSemaphore.release();
+        }
+    }
+}
@@ -0,0 +1,240 @@
+package com.github.cm2027.lab3.client;
+
+import org.apache.http.Header;
+import org.apache.http.HeaderIterator;
+import org.apache.http.HttpEntity;
+import org.apache.http.ProtocolVersion;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.conn.EofSensorInputStream;
+import org.apache.http.conn.EofSensorWatcher;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.params.HttpParams;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * A response that holds its admission permit until the connection is
+ * free again: when the body has been read to the end, its stream is
+ * closed, or the response is closed. Releasing the permit when the
+ * headers arrive would let paged and streamed reads keep connections busy
+ * after their permit is gone.
+ */
+final class AdmittedResponse implements CloseableHttpResponse {
+
+    private final CloseableHttpResponse delegate;
+    private final AdmissionController.Permit permit;
+
+    private AdmittedResponse(CloseableHttpResponse delegate, AdmissionController.Permit permit) {
+        this.delegate = delegate;
+        this.permit = permit;
+        if (delegate.getEntity() != null) {
+            delegate.setEntity(new PermitEntity(delegate.getEntity()));
+        }
+    }
+
+    /**
+     * Wrap a response so its permit is released with its connection. A
+     * response without a body has nothing left to read, so the permit is
+     * released right away.
+     */
+    static CloseableHttpResponse wrap(CloseableHttpResponse response, AdmissionController.Permit permit) {
+        if (response.getEntity() == null) {
+            permit.close();
+            return response;
+        }
+        return new AdmittedResponse(response, permit);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            delegate.close();
+        } finally {
+            permit.close();
+        }
+    }
+
+    @Override
+    public StatusLine getStatusLine() {
+        return delegate.getStatusLine();
+    }
+
+    @Override
+    public void setStatusLine(StatusLine statusline) {
+        delegate.setStatusLine(statusline);
+    }
+
+    @Override
+    public void setStatusLine(ProtocolVersion ver, int code) {
+        delegate.setStatusLine(ver, code);
+    }
+
+    @Override
+    public void setStatusLine(ProtocolVersion ver, int code, String reason) {
+        delegate.setStatusLine(ver, code, reason);
+    }
+
+    @Override
+    public void setStatusCode(int code) {
+        delegate.setStatusCode(code);
+    }
+
+    @Override
+    public void setReasonPhrase(String reason) {
+        delegate.setReasonPhrase(reason);
+    }
+
+    @Override
+    public HttpEntity getEntity() {
+        return delegate.getEntity();
+    }
+
+    @Override
+    public void setEntity(HttpEntity entity) {
+        delegate.setEntity(entity == null ? null : new PermitEntity(entity));
+    }
+
+    @Override
+    public Locale getLocale() {
+        return delegate.getLocale();
+    }
+
+    @Override
+    public void setLocale(Locale loc) {
+        delegate.setLocale(loc);
+    }
+
+    @Override
+    public ProtocolVersion getProtocolVersion() {
+        return delegate.getProtocolVersion();
+    }
+
+    @Override
+    public boolean containsHeader(String name) {
+        return delegate.containsHeader(name);
+    }
+
+    @Override
+    public Header[] getHeaders(String name) {
+        return delegate.getHeaders(name);
+    }
+
+    @Override
+    public Header getFirstHeader(String name) {
+        return delegate.getFirstHeader(name);
+    }
+
+    @Override
+    public Header getLastHeader(String name) {
+        return delegate.getLastHeader(name);
+    }
+
+    @Override
+    public Header[] getAllHeaders() {
+        return delegate.getAllHeaders();
+    }
+
+    @Override
+    public void addHeader(Header header) {
+        delegate.addHeader(header);
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        delegate.addHeader(name, value);
+    }
+
+    @Override
+    public void setHeader(Header header) {
+        delegate.setHeader(header);
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        delegate.setHeader(name, value);
+    }
+
+    @Override
+    public void setHeaders(Header[] headers) {
+        delegate.setHeaders(headers);
+    }
+
+    @Override
+    public void removeHeader(Header header) {
+        delegate.removeHeader(header);
+    }
+
+    @Override
+    public void removeHeaders(String name) {
+        delegate.removeHeaders(name);
+    }
+
+    @Override
+    public HeaderIterator headerIterator() {
+        return delegate.headerIterator();
+    }
+
+    @Override
+    public HeaderIterator headerIterator(String name) {
+        return delegate.headerIterator(name);
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public void setParams(HttpParams params) {
+        delegate.setParams(params);
+    }
+
+    /**
+     * Releases the permit at the end of the body, or when its stream is
+     * closed or aborted.
+     */
+    private final class PermitEntity extends HttpEntityWrapper {
+
+        PermitEntity(HttpEntity entity) {
+            super(entity);
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new EofSensorInputStream(wrappedEntity.getContent(), new EofSensorWatcher() {
+                @Override
+                public boolean eofDetected(InputStream wrapped) {
+                    permit.close();
+                    return true;
+                }
+
+                @Override
+                public boolean streamClosed(InputStream wrapped) {
+                    permit.close();
+                    return true;
+                }
+
+                @Override
+                public boolean streamAbort(InputStream wrapped) {
+                    permit.close();
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try {
+                wrappedEntity.writeTo(out);
+            } finally {
+                permit.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.github.cm2027.lab3.client;
+
+/**
+ * Circuit breaker for one FHIR endpoint.
+ *
+ * After failureThreshold consecutive failures the circuit opens and requests
+ * are rejected without being sent. Once openMillis has passed, a single probe
+ * request is let through (half-open); its outcome closes the circuit again
+ * or re-opens it for another period.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean probeInFlight;
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Ask permission to send a request. Every permitted request must be
+     * followed by onSuccess or onFailure.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMillis) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+        }
+
+        // Half-open: only one probe at a time
+        if (probeInFlight) {
+            return false;
+        }
+        probeInFlight = true;
+        return true;
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        probeInFlight = false;
+        state = State.CLOSED;
+    }
+
+    /**
+     * Record a failure. Returns true if this failure opened the circuit.
+     */
+    public synchronized boolean onFailure() {
+        boolean wasProbe = state == State.HALF_OPEN;
+        probeInFlight = false;
+        consecutiveFailures++;
+
+        if (wasProbe || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            openedAt = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+}
@@ -0,0 +1,13 @@
+package com.github.cm2027.lab3.client;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of sending a request while an endpoint's circuit is open.
+ */
+public class CircuitOpenException extends IOException {
+
+    public CircuitOpenException(String endpoint) {
+        super("FHIR server is not responding for " + endpoint + ", please try again shortly");
+    }
+}
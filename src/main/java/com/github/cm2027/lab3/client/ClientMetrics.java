@@ -0,0 +1,88 @@
+package com.github.cm2027.lab3.client;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Request counters per FHIR endpoint, kept by the resilient HTTP client.
+ */
+public class ClientMetrics {
+
+    private final ConcurrentMap<String, EndpointMetrics> endpoints = new ConcurrentHashMap<>();
+
+    public EndpointMetrics forEndpoint(String endpoint) {
+        return endpoints.computeIfAbsent(endpoint, ignored -> new EndpointMetrics());
+    }
+
+    public Map<String, EndpointMetrics> getEndpoints() {
+        return new TreeMap<>(endpoints);
+    }
+
+    /**
+     * One line per endpoint, for logging and diagnostics.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        for (Map.Entry<String, EndpointMetrics> entry : getEndpoints().entrySet()) {
+            EndpointMetrics m = entry.getValue();
+            report.append(entry.getKey())
+                    .append(": requests=").append(m.requests.get())
+                    .append(", retries=").append(m.retries.get())
+                    .append(", failures=").append(m.failures.get())
+                    .append(", rejected=").append(m.rejected.get())
+                    .append(", throttled=").append(m.throttled.get())
+                    .append(", circuitOpened=").append(m.circuitOpened.get())
+                    .append('\n');
+        }
+        return report.toString();
+    }
+
+    public static class EndpointMetrics {
+
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong retries = new AtomicLong();
+        final AtomicLong failures = new AtomicLong();
+        final AtomicLong rejected = new AtomicLong();
+        final AtomicLong circuitOpened = new AtomicLong();
+        final AtomicLong throttled = new AtomicLong();
+
+        /**
+         * Requests sent to the server, including retries.
+         */
+        public long getRequests() {
+            return requests.get();
+        }
+
+        public long getRetries() {
+            return retries.get();
+        }
+
+        /**
+         * Requests that failed after all retries.
+         */
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * Requests rejected because the circuit was open.
+         */
+        public long getRejected() {
+            return rejected.get();
+        }
+
+        public long getCircuitOpened() {
+            return circuitOpened.get();
+        }
+
+        /**
+         * Attempts that had to wait for a rate limit token.
+         */
+        public long getThrottled() {
+            return throttled.get();
+        }
+    }
+}
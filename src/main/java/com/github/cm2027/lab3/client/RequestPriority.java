@@ -0,0 +1,67 @@
+package com.github.cm2027.lab3.client;
+
+import java.util.function.Supplier;
+
+/**
+ * Priority class of outbound FHIR traffic, used for admission control.
+ *
+ * The class is tracked per thread. Interactive (CLI) traffic is the default;
+ * bulk jobs such as data lake syncs and exports run their work inside
+ * supply/run with BATCH so they draw on their own rate and concurrency budget.
+ */
+public enum RequestPriority {
+    INTERACTIVE,
+    BATCH;
+
+    private static final ThreadLocal<RequestPriority> CURRENT =
+            ThreadLocal.withInitial(() -> INTERACTIVE);
+
+    public static RequestPriority current() {
+        return CURRENT.get();
+    }
+
+    public static <T> T supply(RequestPriority priority, Supplier<T> work) {
+        RequestPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        try {
+            return work.get();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Like supply, for work that throws a checked exception.
+     */
+    public static <T, E extends Exception> T call(RequestPriority priority, Task<T, E> work) throws E {
+        RequestPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        try {
+            return work.call();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    public static void run(RequestPriority priority, Runnable work) {
+        RequestPriority previous = CURRENT.get();
+        CURRENT.set(priority);
+        try {
+            work.run();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /**
+     * Lower-case name used in configuration keys.
+     */
+    public String key() {
+        return name().toLowerCase();
+    }
+
+    @FunctionalInterface
+    public interface Task<T, E extends Exception> {
+        T call() throws E;
+    }
+}
@@ -0,0 +1,300 @@
+package com.github.cm2027.lab3.client;
+
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP client used underneath the HAPI FHIR client (see ClientSingleton).
+ *
+ * Every request passes through here, which makes it the one place to add
+ * retries with jittered exponential backoff (see RetryPolicy) and a circuit
+ * breaker per endpoint. An endpoint is the first path segment after the
+ * server base, normally the resource type ("Patient", "Appointment", ...).
+ *
+ * 5xx responses and I/O errors count as failures; 4xx responses mean the
+ * server is healthy and count as successes.
+ *
+ * Before anything is sent, requests pass admission control (see
+ * AdmissionController) for the calling thread's RequestPriority. The
+ * permit is held until the response has been read or closed, as long as
+ * its pooled connection is in use. The default pool of 20 connections covers the default interactive (16) and
+ * batch (4) concurrency caps, so batch jobs can't hold every connection.
+ */
+public class ResilientHttpClient extends CloseableHttpClient {
+
+    private final CloseableHttpClient delegate;
+    private final String basePath;
+    private final RetryPolicy retryPolicy;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final ClientMetrics metrics = new ClientMetrics();
+    private final AdmissionController admission;
+
+    public ResilientHttpClient(CloseableHttpClient delegate, String baseUrl, RetryPolicy retryPolicy,
+                               int failureThreshold, long openMillis) {
+        this(delegate, baseUrl, retryPolicy, failureThreshold, openMillis, new AdmissionController());
+    }
+
+    public ResilientHttpClient(CloseableHttpClient delegate, String baseUrl, RetryPolicy retryPolicy,
+                               int failureThreshold, long openMillis, AdmissionController admission) {
+        this.delegate = delegate;
+        this.admission = admission;
+        this.basePath = stripTrailingSlash(URI.create(baseUrl).getRawPath());
+        this.retryPolicy = retryPolicy;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Pooled client for the given server, configured from application.properties.
+     */
+    public static ResilientHttpClient create(String baseUrl) {
+        int timeoutMs = ConfigurationUtil.getInt("fhir.http.timeout-ms", 10000);
+        int maxConnections = ConfigurationUtil.getInt("fhir.http.max-connections", 20);
+
+        PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(5000, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(timeoutMs)
+                .setSocketTimeout(timeoutMs)
+                .setConnectionRequestTimeout(timeoutMs)
+                .build();
+
+        CloseableHttpClient delegate = HttpClients.custom()
+                .useSystemProperties()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .disableCookieManagement()
+                .disableAutomaticRetries()
+                .build();
+
+        return new ResilientHttpClient(
+                delegate,
+                baseUrl,
+                RetryPolicy.fromConfiguration(),
+                ConfigurationUtil.getInt("fhir.breaker.failure-threshold", 5),
+                ConfigurationUtil.getInt("fhir.breaker.open-ms", 30000));
+    }
+
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public ClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    public CircuitBreaker.State getCircuitState(String endpoint) {
+        CircuitBreaker breaker = breakers.get(endpoint);
+        return breaker == null ? CircuitBreaker.State.CLOSED : breaker.getState();
+    }
+
+    @Override
+    protected CloseableHttpResponse doExecute(HttpHost target, HttpRequest request, HttpContext context)
+            throws IOException {
+
+        String endpoint = endpointOf(request);
+        CircuitBreaker breaker = breakers.computeIfAbsent(
+                endpoint, ignored -> new CircuitBreaker(failureThreshold, openMillis));
+        ClientMetrics.EndpointMetrics endpointMetrics = metrics.forEndpoint(endpoint);
+        boolean retryable = retryPolicy.canRetry(request.getRequestLine().getMethod()) && isRepeatable(request);
+        RequestPriority priority = RequestPriority.current();
+
+        AdmissionController.Permit permit;
+        try {
+            permit = admission.admit(priority, endpoint);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection slot");
+        }
+
+        // The permit is held until the response body is consumed or closed,
+        // since the connection stays busy until then
+        try {
+            return AdmittedResponse.wrap(executeWithRetries(target, request, context, endpoint, breaker,
+                    endpointMetrics, retryable, priority), permit);
+        } catch (IOException | RuntimeException e) {
+            permit.close();
+            throw e;
+        }
+    }
+
+    private CloseableHttpResponse executeWithRetries(HttpHost target, HttpRequest request, HttpContext context,
+                                                     String endpoint, CircuitBreaker breaker,
+                                                     ClientMetrics.EndpointMetrics endpointMetrics,
+                                                     boolean retryable, RequestPriority priority)
+            throws IOException {
+
+        int attempt = 0;
+        while (true) {
+            attempt++;
+            boolean lastAttempt = !retryable || attempt >= retryPolicy.getMaxAttempts();
+
+            throttle(priority, endpoint, endpointMetrics);
+
+            if (!breaker.tryAcquire()) {
+                endpointMetrics.rejected.incrementAndGet();
+                throw new CircuitOpenException(endpoint);
+            }
+
+            endpointMetrics.requests.incrementAndGet();
+            CloseableHttpResponse response;
+            try {
+                response = delegate.execute(target, request, context);
+            } catch (IOException e) {
+                recordFailure(breaker, endpointMetrics);
+                if (lastAttempt) {
+                    endpointMetrics.failures.incrementAndGet();
+                    throw e;
+                }
+                endpointMetrics.retries.incrementAndGet();
+                sleep(retryPolicy.backoffMillis(attempt));
+                continue;
+            } catch (RuntimeException e) {
+                // Not retried, but a half-open probe must still be settled
+                recordFailure(breaker, endpointMetrics);
+                endpointMetrics.failures.incrementAndGet();
+                throw e;
+            }
+
+            int status = response.getStatusLine().getStatusCode();
+            if (status >= 500) {
+                recordFailure(breaker, endpointMetrics);
+            } else {
+                breaker.onSuccess();
+            }
+
+            if (lastAttempt || !retryPolicy.isRetryableStatus(status)) {
+                if (status >= 500) {
+                    endpointMetrics.failures.incrementAndGet();
+                }
+                return response;
+            }
+
+            long delay = retryDelay(response, attempt);
+            EntityUtils.consumeQuietly(response.getEntity());
+            response.close();
+            endpointMetrics.retries.incrementAndGet();
+            sleep(delay);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        delegate.close();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public HttpParams getParams() {
+        return delegate.getParams();
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public ClientConnectionManager getConnectionManager() {
+        return delegate.getConnectionManager();
+    }
+
+    private void throttle(RequestPriority priority, String endpoint,
+                          ClientMetrics.EndpointMetrics endpointMetrics) throws InterruptedIOException {
+        try {
+            if (admission.throttle(priority, endpoint) > 0) {
+                endpointMetrics.throttled.incrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the rate limiter");
+        }
+    }
+
+    private void recordFailure(CircuitBreaker breaker, ClientMetrics.EndpointMetrics endpointMetrics) {
+        if (breaker.onFailure()) {
+            endpointMetrics.circuitOpened.incrementAndGet();
+        }
+    }
+
+    private long retryDelay(CloseableHttpResponse response, int attempt) {
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return retryPolicy.retryAfterMillis(Long.parseLong(retryAfter.getValue().trim()));
+            } catch (NumberFormatException ignored) {
+                // HTTP-date form, fall back to our own backoff
+            }
+        }
+        return retryPolicy.backoffMillis(attempt);
+    }
+
+    private String endpointOf(HttpRequest request) {
+        String path;
+        if (request instanceof HttpUriRequest) {
+            path = ((HttpUriRequest) request).getURI().getRawPath();
+        } else {
+            path = URI.create(request.getRequestLine().getUri()).getRawPath();
+        }
+        if (path == null) {
+            return "/";
+        }
+
+        if (path.startsWith(basePath)) {
+            path = path.substring(basePath.length());
+        }
+        while (path.startsWith("/")) {
+            path = path.substring(1);
+        }
+
+        int slash = path.indexOf('/');
+        String endpoint = slash < 0 ? path : path.substring(0, slash);
+        return endpoint.isEmpty() ? "/" : endpoint;
+    }
+
+    private static boolean isRepeatable(HttpRequest request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    private static String stripTrailingSlash(String path) {
+        if (path == null) {
+            return "";
+        }
+        return path.endsWith("/") ? path.substring(0, path.length() - 1) : path;
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.cm2027.lab3.client;
+
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * When and how long to wait before retrying a failed FHIR request.
+ *
+ * Only reads (GET, HEAD, OPTIONS) are retried unless
+ * fhir.retry.non-idempotent is set: retrying a POST can create the same
+ * resource twice, and a PUT or DELETE retried after a timeout may land
+ * after a concurrent update and overwrite it. Delays grow exponentially from
+ * fhir.retry.base-delay-ms up to fhir.retry.max-delay-ms with full jitter.
+ */
+public class RetryPolicy {
+
+    private final int maxAttempts;
+    private final long baseDelayMs;
+    private final long maxDelayMs;
+    private final boolean retryNonIdempotent;
+
+    public RetryPolicy(int maxAttempts, long baseDelayMs, long maxDelayMs, boolean retryNonIdempotent) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMs = baseDelayMs;
+        this.maxDelayMs = maxDelayMs;
+        this.retryNonIdempotent = retryNonIdempotent;
+    }
+
+    public static RetryPolicy fromConfiguration() {
+        return new RetryPolicy(
+                ConfigurationUtil.getInt("fhir.retry.max-attempts", 3),
+                ConfigurationUtil.getInt("fhir.retry.base-delay-ms", 200),
+                ConfigurationUtil.getInt("fhir.retry.max-delay-ms", 5000),
+                ConfigurationUtil.getBoolean("fhir.retry.non-idempotent", false));
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * Whether a request with this HTTP method may be sent again.
+     */
+    public boolean canRetry(String method) {
+        if (retryNonIdempotent) {
+            return true;
+        }
+        switch (method.toUpperCase()) {
+            case "GET":
+            case "HEAD":
+            case "OPTIONS":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Whether a response status is worth retrying.
+     */
+    public boolean isRetryableStatus(int status) {
+        return status == 429 || status == 500 || status == 502 || status == 503 || status == 504;
+    }
+
+    /**
+     * Delay before the given retry (1 = first retry), with full jitter.
+     */
+    public long backoffMillis(int retry) {
+        long ceiling = baseDelayMs << Math.min(retry - 1, 20);
+        ceiling = Math.min(ceiling, maxDelayMs);
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * Delay requested by the server through Retry-After, capped at max delay.
+     */
+    public long retryAfterMillis(long seconds) {
+        return Math.min(seconds * 1000, maxDelayMs);
+    }
+}
@@ -0,0 +1,61 @@
+package com.github.cm2027.lab3.client;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter.
+ *
+ * Tokens refill continuously at permitsPerSecond up to burst. acquire()
+ * reserves a token and sleeps until it is available, so waiting callers
+ * are served in arrival order without spinning.
+ */
+public class TokenBucket {
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private final long nanosPerPermit;
+
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double permitsPerSecond, double burst) {
+        if (permitsPerSecond <= 0) {
+            throw new IllegalArgumentException("permitsPerSecond must be positive");
+        }
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.nanosPerPermit = (long) (TimeUnit.SECONDS.toNanos(1) / permitsPerSecond);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take one token, waiting for it if necessary.
+     * Returns the time waited in nanoseconds.
+     */
+    public long acquire() throws InterruptedException {
+        long waitNanos = reserve();
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return waitNanos;
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    private synchronized long reserve() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefill) / (double) nanosPerPermit);
+        lastRefill = now;
+
+        // Tokens may go negative: that's the queue of reservations waiting
+        // for refill, and how long the caller has to wait for its turn.
+        tokens -= 1;
+        if (tokens >= 0) {
+            return 0;
+        }
+        return (long) (-tokens * nanosPerPermit);
+    }
+}
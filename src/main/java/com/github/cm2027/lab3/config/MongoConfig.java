@@ -8,6 +8,12 @@ import com.mongodb.client.MongoDatabase;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.GridFSBuckets;
 
+/**
+ * Lazily created MongoDB client, database and GridFS bucket.
+ *
+ * Main starts the client on a background thread while the login screen
+ * is shown, so the getters are synchronized.
+ */
 public class MongoConfig {
 
     private static final String CONNECTION_STRING =
@@ -20,7 +26,7 @@ public class MongoConfig {
     private static MongoDatabase database;
     private static GridFSBucket gridFSBucket;
 
-    public static MongoClient getMongoClient() {
+    public static synchronized MongoClient getMongoClient() {
         if (mongoClient == null) {
             ConnectionString connString = new ConnectionString(CONNECTION_STRING);
             MongoClientSettings settings = MongoClientSettings.builder()
@@ -32,21 +38,21 @@ public class MongoConfig {
         return mongoClient;
     }
 
-    public static MongoDatabase getDatabase() {
+    public static synchronized MongoDatabase getDatabase() {
         if (database == null) {
             database = getMongoClient().getDatabase(DATABASE_NAME);
         }
         return database;
     }
 
-    public static GridFSBucket getGridFSBucket() {
+    public static synchronized GridFSBucket getGridFSBucket() {
         if (gridFSBucket == null) {
             gridFSBucket = GridFSBuckets.create(getDatabase(), GRIDFS_BUCKET_NAME);
         }
         return gridFSBucket;
     }
 
-    public static void close() {
+    public static synchronized void close() {
         if (mongoClient != null) {
             mongoClient.close();
             mongoClient = null;
@@ -0,0 +1,14 @@
+package com.github.cm2027.lab3.dao;
+
+/**
+ * Thrown by the repositories when the resource or document asked for
+ * doesn't exist. An IllegalArgumentException like the repositories' other
+ * errors, so existing callers keep working; the API answers it with 404
+ * instead of 400.
+ */
+public class NotFoundException extends IllegalArgumentException {
+
+    public NotFoundException(String message) {
+        super(message);
+    }
+}
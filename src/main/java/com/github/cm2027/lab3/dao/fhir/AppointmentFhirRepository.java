@@ -3,8 +3,14 @@ package com.github.cm2027.lab3.dao.fhir;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.util.IntervalTree;
+import com.github.cm2027.lab3.util.StreamUtil;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.*;
 
+import java.time.Duration;
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
@@ -13,13 +19,37 @@ import java.util.List;
 
 public class AppointmentFhirRepository {
 
-    private static final String APPOINTMENT_ID_SYSTEM = "http://kth.se/clinic/appointment-id";
+    static final String APPOINTMENT_ID_SYSTEM = "http://kth.se/clinic/appointment-id";
+    private static final String APPOINTMENT_ID_PATH = "identifier[system=" + APPOINTMENT_ID_SYSTEM + "].value";
+
+    /**
+     * Fields shown in appointment lists: id, appointment ID, start, status, description.
+     */
+    public static final JsonProjection LIST_PROJECTION = new JsonProjection(
+            "Appointment", "id", APPOINTMENT_ID_PATH, "start", "status", "description");
+
+    /**
+     * Elements needed to list appointments, without narrative or extensions.
+     */
+    public static final SearchProjection LIST_ELEMENTS = SearchProjection.elements(
+            "identifier", "status", "start", "end", "description", "participant");
+
     private final IGenericClient client;
+    private final ResourceVersionCache resourceCache;
+    private final SearchCoalescer searchCoalescer;
+    private final ProjectionSearch projectionSearch;
+    private final AppointmentScheduleIndex scheduleIndex;
+    private final FreeBusyCalendar freeBusyCalendar;
     private final PatientFhirRepository patientRepo;
     private final PractitionerFhirRepository practitionerRepo;
 
     public AppointmentFhirRepository() {
         this.client = ClientSingleton.getInstance();
+        this.resourceCache = ResourceVersionCache.getInstance();
+        this.searchCoalescer = SearchCoalescer.getInstance();
+        this.projectionSearch = ProjectionSearch.getInstance();
+        this.scheduleIndex = AppointmentScheduleIndex.getInstance();
+        this.freeBusyCalendar = FreeBusyCalendar.getInstance();
         this.patientRepo = new PatientFhirRepository();
         this.practitionerRepo = new PractitionerFhirRepository();
     }
@@ -49,6 +79,9 @@ public class AppointmentFhirRepository {
         String patientFhirId = patient.getIdElement().getIdPart();
         String practitionerFhirId = practitioner.getIdElement().getIdPart();
 
+        Date startDate = Date.from(starts.atZone(ZoneId.systemDefault()).toInstant());
+        Date endDate = Date.from(ends.atZone(ZoneId.systemDefault()).toInstant());
+
         Appointment appointment = new Appointment();
 
         Identifier identifier = new Identifier();
@@ -58,8 +91,6 @@ public class AppointmentFhirRepository {
 
         appointment.setStatus(Appointment.AppointmentStatus.BOOKED);
 
-        Date startDate = Date.from(starts.atZone(ZoneId.systemDefault()).toInstant());
-        Date endDate = Date.from(ends.atZone(ZoneId.systemDefault()).toInstant());
         appointment.setStart(startDate);
         appointment.setEnd(endDate);
 
@@ -79,14 +110,23 @@ public class AppointmentFhirRepository {
         practitionerParticipant.setStatus(Appointment.ParticipationStatus.ACCEPTED);
         appointment.addParticipant(practitionerParticipant);
 
-        MethodOutcome outcome = client.create().resource(appointment).execute();
+        try (AppointmentScheduleIndex.Reservation reservation = scheduleIndex.reserve(appointmentID,
+                "Practitioner/" + practitionerFhirId, "Patient/" + patientFhirId,
+                startDate.getTime(), endDate.getTime(), null)) {
 
-        if (!outcome.getCreated()) {
-            throw new RuntimeException("Failed to create appointment");
-        }
+            MethodOutcome outcome = client.create().resource(appointment).execute();
+            searchCoalescer.invalidate("Appointment");
+
+            if (!outcome.getCreated()) {
+                throw new RuntimeException("Failed to create appointment");
+            }
 
-        Appointment createdAppointment = (Appointment) outcome.getResource();
-        return createdAppointment;
+            Appointment createdAppointment = (Appointment) outcome.getResource();
+            if (createdAppointment != null) {
+                scheduleIndex.onSaved(createdAppointment);
+            }
+            return createdAppointment;
+        }
     }
 
     public Appointment findByID(String appointmentID) throws Exception {
@@ -95,21 +135,42 @@ public class AppointmentFhirRepository {
             throw new IllegalArgumentException("appointmentID must not be blank");
         }
 
-        Bundle results = client.search()
-                .forResource(Appointment.class)
-                .where(Appointment.IDENTIFIER.exactly().systemAndCode(APPOINTMENT_ID_SYSTEM, appointmentID))
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(SearchCoalescer.searchUrl(
+                "Appointment", "identifier", APPOINTMENT_ID_SYSTEM + "|" + appointmentID));
 
         if (results.getEntry().isEmpty()) {
-            throw new IllegalArgumentException("No appointment found with ID: " + appointmentID);
+            throw new NotFoundException("No appointment found with ID: " + appointmentID);
         }
 
         Appointment appointment = (Appointment) results.getEntry().get(0).getResource();
         return appointment;
     }
 
+    /**
+     * Whether the doctor is a participant of the appointment. Throws if
+     * either doesn't exist.
+     */
+    public boolean hasPractitioner(String appointmentID, String doctorID) throws Exception {
+        Appointment appointment = findByID(appointmentID);
+        String practitionerFhirId = practitionerRepo.findByID(doctorID).getIdElement().getIdPart();
+        for (Appointment.AppointmentParticipantComponent participant : appointment.getParticipant()) {
+            IIdType actor = participant.getActor().getReferenceElement();
+            if ("Practitioner".equals(actor.getResourceType()) && practitionerFhirId.equals(actor.getIdPart())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public List<Appointment> listByPatient(String patientPN) throws Exception {
+        return listByPatient(patientPN, SearchProjection.FULL);
+    }
+
+    /**
+     * Appointments of the patient, with only the parts of each resource
+     * selected by the projection. Partial results are tagged SUBSETTED.
+     */
+    public List<Appointment> listByPatient(String patientPN, SearchProjection projection) throws Exception {
 
         if (patientPN == null || patientPN.isBlank()) {
             throw new IllegalArgumentException("patientPN must not be blank");
@@ -118,11 +179,9 @@ public class AppointmentFhirRepository {
         Patient patient = patientRepo.findByPN(patientPN);
         String patientFhirId = patient.getIdElement().getIdPart();
 
-        Bundle results = client.search()
-                .forResource(Appointment.class)
-                .where(Appointment.PATIENT.hasId(patientFhirId))
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(projection.apply(SearchCoalescer.searchUrl(
+                "Appointment", "patient", patientFhirId)));
+        projection.markPartial(results);
 
         List<Appointment> appointments = new ArrayList<>();
         for (Bundle.BundleEntryComponent entry : results.getEntry()) {
@@ -131,13 +190,21 @@ public class AppointmentFhirRepository {
         }
 
         if (appointments.isEmpty()) {
-            throw new IllegalArgumentException("No appointments found for patient: " + patientPN);
+            throw new NotFoundException("No appointments found for patient: " + patientPN);
         }
 
         return appointments;
     }
 
     public List<Appointment> listByPractitioner(String doctorID) throws Exception {
+        return listByPractitioner(doctorID, SearchProjection.FULL);
+    }
+
+    /**
+     * Appointments of the practitioner, with only the parts of each resource
+     * selected by the projection. Partial results are tagged SUBSETTED.
+     */
+    public List<Appointment> listByPractitioner(String doctorID, SearchProjection projection) throws Exception {
 
         if (doctorID == null || doctorID.isBlank()) {
             throw new IllegalArgumentException("doctorID must not be blank");
@@ -146,11 +213,9 @@ public class AppointmentFhirRepository {
         Practitioner practitioner = practitionerRepo.findByID(doctorID);
         String practitionerFhirId = practitioner.getIdElement().getIdPart();
 
-        Bundle results = client.search()
-                .forResource(Appointment.class)
-                .where(Appointment.PRACTITIONER.hasId(practitionerFhirId))
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(projection.apply(SearchCoalescer.searchUrl(
+                "Appointment", "practitioner", practitionerFhirId)));
+        projection.markPartial(results);
 
         List<Appointment> appointments = new ArrayList<>();
         for (Bundle.BundleEntryComponent entry : results.getEntry()) {
@@ -159,12 +224,136 @@ public class AppointmentFhirRepository {
         }
 
         if (appointments.isEmpty()) {
-            throw new IllegalArgumentException("No appointments found for practitioner: " + doctorID);
+            throw new NotFoundException("No appointments found for practitioner: " + doctorID);
+        }
+
+        return appointments;
+    }
+
+    /**
+     * Like listByPatient, but only the fields of LIST_PROJECTION, read
+     * without building Appointment objects.
+     */
+    public List<ProjectedRecord> listSummariesByPatient(String patientPN) throws Exception {
+
+        if (patientPN == null || patientPN.isBlank()) {
+            throw new IllegalArgumentException("patientPN must not be blank");
+        }
+
+        Patient patient = patientRepo.findByPN(patientPN);
+        String patientFhirId = patient.getIdElement().getIdPart();
+
+        List<ProjectedRecord> appointments = projectionSearch.search(
+                SearchCoalescer.searchUrl("Appointment", "patient", patientFhirId), LIST_PROJECTION);
+
+        if (appointments.isEmpty()) {
+            throw new NotFoundException("No appointments found for patient: " + patientPN);
+        }
+
+        return appointments;
+    }
+
+    /**
+     * Like listByPractitioner, but only the fields of LIST_PROJECTION, read
+     * without building Appointment objects.
+     */
+    public List<ProjectedRecord> listSummariesByPractitioner(String doctorID) throws Exception {
+
+        if (doctorID == null || doctorID.isBlank()) {
+            throw new IllegalArgumentException("doctorID must not be blank");
+        }
+
+        Practitioner practitioner = practitionerRepo.findByID(doctorID);
+        String practitionerFhirId = practitioner.getIdElement().getIdPart();
+
+        List<ProjectedRecord> appointments = projectionSearch.search(
+                SearchCoalescer.searchUrl("Appointment", "practitioner", practitionerFhirId), LIST_PROJECTION);
+
+        if (appointments.isEmpty()) {
+            throw new NotFoundException("No appointments found for practitioner: " + doctorID);
         }
 
         return appointments;
     }
 
+    /**
+     * The patient's appointments as LIST_PROJECTION records, newest first,
+     * pageSize per page. Each page is fetched when the cursor is advanced,
+     * so showing the first page costs the same however many there are.
+     */
+    public StreamUtil.Cursor<ProjectedRecord> pageSummariesByPatient(String patientPN, int pageSize) throws Exception {
+
+        if (patientPN == null || patientPN.isBlank()) {
+            throw new IllegalArgumentException("patientPN must not be blank");
+        }
+
+        Patient patient = patientRepo.findByPN(patientPN);
+        String patientFhirId = patient.getIdElement().getIdPart();
+
+        return projectionSearch.cursor(SearchCoalescer.searchUrl("Appointment",
+                "patient", patientFhirId, "_sort", "-date", "_count", String.valueOf(pageSize)), LIST_PROJECTION);
+    }
+
+    /**
+     * The practitioner's appointments as LIST_PROJECTION records, newest
+     * first, pageSize per page. See pageSummariesByPatient.
+     */
+    public StreamUtil.Cursor<ProjectedRecord> pageSummariesByPractitioner(String doctorID, int pageSize) throws Exception {
+
+        if (doctorID == null || doctorID.isBlank()) {
+            throw new IllegalArgumentException("doctorID must not be blank");
+        }
+
+        Practitioner practitioner = practitionerRepo.findByID(doctorID);
+        String practitionerFhirId = practitioner.getIdElement().getIdPart();
+
+        return projectionSearch.cursor(SearchCoalescer.searchUrl("Appointment",
+                "practitioner", practitionerFhirId, "_sort", "-date", "_count", String.valueOf(pageSize)),
+                LIST_PROJECTION);
+    }
+
+    /**
+     * Free windows of at least minLength in the practitioner's schedule
+     * between from and to, from the in-memory schedule index.
+     */
+    public List<IntervalTree.Range> findFreeSlots(String doctorID, LocalDateTime from, LocalDateTime to,
+                                                  Duration minLength) throws Exception {
+
+        if (doctorID == null || doctorID.isBlank()) {
+            throw new IllegalArgumentException("doctorID must not be blank");
+        }
+        if (from == null || to == null || !to.isAfter(from)) {
+            throw new IllegalArgumentException("to must be after from");
+        }
+
+        Practitioner practitioner = practitionerRepo.findByID(doctorID);
+        String practitionerFhirId = practitioner.getIdElement().getIdPart();
+
+        return scheduleIndex.freeSlots("Practitioner/" + practitionerFhirId,
+                from.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                to.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli(),
+                minLength.toMillis());
+    }
+
+    /**
+     * The practitioner's free and busy windows from the start of day from
+     * to the end of day to, in 15-minute slots.
+     */
+    public List<FreeBusyCalendar.Window> getFreeBusy(String doctorID, LocalDate from, LocalDate to) throws Exception {
+
+        if (doctorID == null || doctorID.isBlank()) {
+            throw new IllegalArgumentException("doctorID must not be blank");
+        }
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("from and to must not be null");
+        }
+
+        Practitioner practitioner = practitionerRepo.findByID(doctorID);
+        String practitionerFhirId = practitioner.getIdElement().getIdPart();
+
+        return freeBusyCalendar.getFreeBusy("Practitioner/" + practitionerFhirId, from, to);
+    }
+
     public String getAppointmentDetails(String appointmentID) throws Exception {
 
         Appointment appointment = findByID(appointmentID);
@@ -198,13 +387,13 @@ public class AppointmentFhirRepository {
             String actorId = actorRef.getReferenceElement().getIdPart();
 
             if (actorType.equals("Patient")) {
-                Patient patient = client.read().resource(Patient.class).withId(actorId).execute();
+                Patient patient = resourceCache.read(Patient.class, actorId);
                 String name = patient.getNameFirstRep().getNameAsSingleString();
                 details = details + "  - Patient: " + name + "\n";
             }
 
             if (actorType.equals("Practitioner")) {
-                Practitioner practitioner = client.read().resource(Practitioner.class).withId(actorId).execute();
+                Practitioner practitioner = resourceCache.read(Practitioner.class, actorId);
                 String name = practitioner.getNameFirstRep().getNameAsSingleString();
                 details = details + "  - Practitioner: Dr. " + name + "\n";
             }
@@ -249,7 +438,15 @@ public class AppointmentFhirRepository {
             throw new IllegalArgumentException("end time must be after start time");
         }
 
-        client.update().resource(appointment).execute();
+        try (AppointmentScheduleIndex.Reservation reservation = scheduleIndex.reserve(getAppointmentID(appointment),
+                getParticipantRef(appointment, "Practitioner"), getParticipantRef(appointment, "Patient"),
+                appointment.getStart().getTime(), appointment.getEnd().getTime(),
+                appointment.getIdElement().getIdPart())) {
+
+            client.update().resource(appointment).execute();
+            searchCoalescer.invalidate("Appointment");
+            scheduleIndex.onSaved(appointment);
+        }
 
         return appointment;
     }
@@ -268,6 +465,8 @@ public class AppointmentFhirRepository {
         }
 
         client.delete().resourceById("Appointment", appointmentFhirId).execute();
+        searchCoalescer.invalidate("Appointment");
+        scheduleIndex.onDeleted(appointmentFhirId);
 
         String result = "Successfully deleted appointment " + id;
         return result;
@@ -285,4 +484,21 @@ public class AppointmentFhirRepository {
 
         return "N/A";
     }
-}
\ No newline at end of file
+
+    public String getAppointmentID(ProjectedRecord appointment) {
+        return appointment.get(APPOINTMENT_ID_PATH, "N/A");
+    }
+
+    /**
+     * Reference ("Patient/123") of the first participant of the given type, or null.
+     */
+    private String getParticipantRef(Appointment appointment, String resourceType) {
+        for (Appointment.AppointmentParticipantComponent participant : appointment.getParticipant()) {
+            IIdType actor = participant.getActor().getReferenceElement();
+            if (resourceType.equals(actor.getResourceType()) && actor.hasIdPart()) {
+                return resourceType + "/" + actor.getIdPart();
+            }
+        }
+        return null;
+    }
+}
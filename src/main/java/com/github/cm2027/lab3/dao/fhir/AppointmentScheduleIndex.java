@@ -0,0 +1,643 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.IntervalTree;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * In-memory index of booked appointments, one interval tree per
+ * practitioner and per patient, for conflict checks and free-slot queries
+ * without a search per booking.
+ *
+ * Participants are identified by FHIR reference ("Practitioner/123",
+ * "Patient/456"). A participant's bookings are loaded with a search the
+ * first time they are needed, then kept fresh by AppointmentFhirRepository,
+ * which reports its own creates, updates and deletes, and by polling the
+ * Appointment history for changes made elsewhere, every
+ * schedule.poll-interval-ms (default 30000, 0 disables polling). History
+ * is used rather than a _lastUpdated search because it also reports deletes.
+ * Polls start from the server's clock, taken before the first schedule is
+ * searched, and reach back OVERLAP_MS so changes committed with a slightly
+ * older timestamp aren't missed; versions seen already are skipped. A poll
+ * that finds changes also drops kept Appointment searches (see
+ * SearchCoalescer.invalidate).
+ *
+ * Cancelled, no-show and entered-in-error appointments don't occupy time.
+ *
+ * Bookings reserve their time with reserve() before the appointment is
+ * written, so two bookings of the same slot can't both pass the check.
+ *
+ * The index is shared by all repositories and is safe to use concurrently.
+ * It synchronizes on itself; listeners are called holding that lock, so
+ * views built on the index (see FreeBusyCalendar) can stay consistent
+ * with it by synchronizing on the index too.
+ */
+public class AppointmentScheduleIndex {
+
+    private static final String POLL_INTERVAL_KEY = "schedule.poll-interval-ms";
+    private static final int DEFAULT_POLL_INTERVAL_MS = 30000;
+    private static final long OVERLAP_MS = 5000;
+
+    private static AppointmentScheduleIndex instance;
+
+    private final IGenericClient client;
+    private final SearchCoalescer searchCoalescer;
+    private final long pollIntervalMs;
+    private final Map<String, IntervalTree<Booking>> schedules = new HashMap<>();
+    private final Map<String, Booking> bookings = new HashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    // Changes made while a participant's search is running, replayed onto its new schedule
+    private final Set<List<Runnable>> loadsInProgress = Collections.newSetFromMap(new IdentityHashMap<>());
+    private long nextReservation;
+    // Server time the next poll starts from, and the versioned IDs seen
+    // in the overlap window with when they were updated
+    private Date lastPoll;
+    private final Map<String, Long> seen = new HashMap<>();
+    private Thread poller;
+
+    private AppointmentScheduleIndex(IGenericClient client, SearchCoalescer searchCoalescer, long pollIntervalMs) {
+        this.client = client;
+        this.searchCoalescer = searchCoalescer;
+        this.pollIntervalMs = pollIntervalMs;
+    }
+
+    public static synchronized AppointmentScheduleIndex getInstance() {
+        if (instance == null) {
+            instance = new AppointmentScheduleIndex(
+                    ClientSingleton.getInstance(),
+                    SearchCoalescer.getInstance(),
+                    ConfigurationUtil.getInt(POLL_INTERVAL_KEY, DEFAULT_POLL_INTERVAL_MS));
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Load the participant's bookings now if they aren't loaded yet.
+     */
+    public void preload(String participantRef) throws Exception {
+        load(participantRef);
+    }
+
+    /**
+     * Bookings of a loaded participant overlapping [from, to). Caller must
+     * hold the index's lock; for listeners and views built on the index.
+     */
+    List<Booking> loadedBookings(String participantRef, long from, long to) {
+        IntervalTree<Booking> schedule = schedules.get(participantRef);
+        return schedule == null ? Collections.emptyList() : schedule.overlapping(from, to);
+    }
+
+    /**
+     * Throw if the practitioner or the patient has another booking that
+     * overlaps [start, end). excludeFhirId is the appointment being
+     * rescheduled, or null for a new one.
+     */
+    public void checkAvailable(String practitionerRef, String patientRef, long start, long end,
+                               String excludeFhirId) throws Exception {
+
+        Booking conflict = findConflict(practitionerRef, start, end, excludeFhirId);
+        if (conflict != null) {
+            throw new IllegalArgumentException("Practitioner already has appointment "
+                    + conflict.getAppointmentID() + " from " + new Date(conflict.getStart())
+                    + " to " + new Date(conflict.getEnd()));
+        }
+
+        conflict = findConflict(patientRef, start, end, excludeFhirId);
+        if (conflict != null) {
+            throw new IllegalArgumentException("Patient already has appointment "
+                    + conflict.getAppointmentID() + " from " + new Date(conflict.getStart())
+                    + " to " + new Date(conflict.getEnd()));
+        }
+    }
+
+    /**
+     * Hold [start, end) for the practitioner and the patient until the
+     * reservation is closed, or throw like checkAvailable if either is
+     * busy. The check and the hold happen under the index's lock, so of
+     * two bookings of the same slot only one gets the reservation. Close
+     * it after reporting the saved appointment with onSaved.
+     */
+    public Reservation reserve(String appointmentID, String practitionerRef, String patientRef,
+                               long start, long end, String excludeFhirId) throws Exception {
+        while (true) {
+            IntervalTree<Booking> practitionerSchedule = practitionerRef == null ? null : load(practitionerRef);
+            IntervalTree<Booking> patientSchedule = patientRef == null ? null : load(patientRef);
+
+            synchronized (this) {
+                if ((practitionerRef != null && schedules.get(practitionerRef) != practitionerSchedule)
+                        || (patientRef != null && schedules.get(patientRef) != patientSchedule)) {
+                    // Cleared while loading
+                    continue;
+                }
+                checkAvailable(practitionerRef, patientRef, start, end, excludeFhirId);
+
+                List<String> participants = new ArrayList<>();
+                if (practitionerRef != null) {
+                    participants.add(practitionerRef);
+                }
+                if (patientRef != null) {
+                    participants.add(patientRef);
+                }
+                Booking held = new Booking("reservation-" + nextReservation++, appointmentID,
+                        start, end, participants);
+                for (String participant : participants) {
+                    schedules.get(participant).put(held.getFhirId(), start, end, held);
+                    fireChanged(participant, held);
+                }
+                return new Reservation(held);
+            }
+        }
+    }
+
+    /**
+     * A booking of the participant overlapping [start, end), or null.
+     */
+    public Booking findConflict(String participantRef, long start, long end, String excludeFhirId)
+            throws Exception {
+        if (participantRef == null) {
+            return null;
+        }
+        IntervalTree<Booking> schedule = load(participantRef);
+        synchronized (this) {
+            return schedule.findOverlap(start, end, excludeFhirId);
+        }
+    }
+
+    /**
+     * Bookings of the participant overlapping [from, to), ordered by start.
+     */
+    public List<Booking> bookings(String participantRef, long from, long to) throws Exception {
+        IntervalTree<Booking> schedule = load(participantRef);
+        synchronized (this) {
+            return schedule.overlapping(from, to);
+        }
+    }
+
+    /**
+     * Free windows of at least minLength milliseconds in [from, to).
+     */
+    public List<IntervalTree.Range> freeSlots(String participantRef, long from, long to, long minLength)
+            throws Exception {
+        IntervalTree<Booking> schedule = load(participantRef);
+        List<IntervalTree.Range> free = new ArrayList<>();
+        synchronized (this) {
+            for (IntervalTree.Range gap : schedule.gaps(from, to)) {
+                if (gap.length() >= minLength) {
+                    free.add(gap);
+                }
+            }
+        }
+        return free;
+    }
+
+    /**
+     * Record a created or updated appointment.
+     */
+    public synchronized void onSaved(Appointment appointment) {
+        record(() -> apply(appointment));
+    }
+
+    /**
+     * Record a deleted appointment.
+     */
+    public synchronized void onDeleted(String appointmentFhirId) {
+        record(() -> remove(appointmentFhirId));
+    }
+
+    /**
+     * Forget everything; participants are loaded again when next needed.
+     */
+    public synchronized void clear() {
+        schedules.clear();
+        bookings.clear();
+        for (Listener listener : listeners) {
+            listener.onCleared();
+        }
+    }
+
+    /**
+     * Fetch changes made since the last poll. Called by the poller thread,
+     * but can be called directly to refresh right away.
+     */
+    public void poll() {
+        Date since;
+        synchronized (this) {
+            if (schedules.isEmpty() || lastPoll == null) {
+                return;
+            }
+            since = new Date(lastPoll.getTime() - OVERLAP_MS);
+        }
+
+        Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.history()
+                .onType(Appointment.class)
+                .returnBundle(Bundle.class)
+                .since(since)
+                .execute());
+        Date polled = page.getMeta().getLastUpdated();
+
+        // History lists the newest version first, only apply that one
+        List<Bundle.BundleEntryComponent> changes = new ArrayList<>();
+        Set<String> ids = new HashSet<>();
+        while (true) {
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                String fhirId = fhirIdOf(entry);
+                if (fhirId != null && ids.add(fhirId)) {
+                    changes.add(entry);
+                }
+            }
+            if (page.getLink(Bundle.LINK_NEXT) == null) {
+                break;
+            }
+            Bundle current = page;
+            page = RequestPriority.supply(RequestPriority.BATCH,
+                    () -> client.loadPage().next(current).execute());
+        }
+
+        boolean changed = false;
+        synchronized (this) {
+            long newest = polled != null ? polled.getTime() : lastPoll.getTime();
+            for (Bundle.BundleEntryComponent entry : changes) {
+                Date updated = updatedOf(entry);
+                long updatedMillis = updated != null ? updated.getTime() : newest;
+                if (polled == null) {
+                    newest = Math.max(newest, updatedMillis);
+                }
+                if (seen.putIfAbsent(fhirIdOf(entry) + "/" + versionOf(entry), updatedMillis) != null) {
+                    continue;
+                }
+                changed = true;
+                boolean deleted = entry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE
+                        || !(entry.getResource() instanceof Appointment);
+                if (deleted) {
+                    String fhirId = fhirIdOf(entry);
+                    record(() -> remove(fhirId));
+                } else {
+                    Appointment appointment = (Appointment) entry.getResource();
+                    record(() -> apply(appointment));
+                }
+            }
+            lastPoll = new Date(Math.max(lastPoll.getTime(), newest));
+            long horizon = lastPoll.getTime() - OVERLAP_MS;
+            seen.values().removeIf(updated -> updated < horizon);
+        }
+        if (changed) {
+            // Kept (prefetched) appointment searches may predate the change
+            searchCoalescer.invalidate("Appointment");
+        }
+    }
+
+    private IntervalTree<Booking> load(String participantRef) throws Exception {
+        synchronized (this) {
+            IntervalTree<Booking> schedule = schedules.get(participantRef);
+            if (schedule != null) {
+                return schedule;
+            }
+        }
+
+        // Changes reported during the search may be missing from its
+        // results, and would be lost as the schedule doesn't exist yet
+        List<Runnable> missed = new ArrayList<>();
+        boolean first;
+        synchronized (this) {
+            loadsInProgress.add(missed);
+            first = lastPoll == null;
+        }
+        List<Appointment> appointments;
+        try {
+            if (first) {
+                // Before the search, so polls cover whatever it misses
+                Date started = serverTime();
+                synchronized (this) {
+                    if (lastPoll == null) {
+                        lastPoll = started;
+                    }
+                }
+            }
+            appointments = search(participantRef);
+        } finally {
+            synchronized (this) {
+                loadsInProgress.remove(missed);
+            }
+        }
+
+        synchronized (this) {
+            IntervalTree<Booking> schedule = schedules.get(participantRef);
+            if (schedule != null) {
+                // Loaded by another thread meanwhile
+                return schedule;
+            }
+            schedule = new IntervalTree<>();
+            schedules.put(participantRef, schedule);
+            for (Appointment appointment : appointments) {
+                apply(appointment);
+            }
+            for (Runnable change : missed) {
+                change.run();
+            }
+            startPolling();
+            return schedule;
+        }
+    }
+
+    /**
+     * Make a change, and remember it for the loads in progress. Caller
+     * holds the lock.
+     */
+    private void record(Runnable change) {
+        for (List<Runnable> missed : loadsInProgress) {
+            missed.add(change);
+        }
+        change.run();
+    }
+
+    /**
+     * The server's current time, or the newest change it knows of if it
+     * doesn't say.
+     */
+    private Date serverTime() {
+        Bundle newest = RequestPriority.supply(RequestPriority.BATCH, () -> client.history()
+                .onType(Appointment.class)
+                .returnBundle(Bundle.class)
+                .count(1)
+                .execute());
+        if (newest.getMeta().hasLastUpdated()) {
+            return newest.getMeta().getLastUpdated();
+        }
+        if (!newest.getEntry().isEmpty() && updatedOf(newest.getEntryFirstRep()) != null) {
+            return updatedOf(newest.getEntryFirstRep());
+        }
+        return new Date();
+    }
+
+    /**
+     * All appointments of the participant, following every page. Not
+     * through the SearchCoalescer: a kept or shared result may predate the
+     * poll cursor.
+     */
+    private List<Appointment> search(String participantRef) throws Exception {
+        IdType id = new IdType(participantRef);
+        String param = "Practitioner".equals(id.getResourceType()) ? "practitioner" : "patient";
+        String url = AppointmentFhirRepository.LIST_ELEMENTS.apply(
+                SearchCoalescer.searchUrl("Appointment", param, id.getIdPart()));
+
+        Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.search()
+                .byUrl(url)
+                .returnBundle(Bundle.class)
+                .execute());
+
+        List<Appointment> appointments = new ArrayList<>();
+        while (true) {
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                if (entry.getResource() instanceof Appointment) {
+                    appointments.add((Appointment) entry.getResource());
+                }
+            }
+            if (page.getLink(Bundle.LINK_NEXT) == null) {
+                return appointments;
+            }
+            Bundle current = page;
+            page = RequestPriority.supply(RequestPriority.BATCH,
+                    () -> client.loadPage().next(current).execute());
+        }
+    }
+
+    /**
+     * Add, move or remove the booking of an appointment. Caller holds the lock.
+     */
+    private void apply(Appointment appointment) {
+        String fhirId = appointment.getIdElement().getIdPart();
+        if (fhirId == null) {
+            return;
+        }
+        remove(fhirId);
+
+        if (!occupiesTime(appointment)) {
+            return;
+        }
+
+        Booking booking = new Booking(appointment);
+        for (String participant : booking.getParticipants()) {
+            IntervalTree<Booking> schedule = schedules.get(participant);
+            // Participants that haven't been loaded get the booking when they are
+            if (schedule != null) {
+                schedule.put(fhirId, booking.getStart(), booking.getEnd(), booking);
+                fireChanged(participant, booking);
+                // Only bookings in a schedule are kept, not every one polled
+                bookings.put(fhirId, booking);
+            }
+        }
+    }
+
+    private void remove(String fhirId) {
+        Booking booking = bookings.remove(fhirId);
+        if (booking == null) {
+            return;
+        }
+        for (String participant : booking.getParticipants()) {
+            IntervalTree<Booking> schedule = schedules.get(participant);
+            if (schedule != null) {
+                schedule.remove(fhirId);
+                fireChanged(participant, booking);
+            }
+        }
+    }
+
+    private void fireChanged(String participantRef, Booking booking) {
+        for (Listener listener : listeners) {
+            listener.onChanged(participantRef, booking.getStart(), booking.getEnd());
+        }
+    }
+
+    private synchronized void startPolling() {
+        if (poller != null || pollIntervalMs <= 0) {
+            return;
+        }
+        poller = VirtualThreads.start("appointment-index-poller", () -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(pollIntervalMs);
+                    poll();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Appointment index poll failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static boolean occupiesTime(Appointment appointment) {
+        if (!appointment.hasStart() || !appointment.hasEnd()) {
+            return false;
+        }
+        Appointment.AppointmentStatus status = appointment.getStatus();
+        return status != Appointment.AppointmentStatus.CANCELLED
+                && status != Appointment.AppointmentStatus.NOSHOW
+                && status != Appointment.AppointmentStatus.ENTEREDINERROR;
+    }
+
+    private static Date updatedOf(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getMeta().hasLastUpdated()) {
+            return entry.getResource().getMeta().getLastUpdated();
+        }
+        return entry.getResponse().getLastModified();
+    }
+
+    private static String versionOf(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getMeta().hasVersionId()) {
+            return entry.getResource().getMeta().getVersionId();
+        }
+        // Deletes only have the ETag, W/"3"
+        String etag = entry.getResponse().getEtag();
+        return etag == null ? "deleted" : etag.replaceAll("^W/|\"", "");
+    }
+
+    private static String fhirIdOf(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getIdElement().hasIdPart()) {
+            return entry.getResource().getIdElement().getIdPart();
+        }
+        // Deletes have no resource, only the request URL ("Appointment/123/_history/2")
+        String url = entry.getRequest().getUrl();
+        if (url == null || url.isBlank()) {
+            url = entry.getFullUrl();
+        }
+        return url == null ? null : new IdType(url).getIdPart();
+    }
+
+    /**
+     * Told about every change to a loaded participant's schedule, while the
+     * index's lock is held.
+     */
+    public interface Listener {
+
+        /**
+         * A booking covering [start, end) was added to or removed from the
+         * participant's schedule.
+         */
+        void onChanged(String participantRef, long start, long end);
+
+        /**
+         * Every schedule was dropped.
+         */
+        void onCleared();
+    }
+
+    /**
+     * Time held by reserve() until the appointment is saved or the booking
+     * fails.
+     */
+    public class Reservation implements AutoCloseable {
+
+        private final Booking held;
+        private boolean released;
+
+        private Reservation(Booking held) {
+            this.held = held;
+        }
+
+        /**
+         * Give the time back. Safe to call more than once.
+         */
+        @Override
+        public void close() {
+            synchronized (AppointmentScheduleIndex.this) {
+                if (released) {
+                    return;
+                }
+                released = true;
+                for (String participant : held.getParticipants()) {
+                    IntervalTree<Booking> schedule = schedules.get(participant);
+                    if (schedule != null && schedule.remove(held.getFhirId()) != null) {
+                        fireChanged(participant, held);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The time an appointment occupies for its participants.
+     */
+    public static class Booking {
+
+        private final String fhirId;
+        private final String appointmentID;
+        private final long start;
+        private final long end;
+        private final List<String> participants = new ArrayList<>();
+
+        private Booking(String fhirId, String appointmentID, long start, long end, List<String> participants) {
+            this.fhirId = fhirId;
+            this.appointmentID = appointmentID;
+            this.start = start;
+            this.end = end;
+            this.participants.addAll(participants);
+        }
+
+        Booking(Appointment appointment) {
+            this.fhirId = appointment.getIdElement().getIdPart();
+            this.appointmentID = appointmentIDOf(appointment);
+            this.start = appointment.getStart().getTime();
+            this.end = appointment.getEnd().getTime();
+            for (Appointment.AppointmentParticipantComponent participant : appointment.getParticipant()) {
+                Reference actor = participant.getActor();
+                if (actor.getReferenceElement().hasResourceType() && actor.getReferenceElement().hasIdPart()) {
+                    participants.add(actor.getReferenceElement().getResourceType() + "/"
+                            + actor.getReferenceElement().getIdPart());
+                }
+            }
+        }
+
+        public String getFhirId() {
+            return fhirId;
+        }
+
+        public String getAppointmentID() {
+            return appointmentID;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public List<String> getParticipants() {
+            return Collections.unmodifiableList(participants);
+        }
+
+        private static String appointmentIDOf(Appointment appointment) {
+            for (Identifier identifier : appointment.getIdentifier()) {
+                if (AppointmentFhirRepository.APPOINTMENT_ID_SYSTEM.equals(identifier.getSystem())) {
+                    return identifier.getValue();
+                }
+            }
+            return appointment.getIdElement().getIdPart();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.r4.model.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking facade over the FHIR repositories.
+ * Every call runs on its own (virtual, when available) thread and returns a
+ * CompletableFuture, so composite screens can fan out lookups in parallel.
+ *
+ * Futures time out after fhir.async.timeout-ms (default 10000) unless another
+ * timeout is given. Cancelling a future, or letting it time out, interrupts
+ * the task that is running it.
+ */
+public class AsyncFhirRepository implements AutoCloseable {
+
+    private static final String TIMEOUT_KEY = "fhir.async.timeout-ms";
+    private static final int DEFAULT_TIMEOUT_MS = 10000;
+
+    private final PatientFhirRepository patientRepo;
+    private final PractitionerFhirRepository practitionerRepo;
+    private final AppointmentFhirRepository appointmentRepo;
+    private final CommunicationFhirRepository communicationRepo;
+    private final ExecutorService executor;
+    private final Duration defaultTimeout;
+
+    public AsyncFhirRepository() {
+        this.patientRepo = new PatientFhirRepository();
+        this.practitionerRepo = new PractitionerFhirRepository();
+        this.appointmentRepo = new AppointmentFhirRepository();
+        this.communicationRepo = new CommunicationFhirRepository();
+        this.executor = VirtualThreads.newPerTaskExecutor("fhir-async");
+        this.defaultTimeout = Duration.ofMillis(ConfigurationUtil.getInt(TIMEOUT_KEY, DEFAULT_TIMEOUT_MS));
+    }
+
+    public CompletableFuture<Patient> findPatientByPN(String patientPN) {
+        return submit(() -> patientRepo.findByPN(patientPN));
+    }
+
+    public CompletableFuture<Practitioner> findPractitionerByID(String doctorID) {
+        return submit(() -> practitionerRepo.findByID(doctorID));
+    }
+
+    public CompletableFuture<Appointment> findAppointmentByID(String appointmentID) {
+        return submit(() -> appointmentRepo.findByID(appointmentID));
+    }
+
+    /**
+     * Appointments for a patient, empty instead of failing when there are none.
+     */
+    public CompletableFuture<List<Appointment>> listAppointmentsByPatient(String patientPN) {
+        return emptyIfNotFound(submit(() -> appointmentRepo.listByPatient(patientPN)));
+    }
+
+    /**
+     * Appointments for a practitioner, empty instead of failing when there are none.
+     */
+    public CompletableFuture<List<Appointment>> listAppointmentsByPractitioner(String doctorID) {
+        return emptyIfNotFound(submit(() -> appointmentRepo.listByPractitioner(doctorID)));
+    }
+
+    public CompletableFuture<List<Communication>> getMyMessages(String personPN, String doctorID) {
+        return submit(() -> communicationRepo.getMyMessages(personPN, doctorID));
+    }
+
+    public CompletableFuture<String> getPatientSummary(String patientPN) {
+        return submit(() -> patientRepo.getPatientSummary(patientPN));
+    }
+
+    /**
+     * Summary, appointments and messages for one patient, fetched concurrently.
+     */
+    public CompletableFuture<PatientDashboard> getPatientDashboard(String patientPN) {
+        CompletableFuture<String> summary = getPatientSummary(patientPN);
+        CompletableFuture<List<Appointment>> appointments = listAppointmentsByPatient(patientPN);
+        CompletableFuture<List<Communication>> messages = getMyMessages(patientPN, null);
+
+        CompletableFuture<PatientDashboard> dashboard = CompletableFuture
+                .allOf(summary, appointments, messages)
+                .thenApply(ignored -> new PatientDashboard(summary.join(), appointments.join(), messages.join()));
+
+        dashboard.whenComplete((result, error) -> {
+            if (error != null) {
+                summary.cancel(true);
+                appointments.cancel(true);
+                messages.cancel(true);
+            }
+        });
+        return dashboard;
+    }
+
+    /**
+     * Look up many patients in parallel. Fails if any lookup fails.
+     */
+    public CompletableFuture<List<Patient>> findPatientsByPN(Collection<String> patientPNs) {
+        List<CompletableFuture<Patient>> futures = new ArrayList<>();
+        for (String patientPN : patientPNs) {
+            futures.add(findPatientByPN(patientPN));
+        }
+        return allOf(futures);
+    }
+
+    /**
+     * Run any blocking repository call asynchronously with the default timeout.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call) {
+        return submit(call, defaultTimeout);
+    }
+
+    /**
+     * Run any blocking repository call asynchronously with the given timeout.
+     */
+    public <T> CompletableFuture<T> submit(Callable<T> call, Duration timeout) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+
+        Future<?> task = executor.submit(() -> {
+            try {
+                future.complete(call.call());
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            }
+        });
+
+        // Cancellation and timeouts both complete the future exceptionally,
+        // stop the task so it doesn't keep a thread busy for nothing.
+        future.whenComplete((result, error) -> {
+            if (error != null) {
+                task.cancel(true);
+            }
+        });
+
+        if (timeout != null) {
+            future.orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        }
+        return future;
+    }
+
+    /**
+     * Combine futures into one list, keeping the input order.
+     */
+    public static <T> CompletableFuture<List<T>> allOf(List<CompletableFuture<T>> futures) {
+        CompletableFuture<List<T>> combined = CompletableFuture
+                .allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    List<T> results = new ArrayList<>(futures.size());
+                    for (CompletableFuture<T> future : futures) {
+                        results.add(future.join());
+                    }
+                    return results;
+                });
+
+        combined.whenComplete((result, error) -> {
+            if (error != null) {
+                for (CompletableFuture<T> future : futures) {
+                    future.cancel(true);
+                }
+            }
+        });
+        return combined;
+    }
+
+    @Override
+    public void close() {
+        executor.shutdownNow();
+    }
+
+    private static <T> CompletableFuture<List<T>> emptyIfNotFound(CompletableFuture<List<T>> future) {
+        CompletableFuture<List<T>> mapped = future.handle((result, error) -> {
+            if (error == null) {
+                return result;
+            }
+            Throwable cause = error instanceof CompletionException ? error.getCause() : error;
+            if (cause instanceof IllegalArgumentException) {
+                return Collections.<T>emptyList();
+            }
+            throw error instanceof CompletionException ? (CompletionException) error : new CompletionException(error);
+        });
+
+        mapped.whenComplete((result, error) -> {
+            if (error != null) {
+                future.cancel(true);
+            }
+        });
+        return mapped;
+    }
+
+    /**
+     * Result of getPatientDashboard.
+     */
+    public static class PatientDashboard {
+
+        private final String summary;
+        private final List<Appointment> appointments;
+        private final List<Communication> messages;
+
+        public PatientDashboard(String summary, List<Appointment> appointments, List<Communication> messages) {
+            this.summary = summary;
+            this.appointments = appointments;
+            this.messages = messages;
+        }
+
+        public String getSummary() {
+            return summary;
+        }
+
+        public List<Appointment> getAppointments() {
+            return appointments;
+        }
+
+        public List<Communication> getMessages() {
+            return messages;
+        }
+    }
+}
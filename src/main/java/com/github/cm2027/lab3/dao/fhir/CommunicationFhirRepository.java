@@ -3,29 +3,86 @@ package com.github.cm2027.lab3.dao.fhir;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.dao.mongodb.AttachmentRepository;
+import com.github.cm2027.lab3.dao.mongodb.ConversationRepository;
+import com.github.cm2027.lab3.model.mongo.Conversation;
+import com.github.cm2027.lab3.model.mongo.ConversationMessage;
+import com.github.cm2027.lab3.model.mongo.MessageAttachment;
+import com.github.cm2027.lab3.search.TextIndex;
+import com.github.cm2027.lab3.util.StreamUtil;
+import org.bson.types.ObjectId;
 import org.hl7.fhir.r4.model.*;
 
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.List;
 
 public class CommunicationFhirRepository {
 
-    private static final String COMMUNICATION_ID_SYSTEM = "http://kth.se/clinic/communication-id";
+    /**
+     * System of the clinic's message identifiers; messages without one
+     * were written by someone else on the shared server.
+     */
+    public static final String COMMUNICATION_ID_SYSTEM = "http://kth.se/clinic/communication-id";
+    /**
+     * Prefix of the url of payload attachments stored in GridFS; the rest
+     * is the attachment's ID.
+     */
+    public static final String ATTACHMENT_URL_PREFIX = "urn:clinic:attachment:";
+    /**
+     * Elements needed to show messages, without narrative or extensions.
+     */
+    public static final SearchProjection MESSAGE_ELEMENTS = SearchProjection.elements(
+            "identifier", "status", "sent", "sender", "recipient", "payload");
+
     private final IGenericClient client;
+    private final ResourceVersionCache resourceCache;
+    private final SearchCoalescer searchCoalescer;
     private final PatientFhirRepository patientRepo;
     private final PractitionerFhirRepository practitionerRepo;
+    private final ConversationRepository conversationRepo;
+    private final AttachmentRepository attachmentRepo;
+    private final TextIndex textIndex;
 
     public CommunicationFhirRepository() {
         this.client = ClientSingleton.getInstance();
+        this.resourceCache = ResourceVersionCache.getInstance();
+        this.searchCoalescer = SearchCoalescer.getInstance();
         this.patientRepo = new PatientFhirRepository();
         this.practitionerRepo = new PractitionerFhirRepository();
+        this.conversationRepo = new ConversationRepository();
+        this.attachmentRepo = new AttachmentRepository();
+        this.textIndex = TextIndex.getInstance();
+    }
+
+    /**
+     * A new message ID, unique across requests and processes: "CM" and an
+     * ObjectId, which also sorts by creation time.
+     */
+    public static String newCommunicationID() {
+        return "CM" + new ObjectId().toHexString();
     }
 
     public Communication sendMessage(String communicationID, String senderPN, String senderDoctorID,
                                      String recipientPN, String recipientDoctorID, String messageText) throws Exception {
+        return sendMessage(communicationID, senderPN, senderDoctorID, recipientPN, recipientDoctorID, messageText,
+                Collections.emptyList());
+    }
+
+    /**
+     * Send a message with files already uploaded through
+     * AttachmentRepository. The Communication only refers to them (url,
+     * size, hash and content type); the content stays in GridFS.
+     */
+    public Communication sendMessage(String communicationID, String senderPN, String senderDoctorID,
+                                     String recipientPN, String recipientDoctorID, String messageText,
+                                     List<MessageAttachment> attachments) throws Exception {
 
         if (communicationID == null || communicationID.isBlank()) {
             throw new IllegalArgumentException("communicationID must not be blank");
@@ -75,19 +132,207 @@ public class CommunicationFhirRepository {
         payload.setContent(new StringType(messageText));
         communication.addPayload(payload);
 
+        for (MessageAttachment attachment : attachments) {
+            Communication.CommunicationPayloadComponent filePayload = new Communication.CommunicationPayloadComponent();
+            filePayload.setContent(toFhirAttachment(attachment));
+            communication.addPayload(filePayload);
+        }
+
         Date sentDate = Date.from(LocalDateTime.now().atZone(ZoneId.systemDefault()).toInstant());
         communication.setSent(sentDate);
 
-        MethodOutcome outcome = client.create().resource(communication).execute();
-
-        if (!outcome.getCreated()) {
-            throw new RuntimeException("Failed to create communication");
+        String senderRef = communication.getSender().getReference();
+        String recipientRef = communication.getRecipientFirstRep().getReference();
+
+        // Claim the attachments first, so a concurrent send can't take them
+        // too and a failed send leaves them free to send again
+        List<MessageAttachment> claimed = new ArrayList<>();
+        MethodOutcome outcome;
+        try {
+            for (MessageAttachment attachment : attachments) {
+                if (!attachmentRepo.claim(attachment.getId(), communicationID, List.of(senderRef, recipientRef))) {
+                    throw new IllegalArgumentException("Attachment already sent: " + attachment.getId());
+                }
+                claimed.add(attachment);
+            }
+            outcome = client.create().resource(communication).execute();
+            if (!outcome.getCreated()) {
+                throw new RuntimeException("Failed to create communication");
+            }
+        } catch (Exception e) {
+            for (MessageAttachment attachment : claimed) {
+                attachmentRepo.release(attachment.getId(), communicationID);
+            }
+            throw e;
+        } finally {
+            searchCoalescer.invalidate("Communication");
         }
 
+        indexMessage(communicationID, outcome.getId().getIdPart(), senderRef, recipientRef, sentDate, messageText);
+
         Communication createdCommunication = (Communication) outcome.getResource();
+        textIndex.onSaved(createdCommunication);
         return createdCommunication;
     }
 
+    /**
+     * Messages to or from a person whose text matches the query, newest
+     * first. Quoted parts of the query are phrases.
+     */
+    public List<TextIndex.Hit> searchMessages(String personPN, String doctorID, String query, int limit)
+            throws Exception {
+        return textIndex.search(query, getParticipantRef(personPN, doctorID), "Communication", limit);
+    }
+
+    /**
+     * IDs of the GridFS attachments a message refers to.
+     */
+    public List<ObjectId> getAttachmentIds(Communication communication) {
+        List<ObjectId> ids = new ArrayList<>();
+        for (Communication.CommunicationPayloadComponent payload : communication.getPayload()) {
+            if (payload.getContent() instanceof Attachment) {
+                String url = ((Attachment) payload.getContent()).getUrl();
+                if (url != null && url.startsWith(ATTACHMENT_URL_PREFIX)
+                        && ObjectId.isValid(url.substring(ATTACHMENT_URL_PREFIX.length()))) {
+                    ids.add(new ObjectId(url.substring(ATTACHMENT_URL_PREFIX.length())));
+                }
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Whether a person may read an attachment: they uploaded it, or sent
+     * or received the message it belongs to.
+     */
+    public boolean canReadAttachment(MessageAttachment attachment, String username,
+                                     String personPN, String doctorID) throws Exception {
+        if (username != null && username.equals(attachment.getOwner())) {
+            return true;
+        }
+        return attachment.getParticipants().contains(getParticipantRef(personPN, doctorID));
+    }
+
+    private static Attachment toFhirAttachment(MessageAttachment attachment) {
+        Attachment content = new Attachment();
+        content.setUrl(ATTACHMENT_URL_PREFIX + attachment.getId().toHexString());
+        content.setTitle(attachment.getFilename());
+        content.setContentType(attachment.getContentType());
+        // size is an unsignedInt in R4
+        if (attachment.getLength() <= Integer.MAX_VALUE) {
+            content.setSize((int) attachment.getLength());
+        }
+        if (attachment.getSha1() != null) {
+            content.setHash(Base64.getDecoder().decode(attachment.getSha1()));
+        }
+        content.setCreation(attachment.getUploadDate());
+        return content;
+    }
+
+    /**
+     * A person's conversations from the conversation index, most recent
+     * first, with an unread count for each.
+     */
+    public List<Conversation> getInbox(String personPN, String doctorID, int limit) throws Exception {
+        return conversationRepo.findInbox(getParticipantRef(personPN, doctorID), limit);
+    }
+
+    /**
+     * Unread messages across all of a person's conversations.
+     */
+    public int getUnreadCount(String personPN, String doctorID) throws Exception {
+        return conversationRepo.countUnread(getParticipantRef(personPN, doctorID));
+    }
+
+    /**
+     * The latest messages of one of a person's conversations, newest
+     * first, from the conversation index. peerRef is a FHIR reference such
+     * as "Practitioner/123", as in Conversation.getPeer().
+     */
+    public List<ConversationMessage> getConversation(String personPN, String doctorID, String peerRef,
+                                                     int limit) throws Exception {
+        return conversationRepo.findMessages(getParticipantRef(personPN, doctorID), peerRef, limit);
+    }
+
+    public void markConversationRead(String personPN, String doctorID, String peerRef) throws Exception {
+        conversationRepo.markRead(getParticipantRef(personPN, doctorID), peerRef);
+    }
+
+    /**
+     * Add the clinic's messages on the FHIR server to the conversation
+     * index, e.g. those sent before it existed or while MongoDB was down.
+     * Messages already indexed are skipped, ones whose indexing failed
+     * part-way are completed, and nothing is counted as unread. Run by
+     * ApiServer on startup. Returns the number of messages added.
+     */
+    public int rebuildConversationIndex() {
+        int[] added = {0};
+        new StreamUtil<>(client, Communication.class).streamAll(c -> c.search()
+                        .forResource(Communication.class)
+                        .where(Communication.IDENTIFIER.hasSystemWithAnyCode(COMMUNICATION_ID_SYSTEM))
+                        .returnBundle(Bundle.class)
+                        .execute())
+                .forEach(comm -> {
+                    String id = getCommunicationID(comm);
+                    if ("N/A".equals(id) || !comm.hasSender() || comm.getRecipient().isEmpty()) {
+                        return;
+                    }
+                    String text = "";
+                    if (!comm.getPayload().isEmpty() && comm.getPayload().get(0).getContent() instanceof StringType) {
+                        text = ((StringType) comm.getPayload().get(0).getContent()).getValue();
+                    }
+                    if (conversationRepo.record(id, comm.getIdElement().getIdPart(),
+                            comm.getSender().getReference(), comm.getRecipientFirstRep().getReference(),
+                            comm.getSent(), text, false)) {
+                        added[0]++;
+                    }
+                });
+        return added[0];
+    }
+
+    /**
+     * Display name for a participant reference, e.g. "Dr. Anna Berg".
+     */
+    public String getParticipantName(String ref) {
+        IdType id = new IdType(ref);
+        if ("Patient".equals(id.getResourceType())) {
+            Patient patient = resourceCache.read(Patient.class, id.getIdPart());
+            return patient.getNameFirstRep().getNameAsSingleString();
+        } else if ("Practitioner".equals(id.getResourceType())) {
+            Practitioner practitioner = resourceCache.read(Practitioner.class, id.getIdPart());
+            return "Dr. " + practitioner.getNameFirstRep().getNameAsSingleString();
+        }
+        return ref;
+    }
+
+    /**
+     * The FHIR server holds the message; the index only makes it quicker to
+     * find, so a failure here doesn't fail the send. rebuildConversationIndex
+     * picks up anything missed.
+     */
+    private void indexMessage(String communicationID, String fhirId, String senderRef, String recipientRef,
+                              Date sent, String messageText) {
+        try {
+            conversationRepo.record(communicationID, fhirId, senderRef, recipientRef, sent, messageText, true);
+        } catch (RuntimeException e) {
+            System.err.println("Failed to index message " + communicationID + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * A person's FHIR reference, e.g. "Patient/123".
+     */
+    public String getParticipantRef(String personPN, String doctorID) throws Exception {
+        if (personPN != null && !personPN.isBlank()) {
+            Patient patient = patientRepo.findByPN(personPN);
+            return "Patient/" + patient.getIdElement().getIdPart();
+        } else if (doctorID != null && !doctorID.isBlank()) {
+            Practitioner practitioner = practitionerRepo.findByID(doctorID);
+            return "Practitioner/" + practitioner.getIdElement().getIdPart();
+        }
+        throw new IllegalArgumentException("Either personPN or doctorID must be provided");
+    }
+
     public Communication findByID(String communicationID) throws Exception {
 
         if (communicationID == null || communicationID.isBlank()) {
@@ -101,7 +346,7 @@ public class CommunicationFhirRepository {
                 .execute();
 
         if (results.getEntry().isEmpty()) {
-            throw new IllegalArgumentException("No communication found with ID: " + communicationID);
+            throw new NotFoundException("No communication found with ID: " + communicationID);
         }
 
         Communication communication = (Communication) results.getEntry().get(0).getResource();
@@ -110,6 +355,16 @@ public class CommunicationFhirRepository {
 
     public List<Communication> getMessagesBetween(String personPN1, String doctorID1,
                                                   String personPN2, String doctorID2) throws Exception {
+        return getMessagesBetween(personPN1, doctorID1, personPN2, doctorID2, SearchProjection.FULL);
+    }
+
+    /**
+     * Messages between two people, with only the parts of each resource
+     * selected by the projection. Partial results are tagged SUBSETTED.
+     */
+    public List<Communication> getMessagesBetween(String personPN1, String doctorID1,
+                                                  String personPN2, String doctorID2,
+                                                  SearchProjection projection) throws Exception {
 
         String fhirId1 = null;
         String fhirId2 = null;
@@ -134,10 +389,8 @@ public class CommunicationFhirRepository {
             throw new IllegalArgumentException("Could not find both participants");
         }
 
-        Bundle results = client.search()
-                .forResource(Communication.class)
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(projection.apply("Communication"));
+        projection.markPartial(results);
 
         List<Communication> conversations = new ArrayList<>();
 
@@ -171,6 +424,15 @@ public class CommunicationFhirRepository {
     }
 
     public List<Communication> getMyMessages(String personPN, String doctorID) throws Exception {
+        return getMyMessages(personPN, doctorID, SearchProjection.FULL);
+    }
+
+    /**
+     * Messages sent or received by a person, with only the parts of each
+     * resource selected by the projection. Partial results are tagged SUBSETTED.
+     */
+    public List<Communication> getMyMessages(String personPN, String doctorID,
+                                             SearchProjection projection) throws Exception {
 
         String fhirId = null;
 
@@ -184,10 +446,8 @@ public class CommunicationFhirRepository {
             throw new IllegalArgumentException("Either personPN or doctorID must be provided");
         }
 
-        Bundle results = client.search()
-                .forResource(Communication.class)
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(projection.apply("Communication"));
+        projection.markPartial(results);
 
         List<Communication> myMessages = new ArrayList<>();
 
@@ -218,6 +478,52 @@ public class CommunicationFhirRepository {
         return myMessages;
     }
 
+    /**
+     * Messages sent or received by a person, newest first, pageSize per
+     * page. The sent and received messages are two server-side sorted
+     * searches merged as the cursor advances, so each page costs about
+     * one request per search however long the history is.
+     */
+    public StreamUtil.Cursor<Communication> pageMyMessages(String personPN, String doctorID, int pageSize,
+                                                          SearchProjection projection) throws Exception {
+
+        String ref;
+
+        if (personPN != null && !personPN.isBlank()) {
+            Patient patient = patientRepo.findByPN(personPN);
+            ref = "Patient/" + patient.getIdElement().getIdPart();
+        } else if (doctorID != null && !doctorID.isBlank()) {
+            Practitioner practitioner = practitionerRepo.findByID(doctorID);
+            ref = "Practitioner/" + practitioner.getIdElement().getIdPart();
+        } else {
+            throw new IllegalArgumentException("Either personPN or doctorID must be provided");
+        }
+
+        StreamUtil.Cursor<Communication> sent = pageMessages("sender", ref, pageSize, projection);
+        StreamUtil.Cursor<Communication> received = pageMessages("recipient", ref, pageSize, projection);
+
+        Comparator<Communication> newestFirst = Comparator.comparing(
+                Communication::getSent, Comparator.nullsLast(Comparator.<Date>reverseOrder()));
+        return StreamUtil.Cursor.merge(sent, received, newestFirst,
+                comm -> comm.getIdElement().getIdPart(), pageSize);
+    }
+
+    private StreamUtil.Cursor<Communication> pageMessages(String parameter, String ref, int pageSize,
+                                                          SearchProjection projection) {
+        String url = projection.apply(SearchCoalescer.searchUrl("Communication",
+                parameter, ref, "_sort", "-sent", "_count", String.valueOf(pageSize)));
+
+        return new StreamUtil<>(client, Communication.class).cursor(c -> {
+            try {
+                return searchCoalescer.search(url);
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        }, projection::markPartial);
+    }
+
     public String getCommunicationDetails(String communicationID) throws Exception {
 
         Communication communication = findByID(communicationID);
@@ -247,17 +553,25 @@ public class CommunicationFhirRepository {
         details = details + "Sent: " + sent + "\n";
         details = details + "Message: " + messageText + "\n";
 
+        for (Communication.CommunicationPayloadComponent payload : communication.getPayload()) {
+            if (payload.getContent() instanceof Attachment) {
+                Attachment attachment = (Attachment) payload.getContent();
+                details = details + "Attachment: " + attachment.getTitle() + " (" + attachment.getSize() + " bytes, "
+                        + String.valueOf(attachment.getUrl()).replace(ATTACHMENT_URL_PREFIX, "") + ")\n";
+            }
+        }
+
         if (communication.hasSender()) {
             Reference senderRef = communication.getSender();
             String senderType = senderRef.getReferenceElement().getResourceType();
             String senderId = senderRef.getReferenceElement().getIdPart();
 
             if (senderType.equals("Patient")) {
-                Patient patient = client.read().resource(Patient.class).withId(senderId).execute();
+                Patient patient = resourceCache.read(Patient.class, senderId);
                 String name = patient.getNameFirstRep().getNameAsSingleString();
                 details = details + "Sender: Patient " + name + "\n";
             } else if (senderType.equals("Practitioner")) {
-                Practitioner practitioner = client.read().resource(Practitioner.class).withId(senderId).execute();
+                Practitioner practitioner = resourceCache.read(Practitioner.class, senderId);
                 String name = practitioner.getNameFirstRep().getNameAsSingleString();
                 details = details + "Sender: Dr. " + name + "\n";
             }
@@ -269,11 +583,11 @@ public class CommunicationFhirRepository {
             String recipientId = recipientRef.getReferenceElement().getIdPart();
 
             if (recipientType.equals("Patient")) {
-                Patient patient = client.read().resource(Patient.class).withId(recipientId).execute();
+                Patient patient = resourceCache.read(Patient.class, recipientId);
                 String name = patient.getNameFirstRep().getNameAsSingleString();
                 details = details + "Recipient: Patient " + name + "\n";
             } else if (recipientType.equals("Practitioner")) {
-                Practitioner practitioner = client.read().resource(Practitioner.class).withId(recipientId).execute();
+                Practitioner practitioner = resourceCache.read(Practitioner.class, recipientId);
                 String name = practitioner.getNameFirstRep().getNameAsSingleString();
                 details = details + "Recipient: Dr. " + name + "\n";
             }
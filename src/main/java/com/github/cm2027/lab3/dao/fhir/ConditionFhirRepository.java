@@ -3,6 +3,7 @@ package com.github.cm2027.lab3.dao.fhir;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.NotFoundException;
 import com.github.cm2027.lab3.model.enums.Severity;
 import org.hl7.fhir.r4.model.*;
 
@@ -13,10 +14,12 @@ public class ConditionFhirRepository {
 
     private static final String CONDITION_ID_SYSTEM = "http://kth.se/clinic/condition-id";
     private final IGenericClient client;
+    private final ResourceVersionCache resourceCache;
     private final PatientFhirRepository patientRepo;
 
     public ConditionFhirRepository() {
         this.client = ClientSingleton.getInstance();
+        this.resourceCache = ResourceVersionCache.getInstance();
         this.patientRepo = new PatientFhirRepository();
     }
 
@@ -84,7 +87,7 @@ public class ConditionFhirRepository {
                 .execute();
 
         if (results.getEntry().isEmpty()) {
-            throw new IllegalArgumentException("No condition found with ID: " + conditionID);
+            throw new NotFoundException("No condition found with ID: " + conditionID);
         }
 
         Condition condition = (Condition) results.getEntry().get(0).getResource();
@@ -113,7 +116,7 @@ public class ConditionFhirRepository {
         }
 
         if (conditions.isEmpty()) {
-            throw new IllegalArgumentException("No conditions found for patient: " + patientPN);
+            throw new NotFoundException("No conditions found for patient: " + patientPN);
         }
 
         return conditions;
@@ -141,7 +144,7 @@ public class ConditionFhirRepository {
         }
 
         if (filteredConditions.isEmpty()) {
-            throw new IllegalArgumentException("No conditions found for patient with severity: " + severity.getLabel());
+            throw new NotFoundException("No conditions found for patient with severity: " + severity.getLabel());
         }
 
         return filteredConditions;
@@ -176,7 +179,7 @@ public class ConditionFhirRepository {
         if (condition.hasSubject()) {
             Reference subjectRef = condition.getSubject();
             String patientId = subjectRef.getReferenceElement().getIdPart();
-            Patient patient = client.read().resource(Patient.class).withId(patientId).execute();
+            Patient patient = resourceCache.read(Patient.class, patientId);
             String patientName = patient.getNameFirstRep().getNameAsSingleString();
             result = result + "Patient: " + patientName + "\n";
         }
@@ -0,0 +1,208 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Free/busy view of participants' schedules in 15-minute slots.
+ *
+ * Each participant and day has a bitmap of busy slots in a long[] (a day
+ * has at most 100 slots, 2 longs). Bitmaps are built from the
+ * AppointmentScheduleIndex the first time a day is asked for and rebuilt
+ * when the index reports a change to that day, so a month of availability
+ * is read from about 60 longs. At most freebusy.max-days bitmaps (default
+ * 10000) are kept, evicting the least recently used.
+ *
+ * A slot is busy if any booking overlaps part of it. Days follow the
+ * system time zone, including daylight saving changes.
+ *
+ * All state is guarded by the index's lock, see AppointmentScheduleIndex.
+ */
+public class FreeBusyCalendar implements AppointmentScheduleIndex.Listener {
+
+    public static final int SLOT_MINUTES = 15;
+
+    private static final long SLOT_MILLIS = SLOT_MINUTES * 60_000L;
+    private static final String MAX_DAYS_KEY = "freebusy.max-days";
+    private static final int DEFAULT_MAX_DAYS = 10000;
+
+    private static FreeBusyCalendar instance;
+
+    private final AppointmentScheduleIndex index;
+    private final ZoneId zone;
+    // Keyed by participant and day, see dayKey
+    private final Map<String, long[]> bitmaps;
+
+    private FreeBusyCalendar(AppointmentScheduleIndex index, ZoneId zone, int maxDays) {
+        this.index = index;
+        this.zone = zone;
+        this.bitmaps = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+                return size() > maxDays;
+            }
+        };
+    }
+
+    public static synchronized FreeBusyCalendar getInstance() {
+        if (instance == null) {
+            AppointmentScheduleIndex index = AppointmentScheduleIndex.getInstance();
+            instance = new FreeBusyCalendar(index, ZoneId.systemDefault(),
+                    ConfigurationUtil.getInt(MAX_DAYS_KEY, DEFAULT_MAX_DAYS));
+            index.addListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Alternating free and busy windows covering the days from..to
+     * (inclusive), merged across midnight.
+     */
+    public List<Window> getFreeBusy(String participantRef, LocalDate from, LocalDate to) throws Exception {
+        if (to.isBefore(from)) {
+            throw new IllegalArgumentException("to must not be before from");
+        }
+        index.preload(participantRef);
+
+        List<Window> windows = new ArrayList<>();
+        synchronized (index) {
+            for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+                long[] busy = bitmap(participantRef, day);
+                long dayStart = startOf(day);
+                int slots = slotsIn(day);
+
+                int runStart = 0;
+                for (int slot = 1; slot <= slots; slot++) {
+                    if (slot == slots || isSet(busy, slot) != isSet(busy, runStart)) {
+                        long start = dayStart + runStart * SLOT_MILLIS;
+                        long end = Math.min(dayStart + slot * SLOT_MILLIS, startOf(day.plusDays(1)));
+                        addWindow(windows, start, end, isSet(busy, runStart));
+                        runStart = slot;
+                    }
+                }
+            }
+        }
+        return windows;
+    }
+
+    @Override
+    public void onChanged(String participantRef, long start, long end) {
+        LocalDate first = ZonedDateTime.ofInstant(Instant.ofEpochMilli(start), zone).toLocalDate();
+        LocalDate last = ZonedDateTime.ofInstant(Instant.ofEpochMilli(Math.max(start, end - 1)), zone)
+                .toLocalDate();
+        for (LocalDate day = first; !day.isAfter(last); day = day.plusDays(1)) {
+            String key = dayKey(participantRef, day);
+            if (bitmaps.containsKey(key)) {
+                bitmaps.put(key, build(participantRef, day));
+            }
+        }
+    }
+
+    @Override
+    public void onCleared() {
+        bitmaps.clear();
+    }
+
+    private long[] bitmap(String participantRef, LocalDate day) {
+        String key = dayKey(participantRef, day);
+        long[] busy = bitmaps.get(key);
+        if (busy == null) {
+            busy = build(participantRef, day);
+            bitmaps.put(key, busy);
+        }
+        return busy;
+    }
+
+    private static String dayKey(String participantRef, LocalDate day) {
+        return participantRef + "@" + day.toEpochDay();
+    }
+
+    private long[] build(String participantRef, LocalDate day) {
+        long dayStart = startOf(day);
+        long dayEnd = startOf(day.plusDays(1));
+        int slots = slotsIn(day);
+        long[] busy = new long[(slots + 63) / 64];
+
+        for (AppointmentScheduleIndex.Booking booking : index.loadedBookings(participantRef, dayStart, dayEnd)) {
+            int first = (int) ((Math.max(booking.getStart(), dayStart) - dayStart) / SLOT_MILLIS);
+            int last = (int) ((Math.min(booking.getEnd(), dayEnd) - 1 - dayStart) / SLOT_MILLIS);
+            for (int slot = first; slot <= last && slot < slots; slot++) {
+                busy[slot >>> 6] |= 1L << (slot & 63);
+            }
+        }
+        return busy;
+    }
+
+    private long startOf(LocalDate day) {
+        return day.atStartOfDay(zone).toInstant().toEpochMilli();
+    }
+
+    private int slotsIn(LocalDate day) {
+        long length = startOf(day.plusDays(1)) - startOf(day);
+        return (int) ((length + SLOT_MILLIS - 1) / SLOT_MILLIS);
+    }
+
+    private static boolean isSet(long[] bits, int slot) {
+        return (bits[slot >>> 6] & (1L << (slot & 63))) != 0;
+    }
+
+    private void addWindow(List<Window> windows, long start, long end, boolean busy) {
+        if (!windows.isEmpty()) {
+            Window previous = windows.get(windows.size() - 1);
+            if (previous.busy == busy && previous.endMillis == start) {
+                windows.set(windows.size() - 1, new Window(previous.startMillis, end, busy, zone));
+                return;
+            }
+        }
+        windows.add(new Window(start, end, busy, zone));
+    }
+
+    /**
+     * A free or busy period.
+     */
+    public static class Window {
+
+        private final long startMillis;
+        private final long endMillis;
+        private final boolean busy;
+        private final ZoneId zone;
+
+        Window(long startMillis, long endMillis, boolean busy, ZoneId zone) {
+            this.startMillis = startMillis;
+            this.endMillis = endMillis;
+            this.busy = busy;
+            this.zone = zone;
+        }
+
+        public LocalDateTime getStart() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(startMillis), zone);
+        }
+
+        public LocalDateTime getEnd() {
+            return LocalDateTime.ofInstant(Instant.ofEpochMilli(endMillis), zone);
+        }
+
+        public Duration getDuration() {
+            return Duration.ofMillis(endMillis - startMillis);
+        }
+
+        public boolean isBusy() {
+            return busy;
+        }
+
+        @Override
+        public String toString() {
+            return (busy ? "busy " : "free ") + getStart() + " - " + getEnd();
+        }
+    }
+}
@@ -0,0 +1,372 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pulls a fixed set of fields out of FHIR JSON with Jackson's streaming
+ * parser, without building HAPI model objects.
+ *
+ * Paths are field names separated by dots, relative to the resource:
+ * "id", "name.family", "participant.actor.reference". When a path crosses
+ * an array the first element that has a value wins, except that an array
+ * of strings at the end of a path is joined with spaces ("name.given"
+ * gives "Anna Maria"). An array element can be selected by one of its
+ * fields with a filter in brackets:
+ * "identifier[system=http://kth.se/clinic/appointment-id].value", or
+ * as the first element with [0], so that "name[0].given" and
+ * "name[0].family" come from the same HumanName.
+ *
+ * Everything not on a path is skipped token by token. Instances are
+ * immutable and safe to share between threads.
+ */
+public class JsonProjection {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final String resourceType;
+    private final List<String> paths;
+    private final Node root = new Node();
+
+    public JsonProjection(String resourceType, String... paths) {
+        this.resourceType = resourceType;
+        this.paths = Collections.unmodifiableList(Arrays.asList(paths.clone()));
+        for (int i = 0; i < paths.length; i++) {
+            compile(paths[i], i);
+        }
+    }
+
+    public String getResourceType() {
+        return resourceType;
+    }
+
+    public List<String> getPaths() {
+        return paths;
+    }
+
+    /**
+     * Top-level elements the paths read, for the _elements search parameter.
+     */
+    public List<String> getElements() {
+        List<String> elements = new ArrayList<>();
+        for (String name : root.children.keySet()) {
+            if (!"id".equals(name) && !"resourceType".equals(name)) {
+                elements.add(name);
+            }
+        }
+        return elements;
+    }
+
+    /**
+     * Extract one record per entry of a searchset Bundle. Entries of other
+     * resource types (e.g. OperationOutcome) are skipped.
+     */
+    public List<ProjectedRecord> extractBundle(InputStream json) throws IOException {
+        return extractPage(json).getRecords();
+    }
+
+    /**
+     * Like extractBundle, also keeping the Bundle's "next" link.
+     */
+    public Page extractPage(InputStream json) throws IOException {
+        List<ProjectedRecord> records = new ArrayList<>();
+        String nextUrl = null;
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+                if ("entry".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        ProjectedRecord record = readEntry(parser);
+                        if (record != null) {
+                            records.add(record);
+                        }
+                    }
+                } else if ("link".equals(field) && token == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        String url = readNextLink(parser);
+                        if (url != null) {
+                            nextUrl = url;
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return new Page(Collections.unmodifiableList(records), nextUrl);
+    }
+
+    /**
+     * Extract a record from a single resource, or null if it is of another type.
+     */
+    public ProjectedRecord extractResource(InputStream json) throws IOException {
+        try (JsonParser parser = JSON_FACTORY.createParser(json)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            return readResource(parser);
+        }
+    }
+
+    private ProjectedRecord readEntry(JsonParser parser) throws IOException {
+        ProjectedRecord record = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+            if ("resource".equals(field) && token == JsonToken.START_OBJECT) {
+                record = readResource(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return record;
+    }
+
+    /**
+     * The url of a Bundle link if its relation is "next", otherwise null.
+     */
+    private static String readNextLink(JsonParser parser) throws IOException {
+        String relation = null;
+        String url = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            parser.nextToken();
+            if ("relation".equals(field)) {
+                relation = parser.getText();
+            } else if ("url".equals(field)) {
+                url = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+        return "next".equals(relation) ? url : null;
+    }
+
+    private ProjectedRecord readResource(JsonParser parser) throws IOException {
+        String[] values = new String[paths.size()];
+        String type = readObject(parser, root, values);
+        return resourceType.equals(type) ? new ProjectedRecord(paths, values) : null;
+    }
+
+    /**
+     * Read an object positioned on START_OBJECT up to its END_OBJECT.
+     * Returns the value of its resourceType field, if any.
+     */
+    private String readObject(JsonParser parser, Node node, String[] values) throws IOException {
+        String type = null;
+        String[] target = node.filterField == null ? values : new String[values.length];
+        boolean matched = node.filterField == null;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            JsonToken token = parser.nextToken();
+
+            if (node == root && "resourceType".equals(field)) {
+                type = parser.getText();
+            }
+            if (field.equals(node.filterField) && token.isScalarValue()) {
+                matched = node.filterValue.equals(parser.getText());
+            }
+
+            Node child = node.children.get(field);
+            if (child == null) {
+                parser.skipChildren();
+            } else {
+                readValue(parser, child, target);
+            }
+        }
+
+        if (target != values && matched) {
+            merge(target, values);
+        }
+        return type;
+    }
+
+    private void readValue(JsonParser parser, Node node, String[] values) throws IOException {
+        JsonToken token = parser.currentToken();
+
+        if (token == JsonToken.START_ARRAY) {
+            if (node.isLeaf()) {
+                readScalarArray(parser, node, values);
+                return;
+            }
+            boolean first = true;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                if (first || !node.firstOnly) {
+                    readValue(parser, node, values);
+                } else {
+                    parser.skipChildren();
+                }
+                first = false;
+            }
+            return;
+        }
+
+        if (token == JsonToken.START_OBJECT) {
+            if (node.children.isEmpty()) {
+                parser.skipChildren();
+            } else {
+                readObject(parser, node, values);
+            }
+            return;
+        }
+
+        if (node.isLeaf() && token != JsonToken.VALUE_NULL) {
+            set(node, values, parser.getText());
+        }
+    }
+
+    private void readScalarArray(JsonParser parser, Node node, String[] values) throws IOException {
+        StringBuilder joined = new StringBuilder();
+        JsonToken token;
+        boolean first = true;
+        while ((token = parser.nextToken()) != JsonToken.END_ARRAY) {
+            if (!first && node.firstOnly) {
+                parser.skipChildren();
+            } else if (token.isScalarValue() && token != JsonToken.VALUE_NULL) {
+                if (joined.length() > 0) {
+                    joined.append(' ');
+                }
+                joined.append(parser.getText());
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+        if (joined.length() > 0) {
+            set(node, values, joined.toString());
+        }
+    }
+
+    private static void set(Node node, String[] values, String value) {
+        for (int index : node.outputs) {
+            if (values[index] == null) {
+                values[index] = value;
+            }
+        }
+    }
+
+    private static void merge(String[] from, String[] into) {
+        for (int i = 0; i < from.length; i++) {
+            if (into[i] == null && from[i] != null) {
+                into[i] = from[i];
+            }
+        }
+    }
+
+    private void compile(String path, int index) {
+        Node node = root;
+        for (String segment : split(path)) {
+            String name = segment;
+            String filterField = null;
+            String filterValue = null;
+            boolean firstOnly = false;
+
+            int bracket = segment.indexOf('[');
+            if (bracket >= 0) {
+                int equals = segment.indexOf('=', bracket);
+                name = segment.substring(0, bracket);
+                if (segment.endsWith("[0]")) {
+                    firstOnly = true;
+                } else if (!segment.endsWith("]") || equals < 0) {
+                    throw new IllegalArgumentException("Invalid filter in path: " + path);
+                } else {
+                    filterField = segment.substring(bracket + 1, equals);
+                    filterValue = segment.substring(equals + 1, segment.length() - 1);
+                }
+            }
+
+            Node child = node.children.get(name);
+            if (child == null) {
+                child = new Node();
+                child.filterField = filterField;
+                child.filterValue = filterValue;
+                child.firstOnly = firstOnly;
+                node.children.put(name, child);
+            } else if ((filterField != null && !(filterField.equals(child.filterField)
+                    && filterValue.equals(child.filterValue))) || (firstOnly && !child.firstOnly)) {
+                throw new IllegalArgumentException("Conflicting filters on " + name + " in path: " + path);
+            }
+            node = child;
+        }
+        node.outputs.add(index);
+    }
+
+    /**
+     * Split a path on dots outside brackets, so filter values may hold dots.
+     */
+    private static List<String> split(String path) {
+        List<String> segments = new ArrayList<>();
+        int depth = 0;
+        int start = 0;
+        for (int i = 0; i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (c == '[') {
+                depth++;
+            } else if (c == ']') {
+                depth--;
+            } else if (c == '.' && depth == 0) {
+                segments.add(path.substring(start, i));
+                start = i + 1;
+            }
+        }
+        segments.add(path.substring(start));
+        return segments;
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but found " + actual);
+        }
+    }
+
+    /**
+     * The records of one page of search results and the URL of the next
+     * page, or null on the last page.
+     */
+    public static class Page {
+
+        private final List<ProjectedRecord> records;
+        private final String nextUrl;
+
+        Page(List<ProjectedRecord> records, String nextUrl) {
+            this.records = records;
+            this.nextUrl = nextUrl;
+        }
+
+        public List<ProjectedRecord> getRecords() {
+            return records;
+        }
+
+        public String getNextUrl() {
+            return nextUrl;
+        }
+
+        public boolean hasNext() {
+            return nextUrl != null;
+        }
+    }
+
+    private static class Node {
+
+        private final Map<String, Node> children = new LinkedHashMap<>();
+        private final List<Integer> outputs = new ArrayList<>();
+        private String filterField;
+        private String filterValue;
+        private boolean firstOnly;
+
+        boolean isLeaf() {
+            return !outputs.isEmpty();
+        }
+    }
+}
@@ -0,0 +1,446 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.dao.mongodb.ConversationRepository;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Tells people about new messages shortly after they are sent, from any
+ * process, without each of them searching for messages.
+ *
+ * One poller per process searches for Communications with
+ * _lastUpdated >= the newest one seen, every messages.poll-interval-ms
+ * (default 2000). That is one small search per interval however many
+ * people are listening; new messages are then handed to the listeners
+ * subscribed to their recipient, to the listeners of every message, and
+ * to waiting awaitMessages calls (long polling). New messages are also
+ * added to the conversation index, so inboxes include messages sent by
+ * other processes.
+ *
+ * Each search reaches back OVERLAP_MS before the newest timestamp seen,
+ * so a message committed with a slightly older timestamp isn't missed;
+ * messages seen already are skipped. The poller starts with the first
+ * subscriber or waiting call, or when PrefetchService keeps message
+ * searches: every poll that finds changes drops kept Communication
+ * searches (SearchCoalescer.invalidate), so messages sent by other
+ * processes show up within a poll interval.
+ *
+ * FHIR Subscriptions would push instead, but neither the shared HAPI
+ * server nor InMemoryFhirServer can reach this process, so polling it is.
+ */
+public class MessageNotifier {
+
+    private static final String POLL_INTERVAL_KEY = "messages.poll-interval-ms";
+    private static final int DEFAULT_POLL_INTERVAL_MS = 2000;
+    private static final long OVERLAP_MS = 5000;
+    private static final int PAGE_SIZE = 100;
+    // Notifications kept for awaitMessages callers that are between calls
+    private static final int HISTORY_SIZE = 1000;
+    // A failing server would otherwise log every poll
+    private static final long FAILURE_LOG_INTERVAL_MS = 60000;
+
+    private static MessageNotifier instance;
+
+    private final IGenericClient client;
+    private final SearchCoalescer searchCoalescer;
+    private final long pollIntervalMs;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final Map<String, List<Listener>> subscribers = new ConcurrentHashMap<>();
+    // Versioned IDs of the messages seen in the overlap window, and when
+    // they were updated; guarded by pollLock like the cursor
+    private final Object pollLock = new Object();
+    private final Map<String, Long> seen = new HashMap<>();
+    private Date cursor;
+    private Thread poller;
+
+    // Long-polling callers block on the lock, not a monitor, so waiting
+    // virtual threads don't pin their carrier threads
+    private final ReentrantLock historyLock = new ReentrantLock();
+    private final Condition arrived = historyLock.newCondition();
+    private final Deque<Notification> history = new ArrayDeque<>();
+    private long sequence;
+
+    private final Object failureLock = new Object();
+    private long failureLogged;
+    private int failuresSuppressed;
+
+    private MessageNotifier(IGenericClient client, SearchCoalescer searchCoalescer, long pollIntervalMs) {
+        this.client = client;
+        this.searchCoalescer = searchCoalescer;
+        this.pollIntervalMs = pollIntervalMs;
+    }
+
+    public static synchronized MessageNotifier getInstance() {
+        if (instance == null) {
+            instance = new MessageNotifier(
+                    ClientSingleton.getInstance(),
+                    SearchCoalescer.getInstance(),
+                    ConfigurationUtil.getInt(POLL_INTERVAL_KEY, DEFAULT_POLL_INTERVAL_MS));
+            MessageNotifier notifier = instance;
+            ConversationRepository conversations = new ConversationRepository();
+            // record makes several MongoDB round-trips, so it runs off the
+            // poller's thread. Messages sent by this process are indexed
+            // already; record ignores them
+            ExecutorService indexer = VirtualThreads.newPerTaskExecutor("conversation-index");
+            instance.addListener(notification -> {
+                if (notification.getCommunicationId() == null) {
+                    return;
+                }
+                indexer.execute(() -> {
+                    try {
+                        conversations.record(notification.getCommunicationId(), notification.getFhirId(),
+                                notification.getSender(), notification.getRecipient(), notification.getSent(),
+                                notification.getText(), true);
+                    } catch (RuntimeException e) {
+                        notifier.logFailure("Conversation index update failed: " + e.getMessage());
+                    }
+                });
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Be told about every new message. Doesn't start the poller.
+     */
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Be told about new messages to a participant ("Patient/123").
+     */
+    public void subscribe(String participantRef, Listener listener) {
+        subscribers.computeIfAbsent(participantRef, ref -> new CopyOnWriteArrayList<>()).add(listener);
+        start();
+    }
+
+    public void unsubscribe(String participantRef, Listener listener) {
+        subscribers.computeIfPresent(participantRef, (ref, list) -> {
+            list.remove(listener);
+            return list.isEmpty() ? null : list;
+        });
+    }
+
+    /**
+     * The sequence number of the latest notification, to pass to the
+     * first awaitMessages call.
+     */
+    public long getSequence() {
+        historyLock.lock();
+        try {
+            return sequence;
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    /**
+     * New messages to a participant with a sequence number above
+     * afterSequence, waiting up to timeoutMs for one to arrive. Returns an
+     * empty list on timeout.
+     */
+    public List<Notification> awaitMessages(String participantRef, long afterSequence, long timeoutMs)
+            throws InterruptedException {
+        start();
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        historyLock.lock();
+        try {
+            while (true) {
+                List<Notification> found = new ArrayList<>();
+                for (Notification notification : history) {
+                    if (notification.getSequence() > afterSequence
+                            && participantRef.equals(notification.getRecipient())) {
+                        found.add(notification);
+                    }
+                }
+                if (!found.isEmpty() || remaining <= 0) {
+                    return found;
+                }
+                remaining = arrived.awaitNanos(remaining);
+            }
+        } finally {
+            historyLock.unlock();
+        }
+    }
+
+    public synchronized void start() {
+        if (poller != null || pollIntervalMs <= 0) {
+            return;
+        }
+        poller = VirtualThreads.start("message-notifier", () -> {
+            // Poll first: messages sent before the first poll count as old
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    logFailure("Message poll failed: " + e.getMessage());
+                }
+                try {
+                    Thread.sleep(pollIntervalMs);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        });
+    }
+
+    public synchronized void stop() {
+        if (poller != null) {
+            poller.interrupt();
+            poller = null;
+        }
+    }
+
+    /**
+     * Fetch messages updated since the last poll and notify listeners of
+     * the new ones. Called by the poller thread, but can be called
+     * directly to check right away. The first call only finds where to
+     * start from.
+     */
+    public void poll() {
+        List<Notification> created;
+        synchronized (pollLock) {
+            created = fetchNew();
+        }
+        if (!created.isEmpty()) {
+            publish(created);
+        }
+    }
+
+    private List<Notification> fetchNew() {
+        boolean first = cursor == null;
+        if (first) {
+            cursor = latestUpdate();
+        }
+
+        Date since = new Date(cursor.getTime() - OVERLAP_MS);
+        Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.search()
+                .forResource(Communication.class)
+                .lastUpdated(new DateRangeParam(since, null))
+                .sort().ascending("_lastUpdated")
+                .count(PAGE_SIZE)
+                .returnBundle(Bundle.class)
+                .execute());
+
+        List<Notification> created = new ArrayList<>();
+        boolean changed = false;
+        while (true) {
+            for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                if (!(entry.getResource() instanceof Communication)) {
+                    continue;
+                }
+                Communication comm = (Communication) entry.getResource();
+                Date updated = comm.getMeta().getLastUpdated();
+                String version = comm.getMeta().getVersionId();
+                String key = comm.getIdElement().getIdPart() + "/" + version;
+                if (updated == null || seen.putIfAbsent(key, updated.getTime()) != null) {
+                    continue;
+                }
+                changed = true;
+                if (updated.after(cursor)) {
+                    cursor = updated;
+                }
+                // Only the first version is a new message; later ones are edits
+                if (!first && (version == null || "1".equals(version))) {
+                    Notification notification = toNotification(comm);
+                    if (notification != null) {
+                        created.add(notification);
+                    }
+                }
+            }
+            if (page.getLink(Bundle.LINK_NEXT) == null) {
+                break;
+            }
+            Bundle current = page;
+            page = RequestPriority.supply(RequestPriority.BATCH,
+                    () -> client.loadPage().next(current).execute());
+        }
+
+        long horizon = cursor.getTime() - OVERLAP_MS;
+        seen.values().removeIf(updated -> updated < horizon);
+
+        // Searches kept before the first poll may predate messages it
+        // takes as old, so drop those too
+        if (changed || first) {
+            searchCoalescer.invalidate("Communication");
+        }
+        return created;
+    }
+
+    /**
+     * When the newest Communication was updated, by the server's clock.
+     */
+    private Date latestUpdate() {
+        Bundle newest = RequestPriority.supply(RequestPriority.BATCH, () -> client.search()
+                .forResource(Communication.class)
+                .sort().descending("_lastUpdated")
+                .count(1)
+                .returnBundle(Bundle.class)
+                .execute());
+        if (!newest.getEntry().isEmpty() && newest.getEntryFirstRep().getResource().getMeta().hasLastUpdated()) {
+            return newest.getEntryFirstRep().getResource().getMeta().getLastUpdated();
+        }
+        return newest.getMeta().hasLastUpdated() ? newest.getMeta().getLastUpdated() : new Date();
+    }
+
+    private void publish(List<Notification> created) {
+        historyLock.lock();
+        try {
+            for (Notification notification : created) {
+                notification.sequence = ++sequence;
+                history.addLast(notification);
+            }
+            while (history.size() > HISTORY_SIZE) {
+                history.removeFirst();
+            }
+            arrived.signalAll();
+        } finally {
+            historyLock.unlock();
+        }
+
+        for (Notification notification : created) {
+            fire(listeners, notification);
+            List<Listener> recipients = subscribers.get(notification.getRecipient());
+            if (recipients != null) {
+                fire(recipients, notification);
+            }
+        }
+    }
+
+    private void fire(List<Listener> targets, Notification notification) {
+        for (Listener listener : targets) {
+            try {
+                listener.onMessage(notification);
+            } catch (RuntimeException e) {
+                logFailure("Message listener failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Print a failure, at most once per FAILURE_LOG_INTERVAL_MS; the rest
+     * are counted and the count printed with the next one.
+     */
+    private void logFailure(String message) {
+        synchronized (failureLock) {
+            long now = System.currentTimeMillis();
+            if (failureLogged != 0 && now - failureLogged < FAILURE_LOG_INTERVAL_MS) {
+                failuresSuppressed++;
+                return;
+            }
+            if (failuresSuppressed > 0) {
+                message = message + " (" + failuresSuppressed + " more failures not shown)";
+            }
+            System.err.println(message);
+            failureLogged = now;
+            failuresSuppressed = 0;
+        }
+    }
+
+    private static Notification toNotification(Communication comm) {
+        if (!comm.hasSender() || comm.getRecipient().isEmpty()) {
+            return null;
+        }
+        String communicationId = null;
+        for (Identifier identifier : comm.getIdentifier()) {
+            if (CommunicationFhirRepository.COMMUNICATION_ID_SYSTEM.equals(identifier.getSystem())) {
+                communicationId = identifier.getValue();
+            }
+        }
+        String text = "";
+        if (!comm.getPayload().isEmpty() && comm.getPayloadFirstRep().getContent() instanceof StringType) {
+            text = ((StringType) comm.getPayloadFirstRep().getContent()).getValue();
+        }
+        return new Notification(communicationId, comm.getIdElement().getIdPart(),
+                comm.getSender().getReference(), comm.getRecipientFirstRep().getReference(),
+                comm.hasSent() ? comm.getSent() : comm.getMeta().getLastUpdated(), text);
+    }
+
+    /**
+     * Told about new messages, on the poller's thread, which waits for it;
+     * hand slow work such as FHIR reads to another thread.
+     */
+    public interface Listener {
+        void onMessage(Notification notification);
+    }
+
+    /**
+     * A new message. Sender and recipient are FHIR references.
+     */
+    public static class Notification {
+
+        private final String communicationId;
+        private final String fhirId;
+        private final String sender;
+        private final String recipient;
+        private final Date sent;
+        private final String text;
+        private long sequence;
+
+        Notification(String communicationId, String fhirId, String sender, String recipient, Date sent, String text) {
+            this.communicationId = communicationId;
+            this.fhirId = fhirId;
+            this.sender = sender;
+            this.recipient = recipient;
+            this.sent = sent;
+            this.text = text;
+        }
+
+        /**
+         * The clinic's ID of the message, or null if it has none.
+         */
+        public String getCommunicationId() {
+            return communicationId;
+        }
+
+        public String getFhirId() {
+            return fhirId;
+        }
+
+        public String getSender() {
+            return sender;
+        }
+
+        public String getRecipient() {
+            return recipient;
+        }
+
+        public Date getSent() {
+            return sent;
+        }
+
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * Increases with each notification in this process.
+         */
+        public long getSequence() {
+            return sequence;
+        }
+    }
+}
@@ -3,6 +3,8 @@ package com.github.cm2027.lab3.dao.fhir;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.search.TextIndex;
 import org.hl7.fhir.r4.model.*;
 
 import java.time.LocalDateTime;
@@ -13,13 +15,21 @@ import java.util.List;
 
 public class ObservationFhirRepository {
 
-    private static final String OBSERVATION_ID_SYSTEM = "http://kth.se/clinic/observation-id";
+    /**
+     * System of the clinic's observation identifiers.
+     */
+    public static final String OBSERVATION_ID_SYSTEM = "http://kth.se/clinic/observation-id";
+
     private final IGenericClient client;
+    private final ResourceVersionCache resourceCache;
     private final PatientFhirRepository patientRepo;
+    private final TextIndex textIndex;
 
     public ObservationFhirRepository() {
         this.client = ClientSingleton.getInstance();
+        this.resourceCache = ResourceVersionCache.getInstance();
         this.patientRepo = new PatientFhirRepository();
+        this.textIndex = TextIndex.getInstance();
     }
 
     public Observation createObservation(String observationID, String patientPN,
@@ -65,9 +75,19 @@ public class ObservationFhirRepository {
         }
 
         Observation createdObservation = (Observation) outcome.getResource();
+        textIndex.onSaved(createdObservation);
         return createdObservation;
     }
 
+    /**
+     * A patient's observations whose text matches the query, newest first.
+     * Quoted parts of the query are phrases.
+     */
+    public List<TextIndex.Hit> searchByPatient(String patientPN, String query, int limit) throws Exception {
+        Patient patient = patientRepo.findByPN(patientPN);
+        return textIndex.search(query, "Patient/" + patient.getIdElement().getIdPart(), "Observation", limit);
+    }
+
     public Observation findByID(String observationID) throws Exception {
 
         if (observationID == null || observationID.isBlank()) {
@@ -81,7 +101,7 @@ public class ObservationFhirRepository {
                 .execute();
 
         if (results.getEntry().isEmpty()) {
-            throw new IllegalArgumentException("No observation found with ID: " + observationID);
+            throw new NotFoundException("No observation found with ID: " + observationID);
         }
 
         Observation observation = (Observation) results.getEntry().get(0).getResource();
@@ -110,7 +130,7 @@ public class ObservationFhirRepository {
         }
 
         if (observations.isEmpty()) {
-            throw new IllegalArgumentException("No observations found for patient: " + patientPN);
+            throw new NotFoundException("No observations found for patient: " + patientPN);
         }
 
         return observations;
@@ -146,7 +166,7 @@ public class ObservationFhirRepository {
         if (observation.hasSubject()) {
             Reference subjectRef = observation.getSubject();
             String patientId = subjectRef.getReferenceElement().getIdPart();
-            Patient patient = client.read().resource(Patient.class).withId(patientId).execute();
+            Patient patient = resourceCache.read(Patient.class, patientId);
             String patientName = patient.getNameFirstRep().getNameAsSingleString();
             details = details + "Patient: " + patientName + "\n";
         }
@@ -171,7 +191,11 @@ public class ObservationFhirRepository {
             observation.setValue(new StringType(newText));
         }
 
-        client.update().resource(observation).execute();
+        MethodOutcome outcome = client.update().resource(observation).execute();
+        if (outcome.getId() != null) {
+            observation.getMeta().setVersionId(outcome.getId().getVersionIdPart());
+        }
+        textIndex.onSaved(observation);
 
         return observation;
     }
@@ -190,6 +214,7 @@ public class ObservationFhirRepository {
         }
 
         client.delete().resourceById("Observation", observationFhirId).execute();
+        textIndex.onDeleted("Observation", observationFhirId);
 
         String result = "Successfully deleted observation " + id;
         return result;
@@ -3,6 +3,8 @@ package com.github.cm2027.lab3.dao.fhir;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.search.NameIndex;
 import org.hl7.fhir.r4.model.*;
 
 import java.util.ArrayList;
@@ -10,11 +12,21 @@ import java.util.List;
 
 public class PatientFhirRepository {
 
-    private static final String PERSONNUMMER_SYSTEM = "http://electronichealth.se/identifier/personnummer";
+    /**
+     * System of the personnummer identifiers the clinic gives patients.
+     */
+    public static final String PERSONNUMMER_SYSTEM = "http://electronichealth.se/identifier/personnummer";
+
     private final IGenericClient client;
+    private final ResourceVersionCache resourceCache;
+    private final SearchCoalescer searchCoalescer;
+    private final NameIndex nameIndex;
 
     public PatientFhirRepository() {
         this.client = ClientSingleton.getInstance();
+        this.resourceCache = ResourceVersionCache.getInstance();
+        this.searchCoalescer = SearchCoalescer.getInstance();
+        this.nameIndex = NameIndex.getInstance();
     }
 
     public Patient createPatient(String patientPN, String firstName, String lastName,
@@ -55,12 +67,14 @@ public class PatientFhirRepository {
         patient.setActive(true);
 
         MethodOutcome outcome = client.create().resource(patient).execute();
+        searchCoalescer.invalidate("Patient");
 
         if (!outcome.getCreated()) {
             throw new RuntimeException("Failed to create patient");
         }
 
         Patient createdPatient = (Patient) outcome.getResource();
+        nameIndex.onSaved(createdPatient);
         return createdPatient;
     }
 
@@ -70,17 +84,15 @@ public class PatientFhirRepository {
             throw new IllegalArgumentException("patientPN must not be blank");
         }
 
-        Bundle results = client.search()
-                .forResource(Patient.class)
-                .where(Patient.IDENTIFIER.exactly().systemAndCode(PERSONNUMMER_SYSTEM, patientPN))
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(SearchCoalescer.searchUrl(
+                "Patient", "identifier", PERSONNUMMER_SYSTEM + "|" + patientPN));
 
         if (results.getEntry().isEmpty()) {
-            throw new IllegalArgumentException("No patient found with PN: " + patientPN);
+            throw new NotFoundException("No patient found with PN: " + patientPN);
         }
 
         Patient patient = (Patient) results.getEntry().get(0).getResource();
+        resourceCache.put(patient);
         return patient;
     }
 
@@ -104,12 +116,22 @@ public class PatientFhirRepository {
         }
 
         if (patients.isEmpty()) {
-            throw new IllegalArgumentException("No patients found with name: " + firstName + " " + lastName);
+            throw new NotFoundException("No patients found with name: " + firstName + " " + lastName);
         }
 
         return patients;
     }
 
+    /**
+     * Patients whose name matches a query typed so far, best match first:
+     * any name in any order, the last word possibly incomplete, accents
+     * and small typos ignored ("asa strm" finds Åsa Ström). Answered from
+     * NameIndex without a request to the server.
+     */
+    public List<NameIndex.Match> suggestByName(String query, int limit) throws Exception {
+        return nameIndex.search(query, "Patient", limit);
+    }
+
     public String getPatientSummary(String patientPN) throws Exception {
 
         Patient patient = findByPN(patientPN);
@@ -130,10 +152,7 @@ public class PatientFhirRepository {
             String practitionerId = doctorRef.getReferenceElement().getIdPart();
 
             try {
-                Practitioner practitioner = client.read()
-                        .resource(Practitioner.class)
-                        .withId(practitionerId)
-                        .execute();
+                Practitioner practitioner = resourceCache.read(Practitioner.class, practitionerId);
 
                 String drFirstName = practitioner.getNameFirstRep().getGivenAsSingleString();
                 String drLastName = practitioner.getNameFirstRep().getFamily();
@@ -182,7 +201,13 @@ public class PatientFhirRepository {
             patient.addGeneralPractitioner(doctorRef);
         }
 
-        client.update().resource(patient).execute();
+        MethodOutcome outcome = client.update().resource(patient).execute();
+        if (outcome.getId() != null) {
+            patient.getMeta().setVersionId(outcome.getId().getVersionIdPart());
+        }
+        searchCoalescer.invalidate("Patient");
+        nameIndex.onSaved(patient);
+        resourceCache.invalidate("Patient", patient.getIdElement().getIdPart());
 
         return patient;
     }
@@ -203,6 +228,9 @@ public class PatientFhirRepository {
         }
 
         client.delete().resourceById("Patient", patientId).execute();
+        searchCoalescer.invalidate("Patient");
+        nameIndex.onDeleted("Patient", patientId);
+        resourceCache.invalidate("Patient", patientId);
 
         String result = "Successfully deleted " + firstName + " " + lastName + " (PN: " + patientPN + ")";
         return result;
@@ -224,10 +252,7 @@ public class PatientFhirRepository {
         }
 
         try {
-            Practitioner practitioner = client.read()
-                    .resource(Practitioner.class)
-                    .withId(doctorFhirId)
-                    .execute();
+            Practitioner practitioner = resourceCache.read(Practitioner.class, doctorFhirId);
 
             List<Identifier> identifiers = practitioner.getIdentifier();
             for (Identifier id : identifiers) {
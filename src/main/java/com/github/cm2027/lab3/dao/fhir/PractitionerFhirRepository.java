@@ -3,6 +3,8 @@ package com.github.cm2027.lab3.dao.fhir;
 import ca.uhn.fhir.rest.api.MethodOutcome;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.search.NameIndex;
 import org.hl7.fhir.r4.model.*;
 
 import java.util.ArrayList;
@@ -10,11 +12,21 @@ import java.util.List;
 
 public class PractitionerFhirRepository {
 
-    private static final String DOCTOR_ID_SYSTEM = "http://kth.se/clinic/doctor-id";
+    /**
+     * System of the clinic's doctor IDs.
+     */
+    public static final String DOCTOR_ID_SYSTEM = "http://kth.se/clinic/doctor-id";
+
     private final IGenericClient client;
+    private final ResourceVersionCache resourceCache;
+    private final SearchCoalescer searchCoalescer;
+    private final NameIndex nameIndex;
 
     public PractitionerFhirRepository() {
         this.client = ClientSingleton.getInstance();
+        this.resourceCache = ResourceVersionCache.getInstance();
+        this.searchCoalescer = SearchCoalescer.getInstance();
+        this.nameIndex = NameIndex.getInstance();
     }
 
     public Practitioner createPractitioner(String doctorID, String firstName, String lastName, String phoneNumber) throws Exception {
@@ -46,12 +58,14 @@ public class PractitionerFhirRepository {
         practitioner.setActive(true);
 
         MethodOutcome outcome = client.create().resource(practitioner).execute();
+        searchCoalescer.invalidate("Practitioner");
 
         if (!outcome.getCreated()) {
             throw new RuntimeException("Failed to create practitioner");
         }
 
         Practitioner createdPractitioner = (Practitioner) outcome.getResource();
+        nameIndex.onSaved(createdPractitioner);
         return createdPractitioner;
     }
 
@@ -61,17 +75,15 @@ public class PractitionerFhirRepository {
             throw new IllegalArgumentException("doctorID must not be blank");
         }
 
-        Bundle results = client.search()
-                .forResource(Practitioner.class)
-                .where(Practitioner.IDENTIFIER.exactly().systemAndCode(DOCTOR_ID_SYSTEM, doctorID))
-                .returnBundle(Bundle.class)
-                .execute();
+        Bundle results = searchCoalescer.search(SearchCoalescer.searchUrl(
+                "Practitioner", "identifier", DOCTOR_ID_SYSTEM + "|" + doctorID));
 
         if (results.getEntry().isEmpty()) {
-            throw new IllegalArgumentException("No practitioner found with ID: " + doctorID);
+            throw new NotFoundException("No practitioner found with ID: " + doctorID);
         }
 
         Practitioner practitioner = (Practitioner) results.getEntry().get(0).getResource();
+        resourceCache.put(practitioner);
         return practitioner;
     }
 
@@ -95,12 +107,22 @@ public class PractitionerFhirRepository {
         }
 
         if (practitioners.isEmpty()) {
-            throw new IllegalArgumentException("No practitioners found with name: " + firstName + " " + lastName);
+            throw new NotFoundException("No practitioners found with name: " + firstName + " " + lastName);
         }
 
         return practitioners;
     }
 
+    /**
+     * Practitioners whose name matches a query typed so far, best match first:
+     * any name in any order, the last word possibly incomplete, accents
+     * and small typos ignored ("asa strm" finds Åsa Ström). Answered from
+     * NameIndex without a request to the server.
+     */
+    public List<NameIndex.Match> suggestByName(String query, int limit) throws Exception {
+        return nameIndex.search(query, "Practitioner", limit);
+    }
+
     public String getPractitionerSummary(String doctorID) throws Exception {
 
         Practitioner practitioner = findByID(doctorID);
@@ -141,7 +163,13 @@ public class PractitionerFhirRepository {
             practitioner.addTelecom(phone);
         }
 
-        client.update().resource(practitioner).execute();
+        MethodOutcome outcome = client.update().resource(practitioner).execute();
+        if (outcome.getId() != null) {
+            practitioner.getMeta().setVersionId(outcome.getId().getVersionIdPart());
+        }
+        searchCoalescer.invalidate("Practitioner");
+        nameIndex.onSaved(practitioner);
+        resourceCache.invalidate("Practitioner", practitioner.getIdElement().getIdPart());
 
         return practitioner;
     }
@@ -162,6 +190,9 @@ public class PractitionerFhirRepository {
         }
 
         client.delete().resourceById("Practitioner", practitionerId).execute();
+        searchCoalescer.invalidate("Practitioner");
+        nameIndex.onDeleted("Practitioner", practitionerId);
+        resourceCache.invalidate("Practitioner", practitionerId);
 
         String result = "Successfully deleted Dr. " + firstName + " " + lastName + " (ID: " + doctorID + ")";
         return result;
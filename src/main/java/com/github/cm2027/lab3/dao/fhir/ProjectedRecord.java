@@ -0,0 +1,58 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.util.List;
+
+/**
+ * Values of one resource extracted by a JsonProjection, in the order of its
+ * paths. Missing values are null. Immutable.
+ */
+public class ProjectedRecord {
+
+    private final List<String> paths;
+    private final String[] values;
+
+    ProjectedRecord(List<String> paths, String[] values) {
+        this.paths = paths;
+        this.values = values;
+    }
+
+    public String get(int index) {
+        return values[index];
+    }
+
+    public String get(String path) {
+        int index = paths.indexOf(path);
+        if (index < 0) {
+            throw new IllegalArgumentException("Path not in projection: " + path);
+        }
+        return values[index];
+    }
+
+    public String get(String path, String defaultValue) {
+        String value = get(path);
+        return value == null ? defaultValue : value;
+    }
+
+    /**
+     * A FHIR instant or dateTime with time zone, e.g. Appointment.start.
+     * Null if missing.
+     */
+    public Instant getInstant(String path) {
+        String value = get(path);
+        return value == null ? null : OffsetDateTime.parse(value).toInstant();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder("{");
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(paths.get(i)).append('=').append(values[i]);
+        }
+        return text.append('}').toString();
+    }
+}
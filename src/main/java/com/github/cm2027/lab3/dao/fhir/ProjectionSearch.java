@@ -0,0 +1,116 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.util.StreamUtil;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * Runs FHIR searches and streams the response Bundle through a
+ * JsonProjection, for list views and syncs that only need a few fields.
+ *
+ * Only the top-level elements the projection reads are requested
+ * ("_elements"), so the server leaves out narrative and extensions.
+ *
+ * The request goes through the same HTTP client as the HAPI client, so it
+ * gets the same retries, circuit breaker and admission control. Identical
+ * concurrent searches share one request through the SearchCoalescer; the
+ * records are immutable, so followers get the same list.
+ *
+ * cursor() pages through larger results instead, following the Bundle's
+ * "next" links one page at a time.
+ */
+public class ProjectionSearch {
+
+    private static ProjectionSearch instance;
+
+    private final CloseableHttpClient httpClient;
+    private final String serverBase;
+    private final SearchCoalescer searchCoalescer;
+
+    private ProjectionSearch(CloseableHttpClient httpClient, String serverBase, SearchCoalescer searchCoalescer) {
+        this.httpClient = httpClient;
+        this.serverBase = serverBase.endsWith("/") ? serverBase : serverBase + "/";
+        this.searchCoalescer = searchCoalescer;
+    }
+
+    public static synchronized ProjectionSearch getInstance() {
+        if (instance == null) {
+            instance = new ProjectionSearch(
+                    ClientSingleton.getHttpClient(),
+                    ClientSingleton.getInstance().getServerBase(),
+                    SearchCoalescer.getInstance());
+        }
+        return instance;
+    }
+
+    /**
+     * Run a relative search URL such as "Appointment?patient=123" and
+     * return one record per matching resource.
+     */
+    public List<ProjectedRecord> search(String searchUrl, JsonProjection projection) throws Exception {
+        String url = SearchCoalescer.normalize(withElements(searchUrl, projection));
+        String key = "projection:" + projection.getResourceType() + projection.getPaths() + ":" + url;
+        return searchCoalescer.execute(key,
+                () -> List.copyOf(fetch(url, projection).getRecords()), records -> records);
+    }
+
+    /**
+     * A cursor over the pages of a search. The first page is fetched on the
+     * first call to next(); put "_count" in the URL to choose the page size.
+     * Only the first page goes through the coalescer, later pages are
+     * fetched by each cursor itself.
+     */
+    public StreamUtil.Cursor<ProjectedRecord> cursor(String searchUrl, JsonProjection projection) {
+        String url = SearchCoalescer.normalize(withElements(searchUrl, projection));
+        String key = "projection-page:" + projection.getResourceType() + projection.getPaths() + ":" + url;
+        return StreamUtil.Cursor.of(
+                previous -> previous == null
+                        ? searchCoalescer.execute(key, () -> fetch(url, projection), page -> page)
+                        : fetch(previous.getNextUrl(), projection),
+                JsonProjection.Page::hasNext,
+                JsonProjection.Page::getRecords);
+    }
+
+    private static String withElements(String searchUrl, JsonProjection projection) {
+        List<String> elements = projection.getElements();
+        if (elements.isEmpty()) {
+            return searchUrl;
+        }
+        return SearchProjection.elements(elements.toArray(new String[0])).apply(searchUrl);
+    }
+
+    /**
+     * Fetch one page. url is relative to the server base, or absolute for
+     * the "next" links the server hands out.
+     */
+    private JsonProjection.Page fetch(String url, JsonProjection projection) throws Exception {
+        boolean absolute = url.startsWith("http://") || url.startsWith("https://");
+        HttpGet request = new HttpGet(absolute ? url : serverBase + url);
+        request.setHeader("Accept", "application/fhir+json");
+
+        try (CloseableHttpResponse response = httpClient.execute(request)) {
+            HttpEntity entity = response.getEntity();
+            int status = response.getStatusLine().getStatusCode();
+            if (status != 200) {
+                String body = entity == null ? "" : EntityUtils.toString(entity);
+                throw BaseServerResponseException.newInstance(status,
+                        "HTTP " + status + " " + response.getStatusLine().getReasonPhrase() + ": " + body);
+            }
+            if (entity == null) {
+                return new JsonProjection.Page(List.of(), null);
+            }
+
+            try (InputStream body = entity.getContent()) {
+                return projection.extractPage(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Version-aware cache of resources read by id, keyed by "Type/id".
+ *
+ * A read of a cached resource is sent as a conditional read
+ * (If-None-Match with the cached versionId). When the server answers
+ * 304 Not Modified the cached copy is returned without downloading or
+ * parsing the resource again.
+ *
+ * The cache is shared by all repositories and is safe to use concurrently.
+ * Its size is capped by fhir.cache.max-entries (default 10000), evicting the
+ * least recently used entry.
+ */
+public class ResourceVersionCache {
+
+    private static final String MAX_ENTRIES_KEY = "fhir.cache.max-entries";
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+
+    private static ResourceVersionCache instance;
+
+    private final IGenericClient client;
+    private final Map<String, Resource> entries;
+    private final AtomicLong notModified = new AtomicLong();
+    private final AtomicLong downloaded = new AtomicLong();
+
+    private ResourceVersionCache(IGenericClient client, int maxEntries) {
+        this.client = client;
+        this.entries = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Resource> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    public static synchronized ResourceVersionCache getInstance() {
+        if (instance == null) {
+            int maxEntries = ConfigurationUtil.getInt(MAX_ENTRIES_KEY, DEFAULT_MAX_ENTRIES);
+            instance = new ResourceVersionCache(ClientSingleton.getInstance(), maxEntries);
+        }
+        return instance;
+    }
+
+    /**
+     * Read a resource by id, revalidating any cached copy with the server.
+     * Returns a copy the caller is free to modify.
+     */
+    public <T extends Resource> T read(Class<T> type, String id) {
+        String key = key(type.getSimpleName(), id);
+        T cached = type.cast(get(key));
+
+        T result;
+        if (cached != null && cached.getIdElement().hasVersionIdPart()) {
+            result = client.read()
+                    .resource(type)
+                    .withId(id)
+                    .ifVersionMatches(cached.getIdElement().getVersionIdPart())
+                    .returnResource(cached)
+                    .execute();
+        } else {
+            result = client.read()
+                    .resource(type)
+                    .withId(id)
+                    .execute();
+        }
+
+        if (result == cached) {
+            notModified.incrementAndGet();
+            return type.cast(cached.copy());
+        }
+
+        downloaded.incrementAndGet();
+        put(result);
+        return result;
+    }
+
+    /**
+     * Remember a resource obtained some other way (e.g. from a search).
+     * Resources without a versionId are ignored.
+     */
+    public void put(Resource resource) {
+        if (resource == null || !resource.getIdElement().hasIdPart()
+                || !resource.getIdElement().hasVersionIdPart()) {
+            return;
+        }
+        String key = key(resource.fhirType(), resource.getIdElement().getIdPart());
+        Resource copy = resource.copy();
+        synchronized (entries) {
+            entries.put(key, copy);
+        }
+    }
+
+    /**
+     * Forget a resource after it has been updated or deleted.
+     */
+    public void invalidate(String resourceType, String id) {
+        synchronized (entries) {
+            entries.remove(key(resourceType, id));
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Number of reads answered with 304 Not Modified.
+     */
+    public long getNotModifiedCount() {
+        return notModified.get();
+    }
+
+    /**
+     * Number of reads that downloaded the full resource.
+     */
+    public long getDownloadedCount() {
+        return downloaded.get();
+    }
+
+    private Resource get(String key) {
+        synchronized (entries) {
+            return entries.get(key);
+        }
+    }
+
+    private static String key(String resourceType, String id) {
+        return resourceType + "/" + id;
+    }
+}
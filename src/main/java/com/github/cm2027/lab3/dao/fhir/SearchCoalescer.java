@@ -0,0 +1,301 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.hl7.fhir.r4.model.Bundle;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Single-flight execution of FHIR searches.
+ *
+ * Searches are keyed by their normalized URL (parameters sorted and
+ * re-encoded). While a search is in flight, identical searches from other
+ * threads wait for it instead of sending their own request, and receive
+ * their own copy of the response so callers can't see each other's
+ * modifications.
+ *
+ * Searches run inside warm() are also kept for a short while
+ * (fhir.search.warm-ttl-ms, default 60000), so a prefetch can run the
+ * searches a user is about to need before they ask. Kept results are
+ * handed out as copies until they expire or a resource of the same type
+ * is written by a repository, or by another process as far as a poller
+ * such as MessageNotifier sees it (see invalidate). Other searches are
+ * never cached.
+ *
+ * The coalescer is shared by all repositories and is safe to use concurrently.
+ */
+public class SearchCoalescer {
+
+    private static final String WARM_TTL_KEY = "fhir.search.warm-ttl-ms";
+    private static final int DEFAULT_WARM_TTL_MS = 60000;
+
+    private static SearchCoalescer instance;
+
+    private final IGenericClient client;
+    private final long warmTtlMillis;
+    private final ConcurrentMap<String, InFlight> inFlight = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Warm> warm = new ConcurrentHashMap<>();
+    private final ThreadLocal<Boolean> warming = ThreadLocal.withInitial(() -> false);
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong executed = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong warmHits = new AtomicLong();
+
+    private SearchCoalescer(IGenericClient client, long warmTtlMillis) {
+        this.client = client;
+        this.warmTtlMillis = warmTtlMillis;
+    }
+
+    public static synchronized SearchCoalescer getInstance() {
+        if (instance == null) {
+            instance = new SearchCoalescer(ClientSingleton.getInstance(),
+                    ConfigurationUtil.getInt(WARM_TTL_KEY, DEFAULT_WARM_TTL_MS));
+        }
+        return instance;
+    }
+
+    /**
+     * Run a search URL such as "Patient?identifier=system|value", sharing the
+     * response with identical concurrent searches.
+     */
+    public Bundle search(String searchUrl) throws Exception {
+        String key = normalize(searchUrl);
+        return execute(key, () -> client.search()
+                .byUrl(key)
+                .returnBundle(Bundle.class)
+                .execute(), Bundle::copy);
+    }
+
+    /**
+     * Run loader once per key at a time. Callers arriving while it is
+     * running get copier applied to its result instead of running it again.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T execute(String key, Callable<T> loader, UnaryOperator<T> copier) throws Exception {
+        Warm kept = warm.get(key);
+        if (kept != null) {
+            if (kept.expiresAt > System.currentTimeMillis()) {
+                warmHits.incrementAndGet();
+                return copier.apply((T) kept.value);
+            }
+            warm.remove(key, kept);
+        }
+
+        while (true) {
+            InFlight candidate = new InFlight();
+            InFlight existing = inFlight.putIfAbsent(key, candidate);
+
+            if (existing == null) {
+                return lead(key, candidate, loader, copier);
+            }
+
+            if (existing.addFollower()) {
+                coalesced.incrementAndGet();
+                try {
+                    return copier.apply((T) existing.result.join());
+                } catch (CompletionException e) {
+                    throw unwrap(e);
+                }
+            }
+            // The leader finished while we were looking it up, try again
+        }
+    }
+
+    /**
+     * Run task on the calling thread, keeping the results of the searches
+     * it leads for later callers.
+     */
+    public <T> T warm(Callable<T> task) throws Exception {
+        boolean outer = warming.get();
+        warming.set(true);
+        try {
+            return task.call();
+        } finally {
+            warming.set(outer);
+        }
+    }
+
+    /**
+     * Drop kept results of searches for a resource type, after a write
+     * that may have changed them.
+     */
+    public void invalidate(String resourceType) {
+        writes.incrementAndGet();
+        warm.keySet().removeIf(key -> resourceType.equals(resourceTypeOf(key)));
+    }
+
+    public long getExecutedCount() {
+        return executed.get();
+    }
+
+    public long getCoalescedCount() {
+        return coalesced.get();
+    }
+
+    public long getWarmHitCount() {
+        return warmHits.get();
+    }
+
+    private <T> T lead(String key, InFlight entry, Callable<T> loader, UnaryOperator<T> copier) throws Exception {
+        executed.incrementAndGet();
+        long writesBefore = writes.get();
+        T value;
+        try {
+            value = loader.call();
+        } catch (Throwable e) {
+            entry.close();
+            inFlight.remove(key, entry);
+            entry.result.completeExceptionally(e);
+            throw e;
+        }
+
+        int followers = entry.close();
+        inFlight.remove(key, entry);
+
+        // The leader keeps the original, followers copy from a private
+        // snapshot that no caller can modify.
+        try {
+            entry.result.complete(followers > 0 ? copier.apply(value) : value);
+        } catch (RuntimeException e) {
+            entry.result.completeExceptionally(e);
+        }
+
+        if (warming.get() && warmTtlMillis > 0) {
+            warm.put(key, new Warm(copier.apply(value), System.currentTimeMillis() + warmTtlMillis));
+            if (writes.get() != writesBefore) {
+                // A write may have happened after the search read its data
+                warm.remove(key);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * The resource type a key searches: the path of the URL, after any
+     * "projection:...:" prefix.
+     */
+    private static String resourceTypeOf(String key) {
+        int queryStart = key.indexOf('?');
+        String path = queryStart < 0 ? key : key.substring(0, queryStart);
+        return path.substring(path.lastIndexOf(':') + 1);
+    }
+
+    /**
+     * Normalize a relative search URL so that equivalent searches get the
+     * same key: parameters are decoded, sorted and encoded consistently.
+     */
+    public static String normalize(String searchUrl) {
+        int queryStart = searchUrl.indexOf('?');
+        if (queryStart < 0) {
+            return searchUrl;
+        }
+
+        String path = searchUrl.substring(0, queryStart);
+        List<String[]> params = new ArrayList<>();
+        for (String pair : searchUrl.substring(queryStart + 1).split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            params.add(new String[]{decode(name), decode(value)});
+        }
+
+        params.sort((a, b) -> {
+            int byName = a[0].compareTo(b[0]);
+            return byName != 0 ? byName : a[1].compareTo(b[1]);
+        });
+
+        String[] flat = new String[params.size() * 2];
+        for (int i = 0; i < params.size(); i++) {
+            flat[i * 2] = params.get(i)[0];
+            flat[i * 2 + 1] = params.get(i)[1];
+        }
+        return searchUrl(path, flat);
+    }
+
+    /**
+     * Build a relative search URL from name/value pairs.
+     */
+    public static String searchUrl(String resourceType, String... nameValuePairs) {
+        if (nameValuePairs.length % 2 != 0) {
+            throw new IllegalArgumentException("Parameters must be name/value pairs");
+        }
+
+        StringBuilder url = new StringBuilder(resourceType);
+        for (int i = 0; i < nameValuePairs.length; i += 2) {
+            url.append(i == 0 ? '?' : '&');
+            url.append(encode(nameValuePairs[i]));
+            url.append('=');
+            url.append(encode(nameValuePairs[i + 1]));
+        }
+        return url.toString();
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static String decode(String value) {
+        return URLDecoder.decode(value, StandardCharsets.UTF_8);
+    }
+
+    private static Exception unwrap(CompletionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof Exception) {
+            return (Exception) cause;
+        }
+        return e;
+    }
+
+    private static class Warm {
+
+        private final Object value;
+        private final long expiresAt;
+
+        Warm(Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class InFlight {
+
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private int followers;
+        private boolean closed;
+
+        /**
+         * Register as a follower. False if the leader already finished.
+         */
+        synchronized boolean addFollower() {
+            if (closed) {
+                return false;
+            }
+            followers++;
+            return true;
+        }
+
+        /**
+         * Stop accepting followers and return how many joined.
+         */
+        synchronized int close() {
+            closed = true;
+            return followers;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.cm2027.lab3.dao.fhir;
+
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Which parts of each resource a search should return: everything
+ * (FULL), the server's data summary without narrative (SUMMARY_DATA,
+ * "_summary=data"), or a list of top-level elements ("_elements").
+ *
+ * Resources returned by a partial projection are tagged SUBSETTED, as the
+ * FHIR spec asks servers to do. Updating such a resource would delete the
+ * elements that weren't downloaded; the repositories' update methods take
+ * an ID and read the full resource themselves, so projected results are
+ * only for display.
+ */
+public final class SearchProjection {
+
+    public static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+    public static final String SUBSETTED_CODE = "SUBSETTED";
+
+    public static final SearchProjection FULL = new SearchProjection(null, null);
+    public static final SearchProjection SUMMARY_DATA = new SearchProjection("_summary", "data");
+
+    private final String parameter;
+    private final String value;
+
+    private SearchProjection(String parameter, String value) {
+        this.parameter = parameter;
+        this.value = value;
+    }
+
+    /**
+     * Only the given top-level elements; id and meta are always included.
+     */
+    public static SearchProjection elements(String... elements) {
+        if (elements.length == 0) {
+            throw new IllegalArgumentException("At least one element is required");
+        }
+        return new SearchProjection("_elements", String.join(",", elements));
+    }
+
+    public boolean isPartial() {
+        return parameter != null;
+    }
+
+    /**
+     * Add this projection's parameter to a relative search URL.
+     */
+    public String apply(String searchUrl) {
+        if (parameter == null) {
+            return searchUrl;
+        }
+        char separator = searchUrl.indexOf('?') < 0 ? '?' : '&';
+        return searchUrl + separator + parameter + "=" + URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Tag the resources of a search result as partial, in case the server
+     * didn't do it already.
+     */
+    public void markPartial(Bundle bundle) {
+        if (parameter == null) {
+            return;
+        }
+        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
+            Resource resource = entry.getResource();
+            if (resource != null && !isPartial(resource)) {
+                resource.getMeta().addTag(SUBSETTED_SYSTEM, SUBSETTED_CODE, "Resource encoded in summary mode");
+            }
+        }
+    }
+
+    public static boolean isPartial(Resource resource) {
+        return resource.hasMeta() && resource.getMeta().getTag(SUBSETTED_SYSTEM, SUBSETTED_CODE) != null;
+    }
+
+    @Override
+    public String toString() {
+        return parameter == null ? "FULL" : parameter + "=" + value;
+    }
+}
@@ -0,0 +1,222 @@
+package com.github.cm2027.lab3.dao.mongodb;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.dao.NotFoundException;
+import com.github.cm2027.lab3.model.mongo.MessageAttachment;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSDownloadStream;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.gridfs.model.GridFSUploadOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Message attachments in the message_attachments GridFS bucket.
+ *
+ * Content is always streamed: uploads are copied one chunk at a time into
+ * a GridFSUploadStream, hashing as they go, and downloads are copied one
+ * chunk at a time out of a GridFSDownloadStream. At most one chunk of a
+ * file is held in memory, however large the file is.
+ *
+ * attachments.chunk-size-kb (default 255, the GridFS default) sets the
+ * chunk size of new uploads. Bigger chunks mean fewer chunk documents and
+ * round trips for large files; smaller ones make range reads cheaper.
+ * attachments.max-size-mb (default 25) limits the size of one upload.
+ *
+ * The uploader, and once it's sent, the message and its participants are
+ * kept in the file's metadata so callers can check who may read it. An
+ * attachment is claimed for its message before the message is created,
+ * and released again if creating it fails.
+ */
+public class AttachmentRepository {
+
+    private static final String CHUNK_SIZE_KEY = "attachments.chunk-size-kb";
+    private static final String MAX_SIZE_KEY = "attachments.max-size-mb";
+    // Chunks are documents, which MongoDB limits to 16 MB
+    private static final int MAX_CHUNK_KB = 15 * 1024;
+    private static final int MAX_BATCH_CHUNKS = 16;
+
+    private GridFSBucket bucket() {
+        return MongoConfig.getGridFSBucket();
+    }
+
+    /**
+     * Store a file read from in, which is not closed. Throws
+     * IllegalArgumentException if it is larger than attachments.max-size-mb.
+     */
+    public MessageAttachment upload(String filename, String contentType, String owner,
+                                    InputStream in) throws IOException {
+        int chunkSize = Math.max(1, Math.min(ConfigurationUtil.getInt(CHUNK_SIZE_KEY, 255), MAX_CHUNK_KB)) * 1024;
+        long maxSize = ConfigurationUtil.getInt(MAX_SIZE_KEY, 25) * 1024L * 1024L;
+
+        Document metadata = new Document("contentType", contentType).append("owner", owner);
+        GridFSUploadStream upload = bucket().openUploadStream(filename,
+                new GridFSUploadOptions().chunkSizeBytes(chunkSize).metadata(metadata));
+
+        MessageDigest sha1 = sha1();
+        // Reading whole chunks lets each write fill exactly one chunk
+        byte[] buffer = new byte[chunkSize];
+        long total = 0;
+        try {
+            int read;
+            while ((read = in.readNBytes(buffer, 0, buffer.length)) > 0) {
+                total += read;
+                if (total > maxSize) {
+                    throw new IllegalArgumentException("Attachment is larger than " + (maxSize >> 20) + " MB");
+                }
+                sha1.update(buffer, 0, read);
+                upload.write(buffer, 0, read);
+            }
+        } catch (IOException | RuntimeException e) {
+            // Removes the chunks written so far
+            upload.abort();
+            throw e;
+        }
+        upload.close();
+
+        String hash = Base64.getEncoder().encodeToString(sha1.digest());
+        files().updateOne(Filters.eq("_id", upload.getObjectId()), Updates.set("metadata.sha1", hash));
+        return find(upload.getObjectId());
+    }
+
+    /**
+     * Find attachment by ID, or null
+     */
+    public MessageAttachment find(ObjectId id) {
+        GridFSFile file = bucket().find(Filters.eq("_id", id)).first();
+        return file == null ? null : fileToAttachment(file);
+    }
+
+    /**
+     * Record the message an attachment is sent with and its participants,
+     * unless it was sent with another message already. Returns false if
+     * it was, or doesn't exist; of two sends racing for an attachment,
+     * only one gets it.
+     */
+    public boolean claim(ObjectId id, String communicationId, List<String> participants) {
+        return files().updateOne(
+                Filters.and(Filters.eq("_id", id), Filters.exists("metadata.communicationId", false)),
+                Updates.combine(
+                        Updates.set("metadata.communicationId", communicationId),
+                        Updates.set("metadata.participants", participants)))
+                .getModifiedCount() > 0;
+    }
+
+    /**
+     * Undo a claim for a message that couldn't be sent, so the attachment
+     * can be sent again. Does nothing if another message has it.
+     */
+    public void release(ObjectId id, String communicationId) {
+        files().updateOne(
+                Filters.and(Filters.eq("_id", id), Filters.eq("metadata.communicationId", communicationId)),
+                Updates.combine(Updates.unset("metadata.communicationId"), Updates.unset("metadata.participants")));
+    }
+
+    /**
+     * Copy a whole attachment to out, which is not closed.
+     */
+    public long download(ObjectId id, OutputStream out) throws IOException {
+        return download(id, 0, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Copy length bytes of an attachment starting at offset to out, which
+     * is not closed, and return the number of bytes copied. Only the
+     * chunks covering the range are read from MongoDB.
+     */
+    public long download(ObjectId id, long offset, long length, OutputStream out) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("offset and length must not be negative");
+        }
+        MessageAttachment attachment = find(id);
+        if (attachment == null) {
+            throw new NotFoundException("No attachment found with ID: " + id);
+        }
+        long end = Math.min(attachment.getLength(), offset + Math.min(length, Long.MAX_VALUE - offset));
+        if (offset >= end) {
+            return 0;
+        }
+
+        int chunkSize = attachment.getChunkSize();
+        long chunks = (end - 1) / chunkSize - offset / chunkSize + 1;
+
+        try (GridFSDownloadStream download = bucket().openDownloadStream(id)) {
+            // Fetch just the chunks in range, a few at a time
+            download.batchSize((int) Math.min(chunks, MAX_BATCH_CHUNKS));
+            // Skipping moves to the chunk holding offset without reading the ones before it
+            long skipped = 0;
+            while (skipped < offset) {
+                long n = download.skip(offset - skipped);
+                if (n <= 0) {
+                    return 0;
+                }
+                skipped += n;
+            }
+
+            byte[] buffer = new byte[chunkSize];
+            long remaining = end - offset;
+            while (remaining > 0) {
+                int read = download.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if (read < 0) {
+                    break;
+                }
+                out.write(buffer, 0, read);
+                remaining -= read;
+            }
+            return end - offset - remaining;
+        }
+    }
+
+    /**
+     * Delete an attachment and its chunks
+     */
+    public void delete(ObjectId id) {
+        bucket().delete(id);
+    }
+
+    private MongoCollection<Document> files() {
+        return MongoConfig.getDatabase().getCollection(bucket().getBucketName() + ".files");
+    }
+
+    private static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Convert GridFS file to MessageAttachment object
+     */
+    private MessageAttachment fileToAttachment(GridFSFile file) {
+        Document metadata = file.getMetadata() == null ? new Document() : file.getMetadata();
+        MessageAttachment attachment = new MessageAttachment();
+        attachment.setId(file.getObjectId());
+        attachment.setFilename(file.getFilename());
+        attachment.setContentType(metadata.getString("contentType"));
+        attachment.setLength(file.getLength());
+        attachment.setChunkSize(file.getChunkSize());
+        attachment.setSha1(metadata.getString("sha1"));
+        attachment.setUploadDate(file.getUploadDate());
+        attachment.setOwner(metadata.getString("owner"));
+        attachment.setCommunicationId(metadata.getString("communicationId"));
+        attachment.setParticipants(new ArrayList<>(metadata.getList("participants", String.class, new ArrayList<>())));
+        return attachment;
+    }
+}
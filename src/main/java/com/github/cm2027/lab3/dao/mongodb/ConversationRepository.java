@@ -0,0 +1,219 @@
+package com.github.cm2027.lab3.dao.mongodb;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.model.mongo.Conversation;
+import com.github.cm2027.lab3.model.mongo.ConversationMessage;
+import com.mongodb.ErrorCategory;
+import com.mongodb.MongoWriteException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Denormalized index of the messages stored as FHIR Communications, so
+ * inboxes, unread counts and conversations are single indexed queries
+ * instead of scans over every Communication.
+ *
+ * conversations has one document per (owner, peer): the owner's inbox row
+ * for their conversation with peer, with the latest message and the IDs
+ * of the unread messages, added with $addToSet so a message is never
+ * counted twice. Indexed on (owner, lastSentAt desc).
+ *
+ * conversation_messages has one document per message, with the clinic's
+ * communication ID as _id, indexed on (pair, sentAt desc). It is inserted
+ * first and marked applied once both inbox rows are updated. Recording
+ * is idempotent: a replayed message that was applied is skipped, and one
+ * whose inbox updates failed part-way has them applied again.
+ *
+ * Participants are FHIR references such as "Patient/123".
+ */
+public class ConversationRepository {
+
+    private static final int PREVIEW_LENGTH = 100;
+
+    private volatile boolean indexed;
+
+    private MongoCollection<Document> conversations() {
+        ensureIndexes();
+        return MongoConfig.getDatabase().getCollection("conversations");
+    }
+
+    private MongoCollection<Document> messages() {
+        ensureIndexes();
+        return MongoConfig.getDatabase().getCollection("conversation_messages");
+    }
+
+    private void ensureIndexes() {
+        if (indexed) {
+            return;
+        }
+        synchronized (this) {
+            if (!indexed) {
+                MongoConfig.getDatabase().getCollection("conversations").createIndex(
+                        Indexes.compoundIndex(Indexes.ascending("owner"), Indexes.descending("lastSentAt")));
+                MongoConfig.getDatabase().getCollection("conversation_messages").createIndex(
+                        Indexes.compoundIndex(Indexes.ascending("pair"), Indexes.descending("sentAt")));
+                indexed = true;
+            }
+        }
+    }
+
+    /**
+     * Record a sent message in both participants' inboxes. countUnread adds
+     * it to the recipient's unread messages. Returns false if the message
+     * was already recorded in full.
+     */
+    public boolean record(String communicationId, String fhirId, String sender, String recipient,
+                          Date sentAt, String text, boolean countUnread) {
+        Document message = new Document("_id", communicationId)
+                .append("fhirId", fhirId)
+                .append("pair", pairKey(sender, recipient))
+                .append("sender", sender)
+                .append("recipient", recipient)
+                .append("sentAt", sentAt)
+                .append("text", text)
+                .append("applied", false);
+        try {
+            messages().insertOne(message);
+        } catch (MongoWriteException e) {
+            if (e.getError().getCategory() != ErrorCategory.DUPLICATE_KEY) {
+                throw e;
+            }
+            // Recorded before; finish it if its inbox updates didn't all succeed
+            if (messages().countDocuments(Filters.and(
+                    Filters.eq("_id", communicationId), Filters.eq("applied", false))) == 0) {
+                return false;
+            }
+        }
+
+        String preview = text == null || text.length() <= PREVIEW_LENGTH
+                ? text : text.substring(0, PREVIEW_LENGTH - 3) + "...";
+        updateInbox(sender, recipient, communicationId, sender, sentAt, preview, false);
+        updateInbox(recipient, sender, communicationId, sender, sentAt, preview, countUnread);
+        messages().updateOne(Filters.eq("_id", communicationId), Updates.set("applied", true));
+        return true;
+    }
+
+    /**
+     * A person's conversations, most recent first
+     */
+    public List<Conversation> findInbox(String owner, int limit) {
+        List<Conversation> inbox = new ArrayList<>();
+        for (Document doc : conversations().find(Filters.eq("owner", owner))
+                .sort(Sorts.descending("lastSentAt"))
+                .limit(limit)) {
+            inbox.add(documentToConversation(doc));
+        }
+        return inbox;
+    }
+
+    /**
+     * Unread messages across all of a person's conversations
+     */
+    public int countUnread(String owner) {
+        Document total = conversations().aggregate(Arrays.asList(
+                Aggregates.match(Filters.and(Filters.eq("owner", owner), Filters.exists("unreadIds.0"))),
+                Aggregates.group(null, Accumulators.sum("unread", new Document("$size", "$unreadIds")))
+        )).first();
+        return total == null ? 0 : total.getInteger("unread", 0);
+    }
+
+    /**
+     * Mark a conversation as read by its owner
+     */
+    public void markRead(String owner, String peer) {
+        conversations().updateOne(Filters.eq("_id", inboxKey(owner, peer)), Updates.set("unreadIds", List.of()));
+    }
+
+    /**
+     * Messages between two people, newest first
+     */
+    public List<ConversationMessage> findMessages(String participant1, String participant2, int limit) {
+        List<ConversationMessage> result = new ArrayList<>();
+        for (Document doc : messages().find(Filters.eq("pair", pairKey(participant1, participant2)))
+                .sort(Sorts.descending("sentAt"))
+                .limit(limit)) {
+            result.add(documentToMessage(doc));
+        }
+        return result;
+    }
+
+    private void updateInbox(String owner, String peer, String communicationId, String sender,
+                             Date sentAt, String preview, boolean countUnread) {
+        String key = inboxKey(owner, peer);
+
+        // Create the row if needed and add the message to the unread ones in
+        // one atomic update; adding it again changes nothing
+        List<Bson> updates = new ArrayList<>(Arrays.asList(
+                Updates.setOnInsert("owner", owner),
+                Updates.setOnInsert("peer", peer)));
+        updates.add(countUnread ? Updates.addToSet("unreadIds", communicationId)
+                : Updates.setOnInsert("unreadIds", List.of()));
+        conversations().updateOne(Filters.eq("_id", key), Updates.combine(updates), new UpdateOptions().upsert(true));
+
+        // Only move the latest message forward, so messages recorded out of
+        // order (e.g. by a rebuild) don't replace a newer one
+        conversations().updateOne(
+                Filters.and(
+                        Filters.eq("_id", key),
+                        Filters.or(Filters.exists("lastSentAt", false), Filters.lt("lastSentAt", sentAt))),
+                Updates.combine(
+                        Updates.set("lastSentAt", sentAt),
+                        Updates.set("lastText", preview),
+                        Updates.set("lastSender", sender),
+                        Updates.set("lastCommunicationId", communicationId)));
+    }
+
+    private static String inboxKey(String owner, String peer) {
+        return owner + "|" + peer;
+    }
+
+    private static String pairKey(String participant1, String participant2) {
+        return participant1.compareTo(participant2) <= 0
+                ? participant1 + "|" + participant2
+                : participant2 + "|" + participant1;
+    }
+
+    /**
+     * Convert MongoDB Document to Conversation object
+     */
+    private Conversation documentToConversation(Document doc) {
+        Conversation conversation = new Conversation();
+        conversation.setOwner(doc.getString("owner"));
+        conversation.setPeer(doc.getString("peer"));
+        conversation.setLastSentAt(doc.getDate("lastSentAt"));
+        conversation.setLastText(doc.getString("lastText"));
+        conversation.setLastSender(doc.getString("lastSender"));
+        conversation.setLastCommunicationId(doc.getString("lastCommunicationId"));
+        List<String> unreadIds = doc.getList("unreadIds", String.class);
+        conversation.setUnread(unreadIds == null ? 0 : unreadIds.size());
+        return conversation;
+    }
+
+    /**
+     * Convert MongoDB Document to ConversationMessage object
+     */
+    private ConversationMessage documentToMessage(Document doc) {
+        ConversationMessage message = new ConversationMessage();
+        message.setCommunicationId(doc.getString("_id"));
+        message.setFhirId(doc.getString("fhirId"));
+        message.setSender(doc.getString("sender"));
+        message.setRecipient(doc.getString("recipient"));
+        message.setSentAt(doc.getDate("sentAt"));
+        message.setText(doc.getString("text"));
+        return message;
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.cm2027.lab3.dao.mongodb;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.Indexes;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Updates;
+
+import org.bson.Document;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The sessions collection: one document per issued session token, keyed
+ * by the token's hash so the token itself is never stored.
+ *
+ * A TTL index on expiresAt lets MongoDB remove expired sessions.
+ */
+public class SessionRepository {
+
+    private volatile boolean indexed;
+
+    private MongoCollection<Document> collection() {
+        MongoCollection<Document> collection = MongoConfig.getDatabase().getCollection("sessions");
+        if (!indexed) {
+            synchronized (this) {
+                if (!indexed) {
+                    collection.createIndex(Indexes.ascending("expiresAt"),
+                            new IndexOptions().expireAfter(0L, TimeUnit.SECONDS));
+                    indexed = true;
+                }
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * Save a session
+     */
+    public void save(String tokenHash, String username, Date expiresAt) {
+        Document doc = new Document("_id", tokenHash)
+                .append("username", username)
+                .append("createdAt", new Date())
+                .append("expiresAt", expiresAt);
+        collection().replaceOne(Filters.eq("_id", tokenHash), doc, new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * Username of an unexpired session, or null
+     */
+    public String findUsername(String tokenHash) {
+        Document doc = collection().find(Filters.and(
+                Filters.eq("_id", tokenHash),
+                Filters.gt("expiresAt", new Date())
+        )).first();
+        return doc == null ? null : doc.getString("username");
+    }
+
+    /**
+     * Move a session's expiry forward. Returns false if the session no
+     * longer exists (revoked or expired).
+     */
+    public boolean extend(String tokenHash, Date expiresAt) {
+        return collection().updateOne(Filters.and(
+                Filters.eq("_id", tokenHash),
+                Filters.gt("expiresAt", new Date())
+        ), Updates.set("expiresAt", expiresAt)).getMatchedCount() > 0;
+    }
+
+    /**
+     * Delete a session
+     */
+    public void delete(String tokenHash) {
+        collection().deleteOne(Filters.eq("_id", tokenHash));
+    }
+}
@@ -0,0 +1,236 @@
+package com.github.cm2027.lab3.dao.mongodb;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import com.mongodb.MongoCommandException;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.types.ObjectId;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Follows the users collection through a MongoDB change stream and tells
+ * listeners about every change, so caches of User objects can be kept
+ * for a long time without polling and without serving stale roles.
+ *
+ * The watcher remembers the resume token of the last event it handled.
+ * When the connection drops it reopens the stream from that token, so no
+ * change is missed. If the server no longer has the history to resume
+ * from (or the collection is dropped or renamed), listeners get onReset
+ * and should drop everything they cached.
+ *
+ * Change streams need a replica set or Atlas. Disabled with
+ * users.watch.enabled=false.
+ */
+public class UserChangeWatcher {
+
+    private static final String ENABLED_KEY = "users.watch.enabled";
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    private static UserChangeWatcher instance;
+
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final UserRepository userRepository = new UserRepository();
+    private volatile BsonDocument resumeToken;
+    private volatile boolean connected;
+    private volatile boolean resetPending;
+    private Thread watcher;
+
+    private UserChangeWatcher() {
+    }
+
+    public static synchronized UserChangeWatcher getInstance() {
+        if (instance == null) {
+            instance = new UserChangeWatcher();
+        }
+        return instance;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Start watching on a background thread. Does nothing if already
+     * started or disabled.
+     */
+    public synchronized void start() {
+        if (watcher != null || !ConfigurationUtil.getBoolean(ENABLED_KEY, true)) {
+            return;
+        }
+        watcher = VirtualThreads.start("users-change-stream", this::watch);
+    }
+
+    public synchronized void stop() {
+        if (watcher != null) {
+            watcher.interrupt();
+            watcher = null;
+        }
+    }
+
+    /**
+     * True while the change stream is open. While it isn't, listeners may
+     * be missing changes that will be delivered after reconnecting.
+     */
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * The token the stream resumes from after a reconnect, or null.
+     */
+    public BsonDocument getResumeToken() {
+        return resumeToken;
+    }
+
+    private void watch() {
+        long backoff = 1000;
+        while (!Thread.currentThread().isInterrupted()) {
+            MongoException failure;
+            try {
+                follow();
+                continue;
+            } catch (MongoCommandException e) {
+                if (e.getErrorCode() == CHANGE_STREAM_HISTORY_LOST || e.getErrorCode() == CHANGE_STREAM_FATAL_ERROR) {
+                    System.err.println("Users change stream can't resume, resetting caches: " + e.getErrorMessage());
+                    resumeToken = null;
+                    resetPending = true;
+                    continue;
+                }
+                failure = e;
+            } catch (MongoException e) {
+                failure = e;
+            } finally {
+                connected = false;
+            }
+
+            System.err.println("Users change stream failed, retrying in " + backoff + " ms: " + failure.getMessage());
+            try {
+                Thread.sleep(backoff);
+            } catch (InterruptedException e) {
+                return;
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+        }
+    }
+
+    /**
+     * Open the stream, resuming after the last event handled, and handle
+     * events until it must be reopened or the thread is interrupted.
+     */
+    private void follow() {
+        ChangeStreamIterable<Document> stream = MongoConfig.getDatabase().getCollection("users")
+                .watch()
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(1, TimeUnit.SECONDS);
+        if (resumeToken != null) {
+            stream = stream.resumeAfter(resumeToken);
+        }
+        try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = stream.cursor()) {
+            connected = true;
+            // Reset only once the new stream is open, so no change falls
+            // between the reset and the first event
+            if (resetPending) {
+                resetPending = false;
+                fireReset();
+            }
+            while (!Thread.currentThread().isInterrupted()) {
+                ChangeStreamDocument<Document> change = cursor.tryNext();
+                if (change != null && !handle(change)) {
+                    return;
+                }
+                BsonDocument token = cursor.getResumeToken();
+                if (token != null) {
+                    resumeToken = token;
+                }
+            }
+        }
+    }
+
+    /**
+     * Pass one event to the listeners. Returns false when the stream must
+     * be reopened. Public so tests can feed events without a replica set.
+     */
+    public boolean handle(ChangeStreamDocument<Document> change) {
+        switch (change.getOperationType()) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+                if (change.getFullDocument() != null) {
+                    User user = userRepository.documentToUser(change.getFullDocument());
+                    for (Listener listener : listeners) {
+                        listener.onUserChanged(user);
+                    }
+                    return true;
+                }
+                // Deleted again before the lookup
+                fireDeleted(change.getDocumentKey());
+                return true;
+            case DELETE:
+                fireDeleted(change.getDocumentKey());
+                return true;
+            case DROP:
+            case RENAME:
+            case DROP_DATABASE:
+            case INVALIDATE:
+                resumeToken = null;
+                resetPending = true;
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    private void fireDeleted(BsonDocument documentKey) {
+        BsonValue id = documentKey == null ? null : documentKey.get("_id");
+        if (id == null || !id.isObjectId()) {
+            fireReset();
+            return;
+        }
+        ObjectId userId = id.asObjectId().getValue();
+        for (Listener listener : listeners) {
+            listener.onUserDeleted(userId);
+        }
+    }
+
+    private void fireReset() {
+        for (Listener listener : listeners) {
+            listener.onReset();
+        }
+    }
+
+    /**
+     * Told about changes to the users collection, on the watcher's thread.
+     */
+    public interface Listener {
+
+        /**
+         * A user was inserted or updated; this is its new state.
+         */
+        void onUserChanged(User user);
+
+        /**
+         * A user was deleted.
+         */
+        void onUserDeleted(ObjectId userId);
+
+        /**
+         * Changes may have been missed; drop every cached user.
+         */
+        void onReset();
+    }
+}
@@ -13,17 +13,19 @@ import java.util.List;
 
 public class UserRepository {
 
-    private final MongoCollection<Document> collection;
-
-    public UserRepository() {
-        this.collection = MongoConfig.getDatabase().getCollection("users");
+    /**
+     * Looked up on use rather than in the constructor, so building the CLI
+     * doesn't wait for the MongoDB client.
+     */
+    private MongoCollection<Document> collection() {
+        return MongoConfig.getDatabase().getCollection("users");
     }
 
     /**
      * Find user by username
      */
     public User findByUsername(String username) {
-        Document doc = collection.find(Filters.eq("username", username)).first();
+        Document doc = collection().find(Filters.eq("username", username)).first();
         if (doc == null) {
             return null;
         }
@@ -34,7 +36,7 @@ public class UserRepository {
      * Authenticate user (check username and password)
      */
     public User authenticate(String username, String password) {
-        Document doc = collection.find(
+        Document doc = collection().find(
                 Filters.and(
                         Filters.eq("username", username),
                         Filters.eq("password", password)
@@ -51,7 +53,7 @@ public class UserRepository {
      * Find user by personRef (Neo4j ID)
      */
     public User findByPersonRef(String personRef) {
-        Document doc = collection.find(Filters.eq("personRef", personRef)).first();
+        Document doc = collection().find(Filters.eq("personRef", personRef)).first();
         if (doc == null) {
             return null;
         }
@@ -63,7 +65,7 @@ public class UserRepository {
      */
     public List<User> findAll() {
         List<User> users = new ArrayList<>();
-        for (Document doc : collection.find()) {
+        for (Document doc : collection().find()) {
             users.add(documentToUser(doc));
         }
         return users;
@@ -72,7 +74,7 @@ public class UserRepository {
     /**
      * Convert MongoDB Document to User object
      */
-    private User documentToUser(Document doc) {
+    User documentToUser(Document doc) {
         User user = new User();
         user.setId(doc.getObjectId("_id"));
         user.setUsername(doc.getString("username"));
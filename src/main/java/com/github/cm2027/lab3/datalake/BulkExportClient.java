@@ -0,0 +1,168 @@
+package com.github.cm2027.lab3.datalake;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cm2027.lab3.client.RequestPriority;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client for the FHIR Bulk Data $export operation.
+ *
+ * kickOff starts a system or Group level export and returns the status URL,
+ * awaitCompletion polls that URL (honouring Retry-After) until the server
+ * returns the manifest listing the NDJSON output files per resource type.
+ * Requests are sent as BATCH traffic.
+ */
+public class BulkExportClient {
+
+    private static final long DEFAULT_POLL_INTERVAL_MS = 2000;
+
+    private final CloseableHttpClient httpClient;
+    private final String baseUrl;
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    public BulkExportClient(CloseableHttpClient httpClient, String baseUrl) {
+        this.httpClient = httpClient;
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+    }
+
+    /**
+     * Start an export of the given resource types. With a groupId only the
+     * members of that Group are exported, otherwise the whole server.
+     */
+    public String kickOff(String groupId, List<String> resourceTypes) throws IOException {
+        String path = groupId == null || groupId.isBlank() ? "/$export" : "/Group/" + groupId + "/$export";
+        HttpGet request = new HttpGet(baseUrl + path + "?_type=" + String.join(",", resourceTypes));
+        request.setHeader("Accept", "application/fhir+json");
+        request.setHeader("Prefer", "respond-async");
+
+        try (CloseableHttpResponse response = execute(request)) {
+            int status = response.getStatusLine().getStatusCode();
+            String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+            if (status != 202) {
+                throw new IOException("Bulk export was not accepted: HTTP " + status + " " + body);
+            }
+
+            Header location = response.getFirstHeader("Content-Location");
+            if (location == null) {
+                throw new IOException("Bulk export response has no Content-Location header");
+            }
+            return resolve(location.getValue());
+        }
+    }
+
+    /**
+     * Poll the status URL until the export is complete or timeoutMs passes.
+     */
+    public Manifest awaitCompletion(String statusUrl, long timeoutMs) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        while (true) {
+            HttpGet request = new HttpGet(statusUrl);
+            request.setHeader("Accept", "application/json");
+
+            long waitMs;
+            try (CloseableHttpResponse response = execute(request)) {
+                int status = response.getStatusLine().getStatusCode();
+                String body = response.getEntity() == null ? "" : EntityUtils.toString(response.getEntity());
+
+                if (status == 200) {
+                    return parseManifest(body);
+                }
+                if (status != 202) {
+                    throw new IOException("Bulk export failed: HTTP " + status + " " + body);
+                }
+
+                Header progress = response.getFirstHeader("X-Progress");
+                if (progress != null) {
+                    System.out.println("  Export in progress: " + progress.getValue());
+                }
+                waitMs = retryAfterMillis(response.getFirstHeader("Retry-After"));
+            }
+
+            if (System.currentTimeMillis() + waitMs > deadline) {
+                throw new IOException("Bulk export did not complete within " + timeoutMs + " ms");
+            }
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for bulk export");
+            }
+        }
+    }
+
+    private CloseableHttpResponse execute(HttpGet request) throws IOException {
+        return RequestPriority.call(RequestPriority.BATCH, () -> httpClient.execute(request));
+    }
+
+    private Manifest parseManifest(String body) throws IOException {
+        JsonNode root = mapper.readTree(body);
+        Map<String, List<String>> outputs = new LinkedHashMap<>();
+
+        for (JsonNode output : root.path("output")) {
+            String type = output.path("type").asText();
+            String url = output.path("url").asText();
+            outputs.computeIfAbsent(type, ignored -> new ArrayList<>()).add(resolve(url));
+        }
+
+        return new Manifest(outputs, root.path("requiresAccessToken").asBoolean(false));
+    }
+
+    private String resolve(String url) {
+        URI uri = URI.create(url);
+        if (uri.isAbsolute()) {
+            return url;
+        }
+        return URI.create(baseUrl + "/").resolve(uri).toString();
+    }
+
+    private static long retryAfterMillis(Header retryAfter) {
+        if (retryAfter != null) {
+            try {
+                return Long.parseLong(retryAfter.getValue().trim()) * 1000;
+            } catch (NumberFormatException ignored) {
+                // HTTP-date form, use the default interval
+            }
+        }
+        return DEFAULT_POLL_INTERVAL_MS;
+    }
+
+    /**
+     * Completed export: NDJSON file URLs per resource type.
+     */
+    public static class Manifest {
+
+        private final Map<String, List<String>> outputs;
+        private final boolean requiresAccessToken;
+
+        public Manifest(Map<String, List<String>> outputs, boolean requiresAccessToken) {
+            this.outputs = outputs;
+            this.requiresAccessToken = requiresAccessToken;
+        }
+
+        public List<String> getOutputUrls(String resourceType) {
+            return outputs.getOrDefault(resourceType, new ArrayList<>());
+        }
+
+        public Map<String, List<String>> getOutputs() {
+            return outputs;
+        }
+
+        public boolean isRequiresAccessToken() {
+            return requiresAccessToken;
+        }
+    }
+}
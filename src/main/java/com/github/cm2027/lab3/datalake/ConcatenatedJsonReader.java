@@ -0,0 +1,70 @@
+package com.github.cm2027.lab3.datalake;
+
+import org.apache.spark.api.java.function.FlatMapFunction;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads NDJSON files, or files holding JSON objects one after another
+ * pretty-printed, such as the patients.json written by FhirDataExport.
+ *
+ * plan() runs on the driver and cuts the file into splits at record
+ * boundaries without reading it through. call() runs on executors and
+ * emits the objects of one split as strings. Both use MappedNdjsonScanner.
+ */
+public class ConcatenatedJsonReader implements FlatMapFunction<JsonFileSplit, String> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Split a file into about the given number of splits of similar size.
+     */
+    public static List<JsonFileSplit> plan(Path file, int splits) throws IOException {
+        String path = file.toAbsolutePath().toString();
+        List<JsonFileSplit> result = new ArrayList<>();
+
+        try (MappedNdjsonScanner scanner = MappedNdjsonScanner.open(file)) {
+            for (MappedNdjsonScanner.Chunk chunk : scanner.chunks(splits)) {
+                result.add(new JsonFileSplit(path, chunk.getStart(), chunk.getEnd() - chunk.getStart()));
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Iterator<String> call(JsonFileSplit split) throws IOException {
+        MappedNdjsonScanner scanner = MappedNdjsonScanner.open(Paths.get(split.getPath()));
+        Iterator<MappedNdjsonScanner.Record> records =
+                scanner.records(split.getOffset(), split.getOffset() + split.getLength());
+
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                if (records.hasNext()) {
+                    return true;
+                }
+                try {
+                    scanner.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return false;
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return records.next().text();
+            }
+        };
+    }
+}
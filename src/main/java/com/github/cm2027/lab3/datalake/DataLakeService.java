@@ -1,12 +1,21 @@
 package com.github.cm2027.lab3.datalake;
 
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.dao.fhir.ProjectedRecord;
+import com.github.cm2027.lab3.dao.fhir.ProjectionSearch;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
+import org.apache.spark.api.java.JavaRDD;
+import org.apache.spark.api.java.JavaSparkContext;
 import org.apache.spark.sql.*;
-import org.apache.spark.sql.types.*;
-import org.hl7.fhir.r4.model.*;
 
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -16,7 +25,13 @@ public class DataLakeService {
 
     private final SparkSession spark;
     private final IGenericClient fhirClient;
+    private final ProjectionSearch projectionSearch;
     private static final String HUDI_BASE_PATH = "/tmp/datalake/hudi";
+    private static final List<String> BULK_EXPORT_TYPES = Arrays.asList("Patient", "Appointment");
+    private static final String BULK_EXPORT_TIMEOUT_KEY = "datalake.bulk-export.timeout-ms";
+    private static final int DEFAULT_BULK_EXPORT_TIMEOUT_MS = 30 * 60 * 1000;
+    private static final String INGEST_PARTITIONS_KEY = "datalake.ingest.partitions";
+    private static final long INGEST_SPLIT_BYTES = 64L * 1024 * 1024;
 
     public DataLakeService() {
         // Initialize Spark session in LOCAL mode (no Docker cluster needed)
@@ -30,54 +45,30 @@ public class DataLakeService {
 
         // Get FHIR client
         this.fhirClient = ClientSingleton.getInstance();
+        this.projectionSearch = ProjectionSearch.getInstance();
     }
 
     /**
      * Sync all patients from FHIR to data lake
      */
-    public void syncPatients() {
+    public void syncPatients() throws Exception {
         System.out.println("Syncing patients from FHIR to data lake...");
 
-        // Extract patients from FHIR
-        Bundle bundle = fhirClient.search()
-                .forResource(Patient.class)
-                .returnBundle(Bundle.class)
-                .execute();
+        // Extract patients from FHIR, as batch traffic so interactive users keep priority.
+        // Only the table's fields are read from the response, no Patient objects are built.
+        List<ProjectedRecord> records = RequestPriority.call(RequestPriority.BATCH,
+                () -> projectionSearch.search("Patient", FhirRowMapper.PATIENT_PROJECTION));
 
         // Transform to rows
+        long timestamp = System.currentTimeMillis();
         List<Row> rows = new ArrayList<>();
-        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            Patient patient = (Patient) entry.getResource();
-
-            String id = patient.getIdElement().getIdPart();
-            String firstName = patient.getNameFirstRep().getGivenAsSingleString();
-            String lastName = patient.getNameFirstRep().getFamily();
-            String gender = patient.hasGender() ? patient.getGender().toString() : "UNKNOWN";
-            Long timestamp = System.currentTimeMillis();
-
-            rows.add(RowFactory.create(id, firstName, lastName, gender, timestamp));
+        for (ProjectedRecord record : records) {
+            rows.add(FhirRowMapper.toPatientRow(record, timestamp));
         }
 
-        // Define schema
-        StructType schema = new StructType()
-                .add("id", DataTypes.StringType, false)
-                .add("firstName", DataTypes.StringType, true)
-                .add("lastName", DataTypes.StringType, true)
-                .add("gender", DataTypes.StringType, true)
-                .add("syncTimestamp", DataTypes.LongType, false);
-
-        // Create DataFrame
-        Dataset<Row> df = spark.createDataFrame(rows, schema);
-
-        // Write to Hudi table
-        df.write()
-                .format("hudi")
-                .option("hoodie.table.name", "patients")
-                .option("hoodie.datasource.write.recordkey.field", "id")
-                .option("hoodie.datasource.write.precombine.field", "syncTimestamp")
-                .option("hoodie.datasource.write.operation", "upsert")
-                .mode(SaveMode.Append)
-                .save(HUDI_BASE_PATH + "/patients");
+        // Create DataFrame and write to Hudi table
+        Dataset<Row> df = spark.createDataFrame(rows, FhirRowMapper.PATIENT_SCHEMA);
+        upsert(df, "patients");
 
         System.out.println("✓ Synced " + rows.size() + " patients to data lake");
     }
@@ -85,51 +76,144 @@ public class DataLakeService {
     /**
      * Sync all appointments from FHIR to data lake
      */
-    public void syncAppointments() {
+    public void syncAppointments() throws Exception {
         System.out.println("Syncing appointments from FHIR to data lake...");
 
-        // Extract appointments from FHIR
-        Bundle bundle = fhirClient.search()
-                .forResource(Appointment.class)
-                .returnBundle(Bundle.class)
-                .execute();
+        // Extract appointments from FHIR, as batch traffic so interactive users keep priority.
+        // Only the table's fields are read from the response, no Appointment objects are built.
+        List<ProjectedRecord> records = RequestPriority.call(RequestPriority.BATCH,
+                () -> projectionSearch.search("Appointment", FhirRowMapper.APPOINTMENT_PROJECTION));
 
         // Transform to rows
+        long timestamp = System.currentTimeMillis();
         List<Row> rows = new ArrayList<>();
-        for (Bundle.BundleEntryComponent entry : bundle.getEntry()) {
-            Appointment appointment = (Appointment) entry.getResource();
+        for (ProjectedRecord record : records) {
+            rows.add(FhirRowMapper.toAppointmentRow(record, timestamp));
+        }
 
-            String id = appointment.getIdElement().getIdPart();
-            Long startTime = appointment.hasStart() ? appointment.getStart().getTime() : 0L;
-            String description = appointment.hasDescription() ? appointment.getDescription() : "";
-            String status = appointment.hasStatus() ? appointment.getStatus().toString() : "UNKNOWN";
-            Long timestamp = System.currentTimeMillis();
+        // Create DataFrame and write to Hudi table
+        Dataset<Row> df = spark.createDataFrame(rows, FhirRowMapper.APPOINTMENT_SCHEMA);
+        upsert(df, "appointments");
 
-            rows.add(RowFactory.create(id, startTime, description, status, timestamp));
+        System.out.println("✓ Synced " + rows.size() + " appointments to data lake");
+    }
+
+    /**
+     * Full load of patients and appointments through the FHIR Bulk Data
+     * $export operation on the configured FHIR server
+     */
+    public void bulkExport(String groupId) throws IOException {
+        String baseUrl = fhirClient.getServerBase();
+        bulkExport(baseUrl, groupId);
+    }
+
+    /**
+     * Full load through $export on the given server: kick off the export,
+     * wait for it to finish and stream every NDJSON output file into the
+     * Hudi tables. Files are downloaded and parsed in parallel on the
+     * executors, one partition per file.
+     */
+    public void bulkExport(String baseUrl, String groupId) throws IOException {
+        System.out.println("Starting bulk export from " + baseUrl + "...");
+
+        BulkExportClient exportClient = new BulkExportClient(ClientSingleton.getHttpClient(), baseUrl);
+        String statusUrl = exportClient.kickOff(groupId, BULK_EXPORT_TYPES);
+        System.out.println("Export accepted, polling " + statusUrl);
+
+        long timeoutMs = ConfigurationUtil.getInt(BULK_EXPORT_TIMEOUT_KEY, DEFAULT_BULK_EXPORT_TIMEOUT_MS);
+        BulkExportClient.Manifest manifest = exportClient.awaitCompletion(statusUrl, timeoutMs);
+        if (manifest.isRequiresAccessToken()) {
+            throw new IOException("Bulk export output requires an access token, which is not supported");
         }
 
-        // Define schema
-        StructType schema = new StructType()
-                .add("id", DataTypes.StringType, false)
-                .add("startTime", DataTypes.LongType, true)
-                .add("description", DataTypes.StringType, true)
-                .add("status", DataTypes.StringType, true)
-                .add("syncTimestamp", DataTypes.LongType, false);
+        ingestNdjsonUrls("Patient", manifest.getOutputUrls("Patient"));
+        ingestNdjsonUrls("Appointment", manifest.getOutputUrls("Appointment"));
+    }
+
+    private void ingestNdjsonUrls(String resourceType, List<String> urls) {
+        String table = tableFor(resourceType);
+        if (urls.isEmpty()) {
+            System.out.println("No " + resourceType + " files in export");
+            return;
+        }
 
-        // Create DataFrame
-        Dataset<Row> df = spark.createDataFrame(rows, schema);
+        JavaRDD<Row> rows = spark
+                .createDataset(urls, Encoders.STRING())
+                .repartition(urls.size())
+                .flatMap(new NdjsonDownloader(), Encoders.STRING())
+                .javaRDD()
+                .mapPartitions(new ResourceRowMapper(resourceType));
 
-        // Write to Hudi table
+        Dataset<Row> df = spark.createDataFrame(rows, ResourceRowMapper.schemaFor(resourceType));
+        upsert(df, table);
+
+        System.out.println("✓ Ingested " + urls.size() + " " + resourceType + " file(s) into " + table);
+    }
+
+    /**
+     * Load resources of one type (Patient or Appointment) from a local file
+     * straight into the data lake, without going through the FHIR server.
+     *
+     * The file may be NDJSON (one resource per line, as written by $export)
+     * or JSON resources one after another, pretty-printed or not, as written
+     * by FhirDataExport. Bundles are unpacked into their entries. The file is
+     * split across partitions and parsed in parallel on the executors.
+     */
+    public void ingestFile(String file, String resourceType) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        String table = tableFor(resourceType);
+        int partitions = ingestPartitions(Files.size(path));
+
+        System.out.println("Ingesting " + resourceType + " resources from " + path + "...");
+
+        // Splits are found from the memory-mapped file without reading it through,
+        // executors then scan their split and parse its records
+        List<JsonFileSplit> splits = ConcatenatedJsonReader.plan(path, partitions);
+        JavaRDD<String> resources = JavaSparkContext.fromSparkContext(spark.sparkContext())
+                .parallelize(splits, Math.max(1, splits.size()))
+                .flatMap(new ConcatenatedJsonReader());
+
+        JavaRDD<Row> rows = resources.mapPartitions(new ResourceRowMapper(resourceType));
+        Dataset<Row> df = spark.createDataFrame(rows, ResourceRowMapper.schemaFor(resourceType));
+        upsert(df, table);
+
+        System.out.println("✓ Ingested " + path.getFileName() + " into " + table);
+    }
+
+    /**
+     * At least one partition per core, and per 64 MB of input
+     */
+    private int ingestPartitions(long fileSize) {
+        int configured = ConfigurationUtil.getInt(INGEST_PARTITIONS_KEY, 0);
+        if (configured > 0) {
+            return configured;
+        }
+        int bySize = (int) Math.min(Integer.MAX_VALUE, fileSize / INGEST_SPLIT_BYTES + 1);
+        return Math.max(spark.sparkContext().defaultParallelism(), bySize);
+    }
+
+    private static String tableFor(String resourceType) {
+        if ("Patient".equals(resourceType)) {
+            return "patients";
+        }
+        if ("Appointment".equals(resourceType)) {
+            return "appointments";
+        }
+        throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
+    }
+
+    /**
+     * Upsert rows into a Hudi table, keyed by id
+     */
+    private void upsert(Dataset<Row> df, String table) {
         df.write()
                 .format("hudi")
-                .option("hoodie.table.name", "appointments")
+                .option("hoodie.table.name", table)
                 .option("hoodie.datasource.write.recordkey.field", "id")
                 .option("hoodie.datasource.write.precombine.field", "syncTimestamp")
                 .option("hoodie.datasource.write.operation", "upsert")
                 .mode(SaveMode.Append)
-                .save(HUDI_BASE_PATH + "/appointments");
-
-        System.out.println("✓ Synced " + rows.size() + " appointments to data lake");
+                .save(HUDI_BASE_PATH + "/" + table);
     }
 
     /**
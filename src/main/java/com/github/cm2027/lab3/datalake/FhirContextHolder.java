@@ -0,0 +1,32 @@
+package com.github.cm2027.lab3.datalake;
+
+import ca.uhn.fhir.context.FhirContext;
+
+/**
+ * One R4 FhirContext per JVM for code running on Spark executors.
+ *
+ * Building a FhirContext scans the whole R4 model and is expensive, while
+ * the context itself is thread-safe; parsers created from it are cheap but
+ * not thread-safe, so create one per partition.
+ */
+public final class FhirContextHolder {
+
+    private static volatile FhirContext context;
+
+    private FhirContextHolder() {
+    }
+
+    public static FhirContext get() {
+        FhirContext result = context;
+        if (result == null) {
+            synchronized (FhirContextHolder.class) {
+                result = context;
+                if (result == null) {
+                    result = FhirContext.forR4();
+                    context = result;
+                }
+            }
+        }
+        return result;
+    }
+}
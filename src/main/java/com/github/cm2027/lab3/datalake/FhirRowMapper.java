@@ -0,0 +1,97 @@
+package com.github.cm2027.lab3.datalake;
+
+import com.github.cm2027.lab3.dao.fhir.JsonProjection;
+import com.github.cm2027.lab3.dao.fhir.ProjectedRecord;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.RowFactory;
+import org.apache.spark.sql.types.DataTypes;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.time.Instant;
+import java.util.Locale;
+
+/**
+ * Maps FHIR resources to rows of the data lake tables.
+ *
+ * Shared by every ingestion path (REST sync, bulk export, file ingest) so
+ * the Hudi tables get the same columns whichever way the data arrives.
+ * Only static methods, so it can be used from Spark executors.
+ *
+ * The projections pull just the fields of these tables out of search
+ * responses, for syncs that don't need HAPI model objects.
+ */
+public final class FhirRowMapper {
+
+    public static final StructType PATIENT_SCHEMA = new StructType()
+            .add("id", DataTypes.StringType, false)
+            .add("firstName", DataTypes.StringType, true)
+            .add("lastName", DataTypes.StringType, true)
+            .add("gender", DataTypes.StringType, true)
+            .add("syncTimestamp", DataTypes.LongType, false);
+
+    public static final StructType APPOINTMENT_SCHEMA = new StructType()
+            .add("id", DataTypes.StringType, false)
+            .add("startTime", DataTypes.LongType, true)
+            .add("description", DataTypes.StringType, true)
+            .add("status", DataTypes.StringType, true)
+            .add("syncTimestamp", DataTypes.LongType, false);
+
+    public static final JsonProjection PATIENT_PROJECTION = new JsonProjection(
+            "Patient", "id", "name[0].given", "name[0].family", "gender");
+
+    public static final JsonProjection APPOINTMENT_PROJECTION = new JsonProjection(
+            "Appointment", "id", "start", "description", "status");
+
+    private FhirRowMapper() {
+    }
+
+    public static Row toRow(Patient patient, long timestamp) {
+        String id = patient.getIdElement().getIdPart();
+        String firstName = patient.getNameFirstRep().getGivenAsSingleString();
+        String lastName = patient.getNameFirstRep().getFamily();
+        String gender = patient.hasGender() ? patient.getGender().toString() : "UNKNOWN";
+
+        return RowFactory.create(id, firstName, lastName, gender, timestamp);
+    }
+
+    public static Row toRow(Appointment appointment, long timestamp) {
+        String id = appointment.getIdElement().getIdPart();
+        Long startTime = appointment.hasStart() ? appointment.getStart().getTime() : 0L;
+        String description = appointment.hasDescription() ? appointment.getDescription() : "";
+        String status = appointment.hasStatus() ? appointment.getStatus().toString() : "UNKNOWN";
+
+        return RowFactory.create(id, startTime, description, status, timestamp);
+    }
+
+    public static Row toPatientRow(ProjectedRecord patient, long timestamp) {
+        String id = patient.get("id");
+        String firstName = patient.get("name[0].given");
+        String lastName = patient.get("name[0].family");
+        String gender = enumName(patient.get("gender"));
+
+        return RowFactory.create(id, firstName, lastName, gender, timestamp);
+    }
+
+    public static Row toAppointmentRow(ProjectedRecord appointment, long timestamp) {
+        String id = appointment.get("id");
+        Instant start = appointment.getInstant("start");
+        Long startTime = start != null ? start.toEpochMilli() : 0L;
+        String description = appointment.get("description", "");
+        String status = enumName(appointment.get("status"));
+
+        return RowFactory.create(id, startTime, description, status, timestamp);
+    }
+
+    /**
+     * FHIR code as the HAPI enum constant name, e.g. "no-show" to "NOSHOW",
+     * so projected rows match rows mapped from model objects.
+     */
+    private static String enumName(String code) {
+        if (code == null || code.isBlank()) {
+            return "UNKNOWN";
+        }
+        return code.replace("-", "").toUpperCase(Locale.ROOT);
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.cm2027.lab3.datalake;
+
+import java.io.Serializable;
+
+/**
+ * Byte range of a local file that starts and ends on JSON object
+ * boundaries, so it can be read independently of the rest of the file.
+ */
+public class JsonFileSplit implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String path;
+    private final long offset;
+    private final long length;
+
+    public JsonFileSplit(String path, long offset, long length) {
+        this.path = path;
+        this.offset = offset;
+        this.length = length;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return path + "[" + offset + "+" + length + "]";
+    }
+}
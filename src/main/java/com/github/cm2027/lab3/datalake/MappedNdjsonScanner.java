@@ -0,0 +1,429 @@
+package com.github.cm2027.lab3.datalake;
+
+import ca.uhn.fhir.parser.IParser;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Scanner for large local files of FHIR resources, either NDJSON or JSON
+ * objects written one after another (pretty-printed or not).
+ *
+ * The file is memory-mapped in windows of up to 256 MB and record
+ * boundaries are found by scanning the mapped bytes, without decoding them
+ * into Strings. Each Record is a view of the mapped bytes and is only
+ * decoded or parsed when asked to, so the heap stays small whatever the
+ * size of the file.
+ *
+ * For parallel scanning the file is cut into chunks. A chunk owns the
+ * records that start inside it; its real start is found by looking for the
+ * next newline followed by "{". JSON strings can't hold raw newlines, and
+ * pretty printers indent nested objects, so that is always the start of a
+ * top-level record.
+ *
+ * The scanner is safe to use from several threads; each scan maps its own
+ * windows.
+ */
+public class MappedNdjsonScanner implements AutoCloseable {
+
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final Path path;
+    private final FileChannel channel;
+    private final long size;
+
+    private MappedNdjsonScanner(Path path, FileChannel channel) throws IOException {
+        this.path = path;
+        this.channel = channel;
+        this.size = channel.size();
+    }
+
+    public static MappedNdjsonScanner open(Path path) throws IOException {
+        return new MappedNdjsonScanner(path, FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    public Path getPath() {
+        return path;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Cut the file into about the given number of chunks, each starting at a
+     * record boundary. Chunks are contiguous and cover every record once.
+     */
+    public List<Chunk> chunks(int count) throws IOException {
+        List<Long> starts = new ArrayList<>();
+        long step = Math.max(1, size / Math.max(1, count));
+        long previous = -1;
+
+        for (long target = 0; target < size; target += step) {
+            long start = findRecordStart(target);
+            if (start >= size) {
+                break;
+            }
+            if (start > previous) {
+                starts.add(start);
+                previous = start;
+            }
+        }
+
+        List<Chunk> chunks = new ArrayList<>();
+        for (int i = 0; i < starts.size(); i++) {
+            long end = i + 1 < starts.size() ? starts.get(i + 1) : size;
+            chunks.add(new Chunk(starts.get(i), end));
+        }
+        return chunks;
+    }
+
+    /**
+     * All records of the file, read lazily.
+     */
+    public Iterator<Record> records() {
+        return records(0, size);
+    }
+
+    /**
+     * Records starting in [from, to), read lazily. from must be a record
+     * boundary (e.g. the start of a Chunk) or 0.
+     */
+    public Iterator<Record> records(long from, long to) {
+        return new RecordIterator(from, to);
+    }
+
+    /**
+     * Scan all chunks on the given number of threads. The action is called
+     * concurrently and must be thread-safe. Returns the number of records.
+     */
+    public long scanParallel(int parallelism, Consumer<Record> action) throws IOException {
+        List<Chunk> chunks = chunks(parallelism * 4);
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, parallelism));
+        try {
+            List<Future<Long>> results = new ArrayList<>();
+            for (Chunk chunk : chunks) {
+                results.add(executor.submit(() -> {
+                    long count = 0;
+                    Iterator<Record> records = records(chunk.getStart(), chunk.getEnd());
+                    while (records.hasNext()) {
+                        action.accept(records.next());
+                        count++;
+                    }
+                    return count;
+                }));
+            }
+
+            long total = 0;
+            for (Future<Long> result : results) {
+                total += result.get();
+            }
+            return total;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning " + path, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Failed to scan " + path, cause);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Position of the first record starting at or after the given offset.
+     */
+    private long findRecordStart(long offset) throws IOException {
+        Window window = new Window();
+        long pos = offset;
+
+        if (offset > 0) {
+            // Resync: a record starts right after a newline
+            pos = offset - 1;
+            boolean afterNewline = false;
+            for (; pos < size; pos++) {
+                byte b = window.get(pos, pos);
+                if (afterNewline && b == '{') {
+                    return pos;
+                }
+                afterNewline = b == '\n' || (afterNewline && b == '\r');
+            }
+            return size;
+        }
+
+        for (; pos < size; pos++) {
+            if (window.get(pos, pos) == '{') {
+                return pos;
+            }
+        }
+        return size;
+    }
+
+    /**
+     * A range of the file starting at a record boundary.
+     */
+    public static class Chunk {
+
+        private final long start;
+        private final long end;
+
+        Chunk(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+    /**
+     * One JSON resource of the file, backed by the mapped bytes.
+     */
+    public static class Record {
+
+        private final long offset;
+        private final ByteBuffer bytes;
+
+        Record(long offset, ByteBuffer bytes) {
+            this.offset = offset;
+            this.bytes = bytes;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getLength() {
+            return bytes.remaining();
+        }
+
+        /**
+         * Read-only view of the record's bytes (UTF-8), no copy is made.
+         */
+        public ByteBuffer bytes() {
+            return bytes.duplicate();
+        }
+
+        /**
+         * Decode the record into a String.
+         */
+        public String text() {
+            return StandardCharsets.UTF_8.decode(bytes()).toString();
+        }
+
+        /**
+         * Parse the record straight from the mapped bytes.
+         */
+        public IBaseResource parse(IParser parser) {
+            return parser.parseResource(new ByteBufferInputStream(bytes()));
+        }
+    }
+
+    /**
+     * Mapped region of the file, remapped as a scan moves past its end.
+     */
+    private class Window {
+
+        private MappedByteBuffer buffer;
+        private long start;
+        private long end;
+
+        /**
+         * Byte at pos. keepFrom is the earliest position that must stay
+         * in the same window, i.e. the start of the record being scanned.
+         */
+        byte get(long pos, long keepFrom) throws IOException {
+            if (buffer == null || pos < start || pos >= end) {
+                map(keepFrom, pos);
+            }
+            return buffer.get((int) (pos - start));
+        }
+
+        ByteBuffer slice(long from, long to) {
+            ByteBuffer view = buffer.duplicate();
+            view.position((int) (from - start));
+            view.limit((int) (to - start));
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        private void map(long from, long pos) throws IOException {
+            long length = Math.min(size - from, Math.max(WINDOW_SIZE, pos - from + WINDOW_SIZE));
+            if (length > Integer.MAX_VALUE) {
+                length = Integer.MAX_VALUE;
+                if (pos - from >= length) {
+                    throw new IOException("Record at offset " + from + " in " + path + " is larger than 2 GB");
+                }
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            start = from;
+            end = from + length;
+        }
+    }
+
+    private class RecordIterator implements Iterator<Record> {
+
+        private final long to;
+        private final Window window = new Window();
+        private long pos;
+        private Record next;
+
+        RecordIterator(long from, long to) {
+            this.pos = from;
+            this.to = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next == null) {
+                try {
+                    next = scanNext();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return next != null;
+        }
+
+        @Override
+        public Record next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            Record record = next;
+            next = null;
+            return record;
+        }
+
+        private Record scanNext() throws IOException {
+            // Skip whitespace and separators up to the next record
+            while (pos < to && window.get(pos, pos) != '{') {
+                pos++;
+            }
+            if (pos >= to) {
+                return null;
+            }
+
+            long recordStart = pos;
+            JsonObjectScanner scanner = new JsonObjectScanner();
+            while (pos < size) {
+                byte b = window.get(pos, recordStart);
+                pos++;
+                if (scanner.accept(b)) {
+                    return new Record(recordStart, window.slice(recordStart, pos));
+                }
+            }
+            throw new IOException("Truncated record at offset " + recordStart + " in " + path);
+        }
+    }
+
+    /**
+     * Tracks nesting depth and string state of a JSON byte stream. Works on
+     * raw UTF-8: bytes of multi-byte characters never look like braces or
+     * quotes.
+     */
+    static class JsonObjectScanner {
+
+        private int depth;
+        private boolean inString;
+        private boolean escaped;
+
+        /**
+         * Feed the next byte. True when it closes a top-level object.
+         */
+        boolean accept(int b) {
+            if (inString) {
+                if (escaped) {
+                    escaped = false;
+                } else if (b == '\\') {
+                    escaped = true;
+                } else if (b == '"') {
+                    inString = false;
+                }
+                return false;
+            }
+
+            switch (b) {
+                case '"':
+                    inString = true;
+                    return false;
+                case '{':
+                case '[':
+                    depth++;
+                    return false;
+                case '}':
+                case ']':
+                    depth--;
+                    return depth == 0 && b == '}';
+                default:
+                    return false;
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
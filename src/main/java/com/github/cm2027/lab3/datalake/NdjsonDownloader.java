@@ -0,0 +1,137 @@
+package com.github.cm2027.lab3.datalake;
+
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.spark.TaskContext;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.util.TaskCompletionListener;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Spark function streaming the lines of one NDJSON file from a URL.
+ *
+ * Lines are read as the partition consumes them, so a file is never held
+ * in memory as a whole. Downloads go through the process's
+ * ResilientHttpClient at BATCH priority, like the rest of the export, so
+ * they count against the batch concurrency cap and rate limit, are
+ * retried, trip the circuit breaker, and time out after
+ * fhir.http.timeout-ms without data. The iterator is closed at the end of
+ * the file or, if the task stops reading early, when the task completes,
+ * which frees the connection and the admission permit.
+ */
+public class NdjsonDownloader implements FlatMapFunction<String, String> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public Iterator<String> call(String url) throws Exception {
+        HttpGet request = new HttpGet(url);
+        request.setHeader("Accept", "application/fhir+ndjson");
+
+        CloseableHttpResponse response = RequestPriority.call(RequestPriority.BATCH,
+                () -> ClientSingleton.getHttpClient().execute(request));
+        int status = response.getStatusLine().getStatusCode();
+        if (status != 200 || response.getEntity() == null) {
+            response.close();
+            throw new IOException("Failed to download " + url + ": HTTP " + status);
+        }
+
+        LineIterator lines;
+        try {
+            lines = new LineIterator(response);
+        } catch (IOException | RuntimeException e) {
+            response.close();
+            throw e;
+        }
+        TaskContext task = TaskContext.get();
+        if (task != null) {
+            task.addTaskCompletionListener((TaskCompletionListener) context -> lines.close());
+        }
+        return lines;
+    }
+
+    /**
+     * The lines of a response body. Closes the response at the end of the
+     * body, on a read error, or when closed early.
+     */
+    static final class LineIterator implements Iterator<String>, Closeable {
+
+        private final CloseableHttpResponse response;
+        private final BufferedReader reader;
+        private String next;
+        private boolean closed;
+
+        LineIterator(CloseableHttpResponse response) throws IOException {
+            this.response = response;
+            this.reader = new BufferedReader(
+                    new InputStreamReader(response.getEntity().getContent(), StandardCharsets.UTF_8));
+            this.next = readLine();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public String next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            String line = next;
+            next = readLine();
+            return line;
+        }
+
+        /**
+         * Stop reading and release the connection. Safe to call more than
+         * once.
+         */
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            next = null;
+            // The response first: closing it drops the connection, where
+            // closing the stream would read the rest of the file to reuse it
+            try {
+                response.close();
+            } catch (IOException ignored) {
+                // Nothing left to release
+            }
+            try {
+                reader.close();
+            } catch (IOException ignored) {
+                // The connection is gone already
+            }
+        }
+
+        private String readLine() {
+            if (closed) {
+                return null;
+            }
+            try {
+                String line = reader.readLine();
+                if (line == null) {
+                    close();
+                }
+                return line;
+            } catch (IOException e) {
+                close();
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.github.cm2027.lab3.datalake;
+
+import ca.uhn.fhir.parser.IParser;
+import org.apache.spark.api.java.function.FlatMapFunction;
+import org.apache.spark.sql.Row;
+import org.apache.spark.sql.types.StructType;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Spark partition function turning JSON resources (one per element) into
+ * data lake rows. Runs on executors with one parser per partition and
+ * skips blank lines and resources of other types. Bundles are unpacked
+ * into the rows of their entries.
+ */
+public class ResourceRowMapper implements FlatMapFunction<Iterator<String>, Row> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String resourceType;
+
+    public ResourceRowMapper(String resourceType) {
+        if (!"Patient".equals(resourceType) && !"Appointment".equals(resourceType)) {
+            throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
+        }
+        this.resourceType = resourceType;
+    }
+
+    public static StructType schemaFor(String resourceType) {
+        if ("Patient".equals(resourceType)) {
+            return FhirRowMapper.PATIENT_SCHEMA;
+        }
+        if ("Appointment".equals(resourceType)) {
+            return FhirRowMapper.APPOINTMENT_SCHEMA;
+        }
+        throw new IllegalArgumentException("Unsupported resource type: " + resourceType);
+    }
+
+    @Override
+    public Iterator<Row> call(Iterator<String> jsonResources) {
+        IParser parser = FhirContextHolder.get().newJsonParser();
+        long timestamp = System.currentTimeMillis();
+
+        return new Iterator<Row>() {
+            private final Deque<Row> pending = new ArrayDeque<>();
+
+            @Override
+            public boolean hasNext() {
+                while (pending.isEmpty() && jsonResources.hasNext()) {
+                    map(parser, jsonResources.next(), timestamp, pending);
+                }
+                return !pending.isEmpty();
+            }
+
+            @Override
+            public Row next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return pending.poll();
+            }
+        };
+    }
+
+    private void map(IParser parser, String json, long timestamp, Deque<Row> rows) {
+        if (json == null || json.isBlank()) {
+            return;
+        }
+
+        IBaseResource resource = parser.parseResource(json);
+        if (resource instanceof Bundle) {
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                add(entry.getResource(), timestamp, rows);
+            }
+        } else {
+            add(resource, timestamp, rows);
+        }
+    }
+
+    private void add(IBaseResource resource, long timestamp, Deque<Row> rows) {
+        Row row = toRow(resource, timestamp);
+        if (row != null) {
+            rows.add(row);
+        }
+    }
+
+    private Row toRow(IBaseResource resource, long timestamp) {
+        if (resource instanceof Patient && "Patient".equals(resourceType)) {
+            return FhirRowMapper.toRow((Patient) resource, timestamp);
+        }
+        if (resource instanceof Appointment && "Appointment".equals(resourceType)) {
+            return FhirRowMapper.toRow((Appointment) resource, timestamp);
+        }
+        return null;
+    }
+}
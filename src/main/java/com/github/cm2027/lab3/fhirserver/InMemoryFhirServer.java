@@ -0,0 +1,721 @@
+package com.github.cm2027.lab3.fhirserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.DataFormatException;
+import ca.uhn.fhir.parser.IParser;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * In-process, in-memory FHIR R4 server for tests and load runs, so they
+ * don't depend on the shared HAPI server or the network.
+ *
+ * Supports create, read (with ETag / If-None-Match), vread, update,
+ * delete, type and instance history with _since, and searches on the
+ * parameters in SearchParameter plus _id, _lastUpdated, _sort, _count
+ * with paging, _include, _elements and _summary=data|count. Unknown
+ * search parameters are rejected with 400 rather than ignored, so a test
+ * can't silently get unfiltered results.
+ *
+ * Point the application at it with hapi.fhir.base-url=embedded (see
+ * ClientSingleton); fhir.embedded.seed names a file of resources to load
+ * first (JSON, NDJSON or concatenated, Bundles are unpacked) and
+ * fhir.embedded.port the port (default: any free port).
+ *
+ * Run standalone with: InMemoryFhirServer [seed-file] [port]
+ */
+public class InMemoryFhirServer {
+
+    private static final String SEED_KEY = "fhir.embedded.seed";
+    private static final String PORT_KEY = "fhir.embedded.port";
+    private static final String FHIR_JSON = "application/fhir+json;charset=utf-8";
+    private static final int DEFAULT_PAGE_SIZE = 20;
+    private static final int MAX_PAGE_SIZE = 1000;
+    private static final int MAX_SNAPSHOTS = 500;
+    private static final Set<String> CONTROL_PARAMETERS = Set.of(
+            "_count", "_sort", "_include", "_elements", "_summary", "_format", "_pretty", "_total");
+
+    private static InMemoryFhirServer embedded;
+
+    private final FhirContext context;
+    private final ResourceStore store;
+    private final Map<String, Snapshot> snapshots = Collections.synchronizedMap(
+            new LinkedHashMap<>(64, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, Snapshot> eldest) {
+                    return size() > MAX_SNAPSHOTS;
+                }
+            });
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public InMemoryFhirServer() {
+        this.context = FhirContext.forR4Cached();
+        this.store = new ResourceStore(context);
+    }
+
+    /**
+     * Start the server configured by fhir.embedded.* once per JVM and
+     * return its base URL.
+     */
+    public static synchronized String startEmbedded() {
+        if (embedded == null) {
+            try {
+                InMemoryFhirServer server = new InMemoryFhirServer();
+                String seed = ConfigurationUtil.getString(SEED_KEY);
+                if (seed != null && !seed.isBlank()) {
+                    server.seed(Paths.get(seed));
+                }
+                server.start(ConfigurationUtil.getInt(PORT_KEY, 0));
+                embedded = server;
+            } catch (IOException e) {
+                throw new UncheckedIOException("Failed to start embedded FHIR server", e);
+            }
+        }
+        return embedded.getBaseUrl();
+    }
+
+    /**
+     * Stop the server started by startEmbedded, if any. Its threads keep
+     * the JVM running otherwise.
+     */
+    public static synchronized void stopEmbedded() {
+        if (embedded != null) {
+            embedded.stop();
+            embedded = null;
+        }
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = VirtualThreads.newPerTaskExecutor("fhir-server");
+        server.setExecutor(executor);
+        server.createContext("/fhir", this::handle);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Load every resource in a file of JSON resources (one per line,
+     * concatenated or pretty-printed). Bundles are unpacked; resources
+     * keep their ids. Returns the number of resources stored.
+     */
+    public int seed(Path file) throws IOException {
+        IParser parser = context.newJsonParser();
+        ObjectMapper mapper = new ObjectMapper();
+        int count = 0;
+        try (JsonParser json = mapper.getFactory().createParser(file.toFile());
+             MappingIterator<JsonNode> nodes = mapper.readValues(json, JsonNode.class)) {
+            while (nodes.hasNext()) {
+                count += load((Resource) parser.parseResource(nodes.next().toString()));
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Number of live (not deleted) resources of a type.
+     */
+    public int count(String resourceType) {
+        return store.size(resourceType);
+    }
+
+    private int load(Resource resource) {
+        if (resource instanceof Bundle) {
+            int count = 0;
+            for (Bundle.BundleEntryComponent entry : ((Bundle) resource).getEntry()) {
+                if (entry.getResource() != null) {
+                    count += load(entry.getResource());
+                }
+            }
+            return count;
+        }
+        if (resource.getIdElement().hasIdPart()) {
+            store.update(resource.fhirType(), resource.getIdElement().getIdPart(), resource);
+        } else {
+            store.create(resource);
+        }
+        return 1;
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            String method = exchange.getRequestMethod();
+            List<String> path = segments(exchange.getRequestURI().getRawPath());
+            Map<String, List<String>> params = parseQuery(exchange.getRequestURI().getRawQuery());
+
+            if (path.isEmpty() && params.containsKey("_getpages") && "GET".equals(method)) {
+                page(exchange, params);
+            } else if (path.size() == 1 && "metadata".equals(path.get(0)) && "GET".equals(method)) {
+                send(exchange, 200, capabilityStatement());
+            } else if (path.isEmpty()) {
+                throw new HttpError(400, "Batch and transaction Bundles are not supported");
+            } else {
+                String type = path.get(0);
+                if (!context.getResourceTypes().contains(type)) {
+                    throw new HttpError(404, "Unknown resource type: " + type);
+                }
+                route(exchange, method, type, path, params);
+            }
+        } catch (HttpError e) {
+            send(exchange, e.status, operationOutcome(e.getMessage()));
+        } catch (IllegalArgumentException | DataFormatException e) {
+            send(exchange, 400, operationOutcome(e.getMessage()));
+        } catch (RuntimeException e) {
+            send(exchange, 500, operationOutcome(e.toString()));
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void route(HttpExchange exchange, String method, String type, List<String> path,
+                       Map<String, List<String>> params) throws IOException {
+        boolean history = path.size() >= 2 && "_history".equals(path.get(Math.min(path.size() - 1, 2)));
+
+        if (path.size() == 1 && "GET".equals(method)) {
+            search(exchange, type, params);
+        } else if (path.size() == 1 && "POST".equals(method)) {
+            Resource resource = parseBody(exchange, type);
+            ResourceStore.Version created = store.create(resource);
+            exchange.getResponseHeaders().set("Location", versionUrl(created));
+            sendVersion(exchange, 201, created);
+        } else if (path.size() == 2 && "_search".equals(path.get(1)) && "POST".equals(method)) {
+            Map<String, List<String>> form = parseQuery(new String(readBody(exchange), StandardCharsets.UTF_8));
+            form.putAll(params);
+            search(exchange, type, form);
+        } else if (path.size() == 2 && history && "GET".equals(method)) {
+            history(exchange, type, null, params);
+        } else if (path.size() == 2 && "GET".equals(method)) {
+            read(exchange, type, path.get(1));
+        } else if (path.size() == 2 && "PUT".equals(method)) {
+            Resource resource = parseBody(exchange, type);
+            String id = path.get(1);
+            if (resource.getIdElement().hasIdPart() && !id.equals(resource.getIdElement().getIdPart())) {
+                throw new HttpError(400, "Resource id " + resource.getIdElement().getIdPart()
+                        + " doesn't match URL id " + id);
+            }
+            ResourceStore.Version previous = store.read(type, id);
+            ResourceStore.Version updated = store.update(type, id, resource);
+            boolean created = previous == null || previous.isDeleted();
+            if (created) {
+                exchange.getResponseHeaders().set("Location", versionUrl(updated));
+            }
+            sendVersion(exchange, created ? 201 : 200, updated);
+        } else if (path.size() == 2 && "DELETE".equals(method)) {
+            store.delete(type, path.get(1));
+            send(exchange, 200, operationOutcome("information", "Successfully deleted " + type + "/" + path.get(1)));
+        } else if (path.size() == 3 && history && "GET".equals(method)) {
+            history(exchange, type, path.get(1), params);
+        } else if (path.size() == 4 && history && "GET".equals(method)) {
+            ResourceStore.Version version = store.vread(type, path.get(1), parseVersion(path.get(3)));
+            if (version == null) {
+                throw new HttpError(404, type + "/" + path.get(1) + "/_history/" + path.get(3) + " is not known");
+            }
+            if (version.isDeleted()) {
+                throw new HttpError(410, type + "/" + path.get(1) + " was deleted in this version");
+            }
+            sendVersion(exchange, 200, version);
+        } else {
+            throw new HttpError(405, method + " " + String.join("/", path) + " is not supported");
+        }
+    }
+
+    private void read(HttpExchange exchange, String type, String id) throws IOException {
+        ResourceStore.Version version = store.read(type, id);
+        if (version == null) {
+            throw new HttpError(404, type + "/" + id + " is not known");
+        }
+        if (version.isDeleted()) {
+            throw new HttpError(410, type + "/" + id + " has been deleted");
+        }
+
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null && etag(version).equals(ifNoneMatch.trim())
+                || ifNoneMatch != null && ifNoneMatch.trim().equals("\"" + version.versionId + "\"")) {
+            exchange.getResponseHeaders().set("ETag", etag(version));
+            exchange.sendResponseHeaders(304, -1);
+            return;
+        }
+        sendVersion(exchange, 200, version);
+    }
+
+    private void search(HttpExchange exchange, String type, Map<String, List<String>> params) throws IOException {
+        List<ResourceStore.Clause> clauses = new ArrayList<>();
+        for (Map.Entry<String, List<String>> param : params.entrySet()) {
+            String name = param.getKey();
+            if (CONTROL_PARAMETERS.contains(name)) {
+                continue;
+            }
+            if (name.startsWith("_has") || name.contains(".")) {
+                throw new HttpError(400, "Chained and _has searches are not supported: " + name);
+            }
+            int colon = name.indexOf(':');
+            for (String value : param.getValue()) {
+                clauses.add(new ResourceStore.Clause(
+                        colon < 0 ? name : name.substring(0, colon),
+                        colon < 0 ? null : name.substring(colon + 1),
+                        Arrays.asList(value.split(","))));
+            }
+        }
+
+        List<ResourceStore.SortKey> sort = new ArrayList<>();
+        for (String value : params.getOrDefault("_sort", List.of())) {
+            for (String key : value.split(",")) {
+                boolean descending = key.startsWith("-");
+                sort.add(new ResourceStore.SortKey(descending ? key.substring(1) : key, descending));
+            }
+        }
+
+        List<String> ids = store.search(type, clauses, sort);
+
+        if ("count".equals(first(params, "_summary"))) {
+            send(exchange, 200, "{\"resourceType\":\"Bundle\",\"type\":\"searchset\",\"total\":" + ids.size() + "}");
+            return;
+        }
+
+        Snapshot snapshot = new Snapshot(type, "searchset", ids, null,
+                params.getOrDefault("_include", List.of()), Projection.of(type, params), pageSize(params),
+                getBaseUrl() + "/" + type + query(params));
+        send(exchange, 200, render(snapshot, 0, snapshot.pageSize));
+    }
+
+    private void history(HttpExchange exchange, String type, String id, Map<String, List<String>> params)
+            throws IOException {
+        String since = first(params, "_since");
+        Date sinceDate = since == null ? null : new DateTimeType(since).getValue();
+        List<ResourceStore.Version> versions = store.history(type, id, sinceDate);
+
+        String self = getBaseUrl() + "/" + type + (id == null ? "" : "/" + id) + "/_history" + query(params);
+        Snapshot snapshot = new Snapshot(type, "history", null, versions, List.of(), null,
+                pageSize(params), self);
+        send(exchange, 200, render(snapshot, 0, snapshot.pageSize));
+    }
+
+    private void page(HttpExchange exchange, Map<String, List<String>> params) throws IOException {
+        Snapshot snapshot = snapshots.get(first(params, "_getpages"));
+        if (snapshot == null) {
+            throw new HttpError(410, "Search " + first(params, "_getpages") + " has expired");
+        }
+        int offset = Integer.parseInt(first(params, "_getpagesoffset", "0"));
+        int count = Math.min(MAX_PAGE_SIZE, Integer.parseInt(first(params, "_count",
+                String.valueOf(snapshot.pageSize))));
+        send(exchange, 200, render(snapshot, offset, count));
+    }
+
+    /**
+     * Encode one page of a search or history result as a Bundle. The
+     * resources' stored JSON is spliced in as is unless a projection
+     * applies.
+     */
+    private String render(Snapshot snapshot, int offset, int count) {
+        int total = snapshot.size();
+        int end = Math.min(total, offset + count);
+        if (end < total || offset > 0) {
+            snapshots.putIfAbsent(snapshot.id, snapshot);
+        }
+
+        StringBuilder json = new StringBuilder(4096);
+        json.append("{\"resourceType\":\"Bundle\",\"id\":").append(quote(UUID.randomUUID().toString()))
+                .append(",\"meta\":{\"lastUpdated\":").append(quote(Instant.now().toString())).append('}')
+                .append(",\"type\":").append(quote(snapshot.bundleType))
+                .append(",\"total\":").append(total)
+                .append(",\"link\":[");
+        link(json, "self", offset == 0 ? snapshot.selfUrl : pageUrl(snapshot, offset, count));
+        if (end < total) {
+            json.append(',');
+            link(json, "next", pageUrl(snapshot, end, count));
+        }
+        if (offset > 0) {
+            json.append(',');
+            link(json, "previous", pageUrl(snapshot, Math.max(0, offset - count), count));
+        }
+        json.append("],\"entry\":[");
+
+        boolean firstEntry = true;
+        if (snapshot.versions != null) {
+            for (ResourceStore.Version version : snapshot.versions.subList(Math.min(offset, end), end)) {
+                firstEntry = historyEntry(json, version, firstEntry);
+            }
+        } else {
+            List<ResourceStore.Version> matches = new ArrayList<>();
+            for (String id : snapshot.ids.subList(Math.min(offset, end), end)) {
+                ResourceStore.Version version = store.read(snapshot.resourceType, id);
+                // Deleted since the search ran
+                if (version != null && !version.isDeleted()) {
+                    matches.add(version);
+                }
+            }
+            Set<String> seen = new HashSet<>();
+            for (ResourceStore.Version version : matches) {
+                seen.add(version.resourceType + "/" + version.id);
+                firstEntry = searchEntry(json, version, "match", snapshot.projection, firstEntry);
+            }
+            for (ResourceStore.Version version : includes(snapshot, matches, seen)) {
+                firstEntry = searchEntry(json, version, "include", null, firstEntry);
+            }
+        }
+        return json.append("]}").toString();
+    }
+
+    private List<ResourceStore.Version> includes(Snapshot snapshot, List<ResourceStore.Version> matches,
+                                                 Set<String> seen) {
+        List<ResourceStore.Version> included = new ArrayList<>();
+        for (String include : snapshot.includes) {
+            String[] parts = include.split(":");
+            if (parts.length < 2 || !parts[0].equals(snapshot.resourceType)) {
+                throw new HttpError(400, "Unsupported _include: " + include);
+            }
+            for (ResourceStore.Version match : matches) {
+                for (String reference : store.references(match.resource, parts[1])) {
+                    String[] typeAndId = reference.split("/");
+                    if (parts.length > 2 && !parts[2].equals(typeAndId[0])) {
+                        continue;
+                    }
+                    ResourceStore.Version target = store.read(typeAndId[0], typeAndId[1]);
+                    if (target != null && !target.isDeleted() && seen.add(reference)) {
+                        included.add(target);
+                    }
+                }
+            }
+        }
+        return included;
+    }
+
+    private boolean searchEntry(StringBuilder json, ResourceStore.Version version, String mode,
+                                Projection projection, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append("{\"fullUrl\":").append(quote(resourceUrl(version)))
+                .append(",\"resource\":").append(encode(version, projection))
+                .append(",\"search\":{\"mode\":").append(quote(mode)).append("}}");
+        return false;
+    }
+
+    private boolean historyEntry(StringBuilder json, ResourceStore.Version version, boolean first) {
+        if (!first) {
+            json.append(',');
+        }
+        json.append("{\"fullUrl\":").append(quote(resourceUrl(version)));
+        if (!version.isDeleted()) {
+            json.append(",\"resource\":").append(version.json);
+        }
+        String url = version.isDeleted()
+                ? version.resourceType + "/" + version.id + "/_history/" + version.versionId
+                : "POST".equals(version.method) ? version.resourceType : version.resourceType + "/" + version.id;
+        String status = "POST".equals(version.method) ? "201 Created"
+                : version.isDeleted() ? "204 No Content" : "200 OK";
+        json.append(",\"request\":{\"method\":").append(quote(version.method))
+                .append(",\"url\":").append(quote(url)).append('}')
+                .append(",\"response\":{\"status\":").append(quote(status))
+                .append(",\"etag\":").append(quote(etag(version)))
+                .append(",\"lastModified\":").append(quote(Instant.ofEpochMilli(version.lastUpdated).toString()))
+                .append("}}");
+        return false;
+    }
+
+    private String encode(ResourceStore.Version version, Projection projection) {
+        if (projection == null) {
+            return version.json;
+        }
+        Resource copy = version.resource.copy();
+        if (copy.getMeta().getTag(Projection.SUBSETTED_SYSTEM, Projection.SUBSETTED_CODE) == null) {
+            copy.getMeta().addTag(Projection.SUBSETTED_SYSTEM, Projection.SUBSETTED_CODE,
+                    "Resource encoded in summary mode");
+        }
+        IParser parser = context.newJsonParser();
+        if (projection.elements != null) {
+            parser.setEncodeElements(projection.elements);
+        } else {
+            parser.setDontEncodeElements(Set.of(version.resourceType + ".text"));
+        }
+        return parser.encodeResourceToString(copy);
+    }
+
+    private Resource parseBody(HttpExchange exchange, String type) throws IOException {
+        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+        IParser parser = contentType != null && contentType.contains("xml")
+                ? context.newXmlParser() : context.newJsonParser();
+        Resource resource = (Resource) parser.parseResource(new String(readBody(exchange), StandardCharsets.UTF_8));
+        if (!type.equals(resource.fhirType())) {
+            throw new HttpError(400, "Expected a " + type + " but got a " + resource.fhirType());
+        }
+        return resource;
+    }
+
+    private static byte[] readBody(HttpExchange exchange) throws IOException {
+        try (InputStream body = exchange.getRequestBody()) {
+            return body.readAllBytes();
+        }
+    }
+
+    private void sendVersion(HttpExchange exchange, int status, ResourceStore.Version version) throws IOException {
+        exchange.getResponseHeaders().set("ETag", etag(version));
+        exchange.getResponseHeaders().set("Last-Modified", DateTimeFormatter.RFC_1123_DATE_TIME
+                .format(Instant.ofEpochMilli(version.lastUpdated).atOffset(ZoneOffset.UTC)));
+        exchange.getResponseHeaders().set("Content-Location", versionUrl(version));
+        send(exchange, status, version.json);
+    }
+
+    private static void send(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] body = json.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", FHIR_JSON);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private String capabilityStatement() {
+        return "{\"resourceType\":\"CapabilityStatement\",\"status\":\"active\",\"date\":"
+                + quote(Instant.now().toString())
+                + ",\"kind\":\"instance\",\"software\":{\"name\":\"InMemoryFhirServer\"}"
+                + ",\"fhirVersion\":\"4.0.1\",\"format\":[\"json\",\"xml\"]"
+                + ",\"rest\":[{\"mode\":\"server\"}]}";
+    }
+
+    private static String operationOutcome(String diagnostics) {
+        return operationOutcome("error", diagnostics);
+    }
+
+    private static String operationOutcome(String severity, String diagnostics) {
+        return "{\"resourceType\":\"OperationOutcome\",\"issue\":[{\"severity\":" + quote(severity)
+                + ",\"code\":\"processing\",\"diagnostics\":" + quote(String.valueOf(diagnostics)) + "}]}";
+    }
+
+    private String resourceUrl(ResourceStore.Version version) {
+        return getBaseUrl() + "/" + version.resourceType + "/" + version.id;
+    }
+
+    private String versionUrl(ResourceStore.Version version) {
+        return resourceUrl(version) + "/_history/" + version.versionId;
+    }
+
+    private String pageUrl(Snapshot snapshot, int offset, int count) {
+        return getBaseUrl() + "?_getpages=" + snapshot.id + "&_getpagesoffset=" + offset
+                + "&_count=" + count + "&_bundletype=" + snapshot.bundleType;
+    }
+
+    private static void link(StringBuilder json, String relation, String url) {
+        json.append("{\"relation\":").append(quote(relation)).append(",\"url\":").append(quote(url)).append('}');
+    }
+
+    private static String etag(ResourceStore.Version version) {
+        return "W/\"" + version.versionId + "\"";
+    }
+
+    private static long parseVersion(String versionId) {
+        try {
+            return Long.parseLong(versionId);
+        } catch (NumberFormatException e) {
+            throw new HttpError(400, "Invalid version id: " + versionId);
+        }
+    }
+
+    private static int pageSize(Map<String, List<String>> params) {
+        int count = Integer.parseInt(first(params, "_count", String.valueOf(DEFAULT_PAGE_SIZE)));
+        return Math.max(1, Math.min(MAX_PAGE_SIZE, count));
+    }
+
+    private static String first(Map<String, List<String>> params, String name) {
+        return first(params, name, null);
+    }
+
+    private static String first(Map<String, List<String>> params, String name, String defaultValue) {
+        List<String> values = params.get(name);
+        return values == null || values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    private static List<String> segments(String rawPath) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : rawPath.substring("/fhir".length()).split("/")) {
+            if (!segment.isEmpty()) {
+                segments.add(URLDecoder.decode(segment, StandardCharsets.UTF_8));
+            }
+        }
+        return segments;
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        Map<String, List<String>> params = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return params;
+        }
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = URLDecoder.decode(equals < 0 ? pair : pair.substring(0, equals), StandardCharsets.UTF_8);
+            String value = equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), StandardCharsets.UTF_8);
+            params.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+        return params;
+    }
+
+    private static String query(Map<String, List<String>> params) {
+        StringBuilder query = new StringBuilder();
+        for (Map.Entry<String, List<String>> param : params.entrySet()) {
+            for (String value : param.getValue()) {
+                query.append(query.length() == 0 ? '?' : '&')
+                        .append(URLEncoder.encode(param.getKey(), StandardCharsets.UTF_8)).append('=')
+                        .append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+            }
+        }
+        return query.toString();
+    }
+
+    private static String quote(String text) {
+        StringBuilder quoted = new StringBuilder(text.length() + 2).append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        InMemoryFhirServer server = new InMemoryFhirServer();
+        if (args.length > 0) {
+            int count = server.seed(Paths.get(args[0]));
+            System.out.println("Loaded " + count + " resources from " + args[0]);
+        }
+        server.start(args.length > 1 ? Integer.parseInt(args[1]) : 8091);
+        System.out.println("In-memory FHIR server running at " + server.getBaseUrl());
+    }
+
+    /**
+     * The result of a search or history request, kept so later pages are
+     * served from the same list.
+     */
+    private static final class Snapshot {
+
+        private final String id = UUID.randomUUID().toString();
+        private final String resourceType;
+        private final String bundleType;
+        private final List<String> ids;
+        private final List<ResourceStore.Version> versions;
+        private final List<String> includes;
+        private final Projection projection;
+        private final int pageSize;
+        private final String selfUrl;
+
+        Snapshot(String resourceType, String bundleType, List<String> ids, List<ResourceStore.Version> versions,
+                 List<String> includes, Projection projection, int pageSize, String selfUrl) {
+            this.resourceType = resourceType;
+            this.bundleType = bundleType;
+            this.ids = ids;
+            this.versions = versions;
+            this.includes = includes;
+            this.projection = projection;
+            this.pageSize = pageSize;
+            this.selfUrl = selfUrl;
+        }
+
+        int size() {
+            return ids != null ? ids.size() : versions.size();
+        }
+    }
+
+    /**
+     * _elements or _summary=data: which parts of matched resources to send.
+     */
+    private static final class Projection {
+
+        static final String SUBSETTED_SYSTEM = "http://terminology.hl7.org/CodeSystem/v3-ObservationValue";
+        static final String SUBSETTED_CODE = "SUBSETTED";
+
+        /**
+         * Paths for IParser.setEncodeElements, or null for _summary=data.
+         */
+        private final Set<String> elements;
+
+        private Projection(Set<String> elements) {
+            this.elements = elements;
+        }
+
+        static Projection of(String resourceType, Map<String, List<String>> params) {
+            String elements = first(params, "_elements");
+            if (elements != null && !elements.isBlank()) {
+                Set<String> paths = new LinkedHashSet<>();
+                paths.add(resourceType + ".id");
+                paths.add(resourceType + ".meta");
+                for (String element : elements.split(",")) {
+                    if (!element.isBlank()) {
+                        paths.add(resourceType + "." + element.trim());
+                    }
+                }
+                return new Projection(paths);
+            }
+            String summary = first(params, "_summary");
+            if ("data".equals(summary)) {
+                return new Projection(null);
+            }
+            if (summary != null && !"false".equals(summary)) {
+                throw new HttpError(400, "Unsupported _summary: " + summary);
+            }
+            return null;
+        }
+    }
+
+    private static final class HttpError extends RuntimeException {
+
+        private final int status;
+
+        HttpError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+}
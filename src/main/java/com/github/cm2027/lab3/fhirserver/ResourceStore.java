@@ -0,0 +1,587 @@
+package com.github.cm2027.lab3.fhirserver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.r4.model.DateTimeType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Versioned resources of the in-memory FHIR server, with indexes for the
+ * parameters in SearchParameter.
+ *
+ * Token and reference parameters have hash indexes (key to ids), string
+ * parameters a sorted index of normalized values for prefix matches, and
+ * date parameters and _lastUpdated a sorted index of instants for range
+ * queries. A search looks up each parameter's ids in its index and
+ * intersects them, starting from the smallest set, so its cost depends
+ * on the number of matches rather than the number of resources.
+ *
+ * Every version is kept for history and vread. Each stored version is
+ * encoded to JSON once, so full reads and searches don't re-encode.
+ *
+ * Safe to use concurrently: searches share a read lock, writes take the
+ * write lock.
+ */
+class ResourceStore {
+
+    private final FhirContext context;
+    private final FhirTerser terser;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, TypeStore> types = new HashMap<>();
+    private final AtomicLong nextId = new AtomicLong(1);
+    private long lastTimestamp;
+    private long sequence;
+
+    ResourceStore(FhirContext context) {
+        this.context = context;
+        this.terser = context.newTerser();
+    }
+
+    /**
+     * Store a new resource under the next free numeric id.
+     */
+    Version create(Resource resource) {
+        lock.writeLock().lock();
+        try {
+            TypeStore store = store(resource.fhirType());
+            String id;
+            do {
+                id = String.valueOf(nextId.getAndIncrement());
+            } while (store.current.containsKey(id));
+            return put(store, resource, id, "POST");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Store a new version of a resource, creating it if the id is unknown
+     * or was deleted.
+     */
+    Version update(String resourceType, String id, Resource resource) {
+        lock.writeLock().lock();
+        try {
+            return put(store(resourceType), resource, id, "PUT");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Delete a resource. Returns the delete marker, or null if there was
+     * nothing to delete.
+     */
+    Version delete(String resourceType, String id) {
+        lock.writeLock().lock();
+        try {
+            TypeStore store = store(resourceType);
+            Version previous = store.current.get(id);
+            if (previous == null || previous.isDeleted()) {
+                return null;
+            }
+            unindex(store, id);
+            Version marker = new Version(resourceType, id, previous.versionId + 1, timestamp(), null, null,
+                    "DELETE", previous.sequence);
+            record(store, marker);
+            return marker;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * The current version, a delete marker, or null if the id was never used.
+     */
+    Version read(String resourceType, String id) {
+        lock.readLock().lock();
+        try {
+            TypeStore store = types.get(resourceType);
+            return store == null ? null : store.current.get(id);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    Version vread(String resourceType, String id, long versionId) {
+        lock.readLock().lock();
+        try {
+            TypeStore store = types.get(resourceType);
+            List<Version> versions = store == null ? null : store.versions.get(id);
+            if (versions == null || versionId < 1 || versionId > versions.size()) {
+                return null;
+            }
+            return versions.get((int) versionId - 1);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Versions of a type (or of one resource, if id isn't null) written at
+     * or after since (may be null), newest first.
+     */
+    List<Version> history(String resourceType, String id, Date since) {
+        lock.readLock().lock();
+        try {
+            TypeStore store = types.get(resourceType);
+            List<Version> versions = store == null ? null
+                    : id == null ? store.history : store.versions.get(id);
+            if (versions == null) {
+                return List.of();
+            }
+            List<Version> result = new ArrayList<>();
+            long from = since == null ? Long.MIN_VALUE : since.getTime();
+            for (int i = versions.size() - 1; i >= 0; i--) {
+                Version version = versions.get(i);
+                if (version.lastUpdated < from) {
+                    // Versions are in write order, so everything before is older
+                    break;
+                }
+                result.add(version);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ids of the resources matching all clauses, ordered by sort (or by
+     * creation when sort is empty).
+     */
+    List<String> search(String resourceType, List<Clause> clauses, List<SortKey> sort) {
+        Map<String, SearchParameter> parameters = SearchParameter.forType(resourceType);
+        for (Clause clause : clauses) {
+            if (!clause.isBuiltIn() && !parameters.containsKey(clause.name)) {
+                throw new IllegalArgumentException("Unknown search parameter " + clause.name
+                        + " for " + resourceType);
+            }
+        }
+        for (SortKey key : sort) {
+            if (!key.isBuiltIn() && !parameters.containsKey(key.name)) {
+                throw new IllegalArgumentException("Unknown sort parameter " + key.name
+                        + " for " + resourceType);
+            }
+        }
+
+        lock.readLock().lock();
+        try {
+            TypeStore store = types.get(resourceType);
+            if (store == null) {
+                return List.of();
+            }
+
+            List<Set<String>> matches = new ArrayList<>();
+            for (Clause clause : clauses) {
+                matches.add(match(store, parameters.get(clause.name), clause));
+            }
+            matches.sort(Comparator.comparingInt(Set::size));
+
+            Collection<String> candidates = matches.isEmpty() ? store.live() : matches.get(0);
+            List<String> result = new ArrayList<>();
+            for (String id : candidates) {
+                boolean all = true;
+                for (int i = 1; i < matches.size() && all; i++) {
+                    all = matches.get(i).contains(id);
+                }
+                if (all) {
+                    result.add(id);
+                }
+            }
+
+            result.sort(comparator(store, sort));
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Ids the given reference parameter of a resource points at, as
+     * "Type/id", for _include.
+     */
+    List<String> references(Resource resource, String parameterName) {
+        SearchParameter parameter = SearchParameter.forType(resource.fhirType()).get(parameterName);
+        if (parameter == null || parameter.getType() != SearchParameter.Type.REFERENCE) {
+            throw new IllegalArgumentException("Can't _include " + resource.fhirType() + ":" + parameterName);
+        }
+        List<String> references = new ArrayList<>();
+        for (String key : parameter.keys(terser, resource)) {
+            if (key.indexOf('/') > 0) {
+                references.add(key);
+            }
+        }
+        return references;
+    }
+
+    int size(String resourceType) {
+        lock.readLock().lock();
+        try {
+            TypeStore store = types.get(resourceType);
+            return store == null ? 0 : store.live().size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Version put(TypeStore store, Resource resource, String id, String method) {
+        long now = timestamp();
+        Version previous = store.current.get(id);
+        long versionId = previous == null ? 1 : previous.versionId + 1;
+        long order = previous == null ? ++sequence : previous.sequence;
+
+        Resource stored = resource.copy();
+        stored.setIdElement(new IdType(resource.fhirType(), id, String.valueOf(versionId)));
+        stored.getMeta().setVersionId(String.valueOf(versionId));
+        stored.getMeta().setLastUpdated(new Date(now));
+
+        IParser parser = context.newJsonParser();
+        Version version = new Version(resource.fhirType(), id, versionId, now, stored,
+                parser.encodeResourceToString(stored), method, order);
+
+        if (previous != null) {
+            unindex(store, id);
+        }
+        record(store, version);
+        index(store, version);
+        return version;
+    }
+
+    private static void record(TypeStore store, Version version) {
+        store.current.put(version.id, version);
+        store.history.add(version);
+        store.versions.computeIfAbsent(version.id, k -> new ArrayList<>()).add(version);
+    }
+
+    private void index(TypeStore store, Version version) {
+        List<Runnable> undo = new ArrayList<>();
+        String id = version.id;
+
+        add(store.dates.computeIfAbsent("_lastUpdated", k -> new TreeMap<>()), version.lastUpdated, id, undo);
+
+        for (SearchParameter parameter : SearchParameter.forType(version.resourceType).values()) {
+            String name = parameter.getName();
+            switch (parameter.getType()) {
+                case DATE:
+                    List<Long> instants = parameter.instants(terser, version.resource);
+                    for (Long instant : instants) {
+                        add(store.dates.computeIfAbsent(name, k -> new TreeMap<>()), instant, id, undo);
+                    }
+                    if (!instants.isEmpty()) {
+                        Map<String, Comparable<?>> sortKeys = store.sortKeys.computeIfAbsent(name, k -> new HashMap<>());
+                        sortKeys.put(id, Collections.min(instants));
+                        undo.add(() -> sortKeys.remove(id));
+                    }
+                    break;
+                case STRING:
+                    List<String> keys = parameter.keys(terser, version.resource);
+                    for (String key : keys) {
+                        add(store.strings.computeIfAbsent(name, k -> new TreeMap<>()), key, id, undo);
+                    }
+                    for (String exact : parameter.exactValues(terser, version.resource)) {
+                        add(store.hashes.computeIfAbsent(name + ":exact", k -> new HashMap<>()), exact, id, undo);
+                    }
+                    if (!keys.isEmpty()) {
+                        Map<String, Comparable<?>> sortKeys = store.sortKeys.computeIfAbsent(name, k -> new HashMap<>());
+                        sortKeys.put(id, keys.get(0));
+                        undo.add(() -> sortKeys.remove(id));
+                    }
+                    break;
+                default:
+                    for (String key : parameter.keys(terser, version.resource)) {
+                        add(store.hashes.computeIfAbsent(name, k -> new HashMap<>()), key, id, undo);
+                    }
+            }
+        }
+        store.unindex.put(id, undo);
+    }
+
+    private static <K> void add(Map<K, Set<String>> index, K key, String id, List<Runnable> undo) {
+        Set<String> ids = index.computeIfAbsent(key, k -> new HashSet<>());
+        if (ids.add(id)) {
+            undo.add(() -> {
+                ids.remove(id);
+                if (ids.isEmpty()) {
+                    index.remove(key, ids);
+                }
+            });
+        }
+    }
+
+    private static void unindex(TypeStore store, String id) {
+        List<Runnable> undo = store.unindex.remove(id);
+        if (undo != null) {
+            undo.forEach(Runnable::run);
+        }
+    }
+
+    private Set<String> match(TypeStore store, SearchParameter parameter, Clause clause) {
+        Set<String> ids = new HashSet<>();
+        for (String value : clause.values) {
+            if ("_id".equals(clause.name)) {
+                Version version = store.current.get(value);
+                if (version != null && !version.isDeleted()) {
+                    ids.add(value);
+                }
+            } else if ("_lastUpdated".equals(clause.name)) {
+                matchDate(store.dates.get("_lastUpdated"), value, ids);
+            } else {
+                switch (parameter.getType()) {
+                    case DATE:
+                        matchDate(store.dates.get(clause.name), value, ids);
+                        break;
+                    case STRING:
+                        matchString(store, clause, value, ids);
+                        break;
+                    case REFERENCE:
+                        matchReference(store, clause, value, ids);
+                        break;
+                    default:
+                        if (clause.modifier != null) {
+                            throw new IllegalArgumentException("Unsupported modifier :" + clause.modifier);
+                        }
+                        addAll(ids, store.hashes.getOrDefault(clause.name, Map.of()).get(value));
+                }
+            }
+        }
+        return ids;
+    }
+
+    private static void matchString(TypeStore store, Clause clause, String value, Set<String> ids) {
+        if ("exact".equals(clause.modifier)) {
+            addAll(ids, store.hashes.getOrDefault(clause.name + ":exact", Map.of()).get(value));
+            return;
+        }
+        NavigableMap<String, Set<String>> index = store.strings.get(clause.name);
+        if (index == null) {
+            return;
+        }
+        String normalized = SearchParameter.normalize(value);
+        if ("contains".equals(clause.modifier)) {
+            for (Map.Entry<String, Set<String>> entry : index.entrySet()) {
+                if (entry.getKey().contains(normalized)) {
+                    ids.addAll(entry.getValue());
+                }
+            }
+        } else if (clause.modifier == null) {
+            for (Set<String> matching : index.subMap(normalized, true, normalized + Character.MAX_VALUE, true).values()) {
+                ids.addAll(matching);
+            }
+        } else {
+            throw new IllegalArgumentException("Unsupported modifier :" + clause.modifier);
+        }
+    }
+
+    private static void matchReference(TypeStore store, Clause clause, String value, Set<String> ids) {
+        // Accept "123", "Patient/123" and absolute URLs
+        IdType id = new IdType(value);
+        String key = id.hasResourceType() ? id.getResourceType() + "/" + id.getIdPart() : id.getIdPart();
+        if (clause.modifier != null) {
+            key = clause.modifier + "/" + id.getIdPart();
+        }
+        addAll(ids, store.hashes.getOrDefault(clause.name, Map.of()).get(key));
+    }
+
+    /**
+     * Add the ids whose instant matches a date value such as
+     * "ge2024-01-01" or "2024-01-01T10:00:00Z". A value covers its whole
+     * precision: "2024-01" is all of January.
+     */
+    private static void matchDate(NavigableMap<Long, Set<String>> index, String value, Set<String> ids) {
+        if (index == null) {
+            return;
+        }
+        String prefix = "eq";
+        if (value.length() > 2 && Character.isLetter(value.charAt(0))) {
+            prefix = value.substring(0, 2);
+            value = value.substring(2);
+        }
+
+        DateTimeType date = new DateTimeType(value);
+        long low = date.getValue().getTime();
+        long high = date.getPrecision().add(date.getValue(), 1).getTime();
+
+        Collection<Set<String>> matching;
+        switch (prefix) {
+            case "eq":
+                matching = index.subMap(low, true, high, false).values();
+                break;
+            case "ne":
+                matching = new ArrayList<>(index.headMap(low, false).values());
+                matching.addAll(index.tailMap(high, true).values());
+                break;
+            case "gt":
+            case "sa":
+                matching = index.tailMap(high, true).values();
+                break;
+            case "ge":
+                matching = index.tailMap(low, true).values();
+                break;
+            case "lt":
+            case "eb":
+                matching = index.headMap(low, false).values();
+                break;
+            case "le":
+                matching = index.headMap(high, false).values();
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported date prefix: " + prefix);
+        }
+        for (Set<String> set : matching) {
+            ids.addAll(set);
+        }
+    }
+
+    private static void addAll(Set<String> ids, Set<String> more) {
+        if (more != null) {
+            ids.addAll(more);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Comparator<String> comparator(TypeStore store, List<SortKey> sort) {
+        Comparator<String> comparator = null;
+        for (SortKey key : sort) {
+            Comparator<String> next;
+            if ("_id".equals(key.name)) {
+                next = Comparator.naturalOrder();
+            } else if ("_lastUpdated".equals(key.name)) {
+                next = Comparator.comparingLong(id -> store.current.get(id).lastUpdated);
+            } else {
+                Map<String, Comparable<?>> values = store.sortKeys.getOrDefault(key.name, Map.of());
+                // Resources without a value sort last either way
+                Comparator<Comparable> byValue = key.descending
+                        ? Comparator.<Comparable>naturalOrder().reversed()
+                        : Comparator.<Comparable>naturalOrder();
+                Comparator<String> byKey = Comparator.comparing(id -> (Comparable) values.get(id),
+                        Comparator.nullsLast(byValue));
+                comparator = comparator == null ? byKey : comparator.thenComparing(byKey);
+                continue;
+            }
+            if (key.descending) {
+                next = next.reversed();
+            }
+            comparator = comparator == null ? next : comparator.thenComparing(next);
+        }
+        Comparator<String> byCreation = Comparator.comparingLong(id -> store.current.get(id).sequence);
+        return comparator == null ? byCreation : comparator.thenComparing(byCreation);
+    }
+
+    /**
+     * Strictly increasing timestamps, so _since and _lastUpdated can tell
+     * writes in the same millisecond apart.
+     */
+    private long timestamp() {
+        lastTimestamp = Math.max(System.currentTimeMillis(), lastTimestamp + 1);
+        return lastTimestamp;
+    }
+
+    private TypeStore store(String resourceType) {
+        return types.computeIfAbsent(resourceType, t -> new TypeStore());
+    }
+
+    /**
+     * One parameter of a search: values are alternatives (a comma-separated
+     * list), clauses are combined with AND.
+     */
+    static final class Clause {
+
+        private final String name;
+        private final String modifier;
+        private final List<String> values;
+
+        Clause(String name, String modifier, List<String> values) {
+            this.name = name;
+            this.modifier = modifier;
+            this.values = values;
+        }
+
+        boolean isBuiltIn() {
+            return "_id".equals(name) || "_lastUpdated".equals(name);
+        }
+    }
+
+    static final class SortKey {
+
+        private final String name;
+        private final boolean descending;
+
+        SortKey(String name, boolean descending) {
+            this.name = name;
+            this.descending = descending;
+        }
+
+        boolean isBuiltIn() {
+            return "_id".equals(name) || "_lastUpdated".equals(name);
+        }
+    }
+
+    /**
+     * One version of a resource, or a delete marker (resource is null).
+     */
+    static final class Version {
+
+        final String resourceType;
+        final String id;
+        final long versionId;
+        final long lastUpdated;
+        final Resource resource;
+        final String json;
+        final String method;
+        private final long sequence;
+
+        Version(String resourceType, String id, long versionId, long lastUpdated, Resource resource, String json,
+                String method, long sequence) {
+            this.resourceType = resourceType;
+            this.id = id;
+            this.versionId = versionId;
+            this.lastUpdated = lastUpdated;
+            this.resource = resource;
+            this.json = json;
+            this.method = method;
+            this.sequence = sequence;
+        }
+
+        boolean isDeleted() {
+            return resource == null;
+        }
+    }
+
+    private static final class TypeStore {
+
+        private final Map<String, Version> current = new HashMap<>();
+        private final List<Version> history = new ArrayList<>();
+        private final Map<String, List<Version>> versions = new HashMap<>();
+        private final Map<String, Map<String, Set<String>>> hashes = new HashMap<>();
+        private final Map<String, NavigableMap<String, Set<String>>> strings = new HashMap<>();
+        private final Map<String, NavigableMap<Long, Set<String>>> dates = new HashMap<>();
+        private final Map<String, Map<String, Comparable<?>>> sortKeys = new HashMap<>();
+        private final Map<String, List<Runnable>> unindex = new HashMap<>();
+
+        /**
+         * Ids of the resources that aren't deleted.
+         */
+        Collection<String> live() {
+            // Indexed exactly when not deleted
+            return unindex.keySet();
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package com.github.cm2027.lab3.fhirserver;
+
+import ca.uhn.fhir.util.FhirTerser;
+import org.hl7.fhir.instance.model.api.IBase;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.hl7.fhir.r4.model.BaseDateTimeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A search parameter the in-memory server supports, with the element
+ * paths its values are read from and how they are turned into index keys.
+ *
+ * Only the parameters the repositories and tests use are defined; see
+ * forType. _id and _lastUpdated are handled by the store itself.
+ */
+final class SearchParameter {
+
+    enum Type {
+        TOKEN, REFERENCE, STRING, DATE
+    }
+
+    private static final Map<String, Map<String, SearchParameter>> REGISTRY = new HashMap<>();
+
+    static {
+        for (String type : List.of("Patient", "Practitioner", "Appointment", "Communication",
+                "Condition", "Observation", "Encounter")) {
+            define(type, "identifier", Type.TOKEN, null, type + ".identifier");
+        }
+
+        define("Patient", "family", Type.STRING, null, "Patient.name.family");
+        define("Patient", "given", Type.STRING, null, "Patient.name.given");
+        define("Patient", "gender", Type.TOKEN, null, "Patient.gender");
+        define("Patient", "birthdate", Type.DATE, null, "Patient.birthDate");
+        define("Patient", "general-practitioner", Type.REFERENCE, null, "Patient.generalPractitioner");
+
+        define("Practitioner", "family", Type.STRING, null, "Practitioner.name.family");
+        define("Practitioner", "given", Type.STRING, null, "Practitioner.name.given");
+
+        define("Appointment", "patient", Type.REFERENCE, "Patient", "Appointment.participant.actor");
+        define("Appointment", "practitioner", Type.REFERENCE, "Practitioner", "Appointment.participant.actor");
+        define("Appointment", "actor", Type.REFERENCE, null, "Appointment.participant.actor");
+        define("Appointment", "date", Type.DATE, null, "Appointment.start");
+        define("Appointment", "status", Type.TOKEN, null, "Appointment.status");
+
+        define("Communication", "sender", Type.REFERENCE, null, "Communication.sender");
+        define("Communication", "recipient", Type.REFERENCE, null, "Communication.recipient");
+        define("Communication", "subject", Type.REFERENCE, null, "Communication.subject");
+        define("Communication", "patient", Type.REFERENCE, "Patient", "Communication.subject");
+        define("Communication", "sent", Type.DATE, null, "Communication.sent");
+
+        define("Condition", "subject", Type.REFERENCE, null, "Condition.subject");
+        define("Condition", "patient", Type.REFERENCE, "Patient", "Condition.subject");
+        define("Condition", "code", Type.TOKEN, null, "Condition.code");
+
+        define("Observation", "subject", Type.REFERENCE, null, "Observation.subject");
+        define("Observation", "patient", Type.REFERENCE, "Patient", "Observation.subject");
+        define("Observation", "code", Type.TOKEN, null, "Observation.code");
+        define("Observation", "date", Type.DATE, null, "Observation.effective");
+
+        define("Encounter", "subject", Type.REFERENCE, null, "Encounter.subject");
+        define("Encounter", "patient", Type.REFERENCE, "Patient", "Encounter.subject");
+        define("Encounter", "date", Type.DATE, null, "Encounter.period.start");
+    }
+
+    private final String name;
+    private final Type type;
+    private final String targetType;
+    private final List<String> paths;
+
+    private SearchParameter(String name, Type type, String targetType, List<String> paths) {
+        this.name = name;
+        this.type = type;
+        this.targetType = targetType;
+        this.paths = paths;
+    }
+
+    private static void define(String resourceType, String name, Type type, String targetType, String... paths) {
+        REGISTRY.computeIfAbsent(resourceType, t -> new LinkedHashMap<>())
+                .put(name, new SearchParameter(name, type, targetType, List.of(paths)));
+    }
+
+    /**
+     * The parameters defined for a resource type, by name. Empty for
+     * types without any.
+     */
+    static Map<String, SearchParameter> forType(String resourceType) {
+        return REGISTRY.getOrDefault(resourceType, Collections.emptyMap());
+    }
+
+    String getName() {
+        return name;
+    }
+
+    Type getType() {
+        return type;
+    }
+
+    /**
+     * Index keys for a TOKEN, REFERENCE or STRING parameter.
+     *
+     * Tokens give "system|code", "code" and "system|" (or "|code" when
+     * there is no system). References give "Type/id" and "id". Strings
+     * give their normalized form, see normalize.
+     */
+    List<String> keys(FhirTerser terser, Resource resource) {
+        List<String> keys = new ArrayList<>();
+        for (IBase value : values(terser, resource)) {
+            if (value instanceof Identifier) {
+                Identifier identifier = (Identifier) value;
+                addToken(keys, identifier.getSystem(), identifier.getValue());
+            } else if (value instanceof CodeableConcept) {
+                for (Coding coding : ((CodeableConcept) value).getCoding()) {
+                    addToken(keys, coding.getSystem(), coding.getCode());
+                }
+            } else if (value instanceof Coding) {
+                addToken(keys, ((Coding) value).getSystem(), ((Coding) value).getCode());
+            } else if (value instanceof Reference) {
+                addReference(keys, (Reference) value);
+            } else if (value instanceof IPrimitiveType && ((IPrimitiveType<?>) value).getValueAsString() != null) {
+                String text = ((IPrimitiveType<?>) value).getValueAsString();
+                if (type == Type.STRING) {
+                    keys.add(normalize(text));
+                } else {
+                    addToken(keys, null, text);
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Instants (epoch millis) for a DATE parameter.
+     */
+    List<Long> instants(FhirTerser terser, Resource resource) {
+        List<Long> instants = new ArrayList<>();
+        for (IBase value : values(terser, resource)) {
+            if (value instanceof BaseDateTimeType && ((BaseDateTimeType) value).getValue() != null) {
+                instants.add(((BaseDateTimeType) value).getValue().getTime());
+            }
+        }
+        return instants;
+    }
+
+    /**
+     * Exact values of a STRING parameter, for the :exact modifier.
+     */
+    List<String> exactValues(FhirTerser terser, Resource resource) {
+        List<String> exact = new ArrayList<>();
+        for (IBase value : values(terser, resource)) {
+            if (value instanceof IPrimitiveType && ((IPrimitiveType<?>) value).getValueAsString() != null) {
+                exact.add(((IPrimitiveType<?>) value).getValueAsString());
+            }
+        }
+        return exact;
+    }
+
+    private List<IBase> values(FhirTerser terser, Resource resource) {
+        List<IBase> values = new ArrayList<>();
+        for (String path : paths) {
+            values.addAll(terser.getValues(resource, path));
+        }
+        return values;
+    }
+
+    private void addReference(List<String> keys, Reference reference) {
+        if (!reference.hasReference()) {
+            return;
+        }
+        IdType id = new IdType(reference.getReference());
+        if (!id.hasIdPart() || (targetType != null && !targetType.equals(id.getResourceType()))) {
+            return;
+        }
+        if (id.hasResourceType()) {
+            keys.add(id.getResourceType() + "/" + id.getIdPart());
+        }
+        keys.add(id.getIdPart());
+    }
+
+    private static void addToken(List<String> keys, String system, String code) {
+        if (code != null) {
+            keys.add(code);
+            keys.add((system == null ? "" : system) + "|" + code);
+        }
+        if (system != null) {
+            keys.add(system + "|");
+        }
+    }
+
+    /**
+     * Case- and accent-insensitive form of a string, as FHIR string search
+     * asks for: "Åsa" and "asa" match each other.
+     */
+    static String normalize(String text) {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+        return decomposed.replaceAll("\\p{M}", "").toLowerCase(Locale.ROOT);
+    }
+}
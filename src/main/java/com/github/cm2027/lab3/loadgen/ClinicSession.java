@@ -0,0 +1,135 @@
+package com.github.cm2027.lab3.loadgen;
+
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.service.AuthService;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * One simulated user: logs in, then performs operations picked from the
+ * role's WorkloadMix until the run ends, pausing between them for an
+ * exponentially distributed think time.
+ *
+ * Each operation makes the same repository calls as the matching CLI menu
+ * entry, so the load has the same shape as real sessions.
+ */
+class ClinicSession implements Runnable {
+
+    private final LoadGenerator generator;
+    private final User user;
+    private final WorkloadMix mix;
+    private final AuthService authService;
+
+    ClinicSession(LoadGenerator generator, User user) {
+        this.generator = generator;
+        this.user = user;
+        this.mix = user.getRole() == User.Role.DOCTOR ? generator.getDoctorMix() : generator.getPatientMix();
+        this.authService = new AuthService();
+    }
+
+    @Override
+    public void run() {
+        Random random = ThreadLocalRandom.current();
+        try {
+            if (generator.isLoginEnabled()) {
+                Boolean loggedIn = timed(Operation.LOGIN, () -> {
+                    if (!authService.login(user.getUsername(), user.getPassword())) {
+                        throw new IllegalArgumentException("Login failed for " + user.getUsername());
+                    }
+                    return true;
+                });
+                if (loggedIn == null) {
+                    return;
+                }
+            }
+            while (!generator.isFinished()) {
+                think(random);
+                if (generator.isFinished()) {
+                    break;
+                }
+                Operation operation = mix.next(random);
+                timed(operation, () -> perform(operation, random));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            authService.logout();
+        }
+    }
+
+    private Object perform(Operation operation, Random random) throws Exception {
+        boolean doctor = user.getRole() == User.Role.DOCTOR;
+        String personRef = user.getPersonRef();
+        int pageSize = generator.getPageSize();
+
+        switch (operation) {
+            case VIEW_SUMMARY:
+                return doctor
+                        ? generator.getPractitionerRepo().getPractitionerSummary(personRef)
+                        : generator.getPatientRepo().getPatientSummary(personRef);
+            case LIST_APPOINTMENTS:
+                return doctor
+                        ? generator.getAppointmentRepo().pageSummariesByPractitioner(personRef, pageSize).next()
+                        : generator.getAppointmentRepo().pageSummariesByPatient(personRef, pageSize).next();
+            case LIST_MESSAGES:
+                return generator.getCommunicationRepo().pageMyMessages(
+                        doctor ? null : personRef, doctor ? personRef : null, pageSize,
+                        CommunicationFhirRepository.MESSAGE_ELEMENTS).next();
+            case VIEW_AVAILABILITY:
+                return generator.getAppointmentRepo().getFreeBusy(
+                        doctor ? personRef : pick(generator.getDoctors(), random).getPersonRef(),
+                        LocalDate.now(), LocalDate.now().plusDays(6));
+            case CREATE_OBSERVATION:
+                String patientPN = doctor ? pick(generator.getPatients(), random).getPersonRef() : personRef;
+                return generator.getObservationRepo().createObservation(generator.nextId("OBS"), patientPN,
+                        LocalDateTime.now(), "Load test observation");
+            case SEND_MESSAGE:
+                if (doctor) {
+                    return generator.getCommunicationRepo().sendMessage(generator.nextId("MSG"), null, personRef,
+                            pick(generator.getPatients(), random).getPersonRef(), null, "Load test message");
+                }
+                return generator.getCommunicationRepo().sendMessage(generator.nextId("MSG"), personRef, null,
+                        null, pick(generator.getDoctors(), random).getPersonRef(), "Load test message");
+            default:
+                throw new IllegalArgumentException("Not a session operation: " + operation);
+        }
+    }
+
+    private <T> T timed(Operation operation, Action<T> action) {
+        long start = System.nanoTime();
+        try {
+            T result = action.run();
+            generator.getReport().record(operation, System.nanoTime() - start);
+            return result;
+        } catch (Exception e) {
+            generator.getReport().recordError(operation);
+            generator.logError(operation, e);
+            return null;
+        }
+    }
+
+    private void think(Random random) throws InterruptedException {
+        long mean = generator.getThinkMillis();
+        if (mean > 0) {
+            long pause = (long) (-mean * Math.log(1 - random.nextDouble()));
+            Thread.sleep(Math.min(pause, mean * 10));
+        }
+    }
+
+    private static User pick(List<User> users, Random random) {
+        if (users.isEmpty()) {
+            throw new IllegalArgumentException("No users to pick from");
+        }
+        return users.get(random.nextInt(users.size()));
+    }
+
+    @FunctionalInterface
+    private interface Action<T> {
+        T run() throws Exception;
+    }
+}
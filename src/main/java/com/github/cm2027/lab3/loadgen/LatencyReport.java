@@ -0,0 +1,110 @@
+package com.github.cm2027.lab3.loadgen;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and error counts per operation, recorded from many sessions at
+ * once.
+ *
+ * Each operation has an HdrHistogram Recorder, which sessions write to
+ * without locking. printInterval swaps out what was recorded since the
+ * last call, prints it and adds it to the run totals that printSummary
+ * reports.
+ */
+public class LatencyReport {
+
+    private static final long HIGHEST_TRACKABLE_NANOS = TimeUnit.MINUTES.toNanos(2);
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> totals = new EnumMap<>(Operation.class);
+    private final Map<Operation, AtomicLong> errors = new EnumMap<>(Operation.class);
+    private final Map<Operation, Histogram> intervals = new EnumMap<>(Operation.class);
+
+    public LatencyReport() {
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS));
+            totals.put(operation, new Histogram(HIGHEST_TRACKABLE_NANOS, SIGNIFICANT_DIGITS));
+            errors.put(operation, new AtomicLong());
+        }
+    }
+
+    public void record(Operation operation, long nanos) {
+        recorders.get(operation).recordValue(Math.min(nanos, HIGHEST_TRACKABLE_NANOS));
+    }
+
+    public void recordError(Operation operation) {
+        errors.get(operation).incrementAndGet();
+    }
+
+    /**
+     * Print throughput and latency for what was recorded since the last
+     * call.
+     */
+    public synchronized void printInterval(PrintStream out, long elapsedMillis, long intervalMillis) {
+        out.printf("--- %ds ---%n", elapsedMillis / 1000);
+        for (Operation operation : Operation.values()) {
+            Histogram interval = recorders.get(operation).getIntervalHistogram(intervals.get(operation));
+            intervals.put(operation, interval);
+            totals.get(operation).add(interval);
+            if (interval.getTotalCount() > 0) {
+                out.printf("%-20s %8.1f ops/s  p50 %8.1f ms  p99 %8.1f ms%n",
+                        operation.getLabel(),
+                        interval.getTotalCount() * 1000.0 / Math.max(1, intervalMillis),
+                        millis(interval.getValueAtPercentile(50)),
+                        millis(interval.getValueAtPercentile(99)));
+            }
+        }
+    }
+
+    /**
+     * Print totals for the whole run. Call printInterval once more first so
+     * nothing recorded is left out.
+     */
+    public synchronized void printSummary(PrintStream out, long elapsedMillis) {
+        out.println();
+        out.printf("%-20s %9s %9s %9s %9s %9s %9s %9s %9s%n",
+                "operation", "count", "errors", "ops/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        long allCount = 0;
+        long allErrors = 0;
+        for (Operation operation : Operation.values()) {
+            Histogram total = totals.get(operation);
+            long errorCount = errors.get(operation).get();
+            if (total.getTotalCount() == 0 && errorCount == 0) {
+                continue;
+            }
+            allCount += total.getTotalCount();
+            allErrors += errorCount;
+            out.printf("%-20s %9d %9d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n",
+                    operation.getLabel(),
+                    total.getTotalCount(),
+                    errorCount,
+                    total.getTotalCount() * 1000.0 / Math.max(1, elapsedMillis),
+                    millis(total.getValueAtPercentile(50)),
+                    millis(total.getValueAtPercentile(90)),
+                    millis(total.getValueAtPercentile(99)),
+                    millis(total.getValueAtPercentile(99.9)),
+                    millis(total.getMaxValue()));
+        }
+        out.printf("%-20s %9d %9d %9.1f%n", "all", allCount, allErrors, allCount * 1000.0 / Math.max(1, elapsedMillis));
+    }
+
+    public long getCount(Operation operation) {
+        return totals.get(operation).getTotalCount();
+    }
+
+    public long getErrors(Operation operation) {
+        return errors.get(operation).get();
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1_000_000.0;
+    }
+}
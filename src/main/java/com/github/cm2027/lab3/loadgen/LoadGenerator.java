@@ -0,0 +1,324 @@
+package com.github.cm2027.lab3.loadgen;
+
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.ObservationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.dao.mongodb.UserRepository;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays doctor and patient sessions against the FHIR server (and MongoDB
+ * for logins) from many virtual threads at once, and reports throughput
+ * and latency percentiles per operation.
+ *
+ * Usage: LoadGenerator [--option=value ...]
+ *
+ *   --sessions=200            concurrent sessions
+ *   --duration-s=60           length of the run, after ramp-up
+ *   --ramp-up-s=10            time over which sessions are started
+ *   --think-ms=2000           mean pause between a session's operations
+ *   --doctor-ratio=0.2        share of sessions that are doctors
+ *   --doctor-mix=...          operation weights for doctors, see WorkloadMix
+ *   --patient-mix=...         operation weights for patients
+ *   --users=mongo|fhir        log in as the users in MongoDB, or skip login
+ *                             and act as patients and practitioners found
+ *                             on the FHIR server
+ *   --fhir=URL|embedded       FHIR base URL; embedded starts an
+ *                             InMemoryFhirServer, seeded from --seed=file
+ *   --allow-writes=false      allow creating observations, messages and
+ *                             practitioners on a server that isn't embedded
+ *
+ * Writes are left behind on the server, so against anything but the
+ * embedded server a run that would write refuses to start unless
+ * --allow-writes=true is given.
+ *
+ * Every option can also be set as loadgen.<option> in
+ * application.properties.
+ */
+public class LoadGenerator {
+
+    private static final String PREFIX = "loadgen.";
+    private static final String DEFAULT_DOCTOR_MIX =
+            "list-appointments=40,view-availability=15,list-messages=20,create-observation=15,send-message=10";
+    private static final String DEFAULT_PATIENT_MIX =
+            "view-summary=25,list-appointments=30,list-messages=30,send-message=15";
+    private static final int MAX_LOGGED_ERRORS = 20;
+
+    private final LatencyReport report = new LatencyReport();
+    private final PatientFhirRepository patientRepo = new PatientFhirRepository();
+    private final PractitionerFhirRepository practitionerRepo = new PractitionerFhirRepository();
+    private final AppointmentFhirRepository appointmentRepo = new AppointmentFhirRepository();
+    private final ObservationFhirRepository observationRepo = new ObservationFhirRepository();
+    private final CommunicationFhirRepository communicationRepo = new CommunicationFhirRepository();
+    private final String runId = Long.toString(System.currentTimeMillis() % 1_000_000, 36).toUpperCase();
+    private final AtomicLong ids = new AtomicLong();
+    private final AtomicInteger loggedErrors = new AtomicInteger();
+
+    private final WorkloadMix doctorMix;
+    private final WorkloadMix patientMix;
+    private final long thinkMillis;
+    private final int pageSize;
+    private final boolean loginEnabled;
+    private final boolean writesAllowed;
+    private final List<User> doctors = new ArrayList<>();
+    private final List<User> patients = new ArrayList<>();
+    private volatile boolean finished;
+
+    public LoadGenerator() {
+        this.doctorMix = WorkloadMix.parse(option("doctor-mix", DEFAULT_DOCTOR_MIX));
+        this.patientMix = WorkloadMix.parse(option("patient-mix", DEFAULT_PATIENT_MIX));
+        this.thinkMillis = ConfigurationUtil.getInt(PREFIX + "think-ms", 2000);
+        this.pageSize = Math.max(1, ConfigurationUtil.getInt("cli.page-size", 10));
+        this.loginEnabled = !"fhir".equals(option("users", "mongo"));
+        this.writesAllowed = "embedded".equals(ConfigurationUtil.getString("hapi.fhir.base-url", null))
+                || ConfigurationUtil.getBoolean(PREFIX + "allow-writes", false);
+    }
+
+    public static void main(String[] args) {
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --option=value but got: " + arg);
+            }
+            String key = arg.substring(2, arg.indexOf('='));
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if ("fhir".equals(key)) {
+                ConfigurationUtil.set("hapi.fhir.base-url", value);
+            } else if ("seed".equals(key)) {
+                ConfigurationUtil.set("fhir.embedded.seed", value);
+            } else {
+                ConfigurationUtil.set(PREFIX + key, value);
+            }
+        }
+
+        try {
+            new LoadGenerator().run();
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            MongoConfig.close();
+        }
+    }
+
+    /**
+     * Load the users, run the sessions and print the report.
+     */
+    public void run() throws Exception {
+        int sessions = ConfigurationUtil.getInt(PREFIX + "sessions", 200);
+        long rampUpMillis = ConfigurationUtil.getInt(PREFIX + "ramp-up-s", 10) * 1000L;
+        long durationMillis = ConfigurationUtil.getInt(PREFIX + "duration-s", 60) * 1000L;
+        long reportMillis = ConfigurationUtil.getInt(PREFIX + "report-interval-s", 10) * 1000L;
+        double doctorRatio = Double.parseDouble(option("doctor-ratio", "0.2"));
+
+        System.out.println("=== Load generator ===");
+        System.out.println("FHIR server: " + ClientSingleton.getInstance().getServerBase());
+        if (!writesAllowed && (hasWrites(doctorMix) || hasWrites(patientMix))) {
+            throw new IllegalArgumentException("The workload mixes create resources on a shared FHIR server; "
+                    + "pass --allow-writes=true, use --fhir=embedded, or leave "
+                    + Operation.CREATE_OBSERVATION.getLabel() + " and " + Operation.SEND_MESSAGE.getLabel()
+                    + " out of the mixes");
+        }
+        loadUsers();
+        System.out.println("Users: " + doctors.size() + " doctors, " + patients.size() + " patients"
+                + (loginEnabled ? "" : " (login skipped)"));
+        if (doctors.isEmpty() || patients.isEmpty()) {
+            throw new IllegalArgumentException("Need at least one doctor and one patient to run sessions");
+        }
+        int doctorSessions = (int) Math.round(sessions * doctorRatio);
+        System.out.println("Sessions: " + sessions + " (" + doctorSessions + " doctors), think time "
+                + thinkMillis + " ms, ramp-up " + rampUpMillis / 1000 + " s, duration " + durationMillis / 1000 + " s");
+        System.out.println("Doctor mix:  " + doctorMix);
+        System.out.println("Patient mix: " + patientMix);
+
+        ExecutorService executor = VirtualThreads.newPerTaskExecutor("loadgen");
+        long start = System.currentTimeMillis();
+        long end = start + rampUpMillis + durationMillis;
+        long nextReport = start + reportMillis;
+        long lastReport = start;
+
+        for (int i = 0; i < sessions; i++) {
+            User user = i < doctorSessions
+                    ? doctors.get(i % doctors.size())
+                    : patients.get((i - doctorSessions) % patients.size());
+            executor.submit(new ClinicSession(this, user));
+
+            long due = start + rampUpMillis * (i + 1) / sessions;
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                report.printInterval(System.out, now - start, now - lastReport);
+                lastReport = now;
+                nextReport = now + reportMillis;
+            }
+            if (due > now) {
+                Thread.sleep(due - now);
+            }
+        }
+
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(Math.max(1, Math.min(nextReport, end) - System.currentTimeMillis()));
+            long now = System.currentTimeMillis();
+            if (now >= nextReport) {
+                report.printInterval(System.out, now - start, now - lastReport);
+                lastReport = now;
+                nextReport = now + reportMillis;
+            }
+        }
+
+        finished = true;
+        executor.shutdown();
+        if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+            System.err.println("Some sessions were still running after 30 s");
+            executor.shutdownNow();
+        }
+
+        long now = System.currentTimeMillis();
+        report.printInterval(System.out, now - start, now - lastReport);
+        report.printSummary(System.out, now - start);
+    }
+
+    private void loadUsers() throws Exception {
+        if (loginEnabled) {
+            for (User user : new UserRepository().findAll()) {
+                if (user.getPersonRef() == null || user.getPassword() == null) {
+                    continue;
+                }
+                if (user.getRole() == User.Role.DOCTOR) {
+                    doctors.add(user);
+                } else if (user.getRole() == User.Role.PATIENT) {
+                    patients.add(user);
+                }
+            }
+            return;
+        }
+
+        int limit = ConfigurationUtil.getInt(PREFIX + "fhir-users", 500);
+        Bundle patientBundle = ClientSingleton.getInstance().search().forResource(Patient.class)
+                .count(limit).returnBundle(Bundle.class).execute();
+        for (Bundle.BundleEntryComponent entry : patientBundle.getEntry()) {
+            String pn = patientRepo.getPatientPN((Patient) entry.getResource());
+            if (!"N/A".equals(pn)) {
+                patients.add(new User(pn, null, User.Role.PATIENT, pn));
+            }
+        }
+
+        Bundle practitionerBundle = ClientSingleton.getInstance().search().forResource(Practitioner.class)
+                .count(limit).returnBundle(Bundle.class).execute();
+        for (Bundle.BundleEntryComponent entry : practitionerBundle.getEntry()) {
+            String doctorID = practitionerRepo.getDoctorID((Practitioner) entry.getResource());
+            if (!"N/A".equals(doctorID)) {
+                doctors.add(new User(doctorID, null, User.Role.DOCTOR, doctorID));
+            }
+        }
+        if (doctors.isEmpty()) {
+            if (!writesAllowed) {
+                throw new IllegalArgumentException("No practitioners on the FHIR server; "
+                        + "pass --allow-writes=true to create some, or use --fhir=embedded");
+            }
+            int count = ConfigurationUtil.getInt(PREFIX + "doctors", 5);
+            for (int i = 1; i <= count; i++) {
+                String doctorID = "LOAD-D-" + runId + "-" + i;
+                practitionerRepo.createPractitioner(doctorID, "Load", "Doctor " + i, null);
+                doctors.add(new User(doctorID, null, User.Role.DOCTOR, doctorID));
+            }
+        }
+    }
+
+    private static boolean hasWrites(WorkloadMix mix) {
+        for (Operation operation : mix.getOperations()) {
+            if (operation.isWrite()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String option(String name, String defaultValue) {
+        return ConfigurationUtil.getString(PREFIX + name, defaultValue);
+    }
+
+    void logError(Operation operation, Exception e) {
+        int logged = loggedErrors.incrementAndGet();
+        if (logged <= MAX_LOGGED_ERRORS) {
+            System.err.println(operation.getLabel() + " failed: " + e);
+        } else if (logged == MAX_LOGGED_ERRORS + 1) {
+            System.err.println("Further errors are counted but not printed");
+        }
+    }
+
+    String nextId(String prefix) {
+        return prefix + "-LOAD-" + runId + "-" + ids.incrementAndGet();
+    }
+
+    boolean isFinished() {
+        return finished;
+    }
+
+    boolean isLoginEnabled() {
+        return loginEnabled;
+    }
+
+    long getThinkMillis() {
+        return thinkMillis;
+    }
+
+    int getPageSize() {
+        return pageSize;
+    }
+
+    WorkloadMix getDoctorMix() {
+        return doctorMix;
+    }
+
+    WorkloadMix getPatientMix() {
+        return patientMix;
+    }
+
+    List<User> getDoctors() {
+        return Collections.unmodifiableList(doctors);
+    }
+
+    List<User> getPatients() {
+        return Collections.unmodifiableList(patients);
+    }
+
+    LatencyReport getReport() {
+        return report;
+    }
+
+    PatientFhirRepository getPatientRepo() {
+        return patientRepo;
+    }
+
+    PractitionerFhirRepository getPractitionerRepo() {
+        return practitionerRepo;
+    }
+
+    AppointmentFhirRepository getAppointmentRepo() {
+        return appointmentRepo;
+    }
+
+    ObservationFhirRepository getObservationRepo() {
+        return observationRepo;
+    }
+
+    CommunicationFhirRepository getCommunicationRepo() {
+        return communicationRepo;
+    }
+}
@@ -0,0 +1,43 @@
+package com.github.cm2027.lab3.loadgen;
+
+/**
+ * The user actions a load-test session performs, named after the menu
+ * entries they stand for.
+ */
+public enum Operation {
+    LOGIN("login", false),
+    VIEW_SUMMARY("view-summary", false),
+    LIST_APPOINTMENTS("list-appointments", false),
+    LIST_MESSAGES("list-messages", false),
+    VIEW_AVAILABILITY("view-availability", false),
+    CREATE_OBSERVATION("create-observation", true),
+    SEND_MESSAGE("send-message", true);
+
+    private final String label;
+    private final boolean write;
+
+    Operation(String label, boolean write) {
+        this.label = label;
+        this.write = write;
+    }
+
+    public String getLabel() {
+        return label;
+    }
+
+    /**
+     * True if the operation creates resources on the FHIR server.
+     */
+    public boolean isWrite() {
+        return write;
+    }
+
+    public static Operation fromLabel(String label) {
+        for (Operation operation : values()) {
+            if (operation.label.equals(label)) {
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation: " + label);
+    }
+}
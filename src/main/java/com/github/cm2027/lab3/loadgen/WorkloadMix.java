@@ -0,0 +1,82 @@
+package com.github.cm2027.lab3.loadgen;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Relative weights of the operations one kind of session performs, e.g.
+ * "list-appointments=50,list-messages=30,send-message=20".
+ */
+public class WorkloadMix {
+
+    private final List<Operation> operations = new ArrayList<>();
+    private final int[] cumulative;
+    private final int total;
+
+    private WorkloadMix(Map<Operation, Integer> weights) {
+        int sum = 0;
+        List<Integer> bounds = new ArrayList<>();
+        for (Map.Entry<Operation, Integer> weight : weights.entrySet()) {
+            if (weight.getValue() > 0) {
+                sum += weight.getValue();
+                operations.add(weight.getKey());
+                bounds.add(sum);
+            }
+        }
+        if (sum == 0) {
+            throw new IllegalArgumentException("Workload mix has no operations with a positive weight");
+        }
+        this.total = sum;
+        this.cumulative = bounds.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    public static WorkloadMix parse(String spec) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        for (String part : spec.split(",")) {
+            if (part.isBlank()) {
+                continue;
+            }
+            String[] pair = part.trim().split("=");
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected operation=weight but got: " + part);
+            }
+            weights.put(Operation.fromLabel(pair[0].trim()), Integer.parseInt(pair[1].trim()));
+        }
+        return new WorkloadMix(weights);
+    }
+
+    /**
+     * Pick an operation with probability proportional to its weight.
+     */
+    public Operation next(Random random) {
+        int point = random.nextInt(total);
+        int index = 0;
+        while (cumulative[index] <= point) {
+            index++;
+        }
+        return operations.get(index);
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder();
+        int previous = 0;
+        for (int i = 0; i < operations.size(); i++) {
+            if (i > 0) {
+                text.append(", ");
+            }
+            text.append(operations.get(i).getLabel()).append(' ')
+                    .append(Math.round(100.0 * (cumulative[i] - previous) / total)).append('%');
+            previous = cumulative[i];
+        }
+        return text.toString();
+    }
+}
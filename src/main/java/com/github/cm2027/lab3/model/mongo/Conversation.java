@@ -0,0 +1,43 @@
+package com.github.cm2027.lab3.model.mongo;
+
+import java.util.Date;
+
+/**
+ * One row of a person's inbox: their conversation with one other person,
+ * with the latest message and how many messages they haven't read.
+ * Participants are FHIR references such as "Patient/123".
+ */
+public class Conversation {
+    private String owner;
+    private String peer;
+    private Date lastSentAt;
+    private String lastText;
+    private String lastSender;
+    private String lastCommunicationId;
+    private int unread;
+
+    // Getters
+    public String getOwner() {return owner;}
+    public String getPeer() {return peer;}
+    public Date getLastSentAt() {return lastSentAt;}
+    public String getLastText() {return lastText;}
+    public String getLastSender() {return lastSender;}
+    public String getLastCommunicationId() {return lastCommunicationId;}
+    public int getUnread() {return unread;}
+
+    // Setters
+    public void setOwner(String owner) {this.owner = owner;}
+    public void setPeer(String peer) {this.peer = peer;}
+    public void setLastSentAt(Date lastSentAt) {this.lastSentAt = lastSentAt;}
+    public void setLastText(String lastText) {this.lastText = lastText;}
+    public void setLastSender(String lastSender) {this.lastSender = lastSender;}
+    public void setLastCommunicationId(String lastCommunicationId) {this.lastCommunicationId = lastCommunicationId;}
+    public void setUnread(int unread) {this.unread = unread;}
+
+    // To String
+    @Override
+    public String toString() {
+        return String.format("Conversation{owner='%s', peer='%s', lastSentAt=%s, unread=%d}",
+                owner, peer, lastSentAt, unread);
+    }
+}
@@ -0,0 +1,39 @@
+package com.github.cm2027.lab3.model.mongo;
+
+import java.util.Date;
+
+/**
+ * A message as stored in the conversation index, keyed by the
+ * Communication's clinic ID. Sender and recipient are FHIR references.
+ */
+public class ConversationMessage {
+    private String communicationId;
+    private String fhirId;
+    private String sender;
+    private String recipient;
+    private Date sentAt;
+    private String text;
+
+    // Getters
+    public String getCommunicationId() {return communicationId;}
+    public String getFhirId() {return fhirId;}
+    public String getSender() {return sender;}
+    public String getRecipient() {return recipient;}
+    public Date getSentAt() {return sentAt;}
+    public String getText() {return text;}
+
+    // Setters
+    public void setCommunicationId(String communicationId) {this.communicationId = communicationId;}
+    public void setFhirId(String fhirId) {this.fhirId = fhirId;}
+    public void setSender(String sender) {this.sender = sender;}
+    public void setRecipient(String recipient) {this.recipient = recipient;}
+    public void setSentAt(Date sentAt) {this.sentAt = sentAt;}
+    public void setText(String text) {this.text = text;}
+
+    // To String
+    @Override
+    public String toString() {
+        return String.format("ConversationMessage{id='%s', sender='%s', recipient='%s', sentAt=%s}",
+                communicationId, sender, recipient, sentAt);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.cm2027.lab3.model.mongo;
+
+import org.bson.types.ObjectId;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * A file stored in the message_attachments GridFS bucket. Messages refer
+ * to it by ID; the content is only read through AttachmentRepository.
+ */
+public class MessageAttachment {
+    private ObjectId id;
+    private String filename;
+    private String contentType;
+    private long length;
+    private int chunkSize;
+    private String sha1;
+    private Date uploadDate;
+    private String owner;
+    private String communicationId;
+    private List<String> participants = new ArrayList<>();
+
+    // Getters
+    public ObjectId getId() {return id;}
+    public String getFilename() {return filename;}
+    public String getContentType() {return contentType;}
+    public long getLength() {return length;}
+    public int getChunkSize() {return chunkSize;}
+    /** Base64 SHA-1 of the content, as in a FHIR Attachment's hash */
+    public String getSha1() {return sha1;}
+    public Date getUploadDate() {return uploadDate;}
+    /** Username of the uploader */
+    public String getOwner() {return owner;}
+    /** The message the attachment was sent with, or null if not sent yet */
+    public String getCommunicationId() {return communicationId;}
+    /** FHIR references of the sender and recipient of that message */
+    public List<String> getParticipants() {return participants;}
+
+    /**
+     * The filename without directories or control characters, to save a
+     * download under. The uploader chose the name, so "../.bashrc" must
+     * not leave the download directory. "attachment-ID" if nothing is left.
+     */
+    public String getSafeFilename() {
+        String name = filename == null ? "" : filename;
+        name = name.substring(Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\')) + 1)
+                .replaceAll("\\p{Cntrl}", "").trim();
+        if (name.isEmpty() || name.equals(".") || name.equals("..")) {
+            return "attachment-" + id;
+        }
+        return name;
+    }
+
+    // Setters
+    public void setId(ObjectId id) {this.id = id;}
+    public void setFilename(String filename) {this.filename = filename;}
+    public void setContentType(String contentType) {this.contentType = contentType;}
+    public void setLength(long length) {this.length = length;}
+    public void setChunkSize(int chunkSize) {this.chunkSize = chunkSize;}
+    public void setSha1(String sha1) {this.sha1 = sha1;}
+    public void setUploadDate(Date uploadDate) {this.uploadDate = uploadDate;}
+    public void setOwner(String owner) {this.owner = owner;}
+    public void setCommunicationId(String communicationId) {this.communicationId = communicationId;}
+    public void setParticipants(List<String> participants) {this.participants = participants;}
+
+    // To String
+    @Override
+    public String toString() {
+        return String.format("MessageAttachment{id=%s, filename='%s', contentType='%s', length=%d}",
+                id, filename, contentType, length);
+    }
+}
@@ -0,0 +1,695 @@
+package com.github.cm2027.lab3.search;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.HumanName;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * In-memory index of patient and practitioner names, for type-ahead
+ * searches by any part of a name, with typos.
+ *
+ * Names are folded before indexing and searching: accents are removed
+ * and letters lower-cased, so "Åsa Ström" is found by "asa strom" and
+ * "Ström" by "Strom". Each name word maps to the people with it, in a
+ * sorted map so the words starting with what was typed are one range.
+ * Each word is also split into trigrams ("$$s", "$st", "str", ...),
+ * which find the words within one or two edits of a misspelled one; those
+ * are then checked with the edit distance. An edit changes at most four
+ * of a word's distinct trigrams (a swap of two letters does), so a word
+ * within maxEdits shares all but 4 * maxEdits of them. Both maps are over distinct
+ * words, which are far fewer than people: a million patients share some
+ * tens of thousands of names.
+ *
+ * Every query word must match a word of the name, exactly, as a prefix
+ * or within the edit limit. Results are ranked by how closely they
+ * match. Loading and refresh work like TextIndex: everything is loaded on
+ * the first query, then the Patient and Practitioner history is
+ * followed every names.poll-interval-ms (default 30000, 0 disables
+ * polling), and repositories report their own writes through onSaved.
+ * Only people with a personnummer or doctor ID of the clinic's systems
+ * are indexed, and that is the identifier shown.
+ */
+public class NameIndex {
+
+    private static final String POLL_INTERVAL_KEY = "names.poll-interval-ms";
+    private static final int DEFAULT_POLL_INTERVAL_MS = 30000;
+    private static final long CLOCK_SKEW_MS = 5000;
+    private static final int PAGE_SIZE = 1000;
+    // Shorter words are only matched as prefixes; a typo in them is as
+    // likely to be a different name
+    private static final int MIN_FUZZY_LENGTH = 4;
+    private static final double PREFIX_SCORE = 0.5;
+    // A one-word query typed so far ("a") matches a large part of the
+    // index; stop collecting at this many candidates per result wanted
+    private static final int CANDIDATES_PER_RESULT = 20;
+    // Indexed types and the system of the clinic's identifiers for them
+    private static final Map<Class<? extends Resource>, String> INDEXED_TYPES = Map.of(
+            Patient.class, PatientFhirRepository.PERSONNUMMER_SYSTEM,
+            Practitioner.class, PractitionerFhirRepository.DOCTOR_ID_SYSTEM);
+    private static final TokenClientParam IDENTIFIER = new TokenClientParam("identifier");
+
+    private static NameIndex instance;
+
+    private final IGenericClient client;
+    private final long pollIntervalMs;
+    // Entry ID to entry; null once removed
+    private final List<Entry> entries = new ArrayList<>();
+    // "Patient/123" to its entry ID
+    private final Map<String, Integer> current = new HashMap<>();
+    // Folded word to the IDs of the entries containing it
+    private final TreeMap<String, IntList> words = new TreeMap<>();
+    // Trigram to the words containing it
+    private final Map<String, Set<String>> trigrams = new HashMap<>();
+    private boolean loaded;
+    private Date lastPoll;
+    private Thread poller;
+
+    private NameIndex(IGenericClient client, long pollIntervalMs) {
+        this.client = client;
+        this.pollIntervalMs = pollIntervalMs;
+    }
+
+    public static synchronized NameIndex getInstance() {
+        if (instance == null) {
+            instance = new NameIndex(
+                    ClientSingleton.getInstance(),
+                    ConfigurationUtil.getInt(POLL_INTERVAL_KEY, DEFAULT_POLL_INTERVAL_MS));
+        }
+        return instance;
+    }
+
+    /**
+     * People of the given type ("Patient" or "Practitioner") whose name
+     * matches every word of the query, best match first. The last word
+     * may be incomplete.
+     */
+    public List<Match> search(String query, String resourceType, int limit) throws Exception {
+        load();
+
+        List<String> terms = new ArrayList<>(new LinkedHashSet<>(fold(query)));
+        if (terms.isEmpty() || limit <= 0) {
+            return Collections.emptyList();
+        }
+        // The longest word matches the fewest names; the others only filter those
+        terms.sort((a, b) -> Integer.compare(b.length(), a.length()));
+
+        synchronized (this) {
+            int cap = terms.size() == 1 ? limit * CANDIDATES_PER_RESULT : Integer.MAX_VALUE;
+            Map<Integer, Double> scores = candidates(terms.get(0), resourceType, cap);
+
+            List<Match> matches = new ArrayList<>();
+            candidates:
+            for (Map.Entry<Integer, Double> candidate : scores.entrySet()) {
+                Entry entry = entries.get(candidate.getKey());
+                double score = candidate.getValue();
+                for (int i = 1; i < terms.size(); i++) {
+                    double best = Double.MAX_VALUE;
+                    for (String word : entry.words) {
+                        best = Math.min(best, score(terms.get(i), word));
+                    }
+                    if (best == Double.MAX_VALUE) {
+                        continue candidates;
+                    }
+                    score += best;
+                }
+                matches.add(new Match(entry.resourceType, entry.fhirId, entry.identifier, entry.name, score));
+            }
+
+            matches.sort((a, b) -> a.getScore() != b.getScore()
+                    ? Double.compare(a.getScore(), b.getScore())
+                    : a.getName().compareToIgnoreCase(b.getName()));
+            return matches.size() > limit ? new ArrayList<>(matches.subList(0, limit)) : matches;
+        }
+    }
+
+    /**
+     * Index a patient or practitioner a repository has just created or
+     * updated. Ignored until the index is loaded, since loading will pick
+     * it up.
+     */
+    public synchronized void onSaved(Resource resource) {
+        if (loaded && resource != null) {
+            index(resource);
+        }
+    }
+
+    public synchronized void onDeleted(String resourceType, String fhirId) {
+        if (loaded) {
+            remove(resourceType + "/" + fhirId);
+        }
+    }
+
+    public synchronized int getEntryCount() {
+        return current.size();
+    }
+
+    public synchronized int getWordCount() {
+        return words.size();
+    }
+
+    /**
+     * Fetch changes made since the last poll. Called by the poller thread,
+     * but can be called directly to refresh right away.
+     */
+    public void poll() {
+        Date since;
+        synchronized (this) {
+            if (!loaded) {
+                return;
+            }
+            since = new Date(lastPoll.getTime() - CLOCK_SKEW_MS);
+        }
+
+        Date pollStarted = new Date();
+        List<Bundle.BundleEntryComponent> changes = new ArrayList<>();
+        for (Class<? extends Resource> type : INDEXED_TYPES.keySet()) {
+            Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.history()
+                    .onType(type)
+                    .returnBundle(Bundle.class)
+                    .since(since)
+                    .execute());
+            // History lists the newest version first, only apply that one
+            Set<String> seen = new HashSet<>();
+            while (true) {
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    String key = keyOf(entry);
+                    if (key != null && seen.add(key)) {
+                        changes.add(entry);
+                    }
+                }
+                if (page.getLink(Bundle.LINK_NEXT) == null) {
+                    break;
+                }
+                Bundle current = page;
+                page = RequestPriority.supply(RequestPriority.BATCH,
+                        () -> client.loadPage().next(current).execute());
+            }
+        }
+
+        synchronized (this) {
+            for (Bundle.BundleEntryComponent entry : changes) {
+                if (entry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE || entry.getResource() == null) {
+                    String url = entry.getRequest().getUrl() != null ? entry.getRequest().getUrl() : entry.getFullUrl();
+                    if (url != null) {
+                        IdType id = new IdType(url);
+                        String key = id.getResourceType() + "/" + id.getIdPart();
+                        if (!isStale(key, id.getVersionIdPart())) {
+                            remove(key);
+                        }
+                    }
+                } else {
+                    index(entry.getResource());
+                }
+            }
+            lastPoll = pollStarted;
+        }
+    }
+
+    private void load() throws Exception {
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+        }
+
+        Date loadStarted = new Date();
+        List<Resource> resources = new ArrayList<>();
+        for (Map.Entry<Class<? extends Resource>, String> type : INDEXED_TYPES.entrySet()) {
+            Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.search()
+                    .forResource(type.getKey())
+                    .where(IDENTIFIER.hasSystemWithAnyCode(type.getValue()))
+                    .elementsSubset("identifier", "name")
+                    .count(PAGE_SIZE)
+                    .returnBundle(Bundle.class)
+                    .execute());
+            while (true) {
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    if (entry.getResource() != null) {
+                        resources.add(entry.getResource());
+                    }
+                }
+                if (page.getLink(Bundle.LINK_NEXT) == null) {
+                    break;
+                }
+                Bundle current = page;
+                page = RequestPriority.supply(RequestPriority.BATCH,
+                        () -> client.loadPage().next(current).execute());
+            }
+        }
+
+        synchronized (this) {
+            if (loaded) {
+                // Loaded by another thread meanwhile
+                return;
+            }
+            for (Resource resource : resources) {
+                index(resource);
+            }
+            lastPoll = loadStarted;
+            loaded = true;
+            startPolling();
+        }
+    }
+
+    /**
+     * The entries with a word matching term, and the best score of each,
+     * limited to about cap entries. Caller holds the lock.
+     */
+    private Map<Integer, Double> candidates(String term, String resourceType, int cap) {
+        Map<Integer, Double> scores = new HashMap<>();
+
+        // Exact and prefix matches: one range of the sorted words
+        NavigableMap<String, IntList> range = words.subMap(term, true, term + Character.MAX_VALUE, false);
+        for (Map.Entry<String, IntList> word : range.entrySet()) {
+            double score = word.getKey().length() == term.length() ? 0 : PREFIX_SCORE;
+            addAll(scores, word.getValue(), score, resourceType);
+            if (scores.size() >= cap) {
+                return scores;
+            }
+        }
+
+        if (term.length() < MIN_FUZZY_LENGTH) {
+            return scores;
+        }
+
+        // Words sharing enough trigrams to be within maxEdits; a word
+        // sharing none is not found even when required is below one
+        int maxEdits = maxEdits(term);
+        Set<String> grams = new HashSet<>(trigrams(term));
+        Map<String, Integer> shared = new HashMap<>();
+        for (String gram : grams) {
+            Set<String> containing = trigrams.get(gram);
+            if (containing != null) {
+                for (String word : containing) {
+                    shared.merge(word, 1, Integer::sum);
+                }
+            }
+        }
+        int required = grams.size() - 4 * maxEdits;
+        for (Map.Entry<String, Integer> word : shared.entrySet()) {
+            if (word.getValue() < required || Math.abs(word.getKey().length() - term.length()) > maxEdits) {
+                continue;
+            }
+            int distance = distance(term, word.getKey(), maxEdits);
+            if (distance > 0 && distance <= maxEdits) {
+                addAll(scores, words.get(word.getKey()), distance, resourceType);
+            }
+        }
+        return scores;
+    }
+
+    private void addAll(Map<Integer, Double> scores, IntList ids, double score, String resourceType) {
+        for (int i = 0; i < ids.size; i++) {
+            int id = ids.values[i];
+            if (resourceType == null || resourceType.equals(entries.get(id).resourceType)) {
+                scores.merge(id, score, Math::min);
+            }
+        }
+    }
+
+    /**
+     * How well a query word matches a name word: 0 if equal, PREFIX_SCORE
+     * if a prefix, the edit distance if close enough, otherwise
+     * Double.MAX_VALUE.
+     */
+    private static double score(String term, String word) {
+        if (word.equals(term)) {
+            return 0;
+        }
+        if (word.startsWith(term)) {
+            return PREFIX_SCORE;
+        }
+        if (term.length() < MIN_FUZZY_LENGTH) {
+            return Double.MAX_VALUE;
+        }
+        int maxEdits = maxEdits(term);
+        int distance = distance(term, word, maxEdits);
+        return distance <= maxEdits ? distance : Double.MAX_VALUE;
+    }
+
+    private static int maxEdits(String term) {
+        return term.length() <= 5 ? 1 : 2;
+    }
+
+    /**
+     * Edit distance between a and b, counting a swap of two neighbouring
+     * letters as one edit. Stops early and returns maxEdits + 1 once the
+     * distance is known to be larger than maxEdits.
+     */
+    static int distance(String a, String b, int maxEdits) {
+        if (Math.abs(a.length() - b.length()) > maxEdits) {
+            return maxEdits + 1;
+        }
+        int[] previous2 = new int[b.length() + 1];
+        int[] previous = new int[b.length() + 1];
+        int[] row = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++) {
+            previous[j] = j;
+        }
+        for (int i = 1; i <= a.length(); i++) {
+            row[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                int value = Math.min(Math.min(row[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                if (i > 1 && j > 1 && a.charAt(i - 1) == b.charAt(j - 2) && a.charAt(i - 2) == b.charAt(j - 1)) {
+                    value = Math.min(value, previous2[j - 2] + 1);
+                }
+                row[j] = value;
+                rowMin = Math.min(rowMin, value);
+            }
+            if (rowMin > maxEdits) {
+                return maxEdits + 1;
+            }
+            int[] oldest = previous2;
+            previous2 = previous;
+            previous = row;
+            row = oldest;
+        }
+        return Math.min(previous[b.length()], maxEdits + 1);
+    }
+
+    /**
+     * The words of a name or query, folded: split on anything but letters
+     * and digits, accents removed, lower-cased. "Åsa-Britt Ström" is
+     * [asa, britt, strom].
+     */
+    public static List<String> fold(String text) {
+        List<String> folded = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return folded;
+        }
+        // Decomposed, so "å" is "a" followed by a ring that is dropped
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < decomposed.length(); ) {
+            int c = decomposed.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.getType(c) == Character.NON_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isLetterOrDigit(c)) {
+                // Letters with no decomposition
+                if (c == 'ø') {
+                    word.append('o');
+                } else if (c == 'æ') {
+                    word.append("ae");
+                } else if (c == 'ß') {
+                    word.append("ss");
+                } else {
+                    word.appendCodePoint(c);
+                }
+            } else if (word.length() > 0) {
+                folded.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        if (word.length() > 0) {
+            folded.add(word.toString());
+        }
+        return folded;
+    }
+
+    /**
+     * The trigrams of a word padded with two "$" in front and one behind,
+     * so the start of a word weighs more than the end: "anna" is
+     * [$$a, $an, ann, nna, na$].
+     */
+    static List<String> trigrams(String word) {
+        String padded = "$$" + word + "$";
+        List<String> grams = new ArrayList<>(padded.length() - 2);
+        for (int i = 0; i + 3 <= padded.length(); i++) {
+            grams.add(padded.substring(i, i + 3));
+        }
+        return grams;
+    }
+
+    /**
+     * Index the resource's current version, replacing any older one.
+     * Caller holds the lock.
+     */
+    private void index(Resource resource) {
+        List<HumanName> names;
+        List<Identifier> identifiers;
+        if (resource instanceof Patient) {
+            names = ((Patient) resource).getName();
+            identifiers = ((Patient) resource).getIdentifier();
+        } else if (resource instanceof Practitioner) {
+            names = ((Practitioner) resource).getName();
+            identifiers = ((Practitioner) resource).getIdentifier();
+        } else {
+            return;
+        }
+
+        String key = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+        String version = resource.getMeta().getVersionId();
+        if (isStale(key, version)) {
+            return;
+        }
+        remove(key);
+
+        String system = INDEXED_TYPES.get(resource.getClass());
+        String identifier = null;
+        for (Identifier id : identifiers) {
+            if (system.equals(id.getSystem()) && id.hasValue()) {
+                identifier = id.getValue();
+                break;
+            }
+        }
+        if (identifier == null) {
+            // Not the clinic's, or no longer
+            return;
+        }
+
+        Set<String> nameWords = new LinkedHashSet<>();
+        for (HumanName name : names) {
+            for (StringType given : name.getGiven()) {
+                nameWords.addAll(fold(given.getValue()));
+            }
+            nameWords.addAll(fold(name.getFamily()));
+        }
+        if (nameWords.isEmpty()) {
+            return;
+        }
+
+        HumanName first = names.get(0);
+        String display = (first.getGivenAsSingleString() + " " + (first.hasFamily() ? first.getFamily() : "")).trim();
+
+        int id = entries.size();
+        entries.add(new Entry(resource.fhirType(), resource.getIdElement().getIdPart(), identifier, display, version,
+                nameWords.toArray(new String[0])));
+        current.put(key, id);
+        for (String word : nameWords) {
+            IntList ids = words.get(word);
+            if (ids == null) {
+                ids = new IntList();
+                words.put(word, ids);
+                for (String gram : trigrams(word)) {
+                    trigrams.computeIfAbsent(gram, g -> new HashSet<>()).add(word);
+                }
+            }
+            ids.add(id);
+        }
+    }
+
+    /**
+     * Whether the indexed entry of a resource is the same or a newer
+     * version than the given one, as when a poll fetched history before
+     * an onSaved. Caller holds the lock.
+     */
+    private boolean isStale(String key, String version) {
+        Integer existing = current.get(key);
+        if (existing == null || version == null || entries.get(existing).version == null) {
+            return false;
+        }
+        String indexed = entries.get(existing).version;
+        if (version.equals(indexed)) {
+            return true;
+        }
+        try {
+            return Long.parseLong(version) < Long.parseLong(indexed);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Remove a resource's entry, and the words no one else has. Caller
+     * holds the lock.
+     */
+    private void remove(String key) {
+        Integer id = current.remove(key);
+        if (id == null) {
+            return;
+        }
+        Entry entry = entries.get(id);
+        entries.set(id, null);
+        for (String word : entry.words) {
+            IntList ids = words.get(word);
+            if (ids == null) {
+                continue;
+            }
+            ids.remove(id);
+            if (ids.size == 0) {
+                words.remove(word);
+                for (String gram : trigrams(word)) {
+                    Set<String> containing = trigrams.get(gram);
+                    if (containing != null) {
+                        containing.remove(word);
+                        if (containing.isEmpty()) {
+                            trigrams.remove(gram);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static String keyOf(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getIdElement().hasIdPart()) {
+            return entry.getResource().getIdElement().getIdPart();
+        }
+        // Deletes have no resource, only the request URL ("Patient/123/_history/2")
+        String url = entry.getRequest().getUrl();
+        if (url == null || url.isBlank()) {
+            url = entry.getFullUrl();
+        }
+        return url == null ? null : new IdType(url).getIdPart();
+    }
+
+    private synchronized void startPolling() {
+        if (poller != null || pollIntervalMs <= 0) {
+            return;
+        }
+        poller = VirtualThreads.start("name-index-poller", () -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(pollIntervalMs);
+                    poll();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Name index poll failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    /**
+     * Entry IDs without boxing; a common first name is shared by
+     * thousands of patients. Order doesn't matter.
+     */
+    private static final class IntList {
+
+        private int[] values = new int[2];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+
+        void remove(int value) {
+            for (int i = 0; i < size; i++) {
+                if (values[i] == value) {
+                    values[i] = values[--size];
+                    return;
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final String resourceType;
+        private final String fhirId;
+        private final String identifier;
+        private final String name;
+        private final String version;
+        private final String[] words;
+
+        Entry(String resourceType, String fhirId, String identifier, String name, String version, String[] words) {
+            this.resourceType = resourceType;
+            this.fhirId = fhirId;
+            this.identifier = identifier;
+            this.name = name;
+            this.version = version;
+            this.words = words;
+        }
+    }
+
+    /**
+     * A person whose name matches. Lower scores are closer: 0 per word
+     * typed in full, 0.5 per word completed from a prefix, and the edit
+     * distance per misspelled word.
+     */
+    public static class Match {
+
+        private final String resourceType;
+        private final String fhirId;
+        private final String identifier;
+        private final String name;
+        private final double score;
+
+        Match(String resourceType, String fhirId, String identifier, String name, double score) {
+            this.resourceType = resourceType;
+            this.fhirId = fhirId;
+            this.identifier = identifier;
+            this.name = name;
+            this.score = score;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getFhirId() {
+            return fhirId;
+        }
+
+        /**
+         * The personnummer or doctor ID.
+         */
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public double getScore() {
+            return score;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.cm2027.lab3.search;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The documents a term occurs in and its positions in each, compressed
+ * into one growing byte array. For each document it holds the gap from
+ * the previous document ID, the number of positions, then the gaps
+ * between positions, each as a varint (7 bits per byte, high bit set on
+ * all but the last byte). Most gaps fit in one byte.
+ *
+ * Documents must be added in increasing ID order. Not thread-safe;
+ * TextIndex guards it.
+ */
+final class PostingList {
+
+    private static final int[] NO_POSITIONS = new int[0];
+
+    private byte[] bytes = new byte[8];
+    private int length;
+    private int lastDoc = -1;
+    private int docCount;
+
+    void add(int doc, int[] positions, int count) {
+        if (doc <= lastDoc) {
+            throw new IllegalArgumentException("Documents must be added in order: " + doc + " after " + lastDoc);
+        }
+        writeVarint(doc - lastDoc);
+        writeVarint(count);
+        int previous = 0;
+        for (int i = 0; i < count; i++) {
+            writeVarint(positions[i] - previous);
+            previous = positions[i];
+        }
+        lastDoc = doc;
+        docCount++;
+    }
+
+    int getDocCount() {
+        return docCount;
+    }
+
+    int sizeInBytes() {
+        return length;
+    }
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * A copy without the deleted documents, or null if none are left.
+     */
+    PostingList without(BitSet deleted) {
+        PostingList compacted = new PostingList();
+        Cursor cursor = cursor();
+        while (cursor.next()) {
+            if (!deleted.get(cursor.doc())) {
+                compacted.add(cursor.doc(), cursor.positions, cursor.positionCount);
+            }
+        }
+        if (compacted.docCount == 0) {
+            return null;
+        }
+        compacted.bytes = Arrays.copyOf(compacted.bytes, compacted.length);
+        return compacted;
+    }
+
+    private void writeVarint(int value) {
+        if (length + 5 > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + 5));
+        }
+        while ((value & ~0x7F) != 0) {
+            bytes[length++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        bytes[length++] = (byte) value;
+    }
+
+    /**
+     * Walks the list forward, decoding one document at a time.
+     */
+    final class Cursor {
+
+        private final int end = length;
+        private int offset;
+        private int doc = -1;
+        private int[] positions = NO_POSITIONS;
+        private int positionCount;
+
+        /**
+         * Move to the next document. Returns false at the end.
+         */
+        boolean next() {
+            if (offset >= end) {
+                return false;
+            }
+            doc += readVarint();
+            positionCount = readVarint();
+            if (positions.length < positionCount) {
+                positions = new int[Math.max(positionCount, positions.length * 2)];
+            }
+            int position = 0;
+            for (int i = 0; i < positionCount; i++) {
+                position += readVarint();
+                positions[i] = position;
+            }
+            return true;
+        }
+
+        /**
+         * Move to the first document with an ID of at least target, if
+         * not there yet. Returns false if there is none.
+         */
+        boolean advance(int target) {
+            while (doc < target) {
+                if (!next()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int doc() {
+            return doc;
+        }
+
+        int positionCount() {
+            return positionCount;
+        }
+
+        int position(int index) {
+            return positions[index];
+        }
+
+        boolean hasPosition(int position) {
+            return Arrays.binarySearch(positions, 0, positionCount, position) >= 0;
+        }
+
+        private int readVarint() {
+            int value = 0;
+            int shift = 0;
+            while (true) {
+                byte b = bytes[offset++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+                shift += 7;
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.cm2027.lab3.search;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Splits Swedish text into search terms: lower-cased words with the
+ * common inflection endings removed, so "läkare", "läkaren" and
+ * "läkarens" are the same term.
+ *
+ * Words are runs of letters and digits; everything else separates them.
+ * å, ä and ö are letters of their own in Swedish and are kept. Stemming
+ * is the Snowball Swedish algorithm (steps 1 to 3), applied only to
+ * words without digits. Terms are returned in order, so their index in
+ * the list is their position for phrase queries.
+ */
+public final class SwedishAnalyzer {
+
+    private static final Locale SWEDISH = new Locale("sv", "SE");
+    private static final int MAX_TERM_LENGTH = 64;
+    private static final String VOWELS = "aeiouyäåö";
+    private static final String S_ENDING = "bcdfghjklmnoprtvy";
+
+    // Longest first, so the first match is the longest suffix
+    private static final String[] STEP1_SUFFIXES = {
+            "heterna", "hetens", "anden", "andes", "andet", "arnas", "ernas", "ornas", "heten", "heter",
+            "arens", "arna", "erna", "orna", "ande", "arne", "aste", "aren", "ades", "erns",
+            "ade", "are", "ern", "ens", "het", "ast", "ad", "en", "ar", "er", "or", "as", "es", "at",
+            "a", "e"
+    };
+    private static final String[] STEP2_ENDINGS = {"dd", "gd", "nn", "dt", "gt", "kt", "tt"};
+
+    private SwedishAnalyzer() {
+    }
+
+    public static List<String> tokenize(String text) {
+        List<String> terms = new ArrayList<>();
+        if (text == null || text.isEmpty()) {
+            return terms;
+        }
+        // Composed form, so "å" typed as "a" + ring is one letter
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFC).toLowerCase(SWEDISH);
+
+        StringBuilder word = new StringBuilder();
+        boolean hasDigit = false;
+        for (int i = 0; i < normalized.length(); ) {
+            int c = normalized.codePointAt(i);
+            i += Character.charCount(c);
+            if (Character.isLetterOrDigit(c)) {
+                word.appendCodePoint(c);
+                hasDigit |= Character.isDigit(c);
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && word.length() > 0) {
+                terms.add(term(word, hasDigit));
+                word.setLength(0);
+                hasDigit = false;
+            }
+        }
+        if (word.length() > 0) {
+            terms.add(term(word, hasDigit));
+        }
+        return terms;
+    }
+
+    private static String term(StringBuilder word, boolean hasDigit) {
+        String term = word.length() > MAX_TERM_LENGTH ? word.substring(0, MAX_TERM_LENGTH) : word.toString();
+        return hasDigit ? term : stem(term);
+    }
+
+    static String stem(String word) {
+        int r1 = r1(word);
+        if (r1 >= word.length()) {
+            return word;
+        }
+
+        // Step 1: inflection endings
+        String stemmed = word;
+        boolean removed = false;
+        for (String suffix : STEP1_SUFFIXES) {
+            if (stemmed.endsWith(suffix) && stemmed.length() - suffix.length() >= r1) {
+                stemmed = stemmed.substring(0, stemmed.length() - suffix.length());
+                removed = true;
+                break;
+            }
+        }
+        if (!removed && stemmed.endsWith("s") && stemmed.length() - 1 >= r1 && stemmed.length() >= 2
+                && S_ENDING.indexOf(stemmed.charAt(stemmed.length() - 2)) >= 0) {
+            stemmed = stemmed.substring(0, stemmed.length() - 1);
+        }
+
+        // Step 2: undouble the consonant left by step 1
+        for (String ending : STEP2_ENDINGS) {
+            if (stemmed.endsWith(ending) && stemmed.length() - ending.length() >= r1) {
+                stemmed = stemmed.substring(0, stemmed.length() - 1);
+                break;
+            }
+        }
+
+        // Step 3: derivational endings
+        if (stemmed.endsWith("fullt") && stemmed.length() - 5 >= r1) {
+            stemmed = stemmed.substring(0, stemmed.length() - 1);
+        } else if (stemmed.endsWith("löst") && stemmed.length() - 4 >= r1) {
+            stemmed = stemmed.substring(0, stemmed.length() - 1);
+        } else if ((stemmed.endsWith("lig") || stemmed.endsWith("els")) && stemmed.length() - 3 >= r1) {
+            stemmed = stemmed.substring(0, stemmed.length() - 3);
+        } else if (stemmed.endsWith("ig") && stemmed.length() - 2 >= r1) {
+            stemmed = stemmed.substring(0, stemmed.length() - 2);
+        }
+        return stemmed;
+    }
+
+    /**
+     * Start of the region after the first non-vowel that follows a vowel,
+     * but at least 3, as Snowball defines it.
+     */
+    private static int r1(String word) {
+        for (int i = 1; i < word.length(); i++) {
+            if (!isVowel(word.charAt(i)) && isVowel(word.charAt(i - 1))) {
+                return Math.max(3, i + 1);
+            }
+        }
+        return word.length();
+    }
+
+    private static boolean isVowel(char c) {
+        return VOWELS.indexOf(c) >= 0;
+    }
+}
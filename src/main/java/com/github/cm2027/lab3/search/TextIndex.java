@@ -0,0 +1,621 @@
+package com.github.cm2027.lab3.search;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.gclient.TokenClientParam;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.ObservationFhirRepository;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.Attachment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.Resource;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * In-memory inverted index over the text of messages (Communication
+ * payloads and attachment names) and observations (their string values),
+ * for term and phrase searches without scanning every resource.
+ *
+ * Text is split into terms by SwedishAnalyzer. Each term maps to a
+ * PostingList of the documents containing it, with positions. Each
+ * document also gets a scope term per participant (sender, recipients,
+ * subject) and one for its resource type, so a search limited to one
+ * patient or doctor, or to messages, is one more list in the
+ * intersection.
+ *
+ * Only the clinic's own resources, those with an identifier of its
+ * system, are indexed; others on the shared server are skipped.
+ * Everything is loaded with one search per resource type on the first
+ * query. After that the index follows the resources' history every
+ * search.poll-interval-ms (default 10000, 0 disables polling), and
+ * repositories report their own writes through onSaved. A changed
+ * resource is indexed as a new document and its old one is marked
+ * deleted; the lists are compacted once most documents are deleted. A
+ * version older than the one indexed, as a poll can fetch after
+ * onSaved, is ignored.
+ */
+public class TextIndex {
+
+    private static final String POLL_INTERVAL_KEY = "search.poll-interval-ms";
+    private static final int DEFAULT_POLL_INTERVAL_MS = 10000;
+    private static final String SCOPE_PREFIX = "@";
+    private static final String TYPE_PREFIX = "#";
+    private static final int PREVIEW_LENGTH = 120;
+    // History timestamps come from the server's clock
+    private static final long CLOCK_SKEW_MS = 5000;
+    // Indexed types and the system of the clinic's identifiers for them
+    private static final Map<Class<? extends Resource>, String> INDEXED_TYPES = Map.of(
+            Communication.class, CommunicationFhirRepository.COMMUNICATION_ID_SYSTEM,
+            Observation.class, ObservationFhirRepository.OBSERVATION_ID_SYSTEM);
+    private static final TokenClientParam IDENTIFIER = new TokenClientParam("identifier");
+
+    private static TextIndex instance;
+
+    private final IGenericClient client;
+    private final long pollIntervalMs;
+    private final Map<String, PostingList> postings = new HashMap<>();
+    private final List<Document> documents = new ArrayList<>();
+    // "Communication/123" to its current document ID
+    private final Map<String, Integer> current = new HashMap<>();
+    private final BitSet deleted = new BitSet();
+    private int deletedCount;
+    private boolean loaded;
+    private Date lastPoll;
+    private Thread poller;
+
+    private TextIndex(IGenericClient client, long pollIntervalMs) {
+        this.client = client;
+        this.pollIntervalMs = pollIntervalMs;
+    }
+
+    public static synchronized TextIndex getInstance() {
+        if (instance == null) {
+            instance = new TextIndex(
+                    ClientSingleton.getInstance(),
+                    ConfigurationUtil.getInt(POLL_INTERVAL_KEY, DEFAULT_POLL_INTERVAL_MS));
+        }
+        return instance;
+    }
+
+    /**
+     * Documents matching every term of the query, newest first. Quoted
+     * parts are phrases whose terms must appear next to each other, in
+     * order. scopeRef ("Patient/123"), if not null, limits the search to
+     * documents that person sent, received or is the subject of, and
+     * resourceType, if not null, to resources of that type.
+     */
+    public List<Hit> search(String query, String scopeRef, String resourceType, int limit) throws Exception {
+        return search(query, scopeRef, resourceType, null, limit);
+    }
+
+    /**
+     * Like search, but messages must also have been sent or received by
+     * peerRef, if not null; observations are not limited by it. A doctor
+     * searching a patient's records only sees their own messages with
+     * the patient.
+     */
+    public List<Hit> search(String query, String scopeRef, String resourceType, String peerRef, int limit)
+            throws Exception {
+        load();
+
+        List<List<String>> phrases = parse(query);
+        if (phrases.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        synchronized (this) {
+            Map<String, PostingList.Cursor> cursors = new LinkedHashMap<>();
+            List<String> required = new ArrayList<>();
+            for (List<String> phrase : phrases) {
+                required.addAll(phrase);
+            }
+            if (scopeRef != null) {
+                required.add(SCOPE_PREFIX + scopeRef);
+            }
+            if (resourceType != null) {
+                required.add(TYPE_PREFIX + resourceType);
+            }
+            for (String term : required) {
+                PostingList list = postings.get(term);
+                if (list == null) {
+                    return Collections.emptyList();
+                }
+                cursors.putIfAbsent(term, list.cursor());
+            }
+
+            // Rarest term first, so it decides which documents the others skip to
+            List<String> order = new ArrayList<>(cursors.keySet());
+            order.sort((a, b) -> Integer.compare(postings.get(a).getDocCount(), postings.get(b).getDocCount()));
+            List<PostingList.Cursor> sorted = new ArrayList<>();
+            for (String term : order) {
+                sorted.add(cursors.get(term));
+            }
+            PostingList peerList = peerRef == null ? null : postings.get(SCOPE_PREFIX + peerRef);
+            PostingList.Cursor peer = peerList == null ? null : peerList.cursor();
+
+            // Lists are in ID order, oldest first; keep the last matches
+            Deque<Integer> matches = new ArrayDeque<>();
+            int target = 0;
+            search:
+            while (true) {
+                for (PostingList.Cursor cursor : sorted) {
+                    if (!cursor.advance(target)) {
+                        break search;
+                    }
+                    if (cursor.doc() > target) {
+                        target = cursor.doc();
+                        continue search;
+                    }
+                }
+                if (!deleted.get(target) && phrasesMatch(phrases, cursors)
+                        && (peerRef == null || !"Communication".equals(documents.get(target).resourceType)
+                        || (peer != null && peer.advance(target) && peer.doc() == target))) {
+                    matches.addLast(target);
+                    if (matches.size() > Math.max(1, limit)) {
+                        matches.removeFirst();
+                    }
+                }
+                target++;
+            }
+
+            List<Hit> hits = new ArrayList<>();
+            for (Iterator<Integer> it = matches.descendingIterator(); it.hasNext(); ) {
+                Document document = documents.get(it.next());
+                hits.add(new Hit(document.resourceType, document.fhirId, document.identifier, document.preview));
+            }
+            return hits;
+        }
+    }
+
+    /**
+     * Index a resource a repository has just created or updated. Ignored
+     * until the index is loaded, since loading will pick it up.
+     */
+    public synchronized void onSaved(Resource resource) {
+        if (loaded && resource != null) {
+            index(resource);
+        }
+    }
+
+    public synchronized void onDeleted(String resourceType, String fhirId) {
+        if (loaded) {
+            remove(resourceType + "/" + fhirId);
+        }
+    }
+
+    public synchronized int getDocumentCount() {
+        return current.size();
+    }
+
+    /**
+     * Size of all posting lists, in bytes.
+     */
+    public synchronized long getPostingBytes() {
+        long total = 0;
+        for (PostingList list : postings.values()) {
+            total += list.sizeInBytes();
+        }
+        return total;
+    }
+
+    /**
+     * Fetch changes made since the last poll. Called by the poller thread,
+     * but can be called directly to refresh right away.
+     */
+    public void poll() {
+        Date since;
+        synchronized (this) {
+            if (!loaded) {
+                return;
+            }
+            since = new Date(lastPoll.getTime() - CLOCK_SKEW_MS);
+        }
+
+        Date pollStarted = new Date();
+        List<Bundle.BundleEntryComponent> changes = new ArrayList<>();
+        for (Class<? extends Resource> type : INDEXED_TYPES.keySet()) {
+            Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.history()
+                    .onType(type)
+                    .returnBundle(Bundle.class)
+                    .since(since)
+                    .execute());
+            // History lists the newest version first, only apply that one
+            Set<String> seen = new HashSet<>();
+            while (true) {
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    String key = keyOf(entry);
+                    if (key != null && seen.add(key)) {
+                        changes.add(entry);
+                    }
+                }
+                if (page.getLink(Bundle.LINK_NEXT) == null) {
+                    break;
+                }
+                Bundle current = page;
+                page = RequestPriority.supply(RequestPriority.BATCH,
+                        () -> client.loadPage().next(current).execute());
+            }
+        }
+
+        synchronized (this) {
+            for (Bundle.BundleEntryComponent entry : changes) {
+                if (entry.getRequest().getMethod() == Bundle.HTTPVerb.DELETE || entry.getResource() == null) {
+                    String url = entry.getRequest().getUrl() != null ? entry.getRequest().getUrl() : entry.getFullUrl();
+                    if (url != null) {
+                        IdType id = new IdType(url);
+                        String key = id.getResourceType() + "/" + id.getIdPart();
+                        if (!isStale(key, id.getVersionIdPart())) {
+                            remove(key);
+                        }
+                    }
+                } else {
+                    index(entry.getResource());
+                }
+            }
+            lastPoll = pollStarted;
+        }
+    }
+
+    private void load() throws Exception {
+        synchronized (this) {
+            if (loaded) {
+                return;
+            }
+        }
+
+        Date loadStarted = new Date();
+        List<Resource> resources = new ArrayList<>();
+        for (Map.Entry<Class<? extends Resource>, String> type : INDEXED_TYPES.entrySet()) {
+            Bundle page = RequestPriority.supply(RequestPriority.BATCH, () -> client.search()
+                    .forResource(type.getKey())
+                    .where(IDENTIFIER.hasSystemWithAnyCode(type.getValue()))
+                    .count(500)
+                    .returnBundle(Bundle.class)
+                    .execute());
+            while (true) {
+                for (Bundle.BundleEntryComponent entry : page.getEntry()) {
+                    if (entry.getResource() != null) {
+                        resources.add(entry.getResource());
+                    }
+                }
+                if (page.getLink(Bundle.LINK_NEXT) == null) {
+                    break;
+                }
+                Bundle current = page;
+                page = RequestPriority.supply(RequestPriority.BATCH,
+                        () -> client.loadPage().next(current).execute());
+            }
+        }
+
+        synchronized (this) {
+            if (loaded) {
+                // Loaded by another thread meanwhile
+                return;
+            }
+            for (Resource resource : resources) {
+                index(resource);
+            }
+            lastPoll = loadStarted;
+            loaded = true;
+            startPolling();
+        }
+    }
+
+    /**
+     * Index the resource's current version, replacing any older one.
+     * Caller holds the lock.
+     */
+    private void index(Resource resource) {
+        String key = resource.fhirType() + "/" + resource.getIdElement().getIdPart();
+        String version = resource.getMeta().getVersionId();
+        if (isStale(key, version)) {
+            return;
+        }
+
+        List<String> texts = new ArrayList<>();
+        Set<String> scopes = new LinkedHashSet<>();
+        String identifier;
+        if (resource instanceof Communication) {
+            Communication comm = (Communication) resource;
+            identifier = identifierOf(comm.getIdentifier(), CommunicationFhirRepository.COMMUNICATION_ID_SYSTEM);
+            for (Communication.CommunicationPayloadComponent payload : comm.getPayload()) {
+                if (payload.getContent() instanceof StringType) {
+                    texts.add(((StringType) payload.getContent()).getValue());
+                } else if (payload.getContent() instanceof Attachment) {
+                    texts.add(((Attachment) payload.getContent()).getTitle());
+                }
+            }
+            addScope(scopes, comm.getSender());
+            for (Reference recipient : comm.getRecipient()) {
+                addScope(scopes, recipient);
+            }
+        } else if (resource instanceof Observation) {
+            Observation observation = (Observation) resource;
+            identifier = identifierOf(observation.getIdentifier(), ObservationFhirRepository.OBSERVATION_ID_SYSTEM);
+            if (observation.getValue() instanceof StringType) {
+                texts.add(((StringType) observation.getValue()).getValue());
+            }
+            if (observation.getCode().hasText()) {
+                texts.add(observation.getCode().getText());
+            }
+            addScope(scopes, observation.getSubject());
+            for (Reference performer : observation.getPerformer()) {
+                addScope(scopes, performer);
+            }
+        } else {
+            return;
+        }
+
+        remove(key);
+        if (identifier == null) {
+            // Not the clinic's, or no longer
+            return;
+        }
+
+        int doc = documents.size();
+        String preview = texts.isEmpty() || texts.get(0) == null ? "" : texts.get(0);
+        if (preview.length() > PREVIEW_LENGTH) {
+            preview = preview.substring(0, PREVIEW_LENGTH - 3) + "...";
+        }
+        documents.add(new Document(resource.fhirType(), resource.getIdElement().getIdPart(), identifier, version,
+                preview));
+        current.put(key, doc);
+
+        // Positions of each term; a gap between texts keeps phrases from spanning two of them
+        Map<String, int[]> positions = new LinkedHashMap<>();
+        Map<String, Integer> counts = new HashMap<>();
+        int position = 0;
+        for (String text : texts) {
+            for (String term : SwedishAnalyzer.tokenize(text)) {
+                int count = counts.getOrDefault(term, 0);
+                int[] list = positions.get(term);
+                if (list == null || list.length == count) {
+                    list = list == null ? new int[2] : Arrays.copyOf(list, count * 2);
+                    positions.put(term, list);
+                }
+                list[count] = position++;
+                counts.put(term, count + 1);
+            }
+            position++;
+        }
+        for (Map.Entry<String, int[]> entry : positions.entrySet()) {
+            postings.computeIfAbsent(entry.getKey(), term -> new PostingList())
+                    .add(doc, entry.getValue(), counts.get(entry.getKey()));
+        }
+        postings.computeIfAbsent(TYPE_PREFIX + resource.fhirType(), term -> new PostingList()).add(doc, new int[0], 0);
+        for (String scope : scopes) {
+            postings.computeIfAbsent(SCOPE_PREFIX + scope, term -> new PostingList()).add(doc, new int[0], 0);
+        }
+    }
+
+    /**
+     * Whether the indexed document of a resource is the same or a newer
+     * version than the given one. HAPI numbers versions; versions that
+     * aren't numbers only count as stale when equal. Caller holds the
+     * lock.
+     */
+    private boolean isStale(String key, String version) {
+        Integer existing = current.get(key);
+        if (existing == null || version == null || documents.get(existing).version == null) {
+            return false;
+        }
+        String indexed = documents.get(existing).version;
+        if (version.equals(indexed)) {
+            return true;
+        }
+        try {
+            return Long.parseLong(version) < Long.parseLong(indexed);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Mark a resource's document deleted. Caller holds the lock.
+     */
+    private void remove(String key) {
+        Integer doc = current.remove(key);
+        if (doc == null) {
+            return;
+        }
+        deleted.set(doc);
+        deletedCount++;
+        if (deletedCount > 1000 && deletedCount > current.size()) {
+            compact();
+        }
+    }
+
+    /**
+     * Drop deleted documents from every posting list. Document IDs stay
+     * the same, so lists stay in order.
+     */
+    private void compact() {
+        for (Iterator<Map.Entry<String, PostingList>> it = postings.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, PostingList> entry = it.next();
+            PostingList compacted = entry.getValue().without(deleted);
+            if (compacted == null) {
+                it.remove();
+            } else {
+                entry.setValue(compacted);
+            }
+        }
+        for (int doc = deleted.nextSetBit(0); doc >= 0; doc = deleted.nextSetBit(doc + 1)) {
+            documents.set(doc, null);
+        }
+        deleted.clear();
+        deletedCount = 0;
+    }
+
+    private static boolean phrasesMatch(List<List<String>> phrases, Map<String, PostingList.Cursor> cursors) {
+        for (List<String> phrase : phrases) {
+            if (phrase.size() < 2) {
+                continue;
+            }
+            PostingList.Cursor first = cursors.get(phrase.get(0));
+            boolean found = false;
+            for (int i = 0; i < first.positionCount() && !found; i++) {
+                int start = first.position(i);
+                found = true;
+                for (int j = 1; j < phrase.size(); j++) {
+                    if (!cursors.get(phrase.get(j)).hasPosition(start + j)) {
+                        found = false;
+                        break;
+                    }
+                }
+            }
+            if (!found) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Split a query into phrases; a term outside quotes is a phrase of
+     * one.
+     */
+    static List<List<String>> parse(String query) {
+        List<List<String>> phrases = new ArrayList<>();
+        if (query == null) {
+            return phrases;
+        }
+        String[] parts = query.split("\"", -1);
+        for (int i = 0; i < parts.length; i++) {
+            List<String> terms = SwedishAnalyzer.tokenize(parts[i]);
+            if (i % 2 == 1) {
+                if (!terms.isEmpty()) {
+                    phrases.add(terms);
+                }
+            } else {
+                for (String term : terms) {
+                    phrases.add(List.of(term));
+                }
+            }
+        }
+        return phrases;
+    }
+
+    private static String identifierOf(List<Identifier> identifiers, String system) {
+        for (Identifier identifier : identifiers) {
+            if (system.equals(identifier.getSystem()) && identifier.hasValue()) {
+                return identifier.getValue();
+            }
+        }
+        return null;
+    }
+
+    private static void addScope(Set<String> scopes, Reference reference) {
+        IIdType id = reference == null ? null : reference.getReferenceElement();
+        if (id != null && id.hasResourceType() && id.hasIdPart()) {
+            scopes.add(id.getResourceType() + "/" + id.getIdPart());
+        }
+    }
+
+    private static String keyOf(Bundle.BundleEntryComponent entry) {
+        if (entry.getResource() != null && entry.getResource().getIdElement().hasIdPart()) {
+            return entry.getResource().getIdElement().getIdPart();
+        }
+        // Deletes have no resource, only the request URL ("Communication/123/_history/2")
+        String url = entry.getRequest().getUrl();
+        if (url == null || url.isBlank()) {
+            url = entry.getFullUrl();
+        }
+        return url == null ? null : new IdType(url).getIdPart();
+    }
+
+    private synchronized void startPolling() {
+        if (poller != null || pollIntervalMs <= 0) {
+            return;
+        }
+        poller = VirtualThreads.start("text-index-poller", () -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                try {
+                    Thread.sleep(pollIntervalMs);
+                    poll();
+                } catch (InterruptedException e) {
+                    return;
+                } catch (Exception e) {
+                    System.err.println("Text index poll failed: " + e.getMessage());
+                }
+            }
+        });
+    }
+
+    private static final class Document {
+
+        private final String resourceType;
+        private final String fhirId;
+        private final String identifier;
+        private final String version;
+        private final String preview;
+
+        Document(String resourceType, String fhirId, String identifier, String version, String preview) {
+            this.resourceType = resourceType;
+            this.fhirId = fhirId;
+            this.identifier = identifier;
+            this.version = version;
+            this.preview = preview;
+        }
+    }
+
+    /**
+     * A matching resource and the start of its text.
+     */
+    public static class Hit {
+
+        private final String resourceType;
+        private final String fhirId;
+        private final String identifier;
+        private final String preview;
+
+        Hit(String resourceType, String fhirId, String identifier, String preview) {
+            this.resourceType = resourceType;
+            this.fhirId = fhirId;
+            this.identifier = identifier;
+            this.preview = preview;
+        }
+
+        public String getResourceType() {
+            return resourceType;
+        }
+
+        public String getFhirId() {
+            return fhirId;
+        }
+
+        /**
+         * The clinic's ID of the resource (e.g. the observation ID), or null.
+         */
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        public String getPreview() {
+            return preview;
+        }
+    }
+}
@@ -6,10 +6,13 @@ import com.github.cm2027.lab3.model.mongo.User;
 public class AuthService {
 
     private final UserRepository userRepository;
+    private final SessionStore sessionStore;
     private User currentUser;
+    private String sessionToken;
 
     public AuthService() {
         this.userRepository = new UserRepository();
+        this.sessionStore = SessionStore.getInstance();
         this.currentUser = null;
     }
 
@@ -26,12 +29,48 @@ public class AuthService {
     }
 
     /**
-     * Logout current user
+     * Login with a session token from startSession, without a database
+     * lookup while the session is cached
+     */
+    public boolean loginWithToken(String token) {
+        User user = sessionStore.resolve(token);
+        if (user != null) {
+            this.currentUser = user;
+            this.sessionToken = token;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Issue a session token for the logged-in user
+     */
+    public String startSession() {
+        if (currentUser == null) {
+            throw new IllegalStateException("Not logged in");
+        }
+        this.sessionToken = sessionStore.issue(currentUser);
+        return sessionToken;
+    }
+
+    /**
+     * Logout current user, ending their session token if they have one
      */
     public void logout() {
+        endSession();
         this.currentUser = null;
     }
 
+    /**
+     * Revoke the current session token, if any
+     */
+    public void endSession() {
+        if (sessionToken != null) {
+            sessionStore.revoke(sessionToken);
+            this.sessionToken = null;
+        }
+    }
+
     /**
      * Get currently logged-in user
      */
@@ -0,0 +1,103 @@
+package com.github.cm2027.lab3.service;
+
+import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.AppointmentScheduleIndex;
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.MessageNotifier;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.SearchCoalescer;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.VirtualThreads;
+
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the logged-in user's working set in the background right after
+ * login: their Patient or Practitioner resource, the first page of their
+ * appointments and messages and, for doctors, the coming week's schedule.
+ *
+ * Each part runs on its own virtual thread through SearchCoalescer.warm,
+ * so the searches the menus run next are answered from memory, or join
+ * the prefetch if it is still in flight. Failures are ignored; the menus
+ * simply run the search themselves.
+ *
+ * Kept results are dropped when this process writes a resource of their
+ * type. Messages are also sent by other processes, so the MessageNotifier
+ * is started before the message search is kept; it drops kept message
+ * searches whenever it sees new messages. The AppointmentScheduleIndex
+ * poller does the same for appointments booked or cancelled elsewhere;
+ * the user's schedule is loaded so that it runs.
+ *
+ * Disabled with prefetch.enabled=false.
+ */
+public class PrefetchService {
+
+    private static final String ENABLED_KEY = "prefetch.enabled";
+
+    private final SearchCoalescer searchCoalescer;
+    private final PatientFhirRepository patientRepo;
+    private final PractitionerFhirRepository practitionerRepo;
+    private final AppointmentFhirRepository appointmentRepo;
+    private final CommunicationFhirRepository communicationRepo;
+    private final ExecutorService executor;
+
+    public PrefetchService() {
+        this.searchCoalescer = SearchCoalescer.getInstance();
+        this.patientRepo = new PatientFhirRepository();
+        this.practitionerRepo = new PractitionerFhirRepository();
+        this.appointmentRepo = new AppointmentFhirRepository();
+        this.communicationRepo = new CommunicationFhirRepository();
+        this.executor = VirtualThreads.newPerTaskExecutor("prefetch");
+    }
+
+    /**
+     * Start prefetching for the user and return without waiting. pageSize
+     * must be the page size the list views use, so their first pages match.
+     */
+    public List<Future<?>> prefetch(User user, int pageSize) {
+        List<Future<?>> tasks = new ArrayList<>();
+        if (user == null || user.getPersonRef() == null || !ConfigurationUtil.getBoolean(ENABLED_KEY, true)) {
+            return tasks;
+        }
+        String personRef = user.getPersonRef();
+        MessageNotifier.getInstance().start();
+
+        if (user.getRole() == User.Role.PATIENT) {
+            tasks.add(submit(() -> patientRepo.getPatientSummary(personRef)));
+            tasks.add(submit(() -> appointmentRepo.pageSummariesByPatient(personRef, pageSize).next()));
+            // Also starts the index's poller, which drops kept appointment searches on changes
+            tasks.add(submit(() -> {
+                AppointmentScheduleIndex.getInstance().preload(
+                        "Patient/" + patientRepo.findByPN(personRef).getIdElement().getIdPart());
+                return null;
+            }));
+            tasks.add(submit(() -> communicationRepo.pageMyMessages(personRef, null, pageSize,
+                    CommunicationFhirRepository.MESSAGE_ELEMENTS).next()));
+        } else if (user.getRole() == User.Role.DOCTOR) {
+            tasks.add(submit(() -> practitionerRepo.findByID(personRef)));
+            tasks.add(submit(() -> appointmentRepo.pageSummariesByPractitioner(personRef, pageSize).next()));
+            tasks.add(submit(() -> communicationRepo.pageMyMessages(null, personRef, pageSize,
+                    CommunicationFhirRepository.MESSAGE_ELEMENTS).next()));
+            tasks.add(submit(() -> appointmentRepo.getFreeBusy(personRef,
+                    LocalDate.now(), LocalDate.now().plusDays(6))));
+        }
+        return tasks;
+    }
+
+    private Future<?> submit(Callable<?> task) {
+        return executor.submit(() -> {
+            try {
+                return searchCoalescer.warm(task);
+            } catch (Exception e) {
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,261 @@
+package com.github.cm2027.lab3.service;
+
+import com.github.cm2027.lab3.dao.mongodb.SessionRepository;
+import com.github.cm2027.lab3.dao.mongodb.UserChangeWatcher;
+import com.github.cm2027.lab3.dao.mongodb.UserRepository;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.bson.types.ObjectId;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Issues session tokens after a password login and resolves them back to
+ * the user, so clients authenticate once instead of on every request.
+ *
+ * Verified sessions are kept in memory, keyed by the SHA-256 of the
+ * token, so resolving a token is a map lookup. Sessions expire after
+ * session.ttl-minutes (default 30) without use; each use slides the
+ * expiry forward.
+ *
+ * With session.persist=true, sessions are also written to the MongoDB
+ * sessions collection (see SessionRepository), so they survive a restart
+ * and are shared between servers. A token that isn't in memory is then
+ * looked up there once. To keep requests off the database, the stored
+ * expiry is only extended when a quarter of the TTL has passed, and a
+ * cached session is checked against its document at most every
+ * session.recheck-seconds (default 5), so a session revoked on another
+ * server stops working here within that time.
+ *
+ * Cached sessions follow changes to the users collection through
+ * UserChangeWatcher: a changed user's sessions get the new User (so a
+ * role change applies to the next request) and a deleted user's
+ * sessions are revoked.
+ */
+public class SessionStore implements UserChangeWatcher.Listener {
+
+    private static final String TTL_KEY = "session.ttl-minutes";
+    private static final String PERSIST_KEY = "session.persist";
+    private static final String RECHECK_KEY = "session.recheck-seconds";
+    private static final int TOKEN_BYTES = 32;
+    private static final long SWEEP_INTERVAL_MS = 60_000;
+
+    private static SessionStore instance;
+
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+    private final SecureRandom random = new SecureRandom();
+    private final SessionRepository sessionRepository = new SessionRepository();
+    private final UserRepository userRepository = new UserRepository();
+    private final long ttlMillis;
+    private final boolean persist;
+    private final long recheckMillis;
+    private volatile long lastSweep = System.currentTimeMillis();
+
+    /**
+     * A store of its own, for tests that play several servers; the
+     * application uses getInstance.
+     */
+    public SessionStore(long ttlMillis, boolean persist, long recheckMillis) {
+        this.ttlMillis = ttlMillis;
+        this.persist = persist;
+        this.recheckMillis = recheckMillis;
+    }
+
+    public static synchronized SessionStore getInstance() {
+        if (instance == null) {
+            instance = new SessionStore(
+                    ConfigurationUtil.getInt(TTL_KEY, 30) * 60_000L,
+                    ConfigurationUtil.getBoolean(PERSIST_KEY, false),
+                    ConfigurationUtil.getInt(RECHECK_KEY, 5) * 1000L);
+            UserChangeWatcher.getInstance().addListener(instance);
+        }
+        return instance;
+    }
+
+    /**
+     * Start a session for a user who has just logged in and return its
+     * token.
+     */
+    public String issue(User user) {
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        String key = hash(token);
+
+        long now = System.currentTimeMillis();
+        Session session = new Session(user, now + ttlMillis);
+        sessions.put(key, session);
+        if (persist) {
+            sessionRepository.save(key, user.getUsername(), new Date(session.expiresAt));
+        }
+        sweep(now);
+        return token;
+    }
+
+    /**
+     * The user a token belongs to, or null if it is unknown or expired.
+     */
+    public User resolve(String token) {
+        if (token == null || token.isBlank()) {
+            return null;
+        }
+        String key = hash(token);
+        long now = System.currentTimeMillis();
+
+        Session session = sessions.get(key);
+        if (session == null && persist) {
+            session = load(key, now);
+        }
+        if (session == null) {
+            return null;
+        }
+        if (session.expiresAt <= now) {
+            sessions.remove(key, session);
+            return null;
+        }
+
+        session.expiresAt = now + ttlMillis;
+        if (persist && !checkPersisted(key, session, now)) {
+            // Revoked, possibly by another server
+            sessions.remove(key, session);
+            return null;
+        }
+        sweep(now);
+        return session.user;
+    }
+
+    /**
+     * Extend the stored session when due, or else make sure it still
+     * exists when it hasn't been checked for recheckMillis. Returns false
+     * if the document is gone.
+     */
+    private boolean checkPersisted(String key, Session session, long now) {
+        if (session.expiresAt - session.persistedExpiresAt > ttlMillis / 4) {
+            session.persistedExpiresAt = session.expiresAt;
+            session.checkedAt = now;
+            return sessionRepository.extend(key, new Date(session.expiresAt));
+        }
+        if (now - session.checkedAt >= recheckMillis) {
+            session.checkedAt = now;
+            return sessionRepository.findUsername(key) != null;
+        }
+        return true;
+    }
+
+    /**
+     * End a session. Unknown tokens are ignored.
+     */
+    public void revoke(String token) {
+        if (token == null) {
+            return;
+        }
+        String key = hash(token);
+        sessions.remove(key);
+        if (persist) {
+            sessionRepository.delete(key);
+        }
+    }
+
+    /**
+     * When an unused session expires, in epoch millis, or 0 if the token
+     * is unknown.
+     */
+    public long getExpiresAt(String token) {
+        Session session = sessions.get(hash(token));
+        return session == null ? 0 : session.expiresAt;
+    }
+
+    public int getActiveCount() {
+        return sessions.size();
+    }
+
+    @Override
+    public void onUserChanged(User user) {
+        for (Session session : sessions.values()) {
+            if (sameUser(session.user, user)) {
+                session.user = user;
+            }
+        }
+    }
+
+    @Override
+    public void onUserDeleted(ObjectId userId) {
+        sessions.entrySet().removeIf(entry -> {
+            if (!userId.equals(entry.getValue().user.getId())) {
+                return false;
+            }
+            if (persist) {
+                sessionRepository.delete(entry.getKey());
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Forget every cached session. Persisted sessions are loaded again,
+     * with a fresh User, on their next use.
+     */
+    @Override
+    public void onReset() {
+        sessions.clear();
+    }
+
+    private static boolean sameUser(User a, User b) {
+        return a.getId() != null ? a.getId().equals(b.getId()) : a.getUsername().equals(b.getUsername());
+    }
+
+    private Session load(String key, long now) {
+        String username = sessionRepository.findUsername(key);
+        User user = username == null ? null : userRepository.findByUsername(username);
+        if (user == null) {
+            return null;
+        }
+        Session session = new Session(user, now + ttlMillis);
+        Session existing = sessions.putIfAbsent(key, session);
+        return existing != null ? existing : session;
+    }
+
+    /**
+     * Drop expired sessions from memory, at most once a minute. Called on
+     * issue and resolve.
+     */
+    private void sweep(long now) {
+        if (now - lastSweep < SWEEP_INTERVAL_MS) {
+            return;
+        }
+        lastSweep = now;
+        sessions.values().removeIf(session -> session.expiresAt <= now);
+    }
+
+    private static String hash(String token) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(token.getBytes(StandardCharsets.UTF_8));
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private static final class Session {
+
+        private volatile User user;
+        private volatile long expiresAt;
+        private volatile long persistedExpiresAt;
+        // When the stored session was last found to exist
+        private volatile long checkedAt;
+
+        Session(User user, long expiresAt) {
+            this.user = user;
+            this.expiresAt = expiresAt;
+            this.persistedExpiresAt = expiresAt;
+            this.checkedAt = System.currentTimeMillis();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package com.github.cm2027.lab3.test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Minimal stand-in for a FHIR server's Bulk Data $export, serving the
+ * NDJSON files of a local directory. Files are named after the resource
+ * type they hold, e.g. Patient.ndjson or Patient-2.ndjson.
+ *
+ * The status endpoint answers 202 for the first few polls before returning
+ * the manifest, like a real server that needs time to run the export.
+ *
+ * Run standalone with: BulkExportStubServer <directory> [port]
+ */
+public class BulkExportStubServer {
+
+    private final Path directory;
+    private final int pollsBeforeReady;
+    private final AtomicInteger polls = new AtomicInteger();
+    private HttpServer server;
+
+    public BulkExportStubServer(Path directory, int pollsBeforeReady) {
+        this.directory = directory;
+        this.pollsBeforeReady = pollsBeforeReady;
+    }
+
+    public void start(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        server.createContext("/fhir/$export", this::handleKickOff);
+        server.createContext("/fhir/Group/", this::handleKickOff);
+        server.createContext("/fhir/$export-status", this::handleStatus);
+        server.createContext("/files/", this::handleFile);
+        server.start();
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + "/fhir";
+    }
+
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+        }
+    }
+
+    private void handleKickOff(HttpExchange exchange) throws IOException {
+        polls.set(0);
+        exchange.getResponseHeaders().set("Content-Location", getBaseUrl() + "/$export-status");
+        exchange.sendResponseHeaders(202, -1);
+        exchange.close();
+    }
+
+    private void handleStatus(HttpExchange exchange) throws IOException {
+        if (polls.incrementAndGet() <= pollsBeforeReady) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+            exchange.getResponseHeaders().set("X-Progress", "poll " + polls.get() + " of " + pollsBeforeReady);
+            exchange.sendResponseHeaders(202, -1);
+            exchange.close();
+            return;
+        }
+
+        String fileBase = "http://localhost:" + server.getAddress().getPort() + "/files/";
+        StringBuilder output = new StringBuilder();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.ndjson")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                String type = name.replaceAll("[-.].*$", "");
+                if (output.length() > 0) {
+                    output.append(',');
+                }
+                output.append("{\"type\":\"").append(type)
+                        .append("\",\"url\":\"").append(fileBase).append(name).append("\"}");
+            }
+        }
+
+        String manifest = "{\"transactionTime\":\"" + java.time.Instant.now() + "\","
+                + "\"request\":\"" + getBaseUrl() + "/$export\","
+                + "\"requiresAccessToken\":false,"
+                + "\"output\":[" + output + "],\"error\":[]}";
+        send(exchange, 200, "application/json", manifest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private void handleFile(HttpExchange exchange) throws IOException {
+        String name = exchange.getRequestURI().getPath().substring("/files/".length());
+        Path file = directory.resolve(name).normalize();
+        if (!file.startsWith(directory) || !Files.isRegularFile(file)) {
+            exchange.sendResponseHeaders(404, -1);
+            exchange.close();
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Type", "application/fhir+ndjson");
+        exchange.sendResponseHeaders(200, Files.size(file));
+        try (OutputStream body = exchange.getResponseBody()) {
+            Files.copy(file, body);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String contentType, byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", contentType);
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: BulkExportStubServer <directory> [port]");
+            return;
+        }
+
+        Path directory = Paths.get(args[0]).toAbsolutePath().normalize();
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 8090;
+
+        BulkExportStubServer stub = new BulkExportStubServer(directory, 2);
+        stub.start(port);
+        System.out.println("Serving bulk export of " + directory + " at " + stub.getBaseUrl());
+    }
+}
@@ -1,6 +1,7 @@
 package com.github.cm2027.lab3.test;
 
 import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.RequestPriority;
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.rest.client.api.IGenericClient;
@@ -22,11 +23,11 @@ public class FhirDataExport {
         IParser jsonParser = ctx.newJsonParser().setPrettyPrint(true);
 
         System.out.println("Fetching patients from FHIR server...");
-        Bundle bundle = client.search()
+        Bundle bundle = RequestPriority.supply(RequestPriority.BATCH, () -> client.search()
                 .forResource(Patient.class)
                 .count(100)
                 .returnBundle(Bundle.class)
-                .execute();
+                .execute());
 
         List<String> jsonLines = new ArrayList<>();
         int count = 0;
@@ -0,0 +1,112 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.Main;
+import com.github.cm2027.lab3.cli.AuthCLI;
+import com.github.cm2027.lab3.cli.MainMenuCLI;
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.service.AuthService;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.mongodb.ConnectionString;
+import com.mongodb.MongoClientSettings;
+import org.bson.Document;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Measures CLI startup: time from JVM start to the point where Main shows
+ * the login prompt, and until MongoDB and the FHIR client are ready.
+ *
+ * Start it in a fresh JVM per sample, e.g.
+ *   for i in 1 2 3 4 5; do java -cp ... com.github.cm2027.lab3.test.StartupBenchmark; done
+ *
+ * --eager waits for both subsystems before the prompt, as Main used to.
+ * --train is the appcds profile's training run during mvn package, which
+ * must not depend on or touch the shared servers: it uses an embedded
+ * FHIR server (hapi.fhir.base-url=embedded), sends a create and a search
+ * to it so the client and parser classes are archived too, and loads the
+ * MongoDB driver's settings and codec classes without connecting.
+ */
+public class StartupBenchmark {
+
+    private static final String SAMPLE_PATIENT =
+            "{\"resourceType\":\"Patient\",\"id\":\"1\",\"name\":[{\"family\":\"Berg\",\"given\":[\"Karin\"]}]}";
+
+    public static void main(String[] args) {
+        List<String> options = Arrays.asList(args);
+        boolean eager = options.contains("--eager");
+        boolean train = options.contains("--train");
+
+        long jvmStart = ProcessHandle.current().info().startInstant()
+                .map(Instant::toEpochMilli)
+                .orElse(System.currentTimeMillis());
+        long mainStart = System.currentTimeMillis();
+
+        if (train) {
+            ConfigurationUtil.set("hapi.fhir.base-url", "embedded");
+        }
+
+        try {
+            CompletableFuture<Void> ready = train
+                    ? CompletableFuture.allOf(
+                            CompletableFuture.runAsync(StartupBenchmark::loadMongoDriver),
+                            CompletableFuture.runAsync(ClientSingleton::getInstance))
+                    : Main.startSubsystems();
+            if (eager) {
+                ready.join();
+            }
+
+            AuthService authService = new AuthService();
+            new AuthCLI(authService);
+            new MainMenuCLI(authService);
+            long prompt = System.currentTimeMillis();
+
+            boolean ok = true;
+            try {
+                ready.join();
+            } catch (Exception e) {
+                ok = false;
+            }
+            long subsystemsReady = System.currentTimeMillis();
+
+            if (train) {
+                Patient patient = ClientSingleton.getInstance().getFhirContext().newJsonParser()
+                        .parseResource(Patient.class, SAMPLE_PATIENT);
+                ClientSingleton.getInstance().create().resource(patient).execute();
+                ClientSingleton.getInstance().search().forResource(Patient.class)
+                        .where(Patient.FAMILY.matches().value("Berg"))
+                        .returnBundle(Bundle.class)
+                        .execute();
+            }
+
+            System.out.println("=== Startup (" + (eager ? "eager" : "lazy") + ") ===");
+            System.out.println("JVM start to main:       " + (mainStart - jvmStart) + " ms");
+            System.out.println("main to login prompt:    " + (prompt - mainStart) + " ms");
+            System.out.println("JVM start to prompt:     " + (prompt - jvmStart) + " ms");
+            System.out.println("JVM start to subsystems: " + (subsystemsReady - jvmStart) + " ms"
+                    + (ok ? "" : " (failed)"));
+        } finally {
+            MongoConfig.close();
+            InMemoryFhirServer.stopEmbedded();
+        }
+    }
+
+    /**
+     * Load what creating the MongoDB client loads before it connects,
+     * without creating it.
+     */
+    private static void loadMongoDriver() {
+        MongoClientSettings.builder()
+                .applyConnectionString(new ConnectionString("mongodb://localhost"))
+                .retryWrites(true)
+                .build()
+                .getCodecRegistry()
+                .get(Document.class);
+    }
+}
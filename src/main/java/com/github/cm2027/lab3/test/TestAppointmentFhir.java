@@ -3,10 +3,12 @@ package com.github.cm2027.lab3.test;
 import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
 import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
 import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.SearchProjection;
 import org.hl7.fhir.r4.model.Appointment;
 import org.hl7.fhir.r4.model.Patient;
 import org.hl7.fhir.r4.model.Practitioner;
 
+import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.List;
 
@@ -60,6 +62,25 @@ public class TestAppointmentFhir {
             List<Appointment> practitionerAppointments = appointmentRepo.listByPractitioner(testDoctorID);
             System.out.println("Found " + practitionerAppointments.size() + " appointment(s) for practitioner");
 
+            System.out.println("\n5b. Listing appointments by patient with only list elements...");
+            List<Appointment> partialAppointments = appointmentRepo.listByPatient(
+                    testPN, AppointmentFhirRepository.LIST_ELEMENTS);
+            System.out.println("Partial result: " + SearchProjection.isPartial(partialAppointments.get(0))
+                    + ", has narrative: " + partialAppointments.get(0).hasText());
+
+            System.out.println("\n5c. Booking an overlapping appointment...");
+            try {
+                appointmentRepo.createAppointment(testAppointmentID + "-B", testPN, testDoctorID,
+                        start.plusMinutes(30), end.plusMinutes(30), "Overlapping visit");
+                System.out.println("ERROR: overlapping appointment was accepted");
+            } catch (IllegalArgumentException e) {
+                System.out.println("Rejected: " + e.getMessage());
+            }
+
+            System.out.println("\n5d. Free slots for the practitioner that day...");
+            System.out.println(appointmentRepo.findFreeSlots(testDoctorID, start.withHour(8).withMinute(0),
+                    start.withHour(17).withMinute(0), Duration.ofMinutes(30)));
+
             System.out.println("\n6. Updating appointment...");
             LocalDateTime newStart = start.plusHours(2);
             LocalDateTime newEnd = newStart.plusHours(1);
@@ -0,0 +1,143 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.AppointmentScheduleIndex;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exercises AppointmentScheduleIndex reservations, polling for bookings
+ * made elsewhere, and that concurrent bookings of one slot don't both
+ * succeed, against an InMemoryFhirServer, so it needs no shared server.
+ */
+public class TestAppointmentScheduleIndex {
+
+    private static final int BOOKINGS = 8;
+
+    public static void main(String[] args) {
+        InMemoryFhirServer server = new InMemoryFhirServer();
+        ExecutorService executor = Executors.newFixedThreadPool(BOOKINGS);
+
+        try {
+            System.out.println("=== Testing Appointment Schedule Index ===\n");
+
+            server.start(0);
+            ConfigurationUtil.set("hapi.fhir.base-url", server.getBaseUrl());
+            ConfigurationUtil.set("schedule.poll-interval-ms", "0");
+
+            Patient patient = new PatientFhirRepository().createPatient("19800101-1234", "Lars", "Berg", "MAN",
+                    "070-111111", null);
+            Practitioner practitioner = new PractitionerFhirRepository().createPractitioner("D-BERG", "Maria",
+                    "Svensson", "08-222222");
+            String patientRef = "Patient/" + patient.getIdElement().getIdPart();
+            String practitionerRef = "Practitioner/" + practitioner.getIdElement().getIdPart();
+            AppointmentScheduleIndex index = AppointmentScheduleIndex.getInstance();
+
+            System.out.println("1. Reservations...");
+            long start = System.currentTimeMillis() + 86_400_000L;
+            long end = start + 3_600_000L;
+            AppointmentScheduleIndex.Reservation held = index.reserve("AP-1", practitionerRef, patientRef,
+                    start, end, null);
+            check(index.bookings(practitionerRef, start, end).size() == 1, "reserved time is busy");
+            check(rejected(() -> index.reserve("AP-2", practitionerRef, null, start + 1_800_000L, end, null)),
+                    "overlapping reservation rejected");
+            check(index.reserve("AP-3", null, patientRef, end, end + 3_600_000L, null) != null,
+                    "adjacent reservation allowed");
+            held.close();
+            held.close();
+            check(index.findConflict(practitionerRef, start, end, null) == null, "closing frees the time");
+            check(index.reserve("AP-4", practitionerRef, null, start, end, null) != null, "time can be reserved again");
+            index.clear();
+
+            System.out.println("\n2. Bookings made by other processes...");
+            long otherStart = start + 7 * 86_400_000L;
+            check(index.findConflict(practitionerRef, otherStart, otherStart + 1, null) == null, "schedule loaded");
+            Appointment other = new Appointment();
+            other.setStatus(Appointment.AppointmentStatus.BOOKED);
+            other.setStart(new Date(otherStart));
+            other.setEnd(new Date(otherStart + 3_600_000L));
+            other.addParticipant().getActor().setReference(practitionerRef);
+            // Written straight to the server, as another process would
+            IdType otherId = ClientSingleton.getInstance().create().resource(other).execute().getId();
+            index.poll();
+            check(rejected(() -> index.reserve("AP-5", practitionerRef, null, otherStart, otherStart + 60_000L, null)),
+                    "poll picks up the booking");
+            index.poll();
+            check(index.bookings(practitionerRef, otherStart, otherStart + 1).size() == 1,
+                    "seen again in the overlap, applied once");
+            ClientSingleton.getInstance().delete().resourceById(otherId.toUnqualifiedVersionless()).execute();
+            index.poll();
+            check(index.findConflict(practitionerRef, otherStart, otherStart + 1, null) == null,
+                    "poll picks up the delete");
+            index.clear();
+
+            System.out.println("\n3. Concurrent bookings of one slot...");
+            AppointmentFhirRepository appointmentRepo = new AppointmentFhirRepository();
+            LocalDateTime slot = LocalDateTime.now().plusDays(2).withNano(0);
+            CountDownLatch go = new CountDownLatch(1);
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < BOOKINGS; i++) {
+                String appointmentID = "AP-RACE-" + i;
+                results.add(executor.submit(() -> {
+                    go.await();
+                    try {
+                        appointmentRepo.createAppointment(appointmentID, "19800101-1234", "D-BERG",
+                                slot, slot.plusMinutes(30), "Race");
+                        return true;
+                    } catch (IllegalArgumentException e) {
+                        return false;
+                    }
+                }));
+            }
+            go.countDown();
+            int booked = 0;
+            for (Future<Boolean> result : results) {
+                booked += result.get() ? 1 : 0;
+            }
+            check(booked == 1, "exactly one booking succeeded");
+            check(appointmentRepo.listByPatient("19800101-1234").size() == 1, "one appointment stored");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            executor.shutdownNow();
+            server.stop();
+        }
+    }
+
+    private static boolean rejected(Callable<?> action) throws Exception {
+        try {
+            action.call();
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
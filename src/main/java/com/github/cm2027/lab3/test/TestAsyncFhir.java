@@ -0,0 +1,82 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.dao.fhir.AsyncFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.util.VirtualThreads;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+
+public class TestAsyncFhir {
+
+    public static void main(String[] args) {
+
+        PatientFhirRepository patientRepo = new PatientFhirRepository();
+        List<String> testPNs = new ArrayList<>();
+
+        try (AsyncFhirRepository asyncRepo = new AsyncFhirRepository()) {
+
+            System.out.println("=== Testing Async FHIR Repository ===\n");
+            System.out.println("Virtual threads available: " + VirtualThreads.isAvailable());
+
+            System.out.println("\n0. Setup: Creating patients...");
+            for (int i = 0; i < 5; i++) {
+                String testPN = "19900101-" + ((System.currentTimeMillis() + i) % 10000);
+                patientRepo.createPatient(testPN, "Async", "Test" + i, "KVINNA", null, null);
+                testPNs.add(testPN);
+            }
+            System.out.println("Created " + testPNs.size() + " patients");
+
+            System.out.println("\n1. Fan-out lookup of all patients...");
+            long started = System.currentTimeMillis();
+            List<Patient> patients = asyncRepo.findPatientsByPN(testPNs).join();
+            System.out.println("Found " + patients.size() + " patients in "
+                    + (System.currentTimeMillis() - started) + " ms");
+
+            System.out.println("\n2. Loading patient dashboard...");
+            AsyncFhirRepository.PatientDashboard dashboard = asyncRepo.getPatientDashboard(testPNs.get(0)).join();
+            System.out.println(dashboard.getSummary());
+            System.out.println("Appointments: " + dashboard.getAppointments().size());
+            System.out.println("Messages: " + dashboard.getMessages().size());
+
+            System.out.println("\n3. Testing timeout...");
+            CompletableFuture<Object> slow = asyncRepo.submit(() -> {
+                Thread.sleep(5000);
+                return null;
+            }, Duration.ofMillis(100));
+            try {
+                slow.join();
+                System.out.println("Unexpected: slow call completed");
+            } catch (CompletionException e) {
+                System.out.println("Timed out as expected: " + (e.getCause() instanceof TimeoutException));
+            }
+
+            System.out.println("\n4. Testing cancellation...");
+            CompletableFuture<Patient> cancelled = asyncRepo.findPatientByPN(testPNs.get(1));
+            cancelled.cancel(true);
+            try {
+                cancelled.join();
+                System.out.println("Call finished before it could be cancelled");
+            } catch (CancellationException e) {
+                System.out.println("Cancelled as expected");
+            }
+
+            System.out.println("\n5. Cleanup: Deleting patients...");
+            for (String testPN : testPNs) {
+                patientRepo.deletePatient(testPN, true);
+            }
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
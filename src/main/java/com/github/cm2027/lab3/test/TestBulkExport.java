@@ -0,0 +1,120 @@
+package com.github.cm2027.lab3.test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.MappingIterator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.client.AdmissionController;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.datalake.DataLakeService;
+import com.github.cm2027.lab3.datalake.NdjsonDownloader;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Iterator;
+
+/**
+ * Runs the bulk export ingestion against BulkExportStubServer, using the
+ * patients in patients.json plus a few generated appointments.
+ */
+public class TestBulkExport {
+
+    public static void main(String[] args) {
+        System.out.println("=================================");
+        System.out.println("Testing Bulk Export Ingestion");
+        System.out.println("=================================\n");
+
+        BulkExportStubServer stub = null;
+        DataLakeService service = null;
+
+        try {
+            Path directory = Files.createTempDirectory("bulk-export");
+
+            System.out.println("--- Setup: Writing NDJSON files to " + directory + " ---");
+            int patients = writePatients(new File("patients.json"), directory.resolve("Patient.ndjson"));
+            writeAppointments(directory.resolve("Appointment.ndjson"), 25);
+            System.out.println("Wrote " + patients + " patients and 25 appointments");
+
+            stub = new BulkExportStubServer(directory, 2);
+            stub.start(0);
+
+            service = new DataLakeService();
+
+            System.out.println("\n--- Test 1: Bulk export into data lake ---");
+            service.bulkExport(stub.getBaseUrl(), null);
+
+            System.out.println("\n--- Test 2: Patient Statistics ---");
+            service.showPatientStats();
+
+            System.out.println("\n--- Test 3: Appointment Statistics ---");
+            service.showAppointmentStats();
+
+            System.out.println("\n--- Test 4: Abandoned download releases its connection ---");
+            String fileUrl = stub.getBaseUrl().replace("/fhir", "/files/Patient.ndjson");
+            AdmissionController admission = ClientSingleton.getHttpClient().getAdmission();
+            Iterator<String> lines = new NdjsonDownloader().call(fileUrl);
+            System.out.println("First line: " + lines.next().length() + " chars, batch requests in flight: "
+                    + admission.inFlight(RequestPriority.BATCH));
+            if (admission.inFlight(RequestPriority.BATCH) != 1) {
+                throw new IllegalStateException("The open download should hold a batch permit");
+            }
+            ((Closeable) lines).close();
+            if (admission.inFlight(RequestPriority.BATCH) != 0 || lines.hasNext()) {
+                throw new IllegalStateException("Closing the download should release its permit");
+            }
+            System.out.println("Released after close");
+
+            System.out.println("\n=================================");
+            System.out.println("✓ All tests passed!");
+            System.out.println("=================================");
+
+        } catch (Exception e) {
+            System.err.println("\n✗ Test failed!");
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (service != null) {
+                service.close();
+            }
+            if (stub != null) {
+                stub.stop();
+            }
+        }
+    }
+
+    /**
+     * Convert concatenated JSON resources to NDJSON, one resource per line.
+     */
+    private static int writePatients(File source, Path target) throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        int count = 0;
+        try (MappingIterator<JsonNode> resources = mapper.readerFor(JsonNode.class).readValues(source);
+             BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            while (resources.hasNext()) {
+                writer.write(mapper.writeValueAsString(resources.next()));
+                writer.newLine();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static void writeAppointments(Path target, int count) throws Exception {
+        try (BufferedWriter writer = Files.newBufferedWriter(target, StandardCharsets.UTF_8)) {
+            for (int i = 1; i <= count; i++) {
+                String status = i % 5 == 0 ? "cancelled" : "booked";
+                writer.write("{\"resourceType\":\"Appointment\",\"id\":\"bulk-" + i + "\","
+                        + "\"status\":\"" + status + "\","
+                        + "\"description\":\"Bulk export check-up " + i + "\","
+                        + "\"start\":\"2025-11-" + String.format("%02d", (i % 28) + 1) + "T09:00:00+01:00\","
+                        + "\"end\":\"2025-11-" + String.format("%02d", (i % 28) + 1) + "T09:30:00+01:00\","
+                        + "\"participant\":[{\"status\":\"accepted\"}]}");
+                writer.newLine();
+            }
+        }
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.dao.mongodb.ConversationRepository;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+
+import java.util.Date;
+
+/**
+ * Exercises the MongoDB conversation index: unread counts, replayed
+ * messages and repairing a message whose inbox updates failed part-way.
+ * Uses made-up participants and removes them afterwards.
+ */
+public class TestConversationIndex {
+
+    public static void main(String[] args) {
+
+        ConversationRepository conversations = new ConversationRepository();
+        String suffix = Long.toString(System.currentTimeMillis());
+        String patient = "Patient/test-" + suffix;
+        String doctor = "Practitioner/test-" + suffix;
+        String first = "CM-test-1-" + suffix;
+        String second = "CM-test-2-" + suffix;
+
+        try {
+            System.out.println("=== Testing Conversation Index ===\n");
+
+            System.out.println("1. Recording two messages to the patient...");
+            check(conversations.record(first, "f1", doctor, patient, new Date(), "Your results are ready", true),
+                    "first message recorded");
+            check(conversations.record(second, "f2", doctor, patient, new Date(), "Please call us", true),
+                    "second message recorded");
+            check(conversations.countUnread(patient) == 2, "patient has 2 unread");
+            check(conversations.countUnread(doctor) == 0, "sender has none unread");
+
+            System.out.println("\n2. Replaying a message...");
+            check(!conversations.record(second, "f2", doctor, patient, new Date(), "Please call us", true),
+                    "replay is skipped");
+            check(conversations.countUnread(patient) == 2, "still 2 unread");
+
+            System.out.println("\n3. Repairing a message whose inbox updates failed...");
+            // As if the process died after inserting the message, before the inbox updates
+            MongoConfig.getDatabase().getCollection("conversation_messages")
+                    .updateOne(Filters.eq("_id", second), Updates.set("applied", false));
+            MongoConfig.getDatabase().getCollection("conversations")
+                    .updateOne(Filters.eq("_id", patient + "|" + doctor), Updates.pull("unreadIds", second));
+            check(conversations.countUnread(patient) == 1, "inbox lost the message");
+            check(conversations.record(second, "f2", doctor, patient, new Date(), "Please call us", true),
+                    "retry applies it");
+            check(conversations.countUnread(patient) == 2, "back to 2 unread");
+            check(!conversations.record(second, "f2", doctor, patient, new Date(), "Please call us", true),
+                    "and the next replay is skipped again");
+
+            System.out.println("\n4. Marking the conversation read...");
+            conversations.markRead(patient, doctor);
+            check(conversations.countUnread(patient) == 0, "nothing unread");
+            check(!conversations.record(first, "f1", doctor, patient, new Date(), "Your results are ready", true),
+                    "a replayed read message is skipped");
+            check(conversations.countUnread(patient) == 0, "and doesn't become unread again");
+            check(conversations.findMessages(patient, doctor, 10).size() == 2, "both messages in the conversation");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            try {
+                MongoConfig.getDatabase().getCollection("conversation_messages")
+                        .deleteMany(Filters.in("_id", first, second));
+                MongoConfig.getDatabase().getCollection("conversations")
+                        .deleteMany(Filters.in("_id", patient + "|" + doctor, doctor + "|" + patient));
+            } catch (RuntimeException e) {
+                System.err.println("Cleanup failed: " + e.getMessage());
+            }
+            MongoConfig.close();
+        }
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,44 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.datalake.DataLakeService;
+
+/**
+ * Loads patients.json (or the file given as argument) into the data lake
+ * without a FHIR server.
+ */
+public class TestFileIngest {
+
+    public static void main(String[] args) {
+        System.out.println("=================================");
+        System.out.println("Testing File Ingestion");
+        System.out.println("=================================\n");
+
+        String file = args.length > 0 ? args[0] : "patients.json";
+        DataLakeService service = null;
+
+        try {
+            service = new DataLakeService();
+
+            System.out.println("\n--- Test 1: Ingest " + file + " ---");
+            long start = System.currentTimeMillis();
+            service.ingestFile(file, "Patient");
+            System.out.println("Took " + (System.currentTimeMillis() - start) + " ms");
+
+            System.out.println("\n--- Test 2: Patient Statistics ---");
+            service.showPatientStats();
+
+            System.out.println("\n=================================");
+            System.out.println("✓ All tests passed!");
+            System.out.println("=================================");
+
+        } catch (Exception e) {
+            System.err.println("\n✗ Test failed!");
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (service != null) {
+                service.close();
+            }
+        }
+    }
+}
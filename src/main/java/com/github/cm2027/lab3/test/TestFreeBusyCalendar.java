@@ -0,0 +1,121 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.FreeBusyCalendar;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+
+import java.time.Duration;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Exercises FreeBusyCalendar's slot bitmaps (rounding to slots, the word
+ * boundary, midnight, daylight saving days and rebuilds on change)
+ * against an InMemoryFhirServer, so it needs no shared server. Runs in
+ * Stockholm time so the daylight saving days are known.
+ */
+public class TestFreeBusyCalendar {
+
+    private static final String PN = "19800101-1234";
+    private static final String DOCTOR = "D-LUND";
+
+    public static void main(String[] args) {
+        TimeZone.setDefault(TimeZone.getTimeZone("Europe/Stockholm"));
+        InMemoryFhirServer server = new InMemoryFhirServer();
+
+        try {
+            System.out.println("=== Testing Free/Busy Calendar ===\n");
+
+            server.start(0);
+            ConfigurationUtil.set("hapi.fhir.base-url", server.getBaseUrl());
+            ConfigurationUtil.set("schedule.poll-interval-ms", "0");
+            new PatientFhirRepository().createPatient(PN, "Lars", "Berg", "MAN", "070-111111", null);
+            new PractitionerFhirRepository().createPractitioner(DOCTOR, "Erik", "Lund", "08-222222");
+            AppointmentFhirRepository appointmentRepo = new AppointmentFhirRepository();
+            LocalDate day = LocalDate.of(2030, 6, 10);
+
+            System.out.println("1. Empty days...");
+            List<FreeBusyCalendar.Window> windows = appointmentRepo.getFreeBusy(DOCTOR, day, day.plusDays(1));
+            check(windows.size() == 1 && !windows.get(0).isBusy()
+                    && windows.get(0).getDuration().equals(Duration.ofHours(48)), "two free days merge");
+
+            System.out.println("\n2. Rounding to slots...");
+            book("AP-1", day.atTime(9, 10), day.atTime(9, 50));
+            windows = appointmentRepo.getFreeBusy(DOCTOR, day, day);
+            check(windows.size() == 3, "free, busy, free");
+            check(busyFrom(windows, day.atTime(9, 0), day.atTime(10, 0)), "busy covers every slot touched");
+
+            System.out.println("\n3. Across the second word of the bitmap...");
+            // Slot 63 starts 15:45, slot 64 16:00
+            book("AP-2", day.atTime(15, 45), day.atTime(16, 15));
+            windows = appointmentRepo.getFreeBusy(DOCTOR, day, day);
+            check(busyFrom(windows, day.atTime(15, 45), day.atTime(16, 15)), "slots 63 and 64");
+            check(windows.size() == 5, "two busy windows");
+
+            System.out.println("\n4. Across midnight...");
+            book("AP-3", day.atTime(23, 30), day.plusDays(1).atTime(0, 30));
+            windows = appointmentRepo.getFreeBusy(DOCTOR, day, day.plusDays(1));
+            check(busyFrom(windows, day.atTime(23, 30), day.plusDays(1).atTime(0, 30)), "merged across days");
+            check(windows.get(windows.size() - 1).getEnd().equals(day.plusDays(2).atStartOfDay()), "ends at midnight");
+
+            System.out.println("\n5. Changes rebuild the day...");
+            appointmentRepo.deleteAppointment("AP-1", true);
+            windows = appointmentRepo.getFreeBusy(DOCTOR, day, day);
+            check(!busyFrom(windows, day.atTime(9, 0), day.atTime(10, 0)), "deleted booking is free again");
+            check(windows.size() == 4, "remaining bookings kept");
+
+            System.out.println("\n6. Daylight saving days...");
+            LocalDate spring = LocalDate.of(2030, 3, 31);
+            LocalDate autumn = LocalDate.of(2030, 10, 27);
+            check(total(appointmentRepo.getFreeBusy(DOCTOR, spring, spring)).equals(Duration.ofHours(23)),
+                    "spring day has 23 hours");
+            book("AP-4", autumn.atTime(23, 45), autumn.plusDays(1).atStartOfDay());
+            windows = appointmentRepo.getFreeBusy(DOCTOR, autumn, autumn);
+            check(total(windows).equals(Duration.ofHours(25)), "autumn day has 25 hours");
+            check(busyFrom(windows, autumn.atTime(23, 45), autumn.plusDays(1).atStartOfDay()),
+                    "the hundredth slot");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static void book(String appointmentID, LocalDateTime start, LocalDateTime end) throws Exception {
+        new AppointmentFhirRepository().createAppointment(appointmentID, PN, DOCTOR, start, end, null);
+    }
+
+    private static boolean busyFrom(List<FreeBusyCalendar.Window> windows, LocalDateTime start, LocalDateTime end) {
+        for (FreeBusyCalendar.Window window : windows) {
+            if (window.isBusy() && window.getStart().equals(start) && window.getEnd().equals(end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Duration total(List<FreeBusyCalendar.Window> windows) {
+        Duration total = Duration.ZERO;
+        for (FreeBusyCalendar.Window window : windows) {
+            total = total.plus(window.getDuration());
+        }
+        return total;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
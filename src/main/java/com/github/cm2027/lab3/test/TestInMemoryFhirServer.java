@@ -0,0 +1,123 @@
+package com.github.cm2027.lab3.test;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import ca.uhn.fhir.rest.param.DateRangeParam;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.fhir.AppointmentFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.ResourceVersionCache;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import com.github.cm2027.lab3.util.StreamUtil;
+import org.hl7.fhir.r4.model.Appointment;
+import org.hl7.fhir.r4.model.Bundle;
+import org.hl7.fhir.r4.model.Patient;
+
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.util.Date;
+
+/**
+ * Runs the repositories against an InMemoryFhirServer seeded from
+ * patients.json instead of the shared HAPI server.
+ */
+public class TestInMemoryFhirServer {
+
+    private static final int SEARCHES = 2000;
+
+    public static void main(String[] args) {
+        String seedFile = args.length > 0 ? args[0] : "patients.json";
+        InMemoryFhirServer server = new InMemoryFhirServer();
+
+        try {
+            System.out.println("=== Testing In-Memory FHIR Server ===\n");
+
+            System.out.println("0. Setup: Seeding from " + seedFile);
+            int seeded = server.seed(Paths.get(seedFile));
+            server.start(0);
+            ConfigurationUtil.set("hapi.fhir.base-url", server.getBaseUrl());
+            System.out.println("Loaded " + seeded + " resources, serving at " + server.getBaseUrl());
+
+            IGenericClient client = ClientSingleton.getInstance();
+            PatientFhirRepository patientRepo = new PatientFhirRepository();
+            PractitionerFhirRepository practitionerRepo = new PractitionerFhirRepository();
+            AppointmentFhirRepository appointmentRepo = new AppointmentFhirRepository();
+
+            System.out.println("\n1. Looking up a seeded patient by personnummer...");
+            Bundle firstPage = client.search().forResource(Patient.class)
+                    .count(1).returnBundle(Bundle.class).execute();
+            Patient seededPatient = (Patient) firstPage.getEntryFirstRep().getResource();
+            String pn = patientRepo.getPatientPN(seededPatient);
+            Patient found = patientRepo.findByPN(pn);
+            System.out.println("Found " + pn + ": " + found.getIdElement().getIdPart());
+
+            System.out.println("\n2. Paging through all patients 7 at a time...");
+            StreamUtil<Patient> util = new StreamUtil<>(client, Patient.class);
+            long counted = util.streamAll(c -> c.search().forResource(Patient.class)
+                    .count(7).returnBundle(Bundle.class).execute()).count();
+            System.out.println("Patients seen: " + counted + " of " + server.count("Patient"));
+
+            System.out.println("\n3. Creating a practitioner, patient and appointments...");
+            String doctorID = "D-" + (System.currentTimeMillis() % 100000);
+            String testPN = "19700101-" + (System.currentTimeMillis() % 10000);
+            practitionerRepo.createPractitioner(doctorID, "Erik", "Lund", null);
+            patientRepo.createPatient(testPN, "Åsa", "Ström", "KVINNA", null, null);
+            LocalDateTime start = LocalDateTime.now().plusDays(1).withHour(9).withMinute(0).withSecond(0).withNano(0);
+            for (int i = 0; i < 3; i++) {
+                appointmentRepo.createAppointment("A-" + doctorID + "-" + i, testPN, doctorID,
+                        start.plusHours(i), start.plusHours(i).plusMinutes(30), "Checkup " + i);
+            }
+            System.out.println("Appointments for patient: " + appointmentRepo.listByPatient(testPN).size());
+            System.out.println("Appointments for practitioner: " + appointmentRepo.listByPractitioner(doctorID).size());
+            System.out.println("Search by accent-free name: " + patientRepo.searchByName("asa", "strom").size());
+            System.out.println("Type-ahead with a typo: " + patientRepo.suggestByName("asa strm", 5).size());
+
+            System.out.println("\n4. _include and _lastUpdated...");
+            Bundle included = client.search().forResource(Appointment.class)
+                    .where(Appointment.PRACTITIONER.hasId(practitionerRepo.findByID(doctorID).getIdElement().getIdPart()))
+                    .include(Appointment.INCLUDE_PATIENT)
+                    .returnBundle(Bundle.class).execute();
+            long includes = included.getEntry().stream()
+                    .filter(e -> e.getSearch().getMode() == Bundle.SearchEntryMode.INCLUDE).count();
+            System.out.println("Matches: " + (included.getEntry().size() - includes) + ", included: " + includes);
+            Bundle recent = client.search().forResource(Appointment.class)
+                    .lastUpdated(new DateRangeParam(
+                            new Date(System.currentTimeMillis() - 60_000), null))
+                    .returnBundle(Bundle.class).execute();
+            System.out.println("Appointments updated in the last minute: " + recent.getTotal());
+
+            System.out.println("\n5. Conditional reads...");
+            ResourceVersionCache cache = ResourceVersionCache.getInstance();
+            String id = found.getIdElement().getIdPart();
+            cache.read(Patient.class, id);
+            cache.read(Patient.class, id);
+            System.out.println("304 Not Modified responses: " + cache.getNotModifiedCount());
+
+            System.out.println("\n6. Timing " + SEARCHES + " identifier searches...");
+            long started = System.nanoTime();
+            for (int i = 0; i < SEARCHES; i++) {
+                client.search().forResource(Patient.class)
+                        .where(Patient.IDENTIFIER.exactly().code(pn))
+                        .returnBundle(Bundle.class).execute();
+            }
+            long micros = (System.nanoTime() - started) / 1000 / SEARCHES;
+            System.out.println("Mean round trip: " + micros + " us");
+
+            System.out.println("\n7. Cleanup: Deleting test data...");
+            for (int i = 0; i < 3; i++) {
+                appointmentRepo.deleteAppointment("A-" + doctorID + "-" + i, true);
+            }
+            patientRepo.deletePatient(testPN, true);
+            practitionerRepo.deletePractitioner(doctorID, true);
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            server.stop();
+        }
+    }
+}
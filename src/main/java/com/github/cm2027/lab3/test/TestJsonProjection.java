@@ -0,0 +1,66 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.dao.fhir.JsonProjection;
+import com.github.cm2027.lab3.dao.fhir.ProjectedRecord;
+import com.github.cm2027.lab3.datalake.FhirRowMapper;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Checks JsonProjection paths on hand-written FHIR JSON; needs no server.
+ */
+public class TestJsonProjection {
+
+    private static final String PATIENT = "{\"resourceType\":\"Patient\",\"id\":\"p1\","
+            + "\"identifier\":[{\"system\":\"http://example.org/mrn\",\"value\":\"MRN-1\"},"
+            + "{\"system\":\"http://electronichealth.se/identifier/personnummer\",\"value\":\"19800101-1234\"}],"
+            + "\"name\":[{\"use\":\"official\",\"given\":[\"Anna\",\"Maria\"]},"
+            + "{\"use\":\"nickname\",\"given\":[\"Nisse\"],\"family\":\"Alias\"}],"
+            + "\"gender\":\"female\"}";
+
+    public static void main(String[] args) {
+        try {
+            System.out.println("=== Testing JSON Projection ===\n");
+
+            ProjectedRecord any = extract(new JsonProjection("Patient", "name.given", "name.family"));
+            check("Anna Maria".equals(any.get("name.given")), "string arrays are joined");
+            check("Alias".equals(any.get("name.family")), "without [0] each path takes the first value anywhere");
+
+            ProjectedRecord patient = extract(FhirRowMapper.PATIENT_PROJECTION);
+            check("p1".equals(patient.get("id")), "id");
+            check("Anna Maria".equals(patient.get("name[0].given")), "given name of the first name");
+            check(patient.get("name[0].family") == null, "family name not taken from the second name");
+            check(FhirRowMapper.PATIENT_PROJECTION.getElements().contains("name"), "[0] still selects the element");
+
+            ProjectedRecord pn = extract(new JsonProjection("Patient",
+                    "identifier[system=http://electronichealth.se/identifier/personnummer].value", "name.given[0]"));
+            check("19800101-1234".equals(pn.get(0)), "filter picks the identifier by system");
+            check("Anna".equals(pn.get(1)), "[0] on a string array");
+
+            try {
+                new JsonProjection("Patient", "name.family", "name[0].given");
+                check(false, "conflicting selectors rejected");
+            } catch (IllegalArgumentException e) {
+                check(true, "conflicting selectors rejected");
+            }
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static ProjectedRecord extract(JsonProjection projection) throws Exception {
+        return projection.extractResource(new ByteArrayInputStream(PATIENT.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.cm2027.lab3.test;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.parser.IParser;
+import com.github.cm2027.lab3.datalake.MappedNdjsonScanner;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Scans patients.json (or the file given as argument) with the memory-mapped
+ * scanner, first counting records only, then parsing them on all cores.
+ */
+public class TestMappedScanner {
+
+    public static void main(String[] args) {
+        String file = args.length > 0 ? args[0] : "patients.json";
+        int cores = Runtime.getRuntime().availableProcessors();
+
+        try (MappedNdjsonScanner scanner = MappedNdjsonScanner.open(Paths.get(file))) {
+            System.out.println("=== Testing Memory-Mapped Scanner ===\n");
+            System.out.println("File: " + file + " (" + scanner.size() + " bytes)");
+
+            System.out.println("\n1. Finding record boundaries without parsing...");
+            AtomicLong bytes = new AtomicLong();
+            long start = System.nanoTime();
+            long records = scanner.scanParallel(cores, record -> bytes.addAndGet(record.getLength()));
+            System.out.println(records + " records, " + bytes.get() + " bytes in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+            System.out.println("\n2. Parsing every record on " + cores + " threads...");
+            FhirContext context = FhirContext.forR4();
+            ThreadLocal<IParser> parsers = ThreadLocal.withInitial(context::newJsonParser);
+            Map<String, AtomicLong> byType = new ConcurrentHashMap<>();
+            start = System.nanoTime();
+            scanner.scanParallel(cores, record -> {
+                IBaseResource resource = record.parse(parsers.get());
+                byType.computeIfAbsent(resource.fhirType(), type -> new AtomicLong()).incrementAndGet();
+            });
+            System.out.println("Parsed " + byType + " in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.dao.mongodb.AttachmentRepository;
+import com.github.cm2027.lab3.model.mongo.MessageAttachment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Exercises message attachments in GridFS: download names, streaming
+ * and range reads, and claiming an attachment for one message only.
+ * Uploads a small test file and deletes it afterwards.
+ */
+public class TestMessageAttachments {
+
+    private static final int SENDERS = 8;
+
+    public static void main(String[] args) {
+
+        AttachmentRepository attachmentRepo = new AttachmentRepository();
+        MessageAttachment attachment = null;
+        ExecutorService executor = Executors.newFixedThreadPool(SENDERS);
+
+        try {
+            System.out.println("=== Testing Message Attachments ===\n");
+
+            System.out.println("1. Download names...");
+            check(named("../../.bashrc").getSafeFilename().equals(".bashrc"), "parent directories dropped");
+            check(named("/etc/passwd").getSafeFilename().equals("passwd"), "absolute path dropped");
+            check(named("C:\\Users\\x\\report.pdf").getSafeFilename().equals("report.pdf"), "backslashes dropped");
+            check(named("a\nb.txt").getSafeFilename().equals("ab.txt"), "control characters dropped");
+            check(named("..").getSafeFilename().startsWith("attachment-"), "nothing left");
+
+            System.out.println("\n2. Upload and download...");
+            byte[] content = "0123456789abcdefghij".getBytes(StandardCharsets.UTF_8);
+            attachment = attachmentRepo.upload("../test-attachment.txt", "text/plain", "test-user",
+                    new ByteArrayInputStream(content));
+            check(attachment.getLength() == content.length && attachment.getSha1() != null, "stored with a hash");
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            attachmentRepo.download(attachment.getId(), out);
+            check(new String(out.toByteArray(), StandardCharsets.UTF_8).equals("0123456789abcdefghij"), "whole file");
+            out.reset();
+            attachmentRepo.download(attachment.getId(), 5, 5, out);
+            check(new String(out.toByteArray(), StandardCharsets.UTF_8).equals("56789"), "range");
+
+            System.out.println("\n3. Concurrent sends claim it once...");
+            MessageAttachment shared = attachment;
+            List<Future<Boolean>> claims = new ArrayList<>();
+            for (int i = 0; i < SENDERS; i++) {
+                String communicationId = "CM-test-" + i;
+                Callable<Boolean> claim = () -> attachmentRepo.claim(shared.getId(), communicationId,
+                        List.of("Patient/test", "Practitioner/test"));
+                claims.add(executor.submit(claim));
+            }
+            String winner = null;
+            int won = 0;
+            for (int i = 0; i < SENDERS; i++) {
+                if (claims.get(i).get()) {
+                    won++;
+                    winner = "CM-test-" + i;
+                }
+            }
+            check(won == 1, "exactly one send got the attachment");
+            check(winner.equals(attachmentRepo.find(attachment.getId()).getCommunicationId()), "linked to that send");
+
+            System.out.println("\n4. A failed send releases it...");
+            attachmentRepo.release(attachment.getId(), "CM-someone-else");
+            check(attachmentRepo.find(attachment.getId()).getCommunicationId() != null, "other messages can't release it");
+            attachmentRepo.release(attachment.getId(), winner);
+            check(attachmentRepo.find(attachment.getId()).getCommunicationId() == null, "released");
+            check(attachmentRepo.claim(attachment.getId(), "CM-test-retry", List.of("Patient/test")), "can be sent again");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            executor.shutdown();
+            if (attachment != null) {
+                attachmentRepo.delete(attachment.getId());
+            }
+            MongoConfig.close();
+        }
+    }
+
+    private static MessageAttachment named(String filename) {
+        MessageAttachment attachment = new MessageAttachment();
+        attachment.setFilename(filename);
+        return attachment;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,116 @@
+package com.github.cm2027.lab3.test;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.fhir.MessageNotifier;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Exercises MessageNotifier polling (the first poll, the overlap window,
+ * edits, and paging) against an InMemoryFhirServer, so it needs no shared
+ * server. Messages have no clinic ID, so the conversation index in
+ * MongoDB is not touched.
+ */
+public class TestMessageNotifier {
+
+    // More than one page of the notifier's search
+    private static final int BURST = 250;
+
+    public static void main(String[] args) {
+        InMemoryFhirServer server = new InMemoryFhirServer();
+
+        try {
+            System.out.println("=== Testing Message Notifier ===\n");
+
+            server.start(0);
+            ConfigurationUtil.set("hapi.fhir.base-url", server.getBaseUrl());
+            ConfigurationUtil.set("messages.poll-interval-ms", "0");
+            IGenericClient client = ClientSingleton.getInstance();
+
+            MessageNotifier notifier = MessageNotifier.getInstance();
+            List<MessageNotifier.Notification> received = new CopyOnWriteArrayList<>();
+            notifier.addListener(received::add);
+
+            System.out.println("1. First poll...");
+            client.create().resource(message("Patient/p1", "Sent before anyone listened")).execute();
+            notifier.poll();
+            check(received.isEmpty(), "messages from before the first poll are old");
+
+            System.out.println("\n2. New messages and the overlap window...");
+            MethodOutcome created = client.create().resource(message("Patient/p1", "Hej")).execute();
+            client.create().resource(message("Patient/p2", "Hallå")).execute();
+            notifier.poll();
+            check(received.size() == 2, "both new messages notified");
+            check(received.get(0).getText().equals("Hej") && received.get(1).getText().equals("Hallå"),
+                    "in the order they were updated");
+            notifier.poll();
+            notifier.poll();
+            check(received.size() == 2, "messages read again in the overlap are skipped");
+
+            System.out.println("\n3. Edits...");
+            Communication edited = message("Patient/p1", "Hej igen");
+            edited.setId(created.getId().toUnqualifiedVersionless());
+            client.update().resource(edited).execute();
+            notifier.poll();
+            check(received.size() == 2, "a new version of a message is not a new message");
+
+            System.out.println("\n4. Paging...");
+            received.clear();
+            for (int i = 0; i < BURST; i++) {
+                client.create().resource(message("Patient/p3", "Meddelande " + i)).execute();
+            }
+            notifier.poll();
+            Set<String> ids = new HashSet<>();
+            for (MessageNotifier.Notification notification : received) {
+                ids.add(notification.getFhirId());
+            }
+            check(received.size() == BURST && ids.size() == BURST, "every message of every page once");
+            notifier.poll();
+            check(received.size() == BURST, "nothing repeated on the next poll");
+
+            System.out.println("\n5. Waiting for a recipient's messages...");
+            long after = notifier.getSequence();
+            client.create().resource(message("Patient/p2", "Till p2")).execute();
+            client.create().resource(message("Patient/p1", "Till p1")).execute();
+            notifier.poll();
+            List<MessageNotifier.Notification> found = notifier.awaitMessages("Patient/p1", after, 0);
+            check(found.size() == 1 && found.get(0).getText().equals("Till p1"), "only the recipient's");
+            check(notifier.awaitMessages("Patient/p1", found.get(0).getSequence(), 100).isEmpty(),
+                    "times out when nothing is new");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Communication message(String recipient, String text) {
+        Communication comm = new Communication();
+        comm.setStatus(Communication.CommunicationStatus.COMPLETED);
+        comm.setSender(new Reference("Practitioner/d1"));
+        comm.addRecipient(new Reference(recipient));
+        comm.addPayload().setContent(new StringType(text));
+        return comm;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.cm2027.lab3.test;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.PractitionerFhirRepository;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.search.NameIndex;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.hl7.fhir.r4.model.Identifier;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Practitioner;
+
+import java.util.List;
+
+/**
+ * Exercises NameIndex (folding, prefix matches, trigram candidates and
+ * the edit distance) against an InMemoryFhirServer, so it needs no
+ * shared server.
+ */
+public class TestNameIndex {
+
+    public static void main(String[] args) {
+        InMemoryFhirServer server = new InMemoryFhirServer();
+
+        try {
+            System.out.println("=== Testing Name Index ===\n");
+
+            System.out.println("1. Folding...");
+            check(NameIndex.fold("Åsa-Britt Ström").equals(List.of("asa", "britt", "strom")), "accents and hyphens");
+            check(NameIndex.fold("Søren ÆBELØ").equals(List.of("soren", "aebelo")), "letters without decomposition");
+            check(NameIndex.fold(" ,- ").isEmpty() && NameIndex.fold(null).isEmpty(), "nothing to fold");
+
+            server.start(0);
+            ConfigurationUtil.set("hapi.fhir.base-url", server.getBaseUrl());
+            ConfigurationUtil.set("names.poll-interval-ms", "0");
+            IGenericClient client = ClientSingleton.getInstance();
+
+            Patient johan = patient("19800101-1234", "Johan", "Andersson");
+            // The display identifier is the personnummer, not the first one listed
+            johan.getIdentifier().add(0, new Identifier().setSystem("http://example.org/mrn").setValue("MRN-1"));
+            MethodOutcome created = client.create().resource(johan).execute();
+            client.create().resource(patient("19900202-2345", "Johanna", "Berg")).execute();
+            client.create().resource(patient("19700303-3456", "Åsa-Britt", "Ström")).execute();
+            Patient foreign = patient(null, "Johan", "Främling");
+            client.create().resource(foreign).execute();
+            Practitioner lund = new Practitioner();
+            lund.addIdentifier().setSystem(PractitionerFhirRepository.DOCTOR_ID_SYSTEM).setValue("D-LUND");
+            lund.addName().addGiven("Erik").setFamily("Lund");
+            client.create().resource(lund).execute();
+
+            NameIndex index = NameIndex.getInstance();
+
+            System.out.println("\n2. Exact and prefix matches...");
+            List<NameIndex.Match> matches = index.search("johan", "Patient", 10);
+            check(matches.size() == 2, "the person without a personnummer is not indexed");
+            check(matches.get(0).getName().equals("Johan Andersson") && matches.get(0).getScore() == 0, "exact first");
+            check(matches.get(0).getIdentifier().equals("19800101-1234"), "personnummer shown");
+            check(matches.get(1).getName().equals("Johanna Berg") && matches.get(1).getScore() == 0.5,
+                    "prefix second");
+            check(index.search("strom asa", "Patient", 10).get(0).getScore() == 0, "folded words in any order");
+            check(index.search("britt", "Patient", 10).size() == 1, "hyphenated given name");
+            check(index.search("jo an", "Patient", 10).size() == 1, "every word must match");
+
+            System.out.println("\n3. Misspellings...");
+            matches = index.search("jhoan", "Patient", 10);
+            check(matches.size() == 1 && matches.get(0).getScore() == 1, "swapped letters are one edit");
+            check(index.search("andresson", "Patient", 10).get(0).getScore() == 1, "swap in a long name");
+            check(index.search("anderssen", "Patient", 10).get(0).getScore() == 1, "substitution");
+            check(index.search("andrsn", "Patient", 10).isEmpty(), "three edits are too many");
+            matches = index.search("lnud", "Practitioner", 10);
+            check(matches.size() == 1 && matches.get(0).getIdentifier().equals("D-LUND"), "doctor ID shown");
+            check(index.search("lnud", "Patient", 10).isEmpty(), "limited to the type");
+            check(index.search("jon", "Patient", 10).isEmpty(), "short words only match as prefixes");
+
+            System.out.println("\n4. Updates and versions...");
+            Patient stale = client.read().resource(Patient.class)
+                    .withId(created.getId().toUnqualifiedVersionless()).execute();
+            Patient renamed = patient("19800101-1234", "Johan", "Lindqvist");
+            renamed.setId(created.getId().toUnqualifiedVersionless());
+            client.update().resource(renamed).execute();
+            index.poll();
+            check(index.search("lindqvist", "Patient", 10).size() == 1, "poll picks up the new name");
+            check(index.search("andersson", "Patient", 10).isEmpty(), "old name is gone");
+            index.onSaved(stale);
+            check(index.search("lindqvist", "Patient", 10).size() == 1, "an older version doesn't replace it");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Patient patient(String pn, String given, String family) {
+        Patient patient = new Patient();
+        if (pn != null) {
+            patient.addIdentifier().setSystem(PatientFhirRepository.PERSONNUMMER_SYSTEM).setValue(pn);
+        }
+        patient.addName().addGiven(given).setFamily(family);
+        return patient;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
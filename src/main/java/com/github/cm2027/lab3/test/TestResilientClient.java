@@ -0,0 +1,165 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.client.CircuitOpenException;
+import com.github.cm2027.lab3.client.RequestPriority;
+import com.github.cm2027.lab3.client.ResilientHttpClient;
+import com.github.cm2027.lab3.client.RetryPolicy;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises retries and the circuit breaker against a local stub server.
+ * Patient fails twice with 503 before succeeding, Observation always fails,
+ * Bundle returns a body that callers keep open.
+ */
+public class TestResilientClient {
+
+    public static void main(String[] args) {
+
+        HttpServer server = null;
+        AtomicInteger patientCalls = new AtomicInteger();
+        AtomicInteger observationCalls = new AtomicInteger();
+
+        try {
+            server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/fhir/Patient", exchange -> {
+                int status = patientCalls.incrementAndGet() <= 2 ? 503 : 200;
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            });
+            server.createContext("/fhir/Observation", exchange -> {
+                observationCalls.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                exchange.close();
+            });
+            server.createContext("/fhir/Bundle", exchange -> {
+                byte[] body = "{\"resourceType\":\"Bundle\"}".getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(body);
+                }
+            });
+            server.start();
+
+            String baseUrl = "http://localhost:" + server.getAddress().getPort() + "/fhir";
+            ResilientHttpClient client = new ResilientHttpClient(
+                    HttpClients.createDefault(), baseUrl, new RetryPolicy(3, 50, 200, false), 3, 1000);
+
+            System.out.println("=== Testing Resilient HTTP Client ===\n");
+
+            System.out.println("1. GET Patient, server fails twice then recovers...");
+            try (CloseableHttpResponse response = client.execute(new HttpGet(baseUrl + "/Patient"))) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                System.out.println("Status: " + response.getStatusLine().getStatusCode()
+                        + " after " + patientCalls.get() + " attempts");
+            }
+
+            System.out.println("\n2. POST Patient is not retried...");
+            patientCalls.set(0);
+            try (CloseableHttpResponse response = client.execute(new HttpPost(baseUrl + "/Patient"))) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                System.out.println("Status: " + response.getStatusLine().getStatusCode()
+                        + " after " + patientCalls.get() + " attempt(s)");
+            }
+
+            System.out.println("\n2b. PUT Patient is not retried either...");
+            patientCalls.set(0);
+            try (CloseableHttpResponse response = client.execute(new HttpPut(baseUrl + "/Patient/1"))) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                System.out.println("Status: " + response.getStatusLine().getStatusCode()
+                        + " after " + patientCalls.get() + " attempt(s)");
+            }
+
+            System.out.println("\n3. Observation keeps failing until the circuit opens...");
+            for (int i = 1; i <= 3; i++) {
+                try (CloseableHttpResponse response = client.execute(new HttpGet(baseUrl + "/Observation"))) {
+                    EntityUtils.consumeQuietly(response.getEntity());
+                    System.out.println("Call " + i + ": status " + response.getStatusLine().getStatusCode());
+                } catch (CircuitOpenException e) {
+                    System.out.println("Call " + i + ": rejected - " + e.getMessage());
+                }
+            }
+            System.out.println("Requests that reached the server: " + observationCalls.get());
+            System.out.println("Circuit state: " + client.getCircuitState("Observation"));
+
+            System.out.println("\n4. After the open period a probe is let through...");
+            Thread.sleep(1100);
+            try (CloseableHttpResponse response = client.execute(new HttpGet(baseUrl + "/Observation"))) {
+                EntityUtils.consumeQuietly(response.getEntity());
+                System.out.println("Probe status: " + response.getStatusLine().getStatusCode());
+            } catch (CircuitOpenException e) {
+                System.out.println("Probe failed and the circuit re-opened");
+            }
+            System.out.println("Circuit state: " + client.getCircuitState("Observation"));
+
+            System.out.println("\n5. Open batch responses keep their connection slot...");
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager();
+            pool.setMaxTotal(20);
+            pool.setDefaultMaxPerRoute(20);
+            ResilientHttpClient pooled = new ResilientHttpClient(
+                    HttpClients.custom().setConnectionManager(pool).build(), baseUrl,
+                    new RetryPolicy(1, 50, 200, false), 3, 1000);
+            List<CloseableHttpResponse> open = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch done = new CountDownLatch(8);
+            for (int i = 0; i < 8; i++) {
+                new Thread(() -> RequestPriority.run(RequestPriority.BATCH, () -> {
+                    try {
+                        // Not read or closed here: the caller is still paging through it
+                        open.add(pooled.execute(new HttpGet(baseUrl + "/Bundle")));
+                    } catch (IOException e) {
+                        System.out.println("Batch request failed: " + e.getMessage());
+                    } finally {
+                        done.countDown();
+                    }
+                })).start();
+            }
+            Thread.sleep(500);
+            int inFlight = pooled.getAdmission().inFlight(RequestPriority.BATCH);
+            System.out.println("Batch requests in flight: " + inFlight + ", responses open: " + open.size());
+            if (inFlight != 4 || open.size() != 4) {
+                throw new IllegalStateException("Expected 4 batch requests in flight while responses are open");
+            }
+            while (!done.await(100, TimeUnit.MILLISECONDS) || !open.isEmpty()) {
+                synchronized (open) {
+                    for (CloseableHttpResponse response : open) {
+                        EntityUtils.consumeQuietly(response.getEntity());
+                        response.close();
+                    }
+                    open.clear();
+                }
+            }
+            System.out.println("In flight after closing: " + pooled.getAdmission().inFlight(RequestPriority.BATCH));
+            pooled.close();
+
+            System.out.println("\nMetrics:\n" + client.getMetrics().report());
+
+            client.close();
+            System.out.println("=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            if (server != null) {
+                server.stop(0);
+            }
+        }
+    }
+}
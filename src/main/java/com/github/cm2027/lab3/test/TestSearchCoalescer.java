@@ -0,0 +1,70 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.dao.fhir.PatientFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.SearchCoalescer;
+import com.github.cm2027.lab3.util.VirtualThreads;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestSearchCoalescer {
+
+    private static final int SESSIONS = 50;
+
+    public static void main(String[] args) {
+
+        PatientFhirRepository patientRepo = new PatientFhirRepository();
+        SearchCoalescer coalescer = SearchCoalescer.getInstance();
+        String testPN = null;
+
+        try {
+            System.out.println("=== Testing Search Coalescing ===\n");
+
+            testPN = "19700101-" + (System.currentTimeMillis() % 10000);
+            System.out.println("0. Setup: Creating patient with PN: " + testPN);
+            patientRepo.createPatient(testPN, "Karin", "Berg", "KVINNA", null, null);
+
+            System.out.println("\n1. " + SESSIONS + " sessions look up the same patient at once...");
+            long executedBefore = coalescer.getExecutedCount();
+            long coalescedBefore = coalescer.getCoalescedCount();
+
+            String pn = testPN;
+            CountDownLatch start = new CountDownLatch(1);
+            CountDownLatch done = new CountDownLatch(SESSIONS);
+            AtomicInteger failures = new AtomicInteger();
+            ExecutorService executor = VirtualThreads.newPerTaskExecutor("coalescer-test");
+
+            for (int i = 0; i < SESSIONS; i++) {
+                executor.submit(() -> {
+                    try {
+                        start.await();
+                        patientRepo.findByPN(pn);
+                    } catch (Exception e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                });
+            }
+
+            start.countDown();
+            done.await();
+            executor.shutdown();
+
+            System.out.println("HTTP searches sent: " + (coalescer.getExecutedCount() - executedBefore));
+            System.out.println("Searches served by a shared response: "
+                    + (coalescer.getCoalescedCount() - coalescedBefore));
+            System.out.println("Failures: " + failures.get());
+
+            System.out.println("\n2. Cleanup: Deleting patient...");
+            patientRepo.deletePatient(testPN, true);
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.config.MongoConfig;
+import com.github.cm2027.lab3.dao.mongodb.UserRepository;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.service.SessionStore;
+
+/**
+ * Exercises session tokens in memory, then, when an existing username is
+ * given as an argument, revocation between two servers sharing the
+ * MongoDB sessions collection.
+ */
+public class TestSessionStore {
+
+    public static void main(String[] args) {
+
+        try {
+            System.out.println("=== Testing Session Store ===\n");
+
+            System.out.println("1. Issue, resolve and revoke in memory...");
+            SessionStore local = new SessionStore(60_000, false, 0);
+            User user = new User("session-test", null, User.Role.PATIENT, "19700101-0000");
+            String token = local.issue(user);
+            check(local.resolve(token) == user, "token resolves to its user");
+            check(local.resolve(token + "x") == null, "unknown token doesn't resolve");
+            local.revoke(token);
+            check(local.resolve(token) == null, "revoked token doesn't resolve");
+
+            System.out.println("\n2. Unused sessions expire...");
+            SessionStore shortLived = new SessionStore(200, false, 0);
+            String expiring = shortLived.issue(user);
+            Thread.sleep(300);
+            check(shortLived.resolve(expiring) == null, "expired token doesn't resolve");
+            check(shortLived.getActiveCount() == 0, "expired session is dropped from memory");
+
+            if (args.length >= 1) {
+                System.out.println("\n3. Revocation on one server reaches another...");
+                User stored = new UserRepository().findByUsername(args[0]);
+                if (stored == null) {
+                    throw new IllegalArgumentException("No such user: " + args[0]);
+                }
+                SessionStore serverA = new SessionStore(60_000, true, 100);
+                SessionStore serverB = new SessionStore(60_000, true, 100);
+                String shared = serverA.issue(stored);
+                check(serverB.resolve(shared) != null, "server B loads the session from MongoDB");
+                serverA.revoke(shared);
+                Thread.sleep(200);
+                check(serverB.resolve(shared) == null, "server B stops accepting it after the recheck");
+                check(serverB.resolve(shared) == null, "and it stays revoked");
+            } else {
+                System.out.println("\n3. Skipped: pass an existing username to test revocation across servers");
+            }
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            MongoConfig.close();
+        }
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.util.StreamUtil;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exercises StreamUtil.Cursor (paging, items) and Cursor.merge (order,
+ * duplicates, laziness and the end of the result) with in-memory pages,
+ * so it needs no server.
+ */
+public class TestStreamUtil {
+
+    public static void main(String[] args) {
+
+        try {
+            System.out.println("=== Testing Stream Util ===\n");
+
+            System.out.println("1. Cursor...");
+            AtomicInteger loads = new AtomicInteger();
+            StreamUtil.Cursor<Integer> cursor = pages(loads, List.of(1, 2), List.of(), List.of(3));
+            check(loads.get() == 0, "nothing fetched before the first page");
+            check(cursor.next().equals(List.of(1, 2)) && loads.get() == 1, "one page per next()");
+            List<Integer> rest = new ArrayList<>();
+            cursor.items().forEachRemaining(rest::add);
+            check(rest.equals(List.of(3)) && !cursor.hasNext(), "items() skips empty pages");
+            StreamUtil.Cursor<Integer> empty = pages(loads, List.<Integer>of());
+            check(empty.hasNext() && empty.next().isEmpty() && !empty.hasNext(), "empty result is one empty page");
+            check(throwsNoSuchElement(empty), "next() past the end throws");
+
+            System.out.println("\n2. Merge...");
+            StreamUtil.Cursor<Integer> merged = StreamUtil.Cursor.merge(
+                    pages(loads, List.of(1, 3), List.of(5, 8)), pages(loads, List.of(2, 3), List.of(9)),
+                    Comparator.naturalOrder(), n -> n, 2);
+            List<List<Integer>> result = drain(merged);
+            check(result.equals(List.of(List.of(1, 2), List.of(3, 5), List.of(8, 9))), "sorted, duplicate once");
+
+            List<Item> left = List.of(new Item(1, "a"), new Item(2, "b"), new Item(2, "c"));
+            List<Item> right = List.of(new Item(2, "c"), new Item(2, "d"), new Item(3, "a"));
+            List<String> ids = new ArrayList<>();
+            StreamUtil.Cursor.merge(pages(loads, left), pages(loads, right),
+                    Comparator.comparingInt(item -> item.key), item -> item.id, 10)
+                    .items().forEachRemaining(item -> ids.add(item.id));
+            check(ids.equals(List.of("a", "b", "c", "d", "a")), "equal keys kept, same ID in a later run kept");
+
+            System.out.println("\n3. End of the result...");
+            merged = StreamUtil.Cursor.merge(pages(loads, List.of(1, 2), List.of()), pages(loads, List.<Integer>of()),
+                    Comparator.naturalOrder(), n -> n, 2);
+            check(merged.next().equals(List.of(1, 2)), "first page full");
+            check(!merged.hasNext(), "no page after it when the sources' last pages are empty");
+            merged = StreamUtil.Cursor.merge(pages(loads, List.of(1, 2)), pages(loads, List.of(2)),
+                    Comparator.naturalOrder(), n -> n, 2);
+            check(merged.next().equals(List.of(1, 2)) && !merged.hasNext(), "no page of duplicates only");
+            merged = StreamUtil.Cursor.merge(pages(loads, List.<Integer>of()), pages(loads, List.<Integer>of()),
+                    Comparator.naturalOrder(), n -> n, 2);
+            check(merged.hasNext() && merged.next().isEmpty() && !merged.hasNext(), "empty merge is one empty page");
+
+            System.out.println("\n4. Laziness...");
+            AtomicInteger firstLoads = new AtomicInteger();
+            AtomicInteger secondLoads = new AtomicInteger();
+            merged = StreamUtil.Cursor.merge(
+                    pages(firstLoads, List.of(1, 2), List.of(3, 4), List.of(5, 6)),
+                    pages(secondLoads, List.of(10), List.of(11)),
+                    Comparator.naturalOrder(), n -> n, 2);
+            check(firstLoads.get() == 0 && secondLoads.get() == 0, "nothing fetched before the first page");
+            merged.next();
+            check(firstLoads.get() == 2 && secondLoads.get() == 1, "only as far as the next page's first element");
+            check(throwsIllegalArgument(), "page size must be positive");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * A cursor over the given pages, counting the pages loaded.
+     */
+    @SafeVarargs
+    private static <E> StreamUtil.Cursor<E> pages(AtomicInteger loads, List<E>... pages) {
+        return StreamUtil.Cursor.<Integer, E>of(
+                previous -> {
+                    loads.incrementAndGet();
+                    return previous == null ? 0 : previous + 1;
+                },
+                index -> index < pages.length - 1,
+                index -> pages[index]);
+    }
+
+    private static <E> List<List<E>> drain(StreamUtil.Cursor<E> cursor) {
+        List<List<E>> result = new ArrayList<>();
+        while (cursor.hasNext()) {
+            result.add(cursor.next());
+        }
+        return result;
+    }
+
+    private static boolean throwsNoSuchElement(StreamUtil.Cursor<?> cursor) {
+        try {
+            cursor.next();
+            return false;
+        } catch (NoSuchElementException e) {
+            return true;
+        }
+    }
+
+    private static boolean throwsIllegalArgument() {
+        try {
+            StreamUtil.Cursor<Integer> none = pages(new AtomicInteger(), List.of());
+            StreamUtil.Cursor.merge(none, none, Comparator.naturalOrder(), n -> n, 0);
+            return false;
+        } catch (IllegalArgumentException e) {
+            return true;
+        }
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+
+    private static final class Item {
+
+        private final int key;
+        private final String id;
+
+        Item(int key, String id) {
+            this.key = key;
+            this.id = id;
+        }
+    }
+}
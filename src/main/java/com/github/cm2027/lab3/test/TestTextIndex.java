@@ -0,0 +1,147 @@
+package com.github.cm2027.lab3.test;
+
+import ca.uhn.fhir.rest.api.MethodOutcome;
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+import com.github.cm2027.lab3.ClientSingleton;
+import com.github.cm2027.lab3.dao.fhir.CommunicationFhirRepository;
+import com.github.cm2027.lab3.dao.fhir.ObservationFhirRepository;
+import com.github.cm2027.lab3.fhirserver.InMemoryFhirServer;
+import com.github.cm2027.lab3.search.SwedishAnalyzer;
+import com.github.cm2027.lab3.search.TextIndex;
+import com.github.cm2027.lab3.util.ConfigurationUtil;
+import org.hl7.fhir.r4.model.Communication;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Reference;
+import org.hl7.fhir.r4.model.StringType;
+
+import java.util.List;
+
+/**
+ * Exercises SwedishAnalyzer and TextIndex (posting lists, the leapfrog
+ * intersection, phrases, scopes and versions) against an
+ * InMemoryFhirServer, so it needs no shared server.
+ */
+public class TestTextIndex {
+
+    private static final int OBSERVATIONS = 300;
+
+    public static void main(String[] args) {
+        InMemoryFhirServer server = new InMemoryFhirServer();
+
+        try {
+            System.out.println("=== Testing Text Index ===\n");
+
+            System.out.println("1. Analyzer...");
+            check(SwedishAnalyzer.tokenize("Läkaren").equals(SwedishAnalyzer.tokenize("läkare")),
+                    "läkaren and läkare share a stem");
+            check(SwedishAnalyzer.tokenize("Högt blodtryck, 140/90!").equals(List.of("högt", "blodtryck", "140", "90")),
+                    "punctuation splits terms, case is folded");
+            check(SwedishAnalyzer.tokenize("  ,.! ").isEmpty(), "no terms in punctuation");
+
+            server.start(0);
+            ConfigurationUtil.set("hapi.fhir.base-url", server.getBaseUrl());
+            ConfigurationUtil.set("search.poll-interval-ms", "0");
+            IGenericClient client = ClientSingleton.getInstance();
+
+            System.out.println("\n2. Loading messages and observations...");
+            client.create().resource(message("CM-1", "Practitioner/d1", "Patient/p1",
+                    "Läkaren har skickat provsvaren")).execute();
+            client.create().resource(message("CM-2", "Practitioner/d2", "Patient/p1",
+                    "Provsvaren från den andra mottagningen")).execute();
+            Communication foreign = message(null, "Practitioner/d1", "Patient/p1", "Provsvaren från någon annan");
+            client.create().resource(foreign).execute();
+            // Gaps between matching documents span several varint bytes
+            for (int i = 0; i < OBSERVATIONS; i++) {
+                String text = "rutinkontroll" + (i % 7 == 0 ? " avvikelse" : "") + (i % 11 == 0 ? " uppföljning" : "");
+                client.create().resource(observation("OBS-" + i, "Patient/p" + (i % 2 + 1), text)).execute();
+            }
+            client.create().resource(observation("OBS-BP", "Patient/p1", "Högt blodtryck uppmätt")).execute();
+
+            TextIndex index = TextIndex.getInstance();
+            List<TextIndex.Hit> hits = index.search("provsvar", null, null, 10);
+            check(hits.size() == 2, "the foreign message is not indexed");
+            check(index.getDocumentCount() == OBSERVATIONS + 3, "documents indexed");
+            check(index.search("läkare", null, null, 10).size() == 1, "stemmed query matches");
+
+            System.out.println("\n3. Intersection...");
+            hits = index.search("avvikelse uppföljning", null, "Observation", OBSERVATIONS);
+            int expected = 0;
+            for (int i = 0; i < OBSERVATIONS; i++) {
+                expected += i % 77 == 0 ? 1 : 0;
+            }
+            check(hits.size() == expected, "documents with both terms: " + expected);
+            check(hits.get(0).getIdentifier().equals("OBS-231"), "newest first");
+            check(index.search("avvikelse uppföljning", null, "Observation", 2).size() == 2, "limit keeps the newest");
+            check(index.search("rutinkontroll", "Patient/p1", null, OBSERVATIONS).size() == OBSERVATIONS / 2,
+                    "scope halves the matches");
+            check(index.search("rutinkontroll saknas", null, null, 10).isEmpty(), "unknown term matches nothing");
+
+            System.out.println("\n4. Phrases...");
+            check(index.search("\"högt blodtryck\"", null, null, 10).size() == 1, "phrase in order");
+            check(index.search("\"blodtryck högt\"", null, null, 10).isEmpty(), "phrase out of order");
+            check(index.search("högt uppmätt", null, null, 10).size() == 1, "terms apart");
+            check(index.search("\"högt uppmätt\"", null, null, 10).isEmpty(), "phrase with a gap");
+
+            System.out.println("\n5. Doctor searching a patient's records...");
+            hits = index.search("provsvar", "Patient/p1", null, "Practitioner/d1", 10);
+            check(hits.size() == 1 && hits.get(0).getIdentifier().equals("CM-1"), "only the doctor's own message");
+            check(index.search("blodtryck", "Patient/p1", null, "Practitioner/d1", 10).size() == 1,
+                    "observations are not limited by the peer");
+
+            System.out.println("\n6. Updates and versions...");
+            MethodOutcome created = client.create().resource(observation("OBS-V", "Patient/p1", "Lågt järnvärde")).execute();
+            Observation stale = (Observation) client.read().resource(Observation.class)
+                    .withId(created.getId().toUnqualifiedVersionless()).execute();
+            Observation updated = observation("OBS-V", "Patient/p1", "Normalt järnvärde");
+            updated.setId(created.getId().toUnqualifiedVersionless());
+            client.update().resource(updated).execute();
+            index.poll();
+            check(index.search("normalt", null, null, 10).size() == 1, "poll picks up the update");
+            check(index.search("lågt", null, null, 10).isEmpty(), "old text is gone");
+            index.onSaved(stale);
+            check(index.search("normalt", null, null, 10).size() == 1, "an older version doesn't replace it");
+
+            client.delete().resourceById(new IdType("Observation", created.getId().getIdPart())).execute();
+            index.poll();
+            check(index.search("järnvärde", null, null, 10).isEmpty(), "poll picks up the delete");
+            System.out.println("Posting lists: " + index.getPostingBytes() + " bytes");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static Communication message(String identifier, String sender, String recipient, String text) {
+        Communication comm = new Communication();
+        if (identifier != null) {
+            comm.addIdentifier().setSystem(CommunicationFhirRepository.COMMUNICATION_ID_SYSTEM).setValue(identifier);
+        }
+        comm.setStatus(Communication.CommunicationStatus.COMPLETED);
+        comm.setSender(new Reference(sender));
+        comm.addRecipient(new Reference(recipient));
+        comm.addPayload().setContent(new StringType(text));
+        return comm;
+    }
+
+    private static Observation observation(String identifier, String patientRef, String text) {
+        Observation observation = new Observation();
+        observation.addIdentifier().setSystem(ObservationFhirRepository.OBSERVATION_ID_SYSTEM).setValue(identifier);
+        observation.setStatus(Observation.ObservationStatus.FINAL);
+        observation.setSubject(new Reference(patientRef));
+        observation.setValue(new StringType(text));
+        return observation;
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
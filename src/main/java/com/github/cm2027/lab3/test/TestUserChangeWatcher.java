@@ -0,0 +1,115 @@
+package com.github.cm2027.lab3.test;
+
+import com.github.cm2027.lab3.dao.mongodb.UserChangeWatcher;
+import com.github.cm2027.lab3.model.mongo.User;
+import com.github.cm2027.lab3.service.SessionStore;
+import com.mongodb.MongoClientSettings;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonObjectId;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.ObjectId;
+
+/**
+ * Exercises how SessionStore follows changes to the users collection:
+ * the listener methods directly, then UserChangeWatcher.handle with
+ * change events decoded from BSON, so it needs neither MongoDB nor a
+ * replica set.
+ */
+public class TestUserChangeWatcher {
+
+    public static void main(String[] args) {
+
+        try {
+            System.out.println("=== Testing User Change Watcher ===\n");
+
+            System.out.println("1. Session store listener...");
+            SessionStore store = new SessionStore(60_000, false, 0);
+            User patient = user("watch-patient", User.Role.PATIENT);
+            User other = user("watch-other", User.Role.PATIENT);
+            String token = store.issue(patient);
+            String otherToken = store.issue(other);
+
+            User promoted = user("watch-patient", User.Role.DOCTOR);
+            promoted.setId(patient.getId());
+            store.onUserChanged(promoted);
+            check(store.resolve(token).getRole() == User.Role.DOCTOR, "changed role applies to the session");
+            check(store.resolve(otherToken).getRole() == User.Role.PATIENT, "other users' sessions untouched");
+
+            store.onUserDeleted(patient.getId());
+            check(store.resolve(token) == null, "deleted user's session revoked");
+            check(store.resolve(otherToken) != null, "other users' sessions kept");
+
+            store.issue(patient);
+            store.onReset();
+            check(store.getActiveCount() == 0, "reset clears every cached session");
+
+            System.out.println("\n2. Change events...");
+            UserChangeWatcher watcher = UserChangeWatcher.getInstance();
+            SessionStore watched = new SessionStore(60_000, false, 0);
+            watcher.addListener(watched);
+            User doctor = user("watch-doctor", User.Role.DOCTOR);
+            token = watched.issue(doctor);
+            otherToken = watched.issue(other);
+
+            BsonDocument changed = new Document("_id", doctor.getId())
+                    .append("username", doctor.getUsername())
+                    .append("role", User.Role.RECEPTIONIST.toString())
+                    .toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+            check(handleEvent(watcher, event("update", doctor.getId()).append("fullDocument", changed)),
+                    "update keeps the stream open");
+            check(watched.resolve(token).getRole() == User.Role.RECEPTIONIST, "update applies the new role");
+
+            check(handleEvent(watcher, event("delete", doctor.getId())), "delete keeps the stream open");
+            check(watched.resolve(token) == null, "delete revokes the user's session");
+            check(watched.resolve(otherToken) != null, "and only that user's");
+
+            check(handleEvent(watcher, event("delete", null)), "delete with an unknown key keeps the stream open");
+            check(watched.getActiveCount() == 0, "and resets, since the user can't be told");
+
+            check(!handleEvent(watcher, event("invalidate", null)), "invalidate reopens the stream");
+            check(watcher.getResumeToken() == null, "without resuming, so listeners get reset on reopening");
+
+            System.out.println("\n=== All tests passed! ===");
+
+        } catch (Exception e) {
+            System.err.println("Error: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    private static User user(String username, User.Role role) {
+        User user = new User(username, null, role, "19700101-0000");
+        user.setId(new ObjectId());
+        return user;
+    }
+
+    /**
+     * A change event as the server sends it, keyed by the given user ID,
+     * or by a string ID when it is null.
+     */
+    private static BsonDocument event(String operationType, ObjectId userId) {
+        return new BsonDocument("_id", new BsonDocument("_data", new BsonString(new ObjectId().toHexString())))
+                .append("operationType", new BsonString(operationType))
+                .append("ns", new BsonDocument("db", new BsonString("lab3")).append("coll", new BsonString("users")))
+                .append("documentKey", new BsonDocument("_id",
+                        userId != null ? new BsonObjectId(userId) : new BsonString("not-an-object-id")));
+    }
+
+    private static boolean handleEvent(UserChangeWatcher watcher, BsonDocument event) {
+        ChangeStreamDocument<Document> change = ChangeStreamDocument
+                .createCodec(Document.class, MongoClientSettings.getDefaultCodecRegistry())
+                .decode(new BsonDocumentReader(event), DecoderContext.builder().build());
+        return watcher.handle(change);
+    }
+
+    private static void check(boolean condition, String description) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + description);
+        }
+        System.out.println("OK: " + description);
+    }
+}
@@ -0,0 +1,304 @@
+package com.github.cm2027.lab3.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Interval tree of half-open intervals [start, end) with a unique key each.
+ *
+ * A balanced (AVL) search tree ordered by start, where every node also
+ * holds the largest end in its subtree. That lets overlap queries skip
+ * every subtree that ends before the query starts, so finding an overlap
+ * takes O(log n) and listing the k overlapping intervals O(log n + k).
+ *
+ * Not thread-safe.
+ */
+public class IntervalTree<V> {
+
+    private final Map<String, Node<V>> byKey = new HashMap<>();
+    private Node<V> root;
+
+    /**
+     * Add an interval, replacing any interval with the same key.
+     */
+    public void put(String key, long start, long end, V value) {
+        if (end < start) {
+            throw new IllegalArgumentException("end must not be before start");
+        }
+        remove(key);
+        Node<V> node = new Node<>(key, start, end, value);
+        root = insert(root, node);
+        byKey.put(key, node);
+    }
+
+    /**
+     * Remove the interval with the given key. Returns its value, or null.
+     */
+    public V remove(String key) {
+        Node<V> node = byKey.remove(key);
+        if (node == null) {
+            return null;
+        }
+        root = delete(root, node);
+        return node.value;
+    }
+
+    public V get(String key) {
+        Node<V> node = byKey.get(key);
+        return node == null ? null : node.value;
+    }
+
+    public boolean containsKey(String key) {
+        return byKey.containsKey(key);
+    }
+
+    public int size() {
+        return byKey.size();
+    }
+
+    public void clear() {
+        byKey.clear();
+        root = null;
+    }
+
+    /**
+     * Value of an interval overlapping [start, end) whose key isn't
+     * excludeKey (may be null), or null if there is none.
+     */
+    public V findOverlap(long start, long end, String excludeKey) {
+        Node<V> node = firstOverlap(root, start, end, excludeKey);
+        return node == null ? null : node.value;
+    }
+
+    /**
+     * Values of all intervals overlapping [start, end), ordered by start.
+     */
+    public List<V> overlapping(long start, long end) {
+        List<V> result = new ArrayList<>();
+        collect(root, start, end, result);
+        return result;
+    }
+
+    /**
+     * The parts of [from, to) that no interval covers, in order.
+     */
+    public List<Range> gaps(long from, long to) {
+        List<Range> gaps = new ArrayList<>();
+        List<Node<V>> covering = new ArrayList<>();
+        collectNodes(root, from, to, covering);
+
+        long cursor = from;
+        for (Node<V> node : covering) {
+            if (node.start > cursor) {
+                gaps.add(new Range(cursor, node.start));
+            }
+            cursor = Math.max(cursor, node.end);
+        }
+        if (cursor < to) {
+            gaps.add(new Range(cursor, to));
+        }
+        return gaps;
+    }
+
+    private Node<V> firstOverlap(Node<V> node, long start, long end, String excludeKey) {
+        if (node == null || node.maxEnd <= start) {
+            return null;
+        }
+        Node<V> found = firstOverlap(node.left, start, end, excludeKey);
+        if (found != null) {
+            return found;
+        }
+        if (node.start >= end) {
+            // Everything to the right starts even later
+            return null;
+        }
+        if (node.end > start && !node.key.equals(excludeKey)) {
+            return node;
+        }
+        return firstOverlap(node.right, start, end, excludeKey);
+    }
+
+    private void collect(Node<V> node, long start, long end, List<V> result) {
+        List<Node<V>> nodes = new ArrayList<>();
+        collectNodes(node, start, end, nodes);
+        for (Node<V> n : nodes) {
+            result.add(n.value);
+        }
+    }
+
+    private void collectNodes(Node<V> node, long start, long end, List<Node<V>> result) {
+        if (node == null || node.maxEnd <= start) {
+            return;
+        }
+        collectNodes(node.left, start, end, result);
+        if (node.start >= end) {
+            return;
+        }
+        if (node.end > start) {
+            result.add(node);
+        }
+        collectNodes(node.right, start, end, result);
+    }
+
+    private Node<V> insert(Node<V> node, Node<V> added) {
+        if (node == null) {
+            return added;
+        }
+        if (compare(added, node) < 0) {
+            node.left = insert(node.left, added);
+        } else {
+            node.right = insert(node.right, added);
+        }
+        return balance(node);
+    }
+
+    private Node<V> delete(Node<V> node, Node<V> removed) {
+        if (node == null) {
+            return null;
+        }
+        if (node == removed) {
+            if (node.left == null) {
+                return node.right;
+            }
+            if (node.right == null) {
+                return node.left;
+            }
+            // Put the smallest node of the right subtree in its place
+            Node<V> successor = min(node.right);
+            successor.right = deleteMin(node.right);
+            successor.left = node.left;
+            return balance(successor);
+        }
+        if (compare(removed, node) < 0) {
+            node.left = delete(node.left, removed);
+        } else {
+            node.right = delete(node.right, removed);
+        }
+        return balance(node);
+    }
+
+    private Node<V> deleteMin(Node<V> node) {
+        if (node.left == null) {
+            return node.right;
+        }
+        node.left = deleteMin(node.left);
+        return balance(node);
+    }
+
+    private static <V> Node<V> min(Node<V> node) {
+        while (node.left != null) {
+            node = node.left;
+        }
+        return node;
+    }
+
+    private static <V> int compare(Node<V> a, Node<V> b) {
+        int byStart = Long.compare(a.start, b.start);
+        return byStart != 0 ? byStart : a.key.compareTo(b.key);
+    }
+
+    private Node<V> balance(Node<V> node) {
+        update(node);
+        int balance = height(node.left) - height(node.right);
+        if (balance > 1) {
+            if (height(node.left.left) < height(node.left.right)) {
+                node.left = rotateLeft(node.left);
+            }
+            return rotateRight(node);
+        }
+        if (balance < -1) {
+            if (height(node.right.right) < height(node.right.left)) {
+                node.right = rotateRight(node.right);
+            }
+            return rotateLeft(node);
+        }
+        return node;
+    }
+
+    private Node<V> rotateRight(Node<V> node) {
+        Node<V> left = node.left;
+        node.left = left.right;
+        left.right = node;
+        update(node);
+        update(left);
+        return left;
+    }
+
+    private Node<V> rotateLeft(Node<V> node) {
+        Node<V> right = node.right;
+        node.right = right.left;
+        right.left = node;
+        update(node);
+        update(right);
+        return right;
+    }
+
+    private static <V> void update(Node<V> node) {
+        node.height = 1 + Math.max(height(node.left), height(node.right));
+        long maxEnd = node.end;
+        if (node.left != null) {
+            maxEnd = Math.max(maxEnd, node.left.maxEnd);
+        }
+        if (node.right != null) {
+            maxEnd = Math.max(maxEnd, node.right.maxEnd);
+        }
+        node.maxEnd = maxEnd;
+    }
+
+    private static <V> int height(Node<V> node) {
+        return node == null ? 0 : node.height;
+    }
+
+    /**
+     * A half-open range [start, end).
+     */
+    public static final class Range {
+
+        private final long start;
+        private final long end;
+
+        public Range(long start, long end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getEnd() {
+            return end;
+        }
+
+        public long length() {
+            return end - start;
+        }
+
+        @Override
+        public String toString() {
+            return "[" + start + ", " + end + ")";
+        }
+    }
+
+    private static final class Node<V> {
+
+        private final String key;
+        private final long start;
+        private final long end;
+        private final V value;
+        private Node<V> left;
+        private Node<V> right;
+        private int height = 1;
+        private long maxEnd;
+
+        Node(String key, long start, long end, V value) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.value = value;
+            this.maxEnd = end;
+        }
+    }
+}
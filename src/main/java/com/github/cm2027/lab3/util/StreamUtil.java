@@ -1,11 +1,18 @@
 package com.github.cm2027.lab3.util;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.Spliterator;
 import java.util.Spliterators;
+import java.util.function.Consumer;
 import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Stream;
 import java.util.stream.StreamSupport;
 
@@ -26,52 +33,241 @@ public class StreamUtil<T extends IBaseResource> {
     }
 
     public Stream<T> streamAll(Function<IGenericClient, Bundle> fetch) {
-        Iterator<T> iterator = new Iterator<>() {
-            private Bundle currentBundle = null;
-            private Iterator<T> currentIterator = Collections.emptyIterator();
-
-            private void loadNextBundleIfNeeded() {
-                try {
-                    while (!currentIterator.hasNext()) {
-                        if (currentBundle == null) {
-                            // Initial load
-                            currentBundle = fetch.apply(client);
-                        } else if (currentBundle.getLink(Bundle.LINK_NEXT) != null) {
-                            // Load next page
-                            currentBundle = client.loadPage().next(currentBundle).execute();
+        return cursor(fetch).stream();
+    }
+
+    /**
+     * A cursor over the pages of a search. Nothing is fetched until the
+     * first call to next(), and each later page only when it is asked for.
+     */
+    public Cursor<T> cursor(Function<IGenericClient, Bundle> fetch) {
+        return cursor(fetch, bundle -> {
+        });
+    }
+
+    /**
+     * Like cursor(fetch), calling onPage with each Bundle before its
+     * resources are returned.
+     */
+    public Cursor<T> cursor(Function<IGenericClient, Bundle> fetch, Consumer<Bundle> onPage) {
+        return Cursor.of(
+                previous -> previous == null
+                        ? fetch.apply(client)
+                        : client.loadPage().next(previous).execute(),
+                bundle -> bundle.getLink(Bundle.LINK_NEXT) != null,
+                bundle -> {
+                    onPage.accept(bundle);
+                    return BundleUtil.toListOfResourcesOfType(client.getFhirContext(), bundle, resourceType);
+                });
+    }
+
+    /**
+     * Loads one page of a paged result. previous is null for the first page.
+     */
+    @FunctionalInterface
+    public interface PageLoader<P> {
+        P load(P previous) throws Exception;
+    }
+
+    /**
+     * Pages of a result, fetched one at a time on demand.
+     *
+     * hasNext() is true until a page says it is the last one, so a cursor
+     * over an empty result returns one empty page. Not thread-safe.
+     */
+    public abstract static class Cursor<E> implements Iterator<List<E>> {
+
+        /**
+         * A cursor over pages of type P: loader fetches them, hasMore tells
+         * whether a page has a successor and items extracts its elements.
+         */
+        public static <P, E> Cursor<E> of(PageLoader<P> loader, Predicate<P> hasMore, Function<P, List<E>> items) {
+            return new Cursor<>() {
+                private P current;
+                private boolean done;
+
+                @Override
+                public boolean hasNext() {
+                    return !done;
+                }
+
+                @Override
+                protected List<E> fetch() throws Exception {
+                    current = loader.load(current);
+                    done = current == null || !hasMore.test(current);
+                    return current == null ? List.of() : items.apply(current);
+                }
+            };
+        }
+
+        /**
+         * Merge two cursors that are each sorted by order into one sorted
+         * cursor with pages of pageSize. Elements with the same identity are
+         * returned once; they must also be equal by order, as only the
+         * identities of the current run of equal elements are remembered.
+         * Source pages are fetched only as far as the first element of the
+         * next page, so hasNext() is false once nothing remains.
+         */
+        public static <E> Cursor<E> merge(Cursor<? extends E> first, Cursor<? extends E> second,
+                                          Comparator<? super E> order, Function<? super E, ?> identity,
+                                          int pageSize) {
+            if (pageSize < 1) {
+                throw new IllegalArgumentException("pageSize must be positive");
+            }
+            Peeking<E> a = new Peeking<>(first);
+            Peeking<E> b = new Peeking<>(second);
+
+            return new Cursor<>() {
+                private final Set<Object> seen = new HashSet<>();
+                private E last;
+                private E pending;
+                private boolean hasPending;
+                private boolean started;
+
+                @Override
+                public boolean hasNext() {
+                    // Before the first page, don't fetch: a cursor over
+                    // nothing returns one empty page like Cursor.of
+                    return started ? hasPending : a.mayHaveNext() || b.mayHaveNext();
+                }
+
+                @Override
+                protected List<E> fetch() {
+                    if (!started) {
+                        started = true;
+                        advance();
+                    }
+                    List<E> page = new ArrayList<>(pageSize);
+                    while (hasPending && page.size() < pageSize) {
+                        page.add(pending);
+                        advance();
+                    }
+                    return page;
+                }
+
+                /**
+                 * Find the next element not returned yet.
+                 */
+                private void advance() {
+                    hasPending = false;
+                    pending = null;
+                    while (true) {
+                        boolean hasA = a.hasNext();
+                        boolean hasB = b.hasNext();
+                        if (!hasA && !hasB) {
+                            return;
+                        }
+                        E next;
+                        if (!hasB || (hasA && order.compare(a.peek(), b.peek()) <= 0)) {
+                            next = a.next();
                         } else {
-                            // No more pages
-                            currentIterator = Collections.emptyIterator();
+                            next = b.next();
+                        }
+                        if (last == null || order.compare(last, next) != 0) {
+                            seen.clear();
+                        }
+                        last = next;
+                        if (seen.add(identity.apply(next))) {
+                            pending = next;
+                            hasPending = true;
                             return;
                         }
-
-                        currentIterator = BundleUtil
-                                .toListOfResourcesOfType(client.getFhirContext(), currentBundle, resourceType)
-                                .iterator();
                     }
-                } catch (Exception e) {
-                    throw new RuntimeException("Error fetching resources", e);
                 }
+            };
+        }
+
+        @Override
+        public List<E> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
             }
+            try {
+                return fetch();
+            } catch (RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new RuntimeException("Error fetching resources", e);
+            }
+        }
+
+        protected abstract List<E> fetch() throws Exception;
+
+        /**
+         * The elements of all remaining pages, fetching pages as they are reached.
+         */
+        public Iterator<E> items() {
+            return new Iterator<>() {
+                private Iterator<E> page = Collections.emptyIterator();
+
+                @Override
+                public boolean hasNext() {
+                    while (!page.hasNext() && Cursor.this.hasNext()) {
+                        page = Cursor.this.next().iterator();
+                    }
+                    return page.hasNext();
+                }
+
+                @Override
+                public E next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return page.next();
+                }
+            };
+        }
+
+        public Stream<E> stream() {
+            return StreamSupport.stream(
+                    Spliterators.spliteratorUnknownSize(items(), Spliterator.ORDERED), false);
+        }
+    }
 
-            @Override
-            public boolean hasNext() {
-                loadNextBundleIfNeeded();
-                return currentIterator.hasNext();
+    /**
+     * One element of lookahead over a cursor's elements.
+     */
+    private static final class Peeking<E> {
+
+        private final Cursor<? extends E> cursor;
+        private Iterator<? extends E> page = Collections.emptyIterator();
+        private E head;
+        private boolean hasHead;
+
+        Peeking(Cursor<? extends E> cursor) {
+            this.cursor = cursor;
+        }
+
+        /**
+         * False only if the elements are known to be exhausted, without fetching.
+         */
+        boolean mayHaveNext() {
+            return hasHead || page.hasNext() || cursor.hasNext();
+        }
+
+        boolean hasNext() {
+            while (!hasHead && !page.hasNext() && cursor.hasNext()) {
+                page = cursor.next().iterator();
             }
+            return hasHead || page.hasNext();
+        }
 
-            @Override
-            public T next() {
-                loadNextBundleIfNeeded();
-                if (!currentIterator.hasNext()) {
+        E peek() {
+            if (!hasHead) {
+                if (!hasNext()) {
                     throw new NoSuchElementException();
                 }
-                return currentIterator.next();
+                head = page.next();
+                hasHead = true;
             }
-        };
+            return head;
+        }
 
-        return StreamSupport.stream(
-                Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false);
+        E next() {
+            E next = peek();
+            hasHead = false;
+            head = null;
+            return next;
+        }
     }
-
 }
@@ -0,0 +1,81 @@
+package com.github.cm2027.lab3.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the threads used for background and fan-out work.
+ * Uses virtual threads when the JVM has them (Java 21+) and falls back to
+ * daemon platform threads otherwise, so the project still compiles with
+ * release 11.
+ */
+public final class VirtualThreads {
+
+    private static final MethodHandle NEW_PER_TASK_EXECUTOR = findStatic(
+            Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+    private static final MethodHandle START_VIRTUAL_THREAD = findStatic(
+            Thread.class, "startVirtualThread", MethodType.methodType(Thread.class, Runnable.class));
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * True when the running JVM supports virtual threads.
+     */
+    public static boolean isAvailable() {
+        return NEW_PER_TASK_EXECUTOR != null;
+    }
+
+    /**
+     * Executor that runs every task on its own thread.
+     */
+    public static ExecutorService newPerTaskExecutor(String namePrefix) {
+        if (NEW_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_PER_TASK_EXECUTOR.invoke();
+            } catch (Throwable ignored) {
+            }
+        }
+        return Executors.newCachedThreadPool(daemonFactory(namePrefix));
+    }
+
+    /**
+     * Start a single background thread running the task.
+     */
+    public static Thread start(String name, Runnable task) {
+        if (START_VIRTUAL_THREAD != null) {
+            try {
+                Thread thread = (Thread) START_VIRTUAL_THREAD.invoke(task);
+                thread.setName(name);
+                return thread;
+            } catch (Throwable ignored) {
+            }
+        }
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    private static ThreadFactory daemonFactory(String namePrefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private static MethodHandle findStatic(Class<?> owner, String name, MethodType type) {
+        try {
+            return MethodHandles.publicLookup().findStatic(owner, name, type);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            return null;
+        }
+    }
+}